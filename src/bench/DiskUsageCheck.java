@@ -0,0 +1,198 @@
+package bench;
+
+import client.FileClient;
+import server.DiskUsage;
+import server.FileServer;
+import server.ServerConfig;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * 磁盘用量统计的回环校验工具
+ * 以临时根目录建立一棵较大的目录树，用单线程扫描启动服务器，在初始扫描进行期间不断上传、删除、建目录和移动，
+ * 扫描结束后把服务器增量维护的统计与重新完整扫描的结果逐个目录比较，有差异时以非0状态退出
+ *
+ * 用法: java bench.DiskUsageCheck [dirs=200] [files=500] [seed=1]
+ */
+public class DiskUsageCheck {
+    private int dirs = 200;
+    private int files = 500;
+    private long seed = 1;
+
+    private Path workDir;
+
+    /**
+     * 构造函数
+     * @param options key=value形式的参数
+     */
+    public DiskUsageCheck(Map<String, String> options) {
+        dirs = Integer.parseInt(options.getOrDefault("dirs", String.valueOf(dirs)));
+        files = Integer.parseInt(options.getOrDefault("files", String.valueOf(files)));
+        seed = Long.parseLong(options.getOrDefault("seed", String.valueOf(seed)));
+    }
+
+    /**
+     * 执行校验并打印结果
+     * @return 有差异的目录数
+     */
+    public int run() throws Exception {
+        workDir = Files.createTempDirectory("jrfm-du-check");
+        try {
+            Path root = workDir.resolve("root");
+            for (int d = 0; d < dirs; d++) {
+                Path directory = Files.createDirectories(root.resolve(String.format("d%03d", d)));
+                for (int f = 0; f < files; f++) {
+                    Files.write(directory.resolve("f" + f), new byte[f % 97]);
+                }
+            }
+            Path local = workDir.resolve("upload.bin");
+            Files.write(local, new byte[12345]);
+            System.out.println("已建立 " + dirs + " 个目录, " + (long) dirs * files + " 个文件");
+
+            ServerConfig config = new ServerConfig();
+            config.setMetadataDirectory(workDir.resolve("meta").toString());
+            config.setHashScanIntervalSeconds(0);
+            config.setDiskUsageParallelism(1);
+            FileServer server = new FileServer(0, root.toString(), config);
+            Thread serverThread = new Thread(server::start, "file-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            try {
+                long waitUntil = System.currentTimeMillis() + 10000;
+                while (server.getLocalPort() <= 0) {
+                    if (System.currentTimeMillis() > waitUntil || !serverThread.isAlive()) {
+                        throw new IllegalStateException("服务器启动失败");
+                    }
+                    Thread.sleep(10);
+                }
+                FileClient client = new FileClient("localhost", server.getLocalPort());
+                client.setSslContext(null);
+                if (!client.connect()) {
+                    throw new IllegalStateException("无法连接服务器");
+                }
+                int duringScan = writeWhileScanning(client, server.getDiskUsage(), local.toString());
+                while (!server.getDiskUsage().isReady()) {
+                    Thread.sleep(10);
+                }
+                client.disconnect();
+                System.out.println("扫描期间完成的写命令: " + duringScan);
+                if (duringScan == 0) {
+                    System.out.println("扫描结束得太快，请增大 dirs 或 files");
+                }
+                return compare(server, config, root);
+            } finally {
+                server.shutdown(1000);
+            }
+        } finally {
+            deleteTree(workDir);
+        }
+    }
+
+    /**
+     * 在初始扫描结束之前循环执行各种写命令
+     * @return 扫描结束之前完成的写命令数
+     */
+    private int writeWhileScanning(FileClient client, DiskUsage usage, String local) throws IOException {
+        Random random = new Random(seed);
+        List<String> created = new ArrayList<>();
+        int count = 0;
+        for (int i = 0; !usage.isReady(); i++) {
+            String directory = String.format("/d%03d", random.nextInt(dirs));
+            switch (i % 6) {
+                case 0:
+                    client.uploadFile(local, directory + "/up" + i);
+                    break;
+                case 1:
+                    client.deleteFile(directory + "/f" + random.nextInt(files));
+                    break;
+                case 2:
+                    client.createDirectory(directory + "/new" + i);
+                    client.uploadFile(local, directory + "/new" + i + "/inner");
+                    created.add(directory + "/new" + i);
+                    break;
+                case 3:
+                    client.renameFile(directory + "/f" + random.nextInt(files),
+                            String.format("/d%03d/moved%d", random.nextInt(dirs), i));
+                    break;
+                case 4:
+                    if (!created.isEmpty()) {
+                        String source = created.remove(random.nextInt(created.size()));
+                        String target = String.format("/d%03d/renamed%d", random.nextInt(dirs), i);
+                        client.renameFile(source, target);
+                        created.add(target);
+                    }
+                    break;
+                default:
+                    if (!created.isEmpty()) {
+                        client.deleteFile(created.remove(random.nextInt(created.size())));
+                    }
+                    break;
+            }
+            if (!usage.isReady()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 逐个目录比较服务器的统计与重新完整扫描的结果
+     * @return 有差异的目录数
+     */
+    private int compare(FileServer server, ServerConfig config, Path root) throws IOException {
+        DiskUsage fresh = new DiskUsage(server.getVolumes(), server.getPackStore(), config);
+        fresh.scan();
+        List<Path> directories = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.filter(Files::isDirectory).forEach(directories::add);
+        }
+        int mismatches = 0;
+        for (Path directory : directories) {
+            DiskUsage.Usage expected = fresh.get(directory);
+            DiskUsage.Usage actual = server.getDiskUsage().get(directory);
+            if (actual == null || expected.getBytes() != actual.getBytes() || expected.getFiles() != actual.getFiles()
+                    || expected.getDirectories() != actual.getDirectories()) {
+                mismatches++;
+                System.out.println("不一致: " + server.getVolumes().toProtocolPath(directory) + " 期望 " + describe(expected)
+                        + ", 实际 " + describe(actual));
+            }
+        }
+        System.out.println("比较 " + directories.size() + " 个目录, " + (mismatches == 0 ? "全部一致" : mismatches + " 个不一致"));
+        return mismatches;
+    }
+
+    private static String describe(DiskUsage.Usage usage) {
+        return usage == null ? "无统计" : usage.getBytes() + " 字节/" + usage.getFiles() + " 文件/" + usage.getDirectories() + " 目录";
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("参数格式应为 key=value: " + arg);
+                return;
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        System.exit(new DiskUsageCheck(options).run() == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,438 @@
+package bench;
+
+import client.FileClient;
+import server.FileServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * 回环压力测试工具
+ * 在本机回环地址上以临时根目录启动文件服务器，用多个并发客户端会话按给定的命令比例
+ * 和文件大小分布施加负载，统计每种命令的吞吐量、延迟分位数以及建立连接的耗时
+ *
+ * 用法: java bench.LoadTest [clients=8] [duration=30] [seedFiles=8]
+ *                          [mix=LIST:40,DOWNLOAD:30,UPLOAD:20,RENAME:5,DELETE:5]
+ *                          [sizes=4K:50,64K:30,1M:15,16M:5]
+ */
+public class LoadTest {
+    private static final String[] COMMANDS = {"LIST", "DOWNLOAD", "UPLOAD", "RENAME", "DELETE"};
+    private static final String CONNECT = "CONNECT";
+
+    private int clients = 8;
+    private int durationSeconds = 30;
+    private int seedFilesPerSize = 8;
+    private WeightedChoice<String> commandMix;
+    private WeightedChoice<Long> sizeMix;
+
+    private Path serverRoot;
+    private Path localRoot;
+    private FileServer server;
+
+    /**
+     * 构造函数
+     * @param options key=value形式的参数
+     */
+    public LoadTest(Map<String, String> options) {
+        clients = Integer.parseInt(options.getOrDefault("clients", String.valueOf(clients)));
+        durationSeconds = Integer.parseInt(options.getOrDefault("duration", String.valueOf(durationSeconds)));
+        seedFilesPerSize = Integer.parseInt(options.getOrDefault("seedFiles", String.valueOf(seedFilesPerSize)));
+
+        commandMix = new WeightedChoice<>();
+        for (Map.Entry<String, Integer> entry : parseWeights(options.getOrDefault("mix", "LIST:40,DOWNLOAD:30,UPLOAD:20,RENAME:5,DELETE:5")).entrySet()) {
+            String command = entry.getKey().toUpperCase();
+            if (!Arrays.asList(COMMANDS).contains(command)) {
+                throw new IllegalArgumentException("不支持的命令: " + command);
+            }
+            commandMix.add(command, entry.getValue());
+        }
+
+        sizeMix = new WeightedChoice<>();
+        for (Map.Entry<String, Integer> entry : parseWeights(options.getOrDefault("sizes", "4K:50,64K:30,1M:15,16M:5")).entrySet()) {
+            sizeMix.add(parseSize(entry.getKey()), entry.getValue());
+        }
+    }
+
+    /**
+     * 执行压力测试并打印报告
+     */
+    public void run() throws Exception {
+        serverRoot = Files.createTempDirectory("jrfm-load-server");
+        localRoot = Files.createTempDirectory("jrfm-load-client");
+        try {
+            prepareFiles();
+            startServer();
+
+            System.out.println("开始压测: " + clients + " 个客户端, 持续 " + durationSeconds + " 秒");
+            long deadline = System.nanoTime() + durationSeconds * 1_000_000_000L;
+            Worker[] workers = new Worker[clients];
+            Thread[] threads = new Thread[clients];
+            long startTime = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                workers[i] = new Worker(i, server.getLocalPort(), deadline);
+                threads[i] = new Thread(workers[i], "load-client-" + i);
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+
+            Map<String, Stats> merged = new LinkedHashMap<>();
+            merged.put(CONNECT, new Stats());
+            for (String command : COMMANDS) {
+                merged.put(command, new Stats());
+            }
+            for (Worker worker : workers) {
+                for (Map.Entry<String, Stats> entry : worker.stats.entrySet()) {
+                    merged.get(entry.getKey()).merge(entry.getValue());
+                }
+            }
+            printReport(merged, elapsedSeconds);
+        } finally {
+            if (server != null) {
+                server.shutdown();
+            }
+            deleteTree(serverRoot);
+            deleteTree(localRoot);
+        }
+    }
+
+    /**
+     * 在服务器根目录下生成种子文件，在本地生成上传源文件
+     */
+    private void prepareFiles() throws IOException {
+        Path seedDir = Files.createDirectories(serverRoot.resolve("seed"));
+        for (long size : sizeMix.values()) {
+            for (int i = 0; i < seedFilesPerSize; i++) {
+                writeRandomFile(seedDir.resolve(seedName(size, i)), size);
+            }
+            writeRandomFile(localRoot.resolve("upload_" + size + ".bin"), size);
+        }
+    }
+
+    /**
+     * 在回环地址上启动服务器并等待其开始监听
+     */
+    private void startServer() throws InterruptedException {
+        server = new FileServer(0, serverRoot.toString());
+        Thread serverThread = new Thread(server::start, "file-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        long waitUntil = System.currentTimeMillis() + 10000;
+        while (server.getLocalPort() <= 0) {
+            if (System.currentTimeMillis() > waitUntil || !serverThread.isAlive()) {
+                throw new IllegalStateException("服务器启动失败");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * 打印统计报告
+     */
+    private void printReport(Map<String, Stats> merged, double elapsedSeconds) {
+        System.out.println();
+        System.out.printf("压测结束，耗时 %.1f 秒%n", elapsedSeconds);
+        System.out.printf("%-10s %10s %8s %10s %10s %10s %10s %10s%n",
+                "命令", "次数", "错误", "ops/s", "MB/s", "p50(ms)", "p99(ms)", "p999(ms)");
+
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (Map.Entry<String, Stats> entry : merged.entrySet()) {
+            Stats stats = entry.getValue();
+            if (stats.count == 0 && stats.errors == 0) {
+                continue;
+            }
+            if (!CONNECT.equals(entry.getKey())) {
+                totalOps += stats.count;
+                totalBytes += stats.bytes;
+            }
+            System.out.printf("%-10s %10d %8d %10.1f %10.2f %10.3f %10.3f %10.3f%n",
+                    entry.getKey(), stats.count, stats.errors,
+                    stats.count / elapsedSeconds, stats.bytes / elapsedSeconds / (1024 * 1024),
+                    stats.percentile(0.50), stats.percentile(0.99), stats.percentile(0.999));
+        }
+        System.out.printf("%-10s %10d %8s %10.1f %10.2f%n", "合计", totalOps, "",
+                totalOps / elapsedSeconds, totalBytes / elapsedSeconds / (1024 * 1024));
+    }
+
+    /**
+     * 单个模拟客户端会话
+     */
+    private class Worker implements Runnable {
+        private final int id;
+        private final int port;
+        private final long deadline;
+        private final String workDir;
+        private final List<String> ownedFiles = new ArrayList<>();
+        private final Map<String, Stats> stats = new LinkedHashMap<>();
+        private int sequence;
+
+        Worker(int id, int port, long deadline) {
+            this.id = id;
+            this.port = port;
+            this.deadline = deadline;
+            this.workDir = "/work/c" + id + "/";
+            stats.put(CONNECT, new Stats());
+            for (String command : COMMANDS) {
+                stats.put(command, new Stats());
+            }
+        }
+
+        @Override
+        public void run() {
+            Random random = ThreadLocalRandom.current();
+            FileClient client = new FileClient("127.0.0.1", port);
+
+            long start = System.nanoTime();
+            if (!client.connect()) {
+                stats.get(CONNECT).errors++;
+                return;
+            }
+            stats.get(CONNECT).record(System.nanoTime() - start, 0);
+
+            try {
+                client.createDirectory(workDir);
+                while (System.nanoTime() < deadline) {
+                    String command = commandMix.pick(random);
+                    if (("RENAME".equals(command) || "DELETE".equals(command)) && ownedFiles.isEmpty()) {
+                        command = "UPLOAD";
+                    }
+                    execute(client, command, random);
+                }
+            } catch (IOException e) {
+                System.err.println("客户端 " + id + " 初始化失败: " + e.getMessage());
+            } finally {
+                client.disconnect();
+            }
+        }
+
+        /**
+         * 执行一次命令并记录耗时
+         */
+        private void execute(FileClient client, String command, Random random) {
+            Stats commandStats = stats.get(command);
+            long bytes = 0;
+            boolean success;
+            long start = System.nanoTime();
+            try {
+                switch (command) {
+                    case "LIST":
+                        // 绕过客户端元数据缓存，测量的是服务器
+                        client.listFiles(random.nextBoolean() ? "/seed/" : workDir, true);
+                        success = true;
+                        break;
+
+                    case "DOWNLOAD": {
+                        long size = sizeMix.pick(random);
+                        String remote = "/seed/" + seedName(size, random.nextInt(seedFilesPerSize));
+                        Path local = localRoot.resolve("download_" + id + ".bin");
+                        success = client.downloadFile(remote, local.toString());
+                        bytes = size;
+                        break;
+                    }
+
+                    case "UPLOAD": {
+                        long size = sizeMix.pick(random);
+                        String remote = workDir + "f" + (sequence++) + ".bin";
+                        success = client.uploadFile(localRoot.resolve("upload_" + size + ".bin").toString(), remote);
+                        if (success) {
+                            ownedFiles.add(remote);
+                        }
+                        bytes = size;
+                        break;
+                    }
+
+                    case "RENAME": {
+                        int index = random.nextInt(ownedFiles.size());
+                        String renamed = workDir + "r" + (sequence++) + ".bin";
+                        success = client.renameFile(ownedFiles.get(index), renamed);
+                        if (success) {
+                            ownedFiles.set(index, renamed);
+                        }
+                        break;
+                    }
+
+                    case "DELETE": {
+                        int index = random.nextInt(ownedFiles.size());
+                        success = client.deleteFile(ownedFiles.get(index));
+                        if (success) {
+                            ownedFiles.remove(index);
+                        }
+                        break;
+                    }
+
+                    default:
+                        throw new IllegalArgumentException("未知命令: " + command);
+                }
+            } catch (IOException e) {
+                success = false;
+            }
+
+            if (success) {
+                commandStats.record(System.nanoTime() - start, bytes);
+            } else {
+                commandStats.errors++;
+            }
+        }
+    }
+
+    /**
+     * 单个命令的统计数据，延迟以纳秒记录
+     */
+    private static class Stats {
+        private long[] latencies = new long[1024];
+        private int count;
+        private long errors;
+        private long bytes;
+
+        void record(long latencyNanos, long transferredBytes) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+            bytes += transferredBytes;
+        }
+
+        void merge(Stats other) {
+            for (int i = 0; i < other.count; i++) {
+                record(other.latencies[i], 0);
+            }
+            bytes += other.bytes;
+            errors += other.errors;
+        }
+
+        /**
+         * 计算延迟分位数
+         * @param quantile 分位，如0.99
+         * @return 毫秒
+         */
+        double percentile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(quantile * count) - 1;
+            return sorted[Math.max(0, Math.min(index, count - 1))] / 1e6;
+        }
+    }
+
+    /**
+     * 按权重随机选择
+     */
+    private static class WeightedChoice<T> {
+        private final List<T> values = new ArrayList<>();
+        private final List<Integer> cumulative = new ArrayList<>();
+        private int total;
+
+        void add(T value, int weight) {
+            if (weight <= 0) {
+                return;
+            }
+            total += weight;
+            values.add(value);
+            cumulative.add(total);
+        }
+
+        List<T> values() {
+            return values;
+        }
+
+        T pick(Random random) {
+            int point = random.nextInt(total);
+            for (int i = 0; i < values.size(); i++) {
+                if (point < cumulative.get(i)) {
+                    return values.get(i);
+                }
+            }
+            return values.get(values.size() - 1);
+        }
+    }
+
+    private static String seedName(long size, int index) {
+        return "s" + size + "_" + index + ".bin";
+    }
+
+    /**
+     * 解析形如 A:1,B:2 的权重列表
+     */
+    private static Map<String, Integer> parseWeights(String spec) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String item : spec.split(",")) {
+            String[] parts = item.trim().split(":");
+            weights.put(parts[0].trim(), parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1);
+        }
+        return weights;
+    }
+
+    /**
+     * 解析文件大小，支持K/M/G后缀
+     */
+    private static long parseSize(String text) {
+        String value = text.trim().toUpperCase();
+        long unit = 1;
+        if (value.endsWith("K")) {
+            unit = 1024;
+        } else if (value.endsWith("M")) {
+            unit = 1024 * 1024;
+        } else if (value.endsWith("G")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) * unit;
+    }
+
+    private static void writeRandomFile(Path path, long size) throws IOException {
+        byte[] block = new byte[64 * 1024];
+        ThreadLocalRandom.current().nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(path)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int length = (int) Math.min(block.length, remaining);
+                out.write(block, 0, length);
+                remaining -= length;
+            }
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * 主方法，启动压力测试
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("参数格式应为 key=value: " + arg);
+                return;
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new LoadTest(options).run();
+    }
+}
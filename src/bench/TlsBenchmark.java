@@ -0,0 +1,272 @@
+package bench;
+
+import client.FileClient;
+import common.TlsChannel;
+import common.TlsSupport;
+import server.FileServer;
+import server.ServerConfig;
+
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * TLS 与明文传输的回环对比测试
+ * 用 keytool 生成临时自签名证书，分别以明文和TLS启动服务器，
+ * 测量并发下载/上传的吞吐量，以及明文连接、完整TLS握手和会话恢复三种情况下建立连接的耗时
+ *
+ * 用法: java bench.TlsBenchmark [clients=4] [size=32M] [rounds=4] [connects=50]
+ */
+public class TlsBenchmark {
+    private static final String PASSWORD = "jrfm-bench";
+
+    private int clients = 4;
+    private long fileSize = 32L * 1024 * 1024;
+    private int rounds = 4;
+    private int connects = 50;
+
+    private Path workDir;
+    private Path keyStore;
+
+    /**
+     * 构造函数
+     * @param options key=value形式的参数
+     */
+    public TlsBenchmark(Map<String, String> options) {
+        clients = Integer.parseInt(options.getOrDefault("clients", String.valueOf(clients)));
+        fileSize = ServerConfig.parseSize(options.getOrDefault("size", String.valueOf(fileSize)));
+        rounds = Integer.parseInt(options.getOrDefault("rounds", String.valueOf(rounds)));
+        connects = Integer.parseInt(options.getOrDefault("connects", String.valueOf(connects)));
+    }
+
+    /**
+     * 执行对比测试并打印报告
+     */
+    public void run() throws Exception {
+        workDir = Files.createTempDirectory("jrfm-tls-bench");
+        try {
+            keyStore = workDir.resolve("server.p12");
+            generateKeyStore(keyStore);
+            Path local = Files.createDirectories(workDir.resolve("local"));
+            writeRandomFile(local.resolve("upload.bin"), fileSize);
+            SSLContext clientContext = TlsSupport.createClientContext(keyStore.toString(), PASSWORD.toCharArray(), "PKCS12");
+
+            System.out.println("开始对比: " + clients + " 个客户端, 文件 " + fileSize / 1024 / 1024 + " MB, 每个客户端 " + rounds + " 轮");
+            Map<String, double[]> results = new LinkedHashMap<>();
+            results.put("明文", measureMode(false, null, local));
+            results.put("TLS", measureMode(true, clientContext, local));
+
+            System.out.println();
+            System.out.printf("%-8s %12s %12s%n", "模式", "下载MB/s", "上传MB/s");
+            for (Map.Entry<String, double[]> entry : results.entrySet()) {
+                System.out.printf("%-8s %12.1f %12.1f%n", entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+            }
+            double[] plain = results.get("明文");
+            double[] tls = results.get("TLS");
+            System.out.printf("TLS/明文: 下载 %.0f%%, 上传 %.0f%%%n", tls[0] * 100 / plain[0], tls[1] * 100 / plain[1]);
+        } finally {
+            deleteTree(workDir);
+        }
+    }
+
+    /**
+     * 测量一种传输方式
+     * @return 下载和上传的吞吐量(MB/s)
+     */
+    private double[] measureMode(boolean secure, SSLContext clientContext, Path local) throws Exception {
+        Path root = Files.createDirectories(workDir.resolve(secure ? "root-tls" : "root-plain"));
+        writeRandomFile(root.resolve("seed.bin"), fileSize);
+
+        ServerConfig config = new ServerConfig();
+        config.setMetadataDirectory(workDir.resolve(secure ? "meta-tls" : "meta-plain").toString());
+        config.setHashScanIntervalSeconds(0);
+        config.setMaxActiveSessions(Math.max(config.getMaxActiveSessions(), clients + 2));
+        if (secure) {
+            config.setTlsKeyStore(keyStore.toString());
+            config.setTlsKeyStorePassword(PASSWORD);
+            config.setTlsKeyStoreType("PKCS12");
+        }
+        FileServer server = new FileServer(0, root.toString(), config);
+        Thread serverThread = new Thread(server::start, "file-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        try {
+            long waitUntil = System.currentTimeMillis() + 10000;
+            while (server.getLocalPort() <= 0) {
+                if (System.currentTimeMillis() > waitUntil || !serverThread.isAlive()) {
+                    throw new IllegalStateException("服务器启动失败");
+                }
+                Thread.sleep(10);
+            }
+            int port = server.getLocalPort();
+
+            // 预热一轮，让JIT编译加解密和传输路径
+            runTransfers(port, clientContext, local, true, 1);
+            double download = runTransfers(port, clientContext, local, true, rounds);
+            double upload = runTransfers(port, clientContext, local, false, rounds);
+            measureConnects(port, clientContext);
+            return new double[]{download, upload};
+        } finally {
+            server.shutdown(1000);
+        }
+    }
+
+    /**
+     * 多个客户端同时下载或上传
+     * @return 总吞吐量(MB/s)
+     */
+    private double runTransfers(int port, SSLContext clientContext, Path local, boolean download, int count) throws Exception {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            int id = i;
+            Thread thread = new Thread(() -> {
+                FileClient client = new FileClient("localhost", port);
+                client.setSslContext(clientContext);
+                try {
+                    if (!client.connect()) {
+                        throw new IOException("连接失败");
+                    }
+                    for (int r = 0; r < count; r++) {
+                        boolean ok = download
+                                ? client.downloadFile("/seed.bin", local.resolve("down-" + id + ".bin").toString())
+                                : client.uploadFile(local.resolve("upload.bin").toString(), "/up-" + id + ".bin");
+                        if (!ok) {
+                            throw new IOException((download ? "下载" : "上传") + "失败");
+                        }
+                    }
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    client.disconnect();
+                }
+            }, "bench-client-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return (double) fileSize * clients * count / 1024 / 1024 / seconds;
+    }
+
+    /**
+     * 测量建立连接的耗时：明文时只有TCP连接；TLS时分别测量每次使用新上下文的完整握手
+     * 和共用上下文的会话恢复
+     */
+    private void measureConnects(int port, SSLContext clientContext) throws Exception {
+        if (clientContext == null) {
+            List<Double> plain = new ArrayList<>();
+            for (int i = 0; i < connects; i++) {
+                long start = System.nanoTime();
+                FileClient client = new FileClient("localhost", port);
+                client.setSslContext(null);
+                if (!client.connect()) {
+                    throw new IOException("连接失败");
+                }
+                client.ping();
+                plain.add((System.nanoTime() - start) / 1e6);
+                client.disconnect();
+            }
+            printLatency("明文连接", plain);
+            return;
+        }
+
+        List<Double> full = new ArrayList<>();
+        for (int i = 0; i < connects; i++) {
+            SSLContext fresh = TlsSupport.createClientContext(keyStore.toString(), PASSWORD.toCharArray(), "PKCS12");
+            full.add(timeHandshake(fresh, port));
+        }
+        // 先连接一次取得会话票据，之后的连接都可以恢复
+        timeHandshake(clientContext, port);
+        List<Double> resumed = new ArrayList<>();
+        for (int i = 0; i < connects; i++) {
+            resumed.add(timeHandshake(clientContext, port));
+        }
+        printLatency("TLS完整握手", full);
+        printLatency("TLS会话恢复", resumed);
+    }
+
+    private static double timeHandshake(SSLContext context, int port) throws IOException {
+        long start = System.nanoTime();
+        try (TlsChannel channel = TlsChannel.connect(context, "localhost", port, 10000)) {
+            channel.write(java.nio.ByteBuffer.wrap("PING\n".getBytes("UTF-8")));
+            channel.read(java.nio.ByteBuffer.allocate(256));
+            return (System.nanoTime() - start) / 1e6;
+        }
+    }
+
+    private static void printLatency(String name, List<Double> samples) {
+        Collections.sort(samples);
+        System.out.printf("%-12s p50 %.2f ms, p99 %.2f ms (%d 次)%n", name,
+                samples.get(samples.size() / 2), samples.get(Math.min(samples.size() - 1, (int) (samples.size() * 0.99))), samples.size());
+    }
+
+    /**
+     * 用 JDK 自带的 keytool 生成自签名证书，主机名为 localhost
+     */
+    private static void generateKeyStore(Path path) throws IOException, InterruptedException {
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(Arrays.asList(keytool, "-genkeypair", "-alias", "jrfm",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "2", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+                "-keystore", path.toString(), "-storepass", PASSWORD, "-keypass", PASSWORD))
+                .redirectErrorStream(true).start();
+        byte[] output = process.getInputStream().readAllBytes();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool 生成证书失败: " + new String(output));
+        }
+    }
+
+    private static void writeRandomFile(Path path, long size) throws IOException {
+        byte[] block = new byte[64 * 1024];
+        new Random(size).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(path)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int length = (int) Math.min(block.length, remaining);
+                out.write(block, 0, length);
+                remaining -= length;
+            }
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("参数格式应为 key=value: " + arg);
+                return;
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new TlsBenchmark(options).run();
+    }
+}
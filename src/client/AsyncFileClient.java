@@ -0,0 +1,181 @@
+package client;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步文件客户端
+ * 所有操作立即返回CompletableFuture，由后台线程在连接池中的独立连接上执行，
+ * 因此多个操作可以同时进行。取消返回的Future会同时停止正在进行的传输
+ */
+public class AsyncFileClient {
+    private final String serverAddress;
+    private final int serverPort;
+    private final ExecutorService executor;
+    private final BlockingQueue<FileClient> idleClients = new LinkedBlockingQueue<>();
+    private volatile boolean closed;
+
+    /**
+     * 构造函数
+     * @param serverAddress 服务器地址
+     * @param serverPort 服务器端口
+     * @param maxConnections 最大并发连接数，即同时执行的操作数
+     */
+    public AsyncFileClient(String serverAddress, int serverPort, int maxConnections) {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, maxConnections), r -> {
+            Thread thread = new Thread(r, "async-client-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 列出目录内容
+     */
+    public CompletableFuture<List<FileClient.FileItem>> listFiles(String path) {
+        return submit(client -> client.listFiles(path), null);
+    }
+
+    /**
+     * 下载文件
+     * @param listener 进度监听器，可为null
+     */
+    public CompletableFuture<Boolean> downloadFile(String remotePath, String localPath, TransferListener listener) {
+        return downloadFile(remotePath, localPath, new TransferTracker(listener));
+    }
+
+    /**
+     * 使用调用方提供的跟踪器下载文件
+     */
+    public CompletableFuture<Boolean> downloadFile(String remotePath, String localPath, TransferTracker tracker) {
+        return submit(client -> client.downloadFile(remotePath, localPath, tracker), tracker);
+    }
+
+    /**
+     * 上传文件
+     * @param listener 进度监听器，可为null
+     */
+    public CompletableFuture<Boolean> uploadFile(String localPath, String remotePath, TransferListener listener) {
+        return uploadFile(localPath, remotePath, new TransferTracker(listener));
+    }
+
+    /**
+     * 使用调用方提供的跟踪器上传文件
+     */
+    public CompletableFuture<Boolean> uploadFile(String localPath, String remotePath, TransferTracker tracker) {
+        return submit(client -> client.uploadFile(localPath, remotePath, tracker), tracker);
+    }
+
+    public CompletableFuture<Boolean> deleteFile(String path) {
+        return submit(client -> client.deleteFile(path), null);
+    }
+
+    public CompletableFuture<Boolean> createDirectory(String path) {
+        return submit(client -> client.createDirectory(path), null);
+    }
+
+    public CompletableFuture<Boolean> renameFile(String oldPath, String newPath) {
+        return submit(client -> client.renameFile(oldPath, newPath), null);
+    }
+
+    /**
+     * 关闭客户端，断开所有连接，未开始的操作不再执行
+     */
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+        FileClient client;
+        while ((client = idleClients.poll()) != null) {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * 提交操作
+     * @param call 在连接上执行的操作
+     * @param tracker 传输跟踪器，Future被取消时用它停止传输
+     */
+    private <T> CompletableFuture<T> submit(ClientCall<T> call, TransferTracker tracker) {
+        CompletableFuture<T> future = new CompletableFuture<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                if (tracker != null) {
+                    tracker.cancel();
+                }
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+
+        try {
+            executor.execute(() -> {
+                if (future.isDone()) {
+                    return;
+                }
+                FileClient client = null;
+                boolean reusable = false;
+                try {
+                    client = borrow();
+                    T result = call.call(client);
+                    // 取消的传输中途停止，连接中可能留有未读完的数据
+                    reusable = !future.isCancelled() && (tracker == null || !tracker.isCancelled());
+                    future.complete(result);
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    if (client != null) {
+                        release(client, reusable);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IOException("客户端已关闭"));
+        }
+        return future;
+    }
+
+    /**
+     * 取出一个空闲连接，没有时新建；线程数即为连接数上限
+     */
+    private FileClient borrow() throws IOException {
+        FileClient client = idleClients.poll();
+        if (client == null) {
+            client = new FileClient(serverAddress, serverPort);
+            if (!client.connect()) {
+                throw new IOException("无法连接到服务器");
+            }
+        }
+        return client;
+    }
+
+    /**
+     * 归还连接：只有操作正常完成的连接才放回空闲队列，出错、被取消或客户端已关闭时断开
+     */
+    private void release(FileClient client, boolean reusable) {
+        if (!reusable || closed) {
+            client.disconnect();
+            return;
+        }
+        idleClients.offer(client);
+        // 放回的同时 close 可能已经清空了空闲队列
+        if (closed && idleClients.remove(client)) {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * 在一个连接上执行的操作
+     */
+    private interface ClientCall<T> {
+        T call(FileClient client) throws IOException;
+    }
+}
@@ -0,0 +1,15 @@
+package client;
+
+/**
+ * 目录变化监听器
+ * 回调在监视线程上调用，实现中不应执行耗时操作
+ */
+public interface ChangeListener {
+    /**
+     * 服务器上的文件发生变化
+     * @param kind 变化类型 CREATED/MODIFIED/DELETED/RENAMED，或 RESYNC 表示可能遗漏了变化，应重新列出 path
+     * @param path 发生变化的路径
+     * @param newPath 重命名后的路径，其他类型为null
+     */
+    void onChange(String kind, String path, String newPath);
+}
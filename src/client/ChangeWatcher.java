@@ -0,0 +1,170 @@
+package client;
+
+import common.TlsChannel;
+import common.TlsSupport;
+
+import javax.net.ssl.SSLContext;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.channels.Channels;
+
+/**
+ * 目录变化监视器
+ * 在独立连接上发送WATCH命令并接收服务器推送的变化事件，避免轮询LIST。
+ * 连接断开后自动重连，重连后先回调一次RESYNC，因为断开期间的变化已无法得知
+ */
+public class ChangeWatcher {
+    public static final String RESYNC = "RESYNC";
+
+    private static final int READ_TIMEOUT_MILLIS = 45000; // 服务器每15秒发送一次心跳
+    private static final long MAX_RETRY_DELAY_MILLIS = 30000;
+
+    private final String serverAddress;
+    private final int serverPort;
+    private final String path;
+    private final boolean recursive;
+    private final ChangeListener listener;
+    private volatile boolean closed;
+    private volatile Closeable connection;
+    private Thread thread;
+
+    /**
+     * 构造函数
+     * @param serverAddress 服务器地址
+     * @param serverPort 服务器端口
+     * @param path 被监视的目录
+     * @param recursive 是否包含整个子树
+     * @param listener 变化监听器
+     */
+    public ChangeWatcher(String serverAddress, int serverPort, String path, boolean recursive, ChangeListener listener) {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.path = path;
+        this.recursive = recursive;
+        this.listener = listener;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * 在后台线程上开始监视
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this::run, "change-watcher " + path);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 停止监视并关闭连接
+     */
+    public void close() {
+        closed = true;
+        Closeable current = connection;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+        synchronized (this) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        long retryDelay = 1000;
+        boolean reconnecting = false;
+        while (!closed) {
+            Closeable current = null;
+            try {
+                // 与 FileClient 使用同样的TLS设置
+                InputStream rawIn;
+                OutputStream rawOut;
+                SSLContext sslContext = TlsSupport.defaultClientContext();
+                if (sslContext != null) {
+                    TlsChannel tls = TlsChannel.connect(sslContext, serverAddress, serverPort, READ_TIMEOUT_MILLIS);
+                    current = tls;
+                    rawIn = Channels.newInputStream(tls);
+                    rawOut = Channels.newOutputStream(tls);
+                } else {
+                    Socket plain = new Socket(serverAddress, serverPort);
+                    current = plain;
+                    plain.setSoTimeout(READ_TIMEOUT_MILLIS);
+                    rawIn = plain.getInputStream();
+                    rawOut = plain.getOutputStream();
+                }
+                connection = current;
+                if (closed) {
+                    return;
+                }
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(rawOut, "UTF-8"), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(rawIn, "UTF-8"));
+                out.println("WATCH|" + path + "|" + (recursive ? "1" : "0"));
+                String response = in.readLine();
+                if (response == null) {
+                    throw new IOException("服务器连接已关闭");
+                }
+                String[] parts = response.split("\\|", 3);
+                if (!"200".equals(parts[0])) {
+                    // 目录不存在等错误不会因重试而改变；服务器繁忙(503)则稍后重试
+                    if (!"503".equals(parts[0])) {
+                        System.err.println("监视目录失败: " + (parts.length > 1 ? parts[1] : response));
+                        return;
+                    }
+                    throw new IOException(parts.length > 1 ? parts[1] : response);
+                }
+                retryDelay = 1000;
+                if (reconnecting) {
+                    listener.onChange(RESYNC, path, null);
+                }
+                reconnecting = true;
+
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] event = line.split("\\|", 4);
+                    if (event.length < 3 || !"EVENT".equals(event[0]) || "PING".equals(event[1])) {
+                        continue;
+                    }
+                    listener.onChange(event[1], event[2], event.length > 3 ? event[3] : null);
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("监视连接中断，" + retryDelay / 1000 + "秒后重连: " + e.getMessage());
+                }
+            } finally {
+                connection = null;
+                if (current != null) {
+                    try {
+                        current.close();
+                    } catch (IOException e) {
+                        // 忽略
+                    }
+                }
+            }
+
+            try {
+                Thread.sleep(retryDelay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
+            reconnecting = true;
+        }
+    }
+}
@@ -3,6 +3,10 @@ package client;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -81,6 +85,55 @@ public class CommandLineInterface {
                         renameFile(args);
                         break;
                         
+                    case "du":
+                        showDiskUsage(args);
+                        break;
+                        
+                    case "quota":
+                        showQuotas(args);
+                        break;
+                        
+                    case "batch":
+                        runBatch(args);
+                        break;
+                        
+                    case "cp":
+                        copyFile(args);
+                        break;
+                        
+                    case "jobs":
+                        showCopyJobs(args);
+                        break;
+                        
+                    case "bandwidth":
+                        showBandwidth(args);
+                        break;
+                        
+                    case "volumes":
+                        showVolumes();
+                        break;
+                        
+                    case "find":
+                        findFiles(args);
+                        break;
+                        
+                    case "grep":
+                        grepFiles(args);
+                        break;
+                        
+                    case "hash":
+                        showHashes(args);
+                        break;
+                        
+                    case "sync":
+                        syncDirectory(args);
+                        break;
+                        
+                    case "refresh":
+                        client.getMetadataCache().clear();
+                        System.out.println("已清空目录缓存");
+                        break;
+                        
                     default:
                         System.out.println("未知命令: " + cmd);
                         System.out.println("输入 'help' 获取帮助");
@@ -108,6 +161,18 @@ public class CommandLineInterface {
         System.out.println("  delete <path>     - 删除文件或目录");
         System.out.println("  mkdir <path>      - 创建新目录");
         System.out.println("  rename <old> <new> - 重命名文件或目录");
+        System.out.println("  du [path]         - 查看目录子树占用的空间和文件数");
+        System.out.println("  quota [path size] - 查看或设置目录配额，size为0时取消");
+        System.out.println("  batch [-a] <file>  - 一次执行本地文件中的 mkdir/rename/delete 命令，-a 表示失败时全部撤销");
+        System.out.println("  cp <src> <dst>    - 在服务器上复制文件或目录");
+        System.out.println("  jobs [id] [cancel] - 查看复制作业的进度，或取消作业");
+        System.out.println("  bandwidth [key value] - 查看或调整带宽(global/connection/user/weight)");
+        System.out.println("  volumes           - 查看服务器存储卷的I/O状态和空间");
+        System.out.println("  find <pattern> [path] - 按文件名搜索，含 * ? [ 时为通配，否则为子串");
+        System.out.println("  grep [-e] <text> [path] [glob] - 在服务器上搜索文件内容，-e 表示正则表达式");
+        System.out.println("  hash <path...>    - 查看文件的SHA-256哈希");
+        System.out.println("  sync [-c] [-n] [-j N] <local> <remote> - 双向同步本地目录和远程目录，-c 比较哈希，-n 只显示计划，-j 并行传输数");
+        System.out.println("  refresh           - 清空目录缓存，下次列出时重新从服务器获取");
     }
     
     /**
@@ -153,8 +218,8 @@ public class CommandLineInterface {
             newPath += "/";
         }
         
-        // 验证目录是否存在
-        List<FileClient.FileItem> files = client.listFiles(newPath);
+        // 验证目录是否存在，结果进入缓存，随后的 ls 无需再次请求
+        client.listFiles(newPath);
         currentDirectory = newPath;
         System.out.println("当前目录: " + currentDirectory);
     }
@@ -278,6 +343,327 @@ public class CommandLineInterface {
         }
     }
     
+    /**
+     * 查看目录用量
+     */
+    private void showDiskUsage(String args) throws IOException {
+        String path = args.trim();
+        if (path.isEmpty()) {
+            path = currentDirectory;
+        } else if (!path.startsWith("/")) {
+            path = combinePath(currentDirectory, path);
+        }
+        FileClient.DirectoryUsage usage = client.getDiskUsage(path);
+        if (usage != null) {
+            System.out.println(usage);
+        }
+    }
+    
+    /**
+     * 查看或设置目录配额
+     */
+    private void showQuotas(String args) throws IOException {
+        String[] parts = args.trim().split("\\s+");
+        List<String> entries;
+        if (parts[0].isEmpty()) {
+            entries = client.getQuotas();
+        } else if (parts.length < 2) {
+            System.out.println("用法: quota [路径 大小]");
+            return;
+        } else {
+            String path = parts[0].startsWith("/") ? parts[0] : combinePath(currentDirectory, parts[0]);
+            entries = client.setQuota(path, parts[1]);
+        }
+        if (entries.isEmpty()) {
+            System.out.println("没有配额");
+        }
+        for (String entry : entries) {
+            String[] fields = entry.split(";");
+            if (fields.length < 4) {
+                continue;
+            }
+            System.out.println(fields[0] + ": 已用 " + fields[2] + " / 配额 " + fields[1] + " 字节, 预留 " + fields[3] + " 字节");
+        }
+    }
+    
+    /**
+     * 批量执行元数据操作
+     * 文件每行一条 mkdir/rename/delete 命令，格式与交互命令相同，空行和以#开头的行被忽略
+     */
+    private void runBatch(String args) throws IOException {
+        String[] parts = args.trim().split("\\s+", 2);
+        boolean atomic = parts[0].equals("-a");
+        String file = atomic ? (parts.length > 1 ? parts[1] : "") : args.trim();
+        if (file.isEmpty()) {
+            System.out.println("用法: batch [-a] <本地文件>");
+            return;
+        }
+        
+        List<String> operations = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            String op = fields[0].toLowerCase();
+            int arity = op.equals("rename") ? 2 : 1;
+            if (!(op.equals("mkdir") || op.equals("rename") || op.equals("delete")) || fields.length != arity + 1) {
+                System.out.println("无法识别的批处理命令: " + line);
+                return;
+            }
+            StringBuilder operation = new StringBuilder(op.toUpperCase());
+            for (int i = 1; i < fields.length; i++) {
+                String path = fields[i].startsWith("/") ? fields[i] : combinePath(currentDirectory, fields[i]);
+                operation.append('|').append(path);
+            }
+            operations.add(operation.toString());
+        }
+        if (operations.isEmpty()) {
+            System.out.println("文件中没有命令");
+            return;
+        }
+        
+        int succeeded = 0;
+        for (FileClient.BatchResult result : client.batch(operations, atomic)) {
+            if (result.isSuccess()) {
+                succeeded++;
+            } else {
+                System.out.println(result);
+            }
+        }
+        System.out.println("批处理完成: 成功 " + succeeded + " / " + operations.size());
+    }
+    
+    /**
+     * 在服务器上复制文件或目录
+     */
+    private void copyFile(String args) throws IOException {
+        String[] parts = args.split("\\s+", 2);
+        if (parts.length < 2) {
+            System.out.println("用法: cp <源路径> <目标路径>");
+            return;
+        }
+        
+        String sourcePath = parts[0];
+        String targetPath = parts[1];
+        
+        if (!sourcePath.startsWith("/")) {
+            sourcePath = combinePath(currentDirectory, sourcePath);
+        }
+        
+        if (!targetPath.startsWith("/")) {
+            targetPath = combinePath(currentDirectory, targetPath);
+        }
+        
+        FileClient.CopyJob job = client.copy(sourcePath, targetPath);
+        if (job == null) {
+            return;
+        }
+        if ("DONE".equals(job.getState())) {
+            System.out.println("复制完成: " + job);
+        } else if (!job.isFinished()) {
+            System.out.println("后台复制中，用 jobs " + job.getId() + " 查看进度: " + job);
+        }
+    }
+    
+    /**
+     * 查看或取消复制作业
+     */
+    private void showCopyJobs(String args) throws IOException {
+        String[] parts = args.trim().split("\\s+");
+        if (parts[0].isEmpty()) {
+            List<FileClient.CopyJob> jobs = client.listCopyJobs();
+            if (jobs.isEmpty()) {
+                System.out.println("没有复制作业");
+            }
+            for (FileClient.CopyJob job : jobs) {
+                System.out.println(job);
+            }
+            return;
+        }
+        
+        long id;
+        try {
+            id = Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            System.out.println("用法: jobs [作业编号] [cancel]");
+            return;
+        }
+        if (parts.length > 1 && "cancel".equalsIgnoreCase(parts[1])) {
+            if (client.cancelCopyJob(id)) {
+                System.out.println("已请求取消作业 " + id);
+            }
+            return;
+        }
+        FileClient.CopyJob job = client.getCopyJob(id);
+        if (job != null) {
+            System.out.println(job);
+        }
+    }
+    
+    /**
+     * 按文件名搜索
+     */
+    private void findFiles(String args) throws IOException {
+        String[] parts = args.trim().split("\\s+", 2);
+        if (parts[0].isEmpty()) {
+            System.out.println("请指定搜索内容");
+            return;
+        }
+        
+        String pattern = parts[0];
+        String path = parts.length > 1 ? parts[1] : currentDirectory;
+        if (!path.startsWith("/")) {
+            path = combinePath(currentDirectory, path);
+        }
+        String mode = pattern.matches(".*[*?\\[].*") ? "glob" : "substring";
+        List<FileClient.FileItem> results = client.search(mode, pattern, path, 1000);
+        for (FileClient.FileItem item : results) {
+            System.out.println(item);
+        }
+        System.out.println("共找到 " + results.size() + " 项");
+    }
+    
+    /**
+     * 搜索文件内容
+     */
+    private void grepFiles(String args) throws IOException {
+        String[] parts = args.trim().split("\\s+");
+        int index = 0;
+        String mode = "literal";
+        if (parts[0].equals("-e")) {
+            mode = "regex";
+            index++;
+        }
+        if (parts.length <= index || parts[index].isEmpty()) {
+            System.out.println("请指定搜索内容");
+            return;
+        }
+        
+        String pattern = parts[index];
+        String path = parts.length > index + 1 ? parts[index + 1] : currentDirectory;
+        if (!path.startsWith("/")) {
+            path = combinePath(currentDirectory, path);
+        }
+        String fileGlob = parts.length > index + 2 ? parts[index + 2] : "";
+        List<FileClient.GrepMatch> results = client.grep(mode, pattern, path, fileGlob, 1000);
+        for (FileClient.GrepMatch match : results) {
+            System.out.println(match);
+        }
+        System.out.println("共找到 " + results.size() + " 行");
+    }
+    
+    /**
+     * 批量查看文件哈希
+     */
+    private void showHashes(String args) throws IOException {
+        if (args.isEmpty()) {
+            System.out.println("请指定文件路径");
+            return;
+        }
+        
+        List<String> paths = new ArrayList<>();
+        for (String path : args.trim().split("\\s+")) {
+            paths.add(path.startsWith("/") ? path : combinePath(currentDirectory, path));
+        }
+        for (FileClient.FileHash hash : client.getHashes(paths)) {
+            System.out.println(hash);
+        }
+    }
+    
+    /**
+     * 双向同步本地目录和远程目录
+     */
+    private void syncDirectory(String args) throws IOException {
+        String[] parts = args.trim().split("\\s+");
+        boolean checksum = false;
+        boolean dryRun = false;
+        int workers = 4;
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i].equals("-c")) {
+                checksum = true;
+            } else if (parts[i].equals("-n")) {
+                dryRun = true;
+            } else if (parts[i].equals("-j") && i + 1 < parts.length) {
+                try {
+                    workers = Integer.parseInt(parts[++i]);
+                } catch (NumberFormatException e) {
+                    System.out.println("并行传输数格式错误: " + parts[i]);
+                    return;
+                }
+            } else if (!parts[i].isEmpty()) {
+                paths.add(parts[i]);
+            }
+        }
+        if (paths.size() != 2) {
+            System.out.println("用法: sync [-c] [-n] [-j N] <本地目录> <远程目录>");
+            return;
+        }
+        
+        String remotePath = paths.get(1).startsWith("/") ? paths.get(1) : combinePath(currentDirectory, paths.get(1));
+        FolderSync.Result result = client.sync(paths.get(0), remotePath, workers, checksum, dryRun);
+        for (String action : result.getPlan()) {
+            System.out.println(action);
+        }
+        for (String path : result.getConflicts()) {
+            System.out.println("冲突(文件与目录类型不同): " + path);
+        }
+        for (String path : result.getSkipped()) {
+            System.out.println("已跳过(名称含服务器不接受的字符或不是普通文件): " + path);
+        }
+        for (String failure : result.getFailures()) {
+            System.out.println("失败: " + failure);
+        }
+        System.out.println((dryRun ? "试运行完成: " : "同步完成: ") + result);
+    }
+    
+    /**
+     * 查看或调整服务器带宽
+     */
+    private void showBandwidth(String args) throws IOException {
+        List<String> entries;
+        if (args.isEmpty()) {
+            entries = client.getBandwidthReport();
+        } else {
+            String[] parts = args.split("\\s+", 2);
+            if (parts.length < 2) {
+                System.out.println("用法: bandwidth [global|connection|user|weight <值>]");
+                return;
+            }
+            entries = client.setBandwidth(parts[0], parts[1]);
+        }
+        
+        for (String entry : entries) {
+            String[] fields = entry.split(";");
+            if ("LIMITS".equals(fields[0]) && fields.length >= 4) {
+                System.out.println("带宽限制(字节/秒，0为不限): 全局=" + fields[1] + " 连接=" + fields[2] + " 用户=" + fields[3]);
+            } else if (fields.length >= 7) {
+                System.out.println("  " + fields[0] + " [" + fields[6] + "] 权重=" + fields[2]
+                        + " 当前=" + fields[3] + "B/s 平均=" + fields[4] + "B/s 已传=" + fields[5]);
+            }
+        }
+    }
+    
+    /**
+     * 查看服务器存储卷
+     */
+    private void showVolumes() throws IOException {
+        for (String entry : client.getVolumes()) {
+            String[] fields = entry.split(";");
+            if (fields.length < 10) {
+                continue;
+            }
+            long usable = Long.parseLong(fields[8]);
+            long total = Long.parseLong(fields[9]);
+            System.out.println(fields[0] + " -> " + fields[1]);
+            System.out.println("  I/O线程=" + fields[2] + " 未完成=" + fields[3] + " 已完成=" + fields[4]
+                    + " 读取=" + fields[5] + " 写入=" + fields[6] + " 等待=" + fields[7] + "ms"
+                    + (total > 0 ? " 可用=" + usable / 1024 / 1024 + "MB/" + total / 1024 / 1024 + "MB" : ""));
+        }
+    }
+    
     /**
      * 合并路径
      */
@@ -1,25 +1,59 @@
 package client;
 
+import common.BufferPool;
+import common.TlsChannel;
+import common.TlsSupport;
+
+import javax.net.ssl.SSLContext;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
 
 /**
  * 文件客户端主类
  * 负责与服务器建立连接并发送请求
  */
 public class FileClient {
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    /** 连接空闲超过该时长后，修改类命令之前先用PING确认会话仍然有效 */
+    private static final long IDLE_PROBE_MILLIS = 1000;
+    /** 只读的命令，连接被服务器关闭而没有响应时可以重连后重发 */
+    private static final Set<String> RETRYABLE_COMMANDS = Set.of("PING", "LIST", "LISTPAGE", "DOWNLOAD", "READ",
+            "HASH", "SEARCH", "GREP", "MANIFEST", "DU", "JOB", "VOLUMES");
+    
     private String serverAddress;
     private int serverPort;
     private Socket socket;
-    private BufferedReader in;
+    private SocketChannel channel;
+    private TlsChannel tlsChannel;
+    private ByteChannel dataChannel;
+    private SSLContext sslContext = TlsSupport.defaultClientContext();
     private PrintWriter out;
+    private ResponseInputStream responseIn;
     private DataInputStream dataIn;
     private DataOutputStream dataOut;
+    private final MetadataCache metadataCache = new MetadataCache();
+    /** 最近一次连接成功或收到响应行的时间(System.nanoTime) */
+    private long lastResponseAt;
     
     /**
      * 构造函数
@@ -37,12 +71,33 @@ public class FileClient {
      */
     public boolean connect() {
         try {
-            socket = new Socket(serverAddress, serverPort);
-            socket.setSoTimeout(30000); // 设置30秒超时
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
-            dataIn = new DataInputStream(socket.getInputStream());
-            dataOut = new DataOutputStream(socket.getOutputStream());
+            InputStream rawIn;
+            OutputStream rawOut;
+            if (sslContext != null) {
+                // 所有客户端共用同一个上下文，再次连接时恢复会话，省去完整握手
+                tlsChannel = TlsChannel.connect(sslContext, serverAddress, serverPort, READ_TIMEOUT_MILLIS);
+                channel = tlsChannel.getSocketChannel();
+                socket = channel.socket();
+                dataChannel = tlsChannel;
+                rawIn = Channels.newInputStream(tlsChannel);
+                rawOut = Channels.newOutputStream(tlsChannel);
+            } else {
+                // 通过通道建立连接，文件数据可以直接在直接缓冲区和套接字之间收发
+                tlsChannel = null;
+                channel = SocketChannel.open(new InetSocketAddress(serverAddress, serverPort));
+                socket = channel.socket();
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true); // 请求-响应式协议，不等待合并小包
+                dataChannel = channel;
+                rawIn = socket.getInputStream();
+                rawOut = socket.getOutputStream();
+            }
+            out = new PrintWriter(new OutputStreamWriter(rawOut, "UTF-8"), true);
+            // 响应行和文件数据共用同一个缓冲流，避免行读取器预读走文件内容
+            responseIn = new ResponseInputStream(rawIn);
+            dataIn = new DataInputStream(responseIn);
+            dataOut = new DataOutputStream(rawOut);
+            lastResponseAt = System.nanoTime();
             return true;
         } catch (IOException e) {
             System.err.println("连接服务器失败: " + e.getMessage());
@@ -50,6 +105,45 @@ public class FileClient {
         }
     }
     
+    /**
+     * 设置TLS上下文，下次连接时生效
+     * @param sslContext 上下文，为null时使用明文连接
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+    
+    /**
+     * 当前连接是否使用TLS
+     */
+    public boolean isSecure() {
+        return tlsChannel != null && tlsChannel.isOpen();
+    }
+    
+    public String getServerAddress() {
+        return serverAddress;
+    }
+    
+    public int getServerPort() {
+        return serverPort;
+    }
+    
+    /**
+     * 获取目录元数据缓存
+     * @return 缓存
+     */
+    public MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+    
+    /**
+     * 使某个路径相关的缓存失效，用于其他连接或其他客户端修改了服务器上的文件
+     * @param path 发生变化的路径
+     */
+    public void invalidateCache(String path) {
+        metadataCache.invalidate(path);
+    }
+    
     /**
      * 检查连接状态并尝试重连
      * @return 连接是否有效
@@ -67,10 +161,10 @@ public class FileClient {
      */
     public void disconnect() {
         try {
-            if (in != null) in.close();
             if (out != null) out.close();
             if (dataIn != null) dataIn.close();
             if (dataOut != null) dataOut.close();
+            if (tlsChannel != null) tlsChannel.close();
             if (socket != null && !socket.isClosed()) {
                 socket.close();
             }
@@ -88,14 +182,36 @@ public class FileClient {
         if (!ensureConnected()) {
             throw new IOException("无法连接到服务器");
         }
+        if (!isRetryable(command) && System.nanoTime() - lastResponseAt > TimeUnit.MILLISECONDS.toNanos(IDLE_PROBE_MILLIS)) {
+            // 空闲的会话可能已被服务器回收，先确认连接可用，修改类命令不必在断开后重发
+            sendCommand("PING");
+        }
         
         try {
             out.println(command);
-            String response = in.readLine();
+            String response = readLine();
+            if (response == null) {
+                if (!isRetryable(command)) {
+                    // 连接断开时修改类命令可能已经执行，重发可能重复执行，交由调用方确认后处理
+                    throw new IOException("服务器连接已关闭，命令可能已执行");
+                }
+                // 空闲会话可能已被服务器回收，只读命令重复执行没有副作用，重新连接后重发一次
+                disconnect();
+                if (!connect()) {
+                    throw new IOException("服务器连接已关闭");
+                }
+                out.println(command);
+                response = readLine();
+            }
             if (response == null) {
                 throw new IOException("服务器连接已关闭");
             }
-            return response.split("\\|", 3);
+            String[] parts = response.split("\\|", 3);
+            if ("503".equals(parts[0])) {
+                // 服务器拒绝了本次连接并已关闭套接字，下次调用时重新连接
+                disconnect();
+            }
+            return parts;
         } catch (IOException e) {
             System.err.println("发送命令时出错: " + e.getMessage());
             disconnect();
@@ -103,12 +219,127 @@ public class FileClient {
         }
     }
     
+    /**
+     * 没有收到响应时能否重连后重发：只读命令重复执行没有副作用；QUOTA 和 BANDWIDTH 不带参数时只查询
+     * @param command 命令
+     */
+    private static boolean isRetryable(String command) {
+        int separator = command.indexOf('|');
+        String name = separator < 0 ? command : command.substring(0, separator);
+        if (separator < 0 && (name.equals("QUOTA") || name.equals("BANDWIDTH"))) {
+            return true;
+        }
+        return RETRYABLE_COMMANDS.contains(name);
+    }
+    
+    /**
+     * 从数据流中读取一行UTF-8文本
+     * 按字节读取，保证行之后的文件内容仍留在数据流中
+     * @return 读取到的行，连接关闭时返回null
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = dataIn.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        lastResponseAt = System.nanoTime();
+        String text = line.toString("UTF-8");
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+    
+    /**
+     * 准备读取文件数据
+     * 通道读取不受套接字超时约束，因此数据阶段切换为非阻塞模式，用选择器等待数据
+     * @return 注册了该连接的选择器，数据读取结束后交给 endDataRead；TLS连接返回null
+     */
+    private Selector beginDataRead() throws IOException {
+        if (tlsChannel != null) {
+            // TLS通道自己处理读超时
+            return null;
+        }
+        Selector selector = Selector.open();
+        try {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+        return selector;
+    }
+    
+    /**
+     * 读取文件数据，先取走响应流中已预读的部分，其余直接从套接字通道读入缓冲区
+     * @param buffer 目标缓冲区
+     * @param selector beginDataRead 返回的选择器
+     * @return 读取的字节数，连接关闭时返回-1
+     */
+    private int readData(ByteBuffer buffer, Selector selector) throws IOException {
+        int buffered = responseIn.drainTo(buffer);
+        if (buffered > 0) {
+            return buffered;
+        }
+        if (tlsChannel != null) {
+            return tlsChannel.read(buffer);
+        }
+        int n;
+        while ((n = channel.read(buffer)) == 0) {
+            if (selector.select(socket.getSoTimeout()) == 0) {
+                throw new SocketTimeoutException("读取数据超时");
+            }
+            selector.selectedKeys().clear();
+        }
+        return n;
+    }
+    
+    /**
+     * 结束文件数据读取，恢复阻塞模式供响应流使用
+     * 选择器关闭后注册才被取消，之后才能切换回阻塞模式
+     */
+    private void endDataRead(Selector selector) throws IOException {
+        selector.close();
+        if (channel.isOpen()) {
+            channel.configureBlocking(true);
+        }
+    }
+    
+    /**
+     * 发送心跳，保持会话不被服务器作为空闲会话回收
+     * @return 服务器是否响应
+     */
+    public boolean ping() throws IOException {
+        String[] response = sendCommand("PING");
+        return Integer.parseInt(response[0]) == 200;
+    }
+    
     /**
      * 列出目录内容
      * @param path 目录路径
      * @return 文件和目录列表
      */
     public List<FileItem> listFiles(String path) throws IOException {
+        return listFiles(path, false);
+    }
+    
+    /**
+     * 列出目录内容
+     * @param path 目录路径
+     * @param refresh 为true时忽略缓存，从服务器重新获取
+     * @return 文件和目录列表
+     */
+    @SuppressWarnings("unchecked")
+    public List<FileItem> listFiles(String path, boolean refresh) throws IOException {
+        if (!refresh) {
+            List<FileItem> cached = (List<FileItem>) metadataCache.get(path, "LIST");
+            if (cached != null) {
+                return new ArrayList<>(cached);
+            }
+        }
+        
         String[] response = sendCommand("LIST|" + path);
         List<FileItem> fileList = new ArrayList<>();
         
@@ -124,6 +355,7 @@ public class FileClient {
                     }
                 }
             }
+            metadataCache.put(path, "LIST", new ArrayList<>(fileList), fileList.size());
         } else {
             System.err.println("列出目录失败: " + response[1]);
         }
@@ -131,6 +363,61 @@ public class FileClient {
         return fileList;
     }
     
+    /**
+     * 分页列出目录内容，排序和过滤由服务器完成
+     * @param path 目录路径
+     * @param offset 起始位置
+     * @param limit 最多返回的条目数
+     * @param sort 排序字段 name/size/mtime，前缀"-"表示降序，目录总在文件之前
+     * @param filter 名称过滤(不区分大小写的子串)，空串表示不过滤
+     * @return 一页条目及过滤后的总条目数
+     */
+    public FilePage listPage(String path, int offset, int limit, String sort, String filter) throws IOException {
+        return listPage(path, offset, limit, sort, filter, false);
+    }
+    
+    /**
+     * 分页列出目录内容
+     * @param path 目录路径
+     * @param offset 起始位置
+     * @param limit 最多返回的条目数
+     * @param sort 排序字段
+     * @param filter 名称过滤
+     * @param refresh 为true时忽略缓存，从服务器重新获取
+     * @return 一页条目及过滤后的总条目数
+     */
+    public FilePage listPage(String path, int offset, int limit, String sort, String filter, boolean refresh) throws IOException {
+        String variant = "LISTPAGE|" + offset + "|" + limit + "|" + sort + "|" + filter;
+        if (!refresh) {
+            FilePage cached = (FilePage) metadataCache.get(path, variant);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        
+        String[] response = sendCommand("LISTPAGE|" + path + "|" + offset + "|" + limit + "|" + sort + "|" + filter);
+        if (Integer.parseInt(response[0]) != 200) {
+            throw new IOException(response[1]);
+        }
+        
+        String[] counts = response[2].split(";");
+        int total = Integer.parseInt(counts[0]);
+        int returned = Integer.parseInt(counts[1]);
+        List<FileItem> items = new ArrayList<>(returned);
+        for (int i = 0; i < returned; i++) {
+            String line = readLine();
+            if (line == null) {
+                disconnect();
+                throw new IOException("服务器连接已关闭");
+            }
+            String[] fields = line.split("\t");
+            items.add(new FileItem(fields[0], "D".equals(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+        }
+        FilePage page = new FilePage(offset, total, Collections.unmodifiableList(items));
+        metadataCache.put(path, variant, page, returned);
+        return page;
+    }
+    
     /**
      * 下载文件
      * @param remotePath 远程文件路径
@@ -138,6 +425,18 @@ public class FileClient {
      * @return 是否下载成功
      */
     public boolean downloadFile(String remotePath, String localPath) throws IOException {
+        return downloadFile(remotePath, localPath, new TransferTracker(null));
+    }
+    
+    /**
+     * 下载文件，并报告进度
+     * 传输被取消时会断开连接(剩余数据已无法与后续响应区分)并删除不完整的本地文件
+     * @param remotePath 远程文件路径
+     * @param localPath 本地保存路径
+     * @param tracker 进度跟踪器
+     * @return 是否下载成功
+     */
+    public boolean downloadFile(String remotePath, String localPath, TransferTracker tracker) throws IOException {
         String[] response = sendCommand("DOWNLOAD|" + remotePath);
         
         if (Integer.parseInt(response[0]) == 200) {
@@ -150,18 +449,69 @@ public class FileClient {
                 Files.createDirectories(parentDir);
             }
             
-            // 接收文件内容
-            try (FileOutputStream fos = new FileOutputStream(localFilePath.toFile())) {
-                byte[] buffer = new byte[8192];
-                long bytesRemaining = fileSize;
-                int bytesRead;
+            // 接收到临时文件，边接收边计算校验和，校验通过后才替换目标文件
+            Path partPath = localFilePath.resolveSibling(localFilePath.getFileName() + ".part");
+            CRC32C checksum = new CRC32C();
+            boolean committed = false;
+            try {
+                ByteBuffer buffer = BufferPool.shared().acquire(BufferPool.TRANSFER_SIZE);
+                Selector selector = null;
+                try (FileChannel file = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    selector = beginDataRead();
+                    tracker.start(remotePath, fileSize);
+                    long bytesRemaining = fileSize;
+                    int bytesRead;
+                    
+                    while (bytesRemaining > 0) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(buffer.capacity(), bytesRemaining));
+                        if ((bytesRead = readData(buffer, selector)) == -1) {
+                            break;
+                        }
+                        buffer.flip();
+                        checksum.update(buffer);
+                        buffer.rewind();
+                        while (buffer.hasRemaining()) {
+                            file.write(buffer);
+                        }
+                        bytesRemaining -= bytesRead;
+                        tracker.update(bytesRead);
+                    }
+                    if (bytesRemaining > 0) {
+                        disconnect();
+                        throw new IOException("下载不完整，缺少 " + bytesRemaining + " 字节");
+                    }
+                } catch (InterruptedIOException e) {
+                    disconnect();
+                    throw e;
+                } finally {
+                    if (selector != null) {
+                        endDataRead(selector);
+                    }
+                    BufferPool.shared().release(buffer);
+                }
                 
-                while (bytesRemaining > 0 && (bytesRead = dataIn.read(buffer, 0, (int) Math.min(buffer.length, bytesRemaining))) != -1) {
-                    fos.write(buffer, 0, bytesRead);
-                    bytesRemaining -= bytesRead;
+                // 数据之后是服务器计算的校验和
+                String trailer = readLine();
+                if (trailer == null) {
+                    disconnect();
+                    throw new IOException("服务器连接已关闭");
+                }
+                String[] fields = trailer.split("\\|", 3);
+                String actual = Long.toHexString(checksum.getValue());
+                if (fields.length < 3 || !"200".equals(fields[0]) || !actual.equalsIgnoreCase(fields[2])) {
+                    throw new IOException("文件校验失败: " + remotePath);
+                }
+                Files.move(partPath, localFilePath, StandardCopyOption.REPLACE_EXISTING);
+                committed = true;
+            } finally {
+                if (!committed) {
+                    Files.deleteIfExists(partPath);
                 }
             }
             
+            tracker.finish();
             return true;
         } else {
             System.err.println("下载文件失败: " + response[1]);
@@ -169,6 +519,200 @@ public class FileClient {
         }
     }
     
+    /**
+     * 读取远程文件的一段内容
+     * @param remotePath 远程文件路径
+     * @param offset 起始位置
+     * @param length 请求的字节数，服务器单次最多返回1MB
+     * @return 读取到的内容，到达文件末尾时可能少于请求的字节数
+     */
+    public FileRange readRange(String remotePath, long offset, int length) throws IOException {
+        String[] response = sendCommand("READ|" + remotePath + "|" + offset + "|" + length);
+        if (Integer.parseInt(response[0]) != 200) {
+            throw new IOException(response[1]);
+        }
+        
+        String[] fields = response[2].split(";");
+        long fileSize = Long.parseLong(fields[0]);
+        byte[] data = new byte[Integer.parseInt(fields[2])];
+        try {
+            dataIn.readFully(data);
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+        return new FileRange(fileSize, Long.parseLong(fields[1]), data);
+    }
+    
+    /**
+     * 按文件名搜索服务器上的整个目录树
+     * @param mode prefix(前缀)/substring(子串)/glob(通配，含"/"时匹配相对路径)
+     * @param pattern 查询串，不区分大小写
+     * @param path 限定搜索的目录
+     * @param limit 最多返回的条目数
+     * @return 匹配的条目，名称为完整路径
+     */
+    public List<FileItem> search(String mode, String pattern, String path, int limit) throws IOException {
+        String[] response = sendCommand("SEARCH|" + mode + "|" + pattern + "|" + path + "|" + limit);
+        if (Integer.parseInt(response[0]) != 200) {
+            throw new IOException(response[1]);
+        }
+        if (!"成功".equals(response[1])) {
+            System.err.println(response[1]);
+        }
+        
+        List<FileItem> results = new ArrayList<>();
+        String line;
+        while ((line = readLine()) != null && !line.startsWith("END|")) {
+            int tab = line.lastIndexOf('\t');
+            results.add(new FileItem(line.substring(0, tab), "D".equals(line.substring(tab + 1))));
+        }
+        if (line == null) {
+            disconnect();
+            throw new IOException("服务器连接已关闭");
+        }
+        return results;
+    }
+    
+    /**
+     * 在服务器上搜索文件内容，只有匹配的行经网络返回
+     * @param mode literal(字面量)/regex(正则表达式)
+     * @param pattern 查询串，区分大小写，正则可用(?i)忽略大小写
+     * @param path 搜索的目录
+     * @param fileGlob 文件名通配过滤，如 *.log，空串表示所有文件
+     * @param limit 最多返回的匹配行数
+     * @return 匹配的行，顺序不固定
+     */
+    public List<GrepMatch> grep(String mode, String pattern, String path, String fileGlob, int limit) throws IOException {
+        String[] response = sendCommand("GREP|" + mode + "|" + path + "|" + fileGlob + "|" + limit + "|" + pattern);
+        if (Integer.parseInt(response[0]) != 200) {
+            throw new IOException(response[1]);
+        }
+        
+        List<GrepMatch> results = new ArrayList<>();
+        String line;
+        while ((line = readLine()) != null && !line.startsWith("END|")) {
+            int first = line.indexOf('\t');
+            int second = line.indexOf('\t', first + 1);
+            results.add(new GrepMatch(line.substring(0, first), Long.parseLong(line.substring(first + 1, second)),
+                    line.substring(second + 1)));
+        }
+        if (line == null) {
+            disconnect();
+            throw new IOException("服务器连接已关闭");
+        }
+        return results;
+    }
+    
+    /**
+     * 批量查询远程文件的内容哈希(SHA-256)
+     * 服务器对未变化的文件直接返回索引中的哈希，不重新读取文件
+     * @param remotePaths 远程文件路径
+     * @return 与参数顺序一致的结果，路径不存在或不是文件时哈希为null
+     */
+    public List<FileHash> getHashes(List<String> remotePaths) throws IOException {
+        String[] response = sendCommand("HASH|" + String.join("|", remotePaths));
+        if (Integer.parseInt(response[0]) != 200) {
+            throw new IOException(response[1]);
+        }
+        
+        int count = Integer.parseInt(response[2]);
+        List<FileHash> hashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String line = readLine();
+            if (line == null) {
+                disconnect();
+                throw new IOException("服务器连接已关闭");
+            }
+            String[] fields = line.split("\t");
+            hashes.add(new FileHash(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                    "-".equals(fields[3]) ? null : fields[3]));
+        }
+        return hashes;
+    }
+    
+    /**
+     * 获取远程目录整个子树的清单，只含目录项属性，不读取文件内容
+     * @param path 目录路径
+     * @return 子树中的所有条目，名称为相对于该目录的路径
+     */
+    public List<FileItem> getManifest(String path) throws IOException {
+        return getManifest(path, null);
+    }
+    
+    /**
+     * 获取远程目录整个子树的清单，只含目录项属性，不读取文件内容
+     * @param path 目录路径
+     * @param unreadable 收集服务器无法读取的相对路径，其中的内容不在清单中；可为null
+     * @return 子树中的所有条目，名称为相对于该目录的路径
+     */
+    public List<FileItem> getManifest(String path, List<String> unreadable) throws IOException {
+        String[] response = sendCommand("MANIFEST|" + path);
+        if (Integer.parseInt(response[0]) != 200) {
+            throw new IOException(response[1]);
+        }
+        
+        List<FileItem> items = new ArrayList<>();
+        String line;
+        while ((line = readLine()) != null && !line.startsWith("END|")) {
+            int first = line.indexOf('\t');
+            int second = line.indexOf('\t', first + 1);
+            int third = line.indexOf('\t', second + 1);
+            String name = unescape(line.substring(0, first));
+            if (line.charAt(first + 1) == 'X') {
+                if (unreadable != null) {
+                    unreadable.add(name);
+                }
+                continue;
+            }
+            items.add(new FileItem(name, line.charAt(first + 1) == 'D',
+                    Long.parseLong(line.substring(second + 1, third)), Long.parseLong(line.substring(third + 1))));
+        }
+        if (line == null) {
+            disconnect();
+            throw new IOException("服务器连接已关闭");
+        }
+        return items;
+    }
+    
+    /**
+     * 还原清单中转义的反斜杠、制表符和换行符
+     */
+    private static String unescape(String name) {
+        if (name.indexOf('\\') < 0) {
+            return name;
+        }
+        StringBuilder result = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '\\' && i + 1 < name.length()) {
+                char next = name.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+    
+    /**
+     * 双向同步本地目录和远程目录，详见 FolderSync
+     * @param localDirectory 本地目录，不存在时创建
+     * @param remoteDirectory 远程目录，必须已存在
+     * @param workers 并行传输的连接数
+     * @param checksum 两边都修改且大小相同时是否比较内容哈希
+     * @param dryRun 为true时只列出计划，不做任何修改
+     * @return 同步结果
+     */
+    public FolderSync.Result sync(String localDirectory, String remoteDirectory, int workers, boolean checksum,
+            boolean dryRun) throws IOException {
+        FolderSync sync = new FolderSync(this, Paths.get(localDirectory), remoteDirectory);
+        sync.setWorkers(workers);
+        sync.setChecksum(checksum);
+        sync.setDryRun(dryRun);
+        return sync.run();
+    }
+    
     /**
      * 上传文件
      * @param localPath 本地文件路径
@@ -176,6 +720,18 @@ public class FileClient {
      * @return 是否上传成功
      */
     public boolean uploadFile(String localPath, String remotePath) throws IOException {
+        return uploadFile(localPath, remotePath, new TransferTracker(null));
+    }
+    
+    /**
+     * 上传文件，并报告进度
+     * 传输被取消时会断开连接，服务器会因连接关闭而终止接收
+     * @param localPath 本地文件路径
+     * @param remotePath 远程保存路径
+     * @param tracker 进度跟踪器
+     * @return 是否上传成功
+     */
+    public boolean uploadFile(String localPath, String remotePath, TransferTracker tracker) throws IOException {
         File localFile = new File(localPath);
         
         if (!localFile.exists() || !localFile.isFile()) {
@@ -185,23 +741,59 @@ public class FileClient {
         
         long fileSize = localFile.length();
         String[] response = sendCommand("UPLOAD|" + remotePath + "|" + fileSize);
+        // 无论成功与否，目标目录的内容都可能已经改变
+        metadataCache.invalidate(remotePath);
         
         if (Integer.parseInt(response[0]) == 200) {
-            // 发送文件内容
-            try (FileInputStream fis = new FileInputStream(localFile)) {
-                byte[] buffer = new byte[8192];
+            // 发送文件内容，只发送声明的字节数，之后发送校验和供服务器核对
+            CRC32C checksum = new CRC32C();
+            ByteBuffer buffer = BufferPool.shared().acquire(BufferPool.TRANSFER_SIZE);
+            try (FileChannel file = FileChannel.open(localFile.toPath(), StandardOpenOption.READ)) {
+                tracker.start(remotePath, fileSize);
+                long bytesRemaining = fileSize;
                 int bytesRead;
                 
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    dataOut.write(buffer, 0, bytesRead);
+                while (bytesRemaining > 0) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), bytesRemaining));
+                    if ((bytesRead = file.read(buffer)) == -1) {
+                        break;
+                    }
+                    buffer.flip();
+                    checksum.update(buffer);
+                    buffer.rewind();
+                    while (buffer.hasRemaining()) {
+                        dataChannel.write(buffer);
+                    }
+                    bytesRemaining -= bytesRead;
+                    tracker.update(bytesRead);
+                }
+                if (bytesRemaining > 0) {
+                    // 本地文件在上传期间被截断，服务器会因连接关闭而丢弃已收到的数据
+                    disconnect();
+                    throw new IOException("本地文件在上传期间被截断: " + localPath);
                 }
+                dataOut.write(("CRC32C|" + Long.toHexString(checksum.getValue()) + "\n").getBytes("UTF-8"));
                 dataOut.flush();
+            } catch (InterruptedIOException e) {
+                disconnect();
+                throw e;
+            } finally {
+                BufferPool.shared().release(buffer);
             }
             
-            // 等待上传完成响应
-            String line = in.readLine();
+            // 等待上传完成响应，服务器核对校验和后才替换目标文件
+            String line = readLine();
+            if (line == null) {
+                disconnect();
+                throw new IOException("服务器连接已关闭");
+            }
             response = line.split("\\|", 3);
-            return Integer.parseInt(response[0]) == 200;
+            if (Integer.parseInt(response[0]) != 200) {
+                throw new IOException("上传失败: " + response[1]);
+            }
+            tracker.finish();
+            return true;
         } else {
             System.err.println("上传文件失败: " + response[1]);
             return false;
@@ -215,6 +807,7 @@ public class FileClient {
      */
     public boolean deleteFile(String path) throws IOException {
         String[] response = sendCommand("DELETE|" + path);
+        metadataCache.invalidate(path);
         
         if (Integer.parseInt(response[0]) == 200) {
             return true;
@@ -231,6 +824,7 @@ public class FileClient {
      */
     public boolean createDirectory(String path) throws IOException {
         String[] response = sendCommand("MKDIR|" + path);
+        metadataCache.invalidate(path);
         
         if (Integer.parseInt(response[0]) == 200) {
             return true;
@@ -248,6 +842,8 @@ public class FileClient {
      */
     public boolean renameFile(String oldPath, String newPath) throws IOException {
         String[] response = sendCommand("RENAME|" + oldPath + "|" + newPath);
+        metadataCache.invalidate(oldPath);
+        metadataCache.invalidate(newPath);
         
         if (Integer.parseInt(response[0]) == 200) {
             return true;
@@ -257,18 +853,230 @@ public class FileClient {
         }
     }
     
+    /**
+     * 查询目录子树的用量，服务器直接返回增量维护的统计，不遍历目录
+     * @param path 目录路径
+     * @return 用量，目录不存在时返回null
+     */
+    public DirectoryUsage getDiskUsage(String path) throws IOException {
+        String[] response = sendCommand("DU|" + path);
+        if (Integer.parseInt(response[0]) != 200) {
+            System.err.println("查询用量失败: " + response[1]);
+            return null;
+        }
+        String[] fields = response[2].split(";");
+        return new DirectoryUsage(path, Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+    }
+    
+    /**
+     * 查询所有目录配额
+     * @return 每项为 路径;配额;已用;预留
+     */
+    public List<String> getQuotas() throws IOException {
+        return parseQuotaResponse(sendCommand("QUOTA"));
+    }
+    
+    /**
+     * 设置目录配额，上传、复制和移动使目录用量超过配额时被拒绝
+     * @param path 目录路径，可以尚不存在
+     * @param limit 配额，支持K/M/G后缀，0为取消
+     * @return 设置后的所有配额，失败时为空列表
+     */
+    public List<String> setQuota(String path, String limit) throws IOException {
+        return parseQuotaResponse(sendCommand("QUOTA|" + path + "|" + limit));
+    }
+    
+    private List<String> parseQuotaResponse(String[] response) {
+        List<String> entries = new ArrayList<>();
+        if (Integer.parseInt(response[0]) == 200) {
+            if (response.length >= 3 && !response[2].isEmpty()) {
+                for (String entry : response[2].split(",")) {
+                    entries.add(entry);
+                }
+            }
+        } else {
+            System.err.println("配额操作失败: " + response[1]);
+        }
+        return entries;
+    }
+    
+    /**
+     * 在一次往返中执行多个元数据操作
+     * @param operations 按顺序执行的操作，每项为 MKDIR|路径、RENAME|原路径|新路径 或 DELETE|路径
+     * @param atomic 为true时任何一个操作失败都撤销已完成的操作，之后的操作不再执行
+     * @return 与操作顺序一致的结果
+     */
+    public List<BatchResult> batch(List<String> operations, boolean atomic) throws IOException {
+        if (operations.isEmpty()) {
+            return new ArrayList<>();
+        }
+        // 操作行随命令一起发送，连接被回收后重发时也是完整的
+        String[] response = sendCommand("BATCH|" + operations.size() + "|" + (atomic ? "1" : "0")
+                + "\n" + String.join("\n", operations));
+        for (String operation : operations) {
+            String[] fields = operation.split("\\|");
+            for (int i = 1; i < fields.length; i++) {
+                metadataCache.invalidate(fields[i]);
+            }
+        }
+        if (Integer.parseInt(response[0]) != 200) {
+            throw new IOException(response[1]);
+        }
+        
+        int count = Integer.parseInt(response[2]);
+        List<BatchResult> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String line = readLine();
+            if (line == null) {
+                disconnect();
+                throw new IOException("服务器连接已关闭");
+            }
+            String[] fields = line.split("\t", 3);
+            results.add(new BatchResult(operations.get(Integer.parseInt(fields[0])), Integer.parseInt(fields[1]),
+                    fields.length > 2 ? fields[2] : ""));
+        }
+        return results;
+    }
+    
+    /**
+     * 在服务器上复制文件或目录，数据不经过网络
+     * 服务器在短时间内完成时作业状态为 DONE；否则作业在后台继续，用 getCopyJob 查询进度
+     * @param sourcePath 源路径
+     * @param targetPath 目标路径，必须不存在
+     * @return 复制作业，请求被拒绝时返回null
+     */
+    public CopyJob copy(String sourcePath, String targetPath) throws IOException {
+        String[] response = sendCommand("COPY|" + sourcePath + "|" + targetPath);
+        metadataCache.invalidate(targetPath);
+        
+        int code = Integer.parseInt(response[0]);
+        if (code == 200 || code == 202) {
+            return CopyJob.parse(response[2]);
+        } else {
+            System.err.println("复制失败: " + response[1]);
+            return response.length >= 3 && !response[2].isEmpty() ? CopyJob.parse(response[2]) : null;
+        }
+    }
+    
+    /**
+     * 查询复制作业
+     * @param id 作业编号
+     * @return 作业，不存在时返回null
+     */
+    public CopyJob getCopyJob(long id) throws IOException {
+        String[] response = sendCommand("JOB|" + id);
+        if (Integer.parseInt(response[0]) == 200) {
+            return CopyJob.parse(response[2]);
+        }
+        System.err.println("查询作业失败: " + response[1]);
+        return null;
+    }
+    
+    /**
+     * 列出服务器保留的复制作业，按开始顺序
+     */
+    public List<CopyJob> listCopyJobs() throws IOException {
+        String[] response = sendCommand("JOB");
+        List<CopyJob> jobs = new ArrayList<>();
+        if (Integer.parseInt(response[0]) == 200) {
+            if (response.length >= 3 && !response[2].isEmpty()) {
+                for (String entry : response[2].split(",")) {
+                    jobs.add(CopyJob.parse(entry));
+                }
+            }
+        } else {
+            System.err.println("查询作业失败: " + response[1]);
+        }
+        return jobs;
+    }
+    
+    /**
+     * 取消复制作业，已复制的部分由服务器删除
+     * @param id 作业编号
+     * @return 是否已请求取消
+     */
+    public boolean cancelCopyJob(long id) throws IOException {
+        String[] response = sendCommand("CANCEL|" + id);
+        if (Integer.parseInt(response[0]) == 200) {
+            return true;
+        } else {
+            System.err.println("取消作业失败: " + response[1]);
+            return false;
+        }
+    }
+    
+    /**
+     * 查询服务器带宽状态
+     * @return 首项为 LIMITS;全局;连接;用户，其余每项为 连接;用户;权重;当前速率;平均速率;已传字节;描述
+     */
+    public List<String> getBandwidthReport() throws IOException {
+        return parseBandwidthResponse(sendCommand("BANDWIDTH"));
+    }
+    
+    /**
+     * 调整服务器带宽限制
+     * @param key global/connection/user 限制(字节/秒，0为不限)，或 weight 本连接的公平分享权重
+     * @param value 新值，支持K/M/G后缀
+     * @return 调整后的带宽状态，失败时为空列表
+     */
+    public List<String> setBandwidth(String key, String value) throws IOException {
+        return parseBandwidthResponse(sendCommand("BANDWIDTH|" + key + "|" + value));
+    }
+    
+    /**
+     * 查询服务器存储卷状态
+     * @return 每项为 挂载路径;目录;I/O线程数;未完成任务数;已完成任务数;读取字节;写入字节;等待I/O线程毫秒;可用空间;总空间
+     */
+    public List<String> getVolumes() throws IOException {
+        String[] response = sendCommand("VOLUMES");
+        List<String> entries = new ArrayList<>();
+        if (Integer.parseInt(response[0]) == 200) {
+            if (response.length >= 3 && !response[2].isEmpty()) {
+                for (String entry : response[2].split(",")) {
+                    entries.add(entry);
+                }
+            }
+        } else {
+            System.err.println("查询存储卷失败: " + response[1]);
+        }
+        return entries;
+    }
+    
+    private List<String> parseBandwidthResponse(String[] response) {
+        List<String> entries = new ArrayList<>();
+        if (Integer.parseInt(response[0]) == 200) {
+            if (response.length >= 3 && !response[2].isEmpty()) {
+                for (String entry : response[2].split(",")) {
+                    entries.add(entry);
+                }
+            }
+        } else {
+            System.err.println("带宽操作失败: " + response[1]);
+        }
+        return entries;
+    }
+    
     /**
      * 文件项类，表示一个文件或目录
      */
     public static class FileItem {
         private String name;
         private boolean directory;
+        private long size = -1;
+        private long lastModified = -1;
         
         public FileItem(String name, boolean directory) {
             this.name = name;
             this.directory = directory;
         }
         
+        public FileItem(String name, boolean directory, long size, long lastModified) {
+            this(name, directory);
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+        
         public String getName() {
             return name;
         }
@@ -277,12 +1085,382 @@ public class FileClient {
             return directory;
         }
         
+        /**
+         * 文件大小，未知时为-1
+         */
+        public long getSize() {
+            return size;
+        }
+        
+        /**
+         * 修改时间(毫秒)，未知时为-1
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+        
         @Override
         public String toString() {
             return (directory ? "[目录] " : "[文件] ") + name;
         }
     }
     
+    /**
+     * 目录分页结果
+     */
+    public static class FilePage {
+        private int offset;
+        private int total;
+        private List<FileItem> items;
+        
+        public FilePage(int offset, int total, List<FileItem> items) {
+            this.offset = offset;
+            this.total = total;
+            this.items = items;
+        }
+        
+        public int getOffset() {
+            return offset;
+        }
+        
+        /**
+         * 过滤后的总条目数
+         */
+        public int getTotal() {
+            return total;
+        }
+        
+        public List<FileItem> getItems() {
+            return items;
+        }
+    }
+    
+    /**
+     * 文件片段
+     */
+    public static class FileRange {
+        private long fileSize;
+        private long offset;
+        private byte[] data;
+        
+        public FileRange(long fileSize, long offset, byte[] data) {
+            this.fileSize = fileSize;
+            this.offset = offset;
+            this.data = data;
+        }
+        
+        /**
+         * 读取时的文件总大小
+         */
+        public long getFileSize() {
+            return fileSize;
+        }
+        
+        public long getOffset() {
+            return offset;
+        }
+        
+        public byte[] getData() {
+            return data;
+        }
+    }
+    
+    /**
+     * 文件内容哈希
+     */
+    public static class FileHash {
+        private String path;
+        private long size;
+        private long lastModified;
+        private String hash;
+        
+        public FileHash(String path, long size, long lastModified, String hash) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+        
+        public String getPath() {
+            return path;
+        }
+        
+        public long getSize() {
+            return size;
+        }
+        
+        public long getLastModified() {
+            return lastModified;
+        }
+        
+        /**
+         * SHA-256 十六进制字符串，路径不存在或不是文件时为null
+         */
+        public String getHash() {
+            return hash;
+        }
+        
+        @Override
+        public String toString() {
+            return (hash == null ? "-" : hash) + "  " + path;
+        }
+    }
+    
+    /**
+     * 目录子树的用量
+     */
+    public static class DirectoryUsage {
+        private String path;
+        private long bytes;
+        private long files;
+        private long directories;
+        private long quota;
+        private long reserved;
+        
+        public DirectoryUsage(String path, long bytes, long files, long directories, long quota, long reserved) {
+            this.path = path;
+            this.bytes = bytes;
+            this.files = files;
+            this.directories = directories;
+            this.quota = quota;
+            this.reserved = reserved;
+        }
+        
+        public String getPath() {
+            return path;
+        }
+        
+        public long getBytes() {
+            return bytes;
+        }
+        
+        public long getFiles() {
+            return files;
+        }
+        
+        /**
+         * 子树中的目录数，不含目录自身
+         */
+        public long getDirectories() {
+            return directories;
+        }
+        
+        /**
+         * 目录自身的配额，没有配额时为-1
+         */
+        public long getQuota() {
+            return quota;
+        }
+        
+        /**
+         * 为进行中的上传预留的字节数
+         */
+        public long getReserved() {
+            return reserved;
+        }
+        
+        @Override
+        public String toString() {
+            return path + ": " + bytes + " 字节, " + files + " 个文件, " + directories + " 个目录"
+                    + (quota >= 0 ? ", 配额 " + quota + " 字节, 预留 " + reserved + " 字节" : "");
+        }
+    }
+    
+    /**
+     * 批处理中一个操作的结果
+     */
+    public static class BatchResult {
+        private String operation;
+        private int code;
+        private String message;
+        
+        public BatchResult(String operation, int code, String message) {
+            this.operation = operation;
+            this.code = code;
+            this.message = message;
+        }
+        
+        public String getOperation() {
+            return operation;
+        }
+        
+        /**
+         * 200为成功，409为已撤销或未执行，其他为失败
+         */
+        public int getCode() {
+            return code;
+        }
+        
+        public boolean isSuccess() {
+            return code == 200;
+        }
+        
+        public String getMessage() {
+            return message;
+        }
+        
+        @Override
+        public String toString() {
+            return operation + " -> " + code + " " + message;
+        }
+    }
+    
+    /**
+     * 服务器端复制作业
+     */
+    public static class CopyJob {
+        private long id;
+        private String state;
+        private long copiedBytes;
+        private long totalBytes;
+        private int copiedFiles;
+        private int totalFiles;
+        private long elapsedMillis;
+        private String sourcePath;
+        private String targetPath;
+        private String error;
+        
+        /**
+         * 解析服务器返回的作业信息
+         * @param text 编号;状态;已复制字节;总字节;已复制文件数;总文件数;已用毫秒;源路径;目标路径;错误信息
+         */
+        static CopyJob parse(String text) {
+            String[] fields = text.split(";", -1);
+            CopyJob job = new CopyJob();
+            job.id = Long.parseLong(fields[0]);
+            job.state = fields[1];
+            job.copiedBytes = Long.parseLong(fields[2]);
+            job.totalBytes = Long.parseLong(fields[3]);
+            job.copiedFiles = Integer.parseInt(fields[4]);
+            job.totalFiles = Integer.parseInt(fields[5]);
+            job.elapsedMillis = Long.parseLong(fields[6]);
+            job.sourcePath = fields.length > 7 ? fields[7] : "";
+            job.targetPath = fields.length > 8 ? fields[8] : "";
+            job.error = fields.length > 9 ? fields[9] : "";
+            return job;
+        }
+        
+        public long getId() {
+            return id;
+        }
+        
+        /**
+         * RUNNING/DONE/FAILED/CANCELLED
+         */
+        public String getState() {
+            return state;
+        }
+        
+        public boolean isFinished() {
+            return !"RUNNING".equals(state);
+        }
+        
+        public long getCopiedBytes() {
+            return copiedBytes;
+        }
+        
+        /**
+         * 总字节数，服务器统计完成前为-1
+         */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+        
+        public int getCopiedFiles() {
+            return copiedFiles;
+        }
+        
+        /**
+         * 总文件数，服务器统计完成前为-1
+         */
+        public int getTotalFiles() {
+            return totalFiles;
+        }
+        
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+        
+        public String getSourcePath() {
+            return sourcePath;
+        }
+        
+        public String getTargetPath() {
+            return targetPath;
+        }
+        
+        public String getError() {
+            return error;
+        }
+        
+        @Override
+        public String toString() {
+            String progress = totalBytes > 0 ? " " + copiedBytes * 100 / totalBytes + "%" : "";
+            return "#" + id + " " + state + progress + " " + sourcePath + " -> " + targetPath
+                    + " (" + copiedFiles + "/" + Math.max(totalFiles, 0) + " 个文件, " + copiedBytes + " 字节, "
+                    + elapsedMillis + "ms)" + (error.isEmpty() ? "" : " " + error);
+        }
+    }
+    
+    /**
+     * 响应流
+     * 响应行按缓冲读取，可能预读到紧随其后的文件数据，下载时先把这部分交给数据缓冲区
+     */
+    private static class ResponseInputStream extends BufferedInputStream {
+        ResponseInputStream(InputStream in) {
+            super(in);
+        }
+        
+        /**
+         * 取走已预读的数据
+         * @param buffer 目标缓冲区
+         * @return 取走的字节数
+         */
+        synchronized int drainTo(ByteBuffer buffer) {
+            int n = Math.min(count - pos, buffer.remaining());
+            if (n > 0) {
+                buffer.put(buf, pos, n);
+                pos += n;
+            }
+            return n;
+        }
+    }
+    
+    /**
+     * 内容搜索的一条匹配
+     */
+    public static class GrepMatch {
+        private String path;
+        private long lineNumber;
+        private String text;
+        
+        public GrepMatch(String path, long lineNumber, String text) {
+            this.path = path;
+            this.lineNumber = lineNumber;
+            this.text = text;
+        }
+        
+        public String getPath() {
+            return path;
+        }
+        
+        public long getLineNumber() {
+            return lineNumber;
+        }
+        
+        /**
+         * 匹配行的内容，超长的行只保留匹配位置附近的片段
+         */
+        public String getText() {
+            return text;
+        }
+        
+        @Override
+        public String toString() {
+            return path + ":" + lineNumber + ": " + text;
+        }
+    }
+    
     /**
      * 主方法，用于测试客户端功能
      */
@@ -0,0 +1,410 @@
+package client;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultCaret;
+import java.awt.*;
+import java.awt.event.AdjustmentEvent;
+import java.awt.geom.Rectangle2D;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+
+/**
+ * Streaming file preview
+ * Only a sliding window of the file is held in memory. Ranges are fetched with READ
+ * as the user scrolls towards either end of the window, and chunks that fall out of
+ * the window are dropped, so memory stays bounded whatever the file size.
+ * Files that look binary are shown as a hex dump.
+ */
+public class FilePreviewDialog extends JDialog {
+    private static final long serialVersionUID = 1L;
+    static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNKS = 8;
+    private static final int HEX_WIDTH = 16;
+    private static final int SLIDER_MAX = 1000;
+
+    private final FileClient client;
+    private final Executor executor;
+    private final String path;
+    private final boolean binary;
+    private final Deque<Chunk> chunks = new ArrayDeque<>();
+    private long fileSize;
+    private boolean loading;
+    private int generation;
+    private boolean adjustingSlider;
+
+    private final JTextArea textArea = new JTextArea();
+    private final JScrollPane scrollPane = new JScrollPane(textArea);
+    private final JSlider positionSlider = new JSlider(0, SLIDER_MAX, 0);
+    private final JLabel rangeLabel = new JLabel();
+
+    /**
+     * Constructor
+     * @param owner Owner window
+     * @param client File client used to fetch ranges
+     * @param executor Executor that serializes calls on the client
+     * @param path Remote file path
+     * @param firstRange First range of the file, already fetched by the caller from offset 0
+     */
+    public FilePreviewDialog(Frame owner, FileClient client, Executor executor, String path, FileClient.FileRange firstRange) {
+        super(owner, "文件内容: " + path.substring(path.lastIndexOf('/') + 1), false);
+        this.client = client;
+        this.executor = executor;
+        this.path = path;
+        this.fileSize = firstRange.getFileSize();
+        this.binary = looksBinary(firstRange.getData());
+
+        textArea.setEditable(false);
+        // The view is positioned explicitly when chunks are added or dropped
+        ((DefaultCaret) textArea.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        textArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        scrollPane.setPreferredSize(new Dimension(700, 450));
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(this::scrolled);
+
+        JButton startButton = new JButton("开头");
+        startButton.addActionListener(e -> jumpTo(0));
+        JButton endButton = new JButton("末尾");
+        endButton.addActionListener(e -> jumpTo(Math.max(0, fileSize - CHUNK_SIZE)));
+        positionSlider.addChangeListener(e -> {
+            if (!adjustingSlider && !positionSlider.getValueIsAdjusting()) {
+                jumpTo(fileSize * positionSlider.getValue() / SLIDER_MAX);
+            }
+        });
+
+        JPanel controls = new JPanel(new BorderLayout(5, 0));
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        buttons.add(startButton);
+        buttons.add(endButton);
+        controls.add(buttons, BorderLayout.WEST);
+        controls.add(positionSlider, BorderLayout.CENTER);
+        controls.add(rangeLabel, BorderLayout.EAST);
+
+        JPanel content = new JPanel(new BorderLayout(0, 5));
+        content.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        content.add(scrollPane, BorderLayout.CENTER);
+        content.add(controls, BorderLayout.SOUTH);
+        setContentPane(content);
+        pack();
+        setLocationRelativeTo(owner);
+
+        showWindow(0, firstRange.getData());
+    }
+
+    /**
+     * Heuristic binary detection: NUL bytes or many control characters
+     */
+    static boolean looksBinary(byte[] data) {
+        int sample = Math.min(data.length, 8192);
+        int control = 0;
+        for (int i = 0; i < sample; i++) {
+            int b = data[i] & 0xFF;
+            if (b == 0) {
+                return true;
+            }
+            if (b < 0x09 || (b > 0x0D && b < 0x20) || b == 0x7F) {
+                control++;
+            }
+        }
+        return sample > 0 && control * 10 > sample;
+    }
+
+    /**
+     * Replace the window with a range starting at the given offset
+     */
+    private void jumpTo(long offset) {
+        if (binary) {
+            offset -= offset % HEX_WIDTH;
+        }
+        final long start = offset;
+        final int requestGeneration = ++generation;
+        loading = true;
+        rangeLabel.setText("加载中...");
+        executor.execute(() -> {
+            try {
+                FileClient.FileRange range = client.readRange(path, start, CHUNK_SIZE);
+                SwingUtilities.invokeLater(() -> {
+                    if (requestGeneration == generation) {
+                        fileSize = range.getFileSize();
+                        showWindow(start, range.getData());
+                        loading = false;
+                    }
+                });
+            } catch (Exception e) {
+                SwingUtilities.invokeLater(() -> rangeFailed(requestGeneration, e));
+            }
+        });
+    }
+
+    private void showWindow(long offset, byte[] data) {
+        chunks.clear();
+        textArea.setText("");
+        long start = offset;
+        int from = 0;
+        if (!binary && offset > 0) {
+            // Start on a character boundary, and on a line boundary when one is near
+            from = skipContinuationBytes(data, 0);
+            int newline = indexOf(data, (byte) '\n', from);
+            if (newline >= 0 && newline + 1 < data.length) {
+                from = newline + 1;
+            }
+            start += from;
+        }
+        boolean endOfFile = start + (data.length - from) >= fileSize;
+        Chunk chunk = decode(start, data, from, data.length, endOfFile);
+        chunks.add(chunk);
+        textArea.setText(chunk.text);
+        chunk.text = null;
+        // A jump that reaches the end of the file shows the last lines
+        textArea.setCaretPosition(offset > 0 && endOfFile ? textArea.getDocument().getLength() : 0);
+        updateRangeLabel();
+    }
+
+    /**
+     * Page in more data when the view approaches either end of the window
+     */
+    private void scrolled(AdjustmentEvent e) {
+        if (loading || chunks.isEmpty()) {
+            return;
+        }
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        int margin = bar.getVisibleAmount();
+        if (bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - margin && getWindowEnd() < fileSize) {
+            loadAfter();
+        } else if (bar.getValue() <= margin && getWindowStart() > 0) {
+            loadBefore();
+        }
+    }
+
+    private void loadAfter() {
+        final long start = getWindowEnd();
+        final int requestGeneration = generation;
+        loading = true;
+        executor.execute(() -> {
+            try {
+                FileClient.FileRange range = client.readRange(path, start, CHUNK_SIZE);
+                SwingUtilities.invokeLater(() -> {
+                    if (requestGeneration != generation) {
+                        return;
+                    }
+                    fileSize = range.getFileSize();
+                    byte[] data = range.getData();
+                    if (data.length > 0) {
+                        appendChunk(decode(start, data, 0, data.length, start + data.length >= fileSize));
+                    }
+                    loading = false;
+                });
+            } catch (Exception e) {
+                SwingUtilities.invokeLater(() -> rangeFailed(requestGeneration, e));
+            }
+        });
+    }
+
+    private void loadBefore() {
+        final long end = getWindowStart();
+        final long start = Math.max(0, end - CHUNK_SIZE);
+        final int requestGeneration = generation;
+        loading = true;
+        executor.execute(() -> {
+            try {
+                FileClient.FileRange range = client.readRange(path, start, (int) (end - start));
+                SwingUtilities.invokeLater(() -> {
+                    if (requestGeneration != generation) {
+                        return;
+                    }
+                    fileSize = range.getFileSize();
+                    byte[] data = range.getData();
+                    int from = !binary && start > 0 ? skipContinuationBytes(data, 0) : 0;
+                    if (data.length > from) {
+                        prependChunk(decode(start + from, data, from, data.length, true));
+                    }
+                    loading = false;
+                });
+            } catch (Exception e) {
+                SwingUtilities.invokeLater(() -> rangeFailed(requestGeneration, e));
+            }
+        });
+    }
+
+    private void rangeFailed(int requestGeneration, Exception e) {
+        if (requestGeneration == generation) {
+            loading = false;
+            rangeLabel.setText("读取失败: " + e.getMessage());
+        }
+    }
+
+    private void appendChunk(Chunk chunk) {
+        textArea.append(chunk.text);
+        chunk.text = null;
+        chunks.addLast(chunk);
+        if (chunks.size() > MAX_CHUNKS) {
+            Chunk dropped = chunks.removeFirst();
+            removeKeepingView(0, dropped.charLength, -dropped.charLength);
+        }
+        updateRangeLabel();
+    }
+
+    private void prependChunk(Chunk chunk) {
+        int anchor = viewAnchor();
+        textArea.insert(chunk.text, 0);
+        chunk.text = null;
+        chunks.addFirst(chunk);
+        int shift = chunk.charLength;
+        if (chunks.size() > MAX_CHUNKS) {
+            Chunk dropped = chunks.removeLast();
+            int length = textArea.getDocument().getLength();
+            textArea.replaceRange("", length - dropped.charLength, length);
+        }
+        restoreView(anchor + shift);
+        updateRangeLabel();
+    }
+
+    /**
+     * Remove text while keeping the same content in view
+     */
+    private void removeKeepingView(int from, int length, int shift) {
+        int anchor = viewAnchor();
+        textArea.replaceRange("", from, from + length);
+        restoreView(Math.max(0, anchor + shift));
+    }
+
+    private int viewAnchor() {
+        return textArea.viewToModel2D(scrollPane.getViewport().getViewPosition());
+    }
+
+    private void restoreView(int anchor) {
+        try {
+            Rectangle2D view = textArea.modelToView2D(Math.min(anchor, textArea.getDocument().getLength()));
+            if (view != null) {
+                scrollPane.getViewport().setViewPosition(new Point(scrollPane.getViewport().getViewPosition().x, (int) view.getY()));
+            }
+        } catch (BadLocationException e) {
+            // Leave the view where it is
+        }
+    }
+
+    private long getWindowStart() {
+        return chunks.isEmpty() ? 0 : chunks.getFirst().offset;
+    }
+
+    private long getWindowEnd() {
+        return chunks.isEmpty() ? 0 : chunks.getLast().offset + chunks.getLast().byteLength;
+    }
+
+    private void updateRangeLabel() {
+        long start = getWindowStart();
+        long end = getWindowEnd();
+        rangeLabel.setText(String.format("%s - %s / %s%s", LazyFileTableModel.formatSize(start),
+                LazyFileTableModel.formatSize(end), LazyFileTableModel.formatSize(fileSize), binary ? " (二进制)" : ""));
+        adjustingSlider = true;
+        positionSlider.setValue(fileSize == 0 ? 0 : (int) (start * SLIDER_MAX / fileSize));
+        adjustingSlider = false;
+    }
+
+    /**
+     * Turn bytes into displayable text. A multi-byte character cut off at the end of
+     * a text range is left for the next range unless the range ends the file.
+     */
+    private Chunk decode(long offset, byte[] data, int from, int to, boolean endOfFile) {
+        String text;
+        int end = to;
+        if (binary) {
+            text = hexDump(offset, data, from, to);
+        } else {
+            if (!endOfFile) {
+                end = trimIncompleteCharacter(data, from, to);
+            }
+            text = decodeUtf8(data, from, end);
+        }
+        return new Chunk(offset, end - from, text);
+    }
+
+    private static String decodeUtf8(byte[] data, int from, int to) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        try {
+            CharBuffer chars = decoder.decode(ByteBuffer.wrap(data, from, to - from));
+            return chars.toString();
+        } catch (CharacterCodingException e) {
+            return new String(data, from, to - from, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String hexDump(long offset, byte[] data, int from, int to) {
+        StringBuilder text = new StringBuilder((to - from) / HEX_WIDTH * 80 + 80);
+        for (int line = from; line < to; line += HEX_WIDTH) {
+            text.append(String.format("%010x  ", offset + line - from));
+            StringBuilder ascii = new StringBuilder(HEX_WIDTH);
+            for (int i = line; i < line + HEX_WIDTH; i++) {
+                if (i < to) {
+                    int b = data[i] & 0xFF;
+                    text.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16)).append(' ');
+                    ascii.append(b >= 0x20 && b < 0x7F ? (char) b : '.');
+                } else {
+                    text.append("   ");
+                }
+            }
+            text.append(' ').append(ascii).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Skip UTF-8 continuation bytes at the start of a range that begins mid-character
+     */
+    private static int skipContinuationBytes(byte[] data, int from) {
+        int i = from;
+        while (i < data.length && i < from + 3 && (data[i] & 0xC0) == 0x80) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * End a range before a multi-byte character that it does not fully contain
+     */
+    private static int trimIncompleteCharacter(byte[] data, int from, int to) {
+        for (int i = to - 1; i >= Math.max(from, to - 4); i--) {
+            int b = data[i] & 0xFF;
+            if ((b & 0xC0) == 0x80) {
+                continue;
+            }
+            int needed = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+            return to - i >= needed ? to : i;
+        }
+        return to;
+    }
+
+    private static int indexOf(byte[] data, byte value, int from) {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A range of the file shown in the text area
+     */
+    private static class Chunk {
+        private final long offset;
+        private final int byteLength;
+        private final int charLength;
+        private String text;
+
+        Chunk(long offset, int byteLength, String text) {
+            this.offset = offset;
+            this.byteLength = byteLength;
+            this.charLength = text.length();
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,1041 @@
+package client;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 本地目录与远程目录的双向同步
+ * 比较本地目录树、服务器清单(MANIFEST)和上次同步后保存的基线，只处理两边实际发生变化的条目：
+ * 一边变化而另一边未变时把变化带到另一边；两边都变化时，大小相同且修改时间相同(启用校验时哈希相同)视为一致，
+ * 否则修改时间较新的一边为准，修改优先于删除；同一路径一边是文件一边是目录时作为冲突跳过。
+ * 一边的文件消失、同一边出现大小、修改时间和内容哈希都相同的新文件时视为重命名，在另一边直接重命名而不重新传输。
+ * 任一边无法读取的目录，其中的条目内容未知，保持基线不变，既不删除也不传输。
+ * 基线保存在本地目录的 .jrfm-sync 文件中，未变化的树再次同步只需遍历和比较目录项，不读取文件内容
+ */
+public class FolderSync {
+    public static final String BASELINE_FILE = ".jrfm-sync";
+
+    private static final String BASELINE_HEADER = "JRFM-SYNC 1";
+    private static final long MTIME_TOLERANCE_MILLIS = 2000; // 部分文件系统只保存到秒或两秒
+    private static final int MAX_BATCH_OPERATIONS = 10000;
+    private static final int MAX_HASH_PATHS = 10000;
+
+    private final FileClient client;
+    private final Path localRoot;
+    private final String remoteRoot;
+    private int workers = 4;
+    private boolean checksum;
+    private boolean dryRun;
+    /** 无法读取或无法同步的路径，内容未知，其下的条目保持基线不变，不删除也不传输 */
+    private final Set<String> frozen = new HashSet<>();
+
+    /**
+     * 构造函数
+     * @param client 执行元数据操作的客户端，传输使用另外建立的连接
+     * @param localRoot 本地目录，不存在时创建
+     * @param remoteRoot 远程目录，必须已存在
+     */
+    public FolderSync(FileClient client, Path localRoot, String remoteRoot) {
+        this.client = client;
+        this.localRoot = localRoot.toAbsolutePath().normalize();
+        String root = remoteRoot.replace('\\', '/');
+        while (root.length() > 1 && root.endsWith("/")) {
+            root = root.substring(0, root.length() - 1);
+        }
+        this.remoteRoot = root.startsWith("/") ? root : "/" + root;
+    }
+
+    /**
+     * 设置并行传输的连接数
+     */
+    public void setWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * 两边都修改且大小相同但修改时间不同时，是否比较SHA-256哈希，相同则不传输
+     */
+    public void setChecksum(boolean checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * 为true时只计算计划，不做任何修改，也不更新基线
+     */
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * 执行同步
+     * @return 同步结果
+     */
+    public Result run() throws IOException {
+        long started = System.currentTimeMillis();
+        Result result = new Result();
+        if (!dryRun) {
+            Files.createDirectories(localRoot);
+        }
+        Map<String, Entry> local = Files.isDirectory(localRoot) ? scanLocal(result) : new HashMap<>();
+        Map<String, Entry> remote = scanRemote(result);
+        Map<String, Record> baseline = loadBaseline();
+
+        Plan plan = new Plan(local, remote, baseline, result);
+        plan.compare();
+        if (checksum && !plan.hashCandidates.isEmpty()) {
+            plan.resolveByHash();
+        }
+        plan.detectRenames();
+        plan.keepOccupiedDirectories();
+
+        if (dryRun) {
+            plan.describe();
+        } else {
+            plan.applyLocal();
+            plan.applyRemote();
+            plan.transfer();
+            saveBaseline(plan.next);
+        }
+        result.elapsedMillis = System.currentTimeMillis() - started;
+        return result;
+    }
+
+    /**
+     * 遍历本地目录，跳过基线文件、特殊文件和协议中不能表示的名称
+     */
+    private Map<String, Entry> scanLocal(Result result) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        Files.walkFileTree(localRoot, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                if (dir.equals(localRoot)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String relative = relativize(dir);
+                if (!isSyncable(relative)) {
+                    result.skipped.add(relative);
+                    frozen.add(relative);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                entries.put(relative, new Entry(true, 0, 0));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                String relative = relativize(file);
+                if (relative.equals(BASELINE_FILE) || relative.startsWith(BASELINE_FILE + ".")) {
+                    return FileVisitResult.CONTINUE;
+                }
+                // 符号链接、套接字、管道等特殊文件无法同步，与不能表示的名称一样保留，所在目录也不会被删除
+                if (!attributes.isRegularFile() || !isSyncable(relative)) {
+                    result.skipped.add(relative);
+                    frozen.add(relative);
+                    return FileVisitResult.CONTINUE;
+                }
+                entries.put(relative, new Entry(false, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // 读不了的目录不会进入 preVisitDirectory，其中的条目不能当作已删除
+                if (!(e instanceof NoSuchFileException)) {
+                    String relative = relativize(file);
+                    result.failures.add("无法读取本地 " + relative + ": " + e.getMessage());
+                    frozen.add(relative);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return entries;
+    }
+
+    private String relativize(Path path) {
+        String relative = localRoot.relativize(path).toString();
+        return File.separatorChar == '/' ? relative : relative.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * 服务器会过滤路径中的这些字符(反斜杠被当作分隔符)，含有它们的名称无法原样同步
+     */
+    private static boolean isSyncable(String relative) {
+        for (int i = 0; i < relative.length(); i++) {
+            char c = relative.charAt(i);
+            if (c < 0x20 || c == '|' || c == '\\' || c == '"' || c == '\'' || c == ':' || c == '*' || c == '?' || c == '<' || c == '>') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Map<String, Entry> scanRemote(Result result) throws IOException {
+        List<String> unreadable = new ArrayList<>();
+        List<FileClient.FileItem> items = client.getManifest(remoteRoot, unreadable);
+        for (String path : unreadable) {
+            result.failures.add("服务器无法读取 " + path);
+            frozen.add(path);
+        }
+        Map<String, Entry> entries = new HashMap<>(items.size() * 2);
+        for (FileClient.FileItem item : items) {
+            if (item.getName().equals(BASELINE_FILE)) {
+                continue;
+            }
+            if (!isSyncable(item.getName())) {
+                // 含控制字符的名称无法写进命令行和基线
+                result.skipped.add(item.getName());
+                frozen.add(item.getName());
+                continue;
+            }
+            entries.put(item.getName(), new Entry(item.isDirectory(), item.getSize(), item.getLastModified()));
+        }
+        return entries;
+    }
+
+    /**
+     * 路径本身或它的某个上级目录无法读取或无法同步
+     */
+    private boolean isFrozen(String path) {
+        if (frozen.isEmpty()) {
+            return false;
+        }
+        if (frozen.contains("") || frozen.contains(path)) {
+            return true;
+        }
+        int slash = path.length();
+        while ((slash = path.lastIndexOf('/', slash - 1)) > 0) {
+            if (frozen.contains(path.substring(0, slash))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String remotePath(String relative) {
+        return remoteRoot.equals("/") ? "/" + relative : remoteRoot + "/" + relative;
+    }
+
+    private Path localPath(String relative) {
+        return localRoot.resolve(relative);
+    }
+
+    /**
+     * 基线首行标明服务器和远程目录，与本次同步的不一致时作废
+     */
+    private String baselineHeader() {
+        return BASELINE_HEADER + "\t" + client.getServerAddress() + ":" + client.getServerPort() + "\t" + remoteRoot;
+    }
+
+    /**
+     * 读取基线，每行一个条目：路径\t类型(D/F)\t大小\t本地修改时间\t远程修改时间
+     */
+    private Map<String, Record> loadBaseline() throws IOException {
+        Map<String, Record> records = new HashMap<>();
+        Path file = localRoot.resolve(BASELINE_FILE);
+        if (!Files.isRegularFile(file)) {
+            return records;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!baselineHeader().equals(reader.readLine())) {
+                return records;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int first = line.indexOf('\t');
+                int second = line.indexOf('\t', first + 1);
+                int third = line.indexOf('\t', second + 1);
+                int fourth = line.indexOf('\t', third + 1);
+                if (first <= 0 || fourth < 0) {
+                    continue;
+                }
+                records.put(line.substring(0, first), new Record(line.charAt(first + 1) == 'D',
+                        Long.parseLong(line.substring(second + 1, third)), Long.parseLong(line.substring(third + 1, fourth)),
+                        Long.parseLong(line.substring(fourth + 1))));
+            }
+        } catch (NumberFormatException e) {
+            // 损坏的基线等同于首次同步，一致的文件只记录不传输
+            records.clear();
+        }
+        return records;
+    }
+
+    /**
+     * 先写临时文件再替换，中途失败时旧基线保持完整
+     */
+    private void saveBaseline(Map<String, Record> records) throws IOException {
+        Path file = localRoot.resolve(BASELINE_FILE);
+        Path temporary = localRoot.resolve(BASELINE_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            writer.write(baselineHeader());
+            writer.write('\n');
+            StringBuilder line = new StringBuilder(128);
+            for (Map.Entry<String, Record> entry : records.entrySet()) {
+                Record record = entry.getValue();
+                line.setLength(0);
+                line.append(entry.getKey()).append('\t').append(record.directory ? 'D' : 'F').append('\t')
+                        .append(record.size).append('\t').append(record.localModified).append('\t')
+                        .append(record.remoteModified).append('\n');
+                writer.append(line);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 同步计划：比较三方状态，得出两边各自要做的操作，再依次执行
+     */
+    private class Plan {
+        private final Map<String, Entry> local;
+        private final Map<String, Entry> remote;
+        private final Map<String, Record> baseline;
+        private final Result result;
+        /** 同步后的新基线，执行失败的条目保留旧记录 */
+        private final Map<String, Record> next = new HashMap<>();
+        private final TreeSet<String> uploads = new TreeSet<>();
+        private final TreeSet<String> downloads = new TreeSet<>();
+        private final TreeSet<String> remoteDirectories = new TreeSet<>();
+        private final TreeSet<String> localDirectories = new TreeSet<>();
+        private final TreeSet<String> remoteDeletes = new TreeSet<>();
+        private final TreeSet<String> localDeletes = new TreeSet<>();
+        /** 重命名，目标 -> 源 */
+        private final Map<String, String> remoteRenames = new TreeMap<>();
+        private final Map<String, String> localRenames = new TreeMap<>();
+        private final List<String> hashCandidates = new ArrayList<>();
+
+        Plan(Map<String, Entry> local, Map<String, Entry> remote, Map<String, Record> baseline, Result result) {
+            this.local = local;
+            this.remote = remote;
+            this.baseline = baseline;
+            this.result = result;
+        }
+
+        /**
+         * 逐个路径比较本地、远程和基线
+         */
+        void compare() {
+            Set<String> paths = new HashSet<>(local.keySet());
+            paths.addAll(remote.keySet());
+            paths.addAll(baseline.keySet());
+            for (String path : paths) {
+                Entry l = local.get(path);
+                Entry r = remote.get(path);
+                Record b = baseline.get(path);
+                if (isFrozen(path)) {
+                    keepBaseline(path);
+                    continue;
+                }
+                boolean localChanged = changed(l, b, true);
+                boolean remoteChanged = changed(r, b, false);
+                if (!localChanged && !remoteChanged) {
+                    next.put(path, b);
+                    result.unchanged++;
+                } else if (l != null && r != null && l.directory != r.directory) {
+                    conflict(path);
+                } else if (!remoteChanged) {
+                    propagate(path, l, r, true);
+                } else if (!localChanged) {
+                    propagate(path, r, l, false);
+                } else {
+                    resolve(path, l, r);
+                }
+            }
+        }
+
+        /**
+         * 条目相对基线是否变化；目录只看存在与否
+         */
+        private boolean changed(Entry entry, Record record, boolean localSide) {
+            if (entry == null || record == null) {
+                return (entry == null) != (record == null);
+            }
+            if (entry.directory != record.directory) {
+                return true;
+            }
+            return !entry.directory && (entry.size != record.size
+                    || entry.lastModified != (localSide ? record.localModified : record.remoteModified));
+        }
+
+        /**
+         * 只有一边变化：把这一边的状态带到另一边
+         */
+        private void propagate(String path, Entry source, Entry target, boolean toRemote) {
+            if (source == null) {
+                (toRemote ? remoteDeletes : localDeletes).add(path);
+            } else if (source.directory) {
+                if (target == null) {
+                    (toRemote ? remoteDirectories : localDirectories).add(path);
+                } else {
+                    next.put(path, Record.DIRECTORY);
+                    result.unchanged++;
+                }
+            } else {
+                (toRemote ? uploads : downloads).add(path);
+            }
+        }
+
+        /**
+         * 两边都变化(或没有基线)
+         */
+        private void resolve(String path, Entry l, Entry r) {
+            if (l == null && r == null) {
+                return;
+            }
+            if (l == null || r == null) {
+                // 修改优先于删除
+                propagate(path, l == null ? r : l, null, r == null);
+            } else if (l.directory) {
+                next.put(path, Record.DIRECTORY);
+                result.unchanged++;
+            } else if (l.size == r.size && Math.abs(l.lastModified - r.lastModified) < MTIME_TOLERANCE_MILLIS) {
+                next.put(path, new Record(false, l.size, l.lastModified, r.lastModified));
+                result.unchanged++;
+            } else if (checksum && l.size == r.size) {
+                hashCandidates.add(path);
+            } else {
+                (l.lastModified >= r.lastModified ? uploads : downloads).add(path);
+            }
+        }
+
+        private void conflict(String path) {
+            result.conflicts.add(path);
+            keepBaseline(path);
+        }
+
+        private void keepBaseline(String path) {
+            Record b = baseline.get(path);
+            if (b != null) {
+                next.put(path, b);
+            }
+        }
+
+        /**
+         * 大小相同但修改时间不同的文件：比较哈希，相同则只记录，否则修改时间较新的一边为准
+         */
+        void resolveByHash() throws IOException {
+            Map<String, String> remoteHashes = remoteHashes(hashCandidates);
+            for (String path : hashCandidates) {
+                Entry l = local.get(path);
+                Entry r = remote.get(path);
+                String remoteHash = remoteHashes.get(path);
+                if (remoteHash != null && remoteHash.equals(localHash(path))) {
+                    next.put(path, new Record(false, l.size, l.lastModified, r.lastModified));
+                    result.unchanged++;
+                } else {
+                    (l.lastModified >= r.lastModified ? uploads : downloads).add(path);
+                }
+            }
+        }
+
+        /**
+         * 批量查询远程文件的哈希
+         * @return 相对路径 -> 哈希，不存在或不是文件的路径没有条目
+         */
+        private Map<String, String> remoteHashes(List<String> relativePaths) throws IOException {
+            Map<String, String> hashes = new HashMap<>();
+            for (int start = 0; start < relativePaths.size(); start += MAX_HASH_PATHS) {
+                List<String> chunk = relativePaths.subList(start, Math.min(relativePaths.size(), start + MAX_HASH_PATHS));
+                List<String> paths = new ArrayList<>(chunk.size());
+                for (String path : chunk) {
+                    paths.add(remotePath(path));
+                }
+                List<FileClient.FileHash> results = client.getHashes(paths);
+                for (int i = 0; i < chunk.size(); i++) {
+                    if (results.get(i).getHash() != null) {
+                        hashes.put(chunk.get(i), results.get(i).getHash());
+                    }
+                }
+            }
+            return hashes;
+        }
+
+        /**
+         * 本地文件的哈希，读取失败时返回null
+         */
+        private String localHash(String path) {
+            try {
+                return hashOf(localPath(path));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * 重命名检测：一边删除的文件与同一边新出现的文件大小和修改时间都相同时作为候选，
+         * 再比较内容哈希，相同才在另一边重命名；哈希不同或无法取得时仍按删除加传输处理
+         */
+        void detectRenames() throws IOException {
+            detectRenames(remoteDeletes, uploads, remote, true, remoteRenames);
+            detectRenames(localDeletes, downloads, local, false, localRenames);
+        }
+
+        /**
+         * @param deletes 要在另一边删除的路径，即在这一边消失的文件
+         * @param transfers 要传到另一边的路径，其中在另一边和基线中都不存在的是新文件
+         * @param target 另一边的条目
+         * @param localSide 变化发生在本地
+         * @param renames 识别出的重命名
+         */
+        private void detectRenames(TreeSet<String> deletes, TreeSet<String> transfers, Map<String, Entry> target,
+                boolean localSide, Map<String, String> renames) throws IOException {
+            Map<String, List<String>> vanished = new HashMap<>();
+            for (String path : deletes) {
+                Entry t = target.get(path);
+                Record b = baseline.get(path);
+                if (t != null && !t.directory && b != null && !b.directory) {
+                    vanished.computeIfAbsent(b.size + ":" + (localSide ? b.localModified : b.remoteModified),
+                            key -> new ArrayList<>(1)).add(path);
+                }
+            }
+            if (vanished.isEmpty()) {
+                return;
+            }
+            Map<String, Entry> source = localSide ? local : remote;
+            List<String> appeared = new ArrayList<>();
+            Set<String> candidates = new HashSet<>();
+            for (String path : transfers) {
+                Entry s = source.get(path);
+                if (target.containsKey(path) || baseline.containsKey(path)) {
+                    continue;
+                }
+                List<String> sameKey = vanished.get(s.size + ":" + s.lastModified);
+                if (sameKey != null) {
+                    appeared.add(path);
+                    candidates.addAll(sameKey);
+                }
+            }
+            if (appeared.isEmpty()) {
+                return;
+            }
+
+            // 消失的文件仍在另一边，新文件只在这一边：本地变化时查远程旧文件、算本地新文件，远程变化时反之
+            List<String> vanishedPaths = new ArrayList<>(candidates);
+            Map<String, String> vanishedHashes;
+            Map<String, String> appearedHashes;
+            if (localSide) {
+                vanishedHashes = remoteHashes(vanishedPaths);
+                appearedHashes = localHashes(appeared);
+            } else {
+                vanishedHashes = localHashes(vanishedPaths);
+                appearedHashes = remoteHashes(appeared);
+            }
+            Map<String, List<String>> byHash = new HashMap<>();
+            for (String path : vanishedPaths) {
+                String hash = vanishedHashes.get(path);
+                if (hash != null) {
+                    Record b = baseline.get(path);
+                    byHash.computeIfAbsent(b.size + ":" + hash, key -> new ArrayList<>(1)).add(path);
+                }
+            }
+            for (String path : appeared) {
+                String hash = appearedHashes.get(path);
+                List<String> sameContent = hash == null ? null : byHash.get(source.get(path).size + ":" + hash);
+                if (sameContent == null || sameContent.isEmpty()) {
+                    continue;
+                }
+                String from = sameContent.remove(sameContent.size() - 1);
+                deletes.remove(from);
+                transfers.remove(path);
+                renames.put(path, from);
+            }
+        }
+
+        private Map<String, String> localHashes(List<String> paths) {
+            Map<String, String> hashes = new HashMap<>();
+            for (String path : paths) {
+                String hash = localHash(path);
+                if (hash != null) {
+                    hashes.put(path, hash);
+                }
+            }
+            return hashes;
+        }
+
+        /**
+         * 目录中仍有保留的条目时不能删除，改为在删除了它的一边重新创建；
+         * 随后只保留最上层的删除，目录删除连同其中的条目一起完成
+         */
+        void keepOccupiedDirectories() {
+            if (hasDirectory(remoteDeletes, remote) || hasDirectory(localDeletes, local)) {
+                Set<String> occupied = new HashSet<>();
+                addAncestors(occupied, next.keySet());
+                addAncestors(occupied, uploads);
+                addAncestors(occupied, downloads);
+                addAncestors(occupied, remoteDirectories);
+                addAncestors(occupied, localDirectories);
+                addAncestors(occupied, remoteRenames.keySet());
+                addAncestors(occupied, localRenames.keySet());
+                addAncestors(occupied, result.conflicts);
+                addAncestors(occupied, hashCandidates);
+                addAncestors(occupied, frozen);
+                for (String path : new ArrayList<>(remoteDeletes)) {
+                    if (occupied.contains(path)) {
+                        remoteDeletes.remove(path);
+                        localDirectories.add(path);
+                    }
+                }
+                for (String path : new ArrayList<>(localDeletes)) {
+                    if (occupied.contains(path)) {
+                        localDeletes.remove(path);
+                        remoteDirectories.add(path);
+                    }
+                }
+            }
+        }
+
+        private boolean hasDirectory(Collection<String> paths, Map<String, Entry> entries) {
+            for (String path : paths) {
+                if (entries.get(path).directory) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void addAncestors(Set<String> occupied, Collection<String> paths) {
+            for (String path : paths) {
+                int slash = path.length();
+                while ((slash = path.lastIndexOf('/', slash - 1)) > 0) {
+                    if (!occupied.add(path.substring(0, slash))) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 在最上层删除的目录之下的路径，它们随目录一起删除
+         */
+        private List<String> topmost(TreeSet<String> deletes) {
+            List<String> result = new ArrayList<>();
+            String last = null;
+            for (String path : deletes) {
+                if (last == null || !path.startsWith(last + "/")) {
+                    result.add(path);
+                    last = path;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * 删除失败时，被删除的路径及其下所有路径保留旧基线，下次同步重新处理
+         */
+        private void deleteFailed(TreeSet<String> deletes, String path) {
+            keepBaseline(path);
+            for (String child : deletes.subSet(path + "/", true, path + "0", false)) {
+                keepBaseline(child);
+            }
+        }
+
+        /**
+         * 试运行：只列出计划
+         */
+        void describe() {
+            for (String path : localDirectories) {
+                result.plan.add("本地创建目录 " + path);
+            }
+            for (String path : remoteDirectories) {
+                result.plan.add("远程创建目录 " + path);
+            }
+            for (Map.Entry<String, String> rename : localRenames.entrySet()) {
+                result.plan.add("本地重命名 " + rename.getValue() + " -> " + rename.getKey());
+            }
+            for (Map.Entry<String, String> rename : remoteRenames.entrySet()) {
+                result.plan.add("远程重命名 " + rename.getValue() + " -> " + rename.getKey());
+            }
+            for (String path : topmost(localDeletes)) {
+                result.plan.add("本地删除 " + path);
+            }
+            for (String path : topmost(remoteDeletes)) {
+                result.plan.add("远程删除 " + path);
+            }
+            for (String path : downloads) {
+                result.plan.add("下载 " + path);
+            }
+            for (String path : uploads) {
+                result.plan.add("上传 " + path);
+            }
+        }
+
+        /**
+         * 本地操作：创建目录、重命名、删除
+         */
+        void applyLocal() {
+            for (String path : localDirectories) {
+                try {
+                    Files.createDirectories(localPath(path));
+                    next.put(path, Record.DIRECTORY);
+                    result.directories++;
+                } catch (IOException e) {
+                    result.failures.add("本地创建目录 " + path + ": " + e.getMessage());
+                }
+            }
+            for (Map.Entry<String, String> rename : localRenames.entrySet()) {
+                String from = rename.getValue();
+                String to = rename.getKey();
+                try {
+                    Path target = localPath(to);
+                    Files.createDirectories(target.getParent());
+                    Files.move(localPath(from), target);
+                    Record b = baseline.get(from);
+                    next.put(to, new Record(false, b.size, b.localModified, remote.get(to).lastModified));
+                    result.renamed++;
+                } catch (IOException e) {
+                    result.failures.add("本地重命名 " + from + " -> " + to + ": " + e.getMessage());
+                    keepBaseline(from);
+                }
+            }
+            for (String path : topmost(localDeletes)) {
+                try {
+                    deleteRecursively(localPath(path));
+                    result.deleted++;
+                } catch (IOException e) {
+                    result.failures.add("本地删除 " + path + ": " + e.getMessage());
+                    deleteFailed(localDeletes, path);
+                }
+            }
+        }
+
+        /**
+         * 远程操作：创建目录、重命名、删除，按顺序分批在一次往返中完成
+         */
+        void applyRemote() throws IOException {
+            List<String> operations = new ArrayList<>();
+            List<Runnable> onSuccess = new ArrayList<>();
+            List<Runnable> onFailure = new ArrayList<>();
+            for (String path : remoteDirectories) {
+                operations.add("MKDIR|" + remotePath(path));
+                onSuccess.add(() -> {
+                    next.put(path, Record.DIRECTORY);
+                    result.directories++;
+                });
+                onFailure.add(() -> { });
+            }
+            for (Map.Entry<String, String> rename : remoteRenames.entrySet()) {
+                String from = rename.getValue();
+                String to = rename.getKey();
+                operations.add("RENAME|" + remotePath(from) + "|" + remotePath(to));
+                onSuccess.add(() -> {
+                    // 服务器上的重命名保留修改时间
+                    Record b = baseline.get(from);
+                    next.put(to, new Record(false, b.size, local.get(to).lastModified, b.remoteModified));
+                    result.renamed++;
+                });
+                onFailure.add(() -> keepBaseline(from));
+            }
+            for (String path : topmost(remoteDeletes)) {
+                operations.add("DELETE|" + remotePath(path));
+                onSuccess.add(() -> result.deleted++);
+                onFailure.add(() -> deleteFailed(remoteDeletes, path));
+            }
+
+            for (int start = 0; start < operations.size(); start += MAX_BATCH_OPERATIONS) {
+                int end = Math.min(operations.size(), start + MAX_BATCH_OPERATIONS);
+                List<FileClient.BatchResult> results = client.batch(operations.subList(start, end), false);
+                for (int i = 0; i < results.size(); i++) {
+                    FileClient.BatchResult batchResult = results.get(i);
+                    if (batchResult.isSuccess()) {
+                        onSuccess.get(start + i).run();
+                    } else {
+                        result.failures.add(batchResult.toString());
+                        onFailure.get(start + i).run();
+                    }
+                }
+            }
+        }
+
+        /**
+         * 并行传输文件，每个工作线程使用自己的连接
+         */
+        void transfer() throws IOException {
+            if (uploads.isEmpty() && downloads.isEmpty()) {
+                return;
+            }
+            AsyncFileClient transfers = new AsyncFileClient(client.getServerAddress(), client.getServerPort(), workers);
+            try {
+                Map<String, CompletableFuture<Boolean>> pendingDownloads = new LinkedHashMap<>();
+                for (String path : downloads) {
+                    pendingDownloads.put(path, transfers.downloadFile(remotePath(path), localPath(path).toString(),
+                            (TransferListener) null));
+                }
+                Map<String, CompletableFuture<Boolean>> pendingUploads = new LinkedHashMap<>();
+                for (String path : uploads) {
+                    pendingUploads.put(path, transfers.uploadFile(localPath(path).toString(), remotePath(path),
+                            (TransferListener) null));
+                }
+
+                for (Map.Entry<String, CompletableFuture<Boolean>> download : pendingDownloads.entrySet()) {
+                    String path = download.getKey();
+                    if (!await(download.getValue(), "下载 " + path)) {
+                        keepBaseline(path);
+                        continue;
+                    }
+                    // 本地修改时间与远程一致，下次同步时两边都视为未变化
+                    Entry r = remote.get(path);
+                    Path file = localPath(path);
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(r.lastModified));
+                    next.put(path, new Record(false, Files.size(file), Files.getLastModifiedTime(file).toMillis(),
+                            r.lastModified));
+                    result.downloaded++;
+                    result.bytes += r.size;
+                }
+
+                List<String> uploaded = new ArrayList<>();
+                for (Map.Entry<String, CompletableFuture<Boolean>> upload : pendingUploads.entrySet()) {
+                    String path = upload.getKey();
+                    if (await(upload.getValue(), "上传 " + path)) {
+                        uploaded.add(path);
+                        result.uploaded++;
+                        result.bytes += local.get(path).size;
+                    } else {
+                        keepBaseline(path);
+                    }
+                }
+                recordUploaded(uploaded);
+            } finally {
+                transfers.close();
+            }
+        }
+
+        private boolean await(CompletableFuture<Boolean> future, String action) {
+            try {
+                if (future.get()) {
+                    return true;
+                }
+                result.failures.add(action);
+            } catch (ExecutionException e) {
+                result.failures.add(action + ": " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.failures.add(action + ": 已中断");
+            }
+            return false;
+        }
+
+        /**
+         * 上传后服务器上的修改时间是接收完成的时间，批量查询后记入基线；哈希在上传时已经算好
+         */
+        private void recordUploaded(List<String> uploaded) throws IOException {
+            for (int start = 0; start < uploaded.size(); start += MAX_HASH_PATHS) {
+                List<String> chunk = uploaded.subList(start, Math.min(uploaded.size(), start + MAX_HASH_PATHS));
+                List<String> paths = new ArrayList<>(chunk.size());
+                for (String path : chunk) {
+                    paths.add(remotePath(path));
+                }
+                List<FileClient.FileHash> hashes = client.getHashes(paths);
+                for (int i = 0; i < chunk.size(); i++) {
+                    FileClient.FileHash hash = hashes.get(i);
+                    Entry l = local.get(chunk.get(i));
+                    if (hash.getLastModified() >= 0) {
+                        next.put(chunk.get(i), new Record(false, l.size, l.lastModified, hash.getLastModified()));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            try {
+                Files.delete(path);
+            } catch (NoSuchFileException e) {
+                // 已不存在
+            }
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static String hashOf(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * 一边的条目
+     */
+    private static class Entry {
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+
+        Entry(boolean directory, long size, long lastModified) {
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * 上次同步后两边一致的状态
+     */
+    private static class Record {
+        static final Record DIRECTORY = new Record(true, 0, 0, 0);
+
+        private final boolean directory;
+        private final long size;
+        private final long localModified;
+        private final long remoteModified;
+
+        Record(boolean directory, long size, long localModified, long remoteModified) {
+            this.directory = directory;
+            this.size = size;
+            this.localModified = localModified;
+            this.remoteModified = remoteModified;
+        }
+    }
+
+    /**
+     * 同步结果
+     */
+    public static class Result {
+        private long uploaded;
+        private long downloaded;
+        private long bytes;
+        private long deleted;
+        private long renamed;
+        private long directories;
+        private long unchanged;
+        private long elapsedMillis;
+        private final List<String> conflicts = new ArrayList<>();
+        private final List<String> skipped = new ArrayList<>();
+        private final List<String> failures = new ArrayList<>();
+        private final List<String> plan = new ArrayList<>();
+
+        public long getUploaded() {
+            return uploaded;
+        }
+
+        public long getDownloaded() {
+            return downloaded;
+        }
+
+        /**
+         * 传输的文件字节数
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * 两边删除的条目数，删除目录计为一个
+         */
+        public long getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * 以重命名代替传输的文件数
+         */
+        public long getRenamed() {
+            return renamed;
+        }
+
+        public long getDirectories() {
+            return directories;
+        }
+
+        /**
+         * 两边已一致的条目数
+         */
+        public long getUnchanged() {
+            return unchanged;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * 一边是文件一边是目录而未处理的路径
+         */
+        public List<String> getConflicts() {
+            return conflicts;
+        }
+
+        /**
+         * 名称中含有服务器不接受的字符或控制字符，或本地不是普通文件而未同步的路径
+         */
+        public List<String> getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * 失败的操作，下次同步时重新处理
+         */
+        public List<String> getFailures() {
+            return failures;
+        }
+
+        /**
+         * 试运行时计划执行的操作
+         */
+        public List<String> getPlan() {
+            return plan;
+        }
+
+        @Override
+        public String toString() {
+            return "上传 " + uploaded + ", 下载 " + downloaded + " (" + bytes + " 字节), 删除 " + deleted
+                    + ", 重命名 " + renamed + ", 创建目录 " + directories + ", 未变化 " + unchanged
+                    + ", 冲突 " + conflicts.size() + ", 失败 " + failures.size() + ", 耗时 " + elapsedMillis + " 毫秒";
+        }
+    }
+}
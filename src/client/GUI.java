@@ -2,17 +2,16 @@ package client;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 /**
  * GUI class for file management
@@ -23,8 +22,9 @@ public class GUI extends JFrame {
     private String currentDirectory = "/";
     
     private JTable fileTable;
-    private DefaultTableModel tableModel;
+    private LazyFileTableModel tableModel;
     private JTextField addressBar;
+    private JTextField filterField;
     private JButton backButton;
     private JButton refreshButton;
     private JButton uploadButton;
@@ -33,6 +33,19 @@ public class GUI extends JFrame {
     private JButton mkdirButton;
     private JButton renameButton;
     private JLabel statusBar;
+    private TransferManagerPanel transferPanel;
+    private ChangeWatcher changeWatcher;
+    
+    // Bursts of change notifications collapse into one refresh
+    private final Timer changeRefreshTimer = new Timer(300, e -> loadListing(currentDirectory,
+            tableModel.getSort(), tableModel.getFilter(), "目录内容已变化，正在刷新..."));
+    
+    // Single background thread for browsing calls; the shared FileClient is not thread-safe
+    private final ExecutorService browseExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "gui-browse");
+        thread.setDaemon(true);
+        return thread;
+    });
     
     /**
      * Constructor
@@ -40,10 +53,11 @@ public class GUI extends JFrame {
      */
     public GUI(FileClient client) {
         this.client = client;
+        changeRefreshTimer.setRepeats(false);
         
         // Initialize window properties
         setTitle("Java远程文件管理系统");
-        setSize(800, 600);
+        setSize(800, 700);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
         
@@ -92,8 +106,19 @@ public class GUI extends JFrame {
             }
         });
         
+        filterField = new JTextField(12);
+        filterField.setToolTipText("按名称筛选，回车生效");
+        filterField.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                loadListing(currentDirectory, tableModel.getSort(), filterField.getText().trim(), "正在筛选...");
+            }
+        });
+        
         navigationPanel.add(backButton);
         navigationPanel.add(refreshButton);
+        navigationPanel.add(new JLabel("筛选:"));
+        navigationPanel.add(filterField);
         
         addressPanel.add(new JLabel("路径: "), BorderLayout.WEST);
         addressPanel.add(addressBar, BorderLayout.CENTER);
@@ -151,14 +176,8 @@ public class GUI extends JFrame {
         toolbarPanel.add(addressPanel, BorderLayout.NORTH);
         toolbarPanel.add(buttonPanel, BorderLayout.SOUTH);
         
-        // File list table
-        String[] columnNames = {"名称", "类型", "大小"};
-        tableModel = new DefaultTableModel(columnNames, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        // File list table, rows are paged in from the server as they scroll into view
+        tableModel = new LazyFileTableModel(client, browseExecutor);
         
         fileTable = new JTable(tableModel);
         fileTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -166,63 +185,113 @@ public class GUI extends JFrame {
             @Override
             public void mouseClicked(MouseEvent e) {
                 if (e.getClickCount() == 2) {
-                    int selectedRow = fileTable.getSelectedRow();
-                    if (selectedRow != -1) {
-                        String fileName = (String) tableModel.getValueAt(selectedRow, 0);
-                        String fileType = (String) tableModel.getValueAt(selectedRow, 1);
-                        
-                        if ("目录".equals(fileType)) {
-                            navigateToDirectory(combinePath(currentDirectory, fileName));
+                    FileClient.FileItem item = getSelectedItem();
+                    if (item != null) {
+                        if (item.isDirectory()) {
+                            navigateToDirectory(combinePath(currentDirectory, item.getName()));
                         } else {
-                            previewFile(combinePath(currentDirectory, fileName));
+                            previewFile(combinePath(currentDirectory, item.getName()));
                         }
                     }
                 }
             }
         });
         
+        // Sorting is done by the server; clicking a header toggles the order
+        fileTable.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int column = fileTable.columnAtPoint(e.getPoint());
+                String key = column == 2 ? "size" : column == 3 ? "mtime" : "name";
+                String sort = key.equals(tableModel.getSort()) ? "-" + key : key;
+                loadListing(currentDirectory, sort, tableModel.getFilter(), "正在排序...");
+            }
+        });
+        
         JScrollPane scrollPane = new JScrollPane(fileTable);
         
+        // Transfer queue below the file list
+        transferPanel = new TransferManagerPanel(client.getServerAddress(), client.getServerPort());
+        transferPanel.setUploadListener(remotePath -> {
+            // Uploads go through the panel's own connections, so our cache does not see them
+            client.invalidateCache(remotePath);
+            String parent = remotePath.substring(0, remotePath.lastIndexOf('/') + 1);
+            if (parent.equals(currentDirectory)) {
+                refreshFileList();
+            }
+        });
+        JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, scrollPane, transferPanel);
+        splitPane.setResizeWeight(0.7);
+        
         // Status bar
         statusBar = new JLabel("就绪");
         statusBar.setBorder(BorderFactory.createLoweredBevelBorder());
         
         // Assemble interface
         mainPanel.add(toolbarPanel, BorderLayout.NORTH);
-        mainPanel.add(scrollPane, BorderLayout.CENTER);
+        mainPanel.add(splitPane, BorderLayout.CENTER);
         mainPanel.add(statusBar, BorderLayout.SOUTH);
         
         add(mainPanel);
     }
     
     /**
-     * Refresh file list
+     * Refresh file list, bypassing the client's metadata cache
      */
     private void refreshFileList() {
-        try {
-            updateStatus("正在加载文件列表...");
-            List<FileClient.FileItem> files = client.listFiles(currentDirectory);
-            
-            // Clear table
-            tableModel.setRowCount(0);
-            
-            // Add file items
-            for (FileClient.FileItem item : files) {
-                Object[] row = {
-                    item.getName(),
-                    item.isDirectory() ? "目录" : "文件",
-                    item.isDirectory() ? "" : "未知"
-                };
-                tableModel.addRow(row);
-            }
-            
-            // Update address bar
+        client.invalidateCache(currentDirectory);
+        loadListing(currentDirectory, tableModel.getSort(), tableModel.getFilter(), "正在加载文件列表...");
+    }
+    
+    /**
+     * Fetch the first page of a directory in the background and show it;
+     * the remaining pages are loaded by the table model on demand
+     * @param directory Directory path
+     * @param sort Sort key
+     * @param filter Name filter
+     * @param status Status message shown while loading
+     */
+    private void loadListing(String directory, String sort, String filter, String status) {
+        runInBackground(status, () -> client.listPage(directory, 0, LazyFileTableModel.PAGE_SIZE, sort, filter), page -> {
+            currentDirectory = directory;
+            watchDirectory(directory);
+            tableModel.setListing(directory, sort, filter, page);
             addressBar.setText(currentDirectory);
-            updateStatus("文件列表已更新");
-            
-        } catch (IOException e) {
-            showError("刷新文件列表失败: " + e.getMessage());
+            updateStatus("文件列表已更新，共 " + page.getTotal() + " 项");
+        }, "无法访问目录: ");
+    }
+    
+    /**
+     * Subscribe to server-side changes of the displayed directory so the view
+     * refreshes itself instead of polling
+     * @param directory Directory path
+     */
+    private void watchDirectory(String directory) {
+        if (changeWatcher != null && changeWatcher.getPath().equals(directory)) {
+            return;
+        }
+        if (changeWatcher != null) {
+            changeWatcher.close();
         }
+        changeWatcher = new ChangeWatcher(client.getServerAddress(), client.getServerPort(), directory, false,
+                (kind, path, newPath) -> {
+                    // Called on the watcher thread; the cache is thread-safe
+                    client.invalidateCache(path);
+                    if (newPath != null) {
+                        client.invalidateCache(newPath);
+                    }
+                    SwingUtilities.invokeLater(changeRefreshTimer::restart);
+                });
+        changeWatcher.start();
+    }
+    
+    /**
+     * Get the selected entry
+     * @return Selected entry, or null if nothing is selected or its page is still loading
+     */
+    private FileClient.FileItem getSelectedItem() {
+        int selectedRow = fileTable.getSelectedRow();
+        return selectedRow == -1 ? null : tableModel.getItem(selectedRow);
     }
     
     /**
@@ -230,23 +299,17 @@ public class GUI extends JFrame {
      * @param path Directory path
      */
     private void navigateToDirectory(String path) {
-        try {
-            // Normalize path
-            if (!path.startsWith("/")) {
-                path = combinePath(currentDirectory, path);
-            }
-            if (!path.endsWith("/")) {
-                path += "/";
-            }
-            
-            // Verify directory exists
-            client.listFiles(path);
-            currentDirectory = path;
-            refreshFileList();
-            
-        } catch (IOException e) {
-            showError("无法访问目录: " + e.getMessage());
+        // Normalize path
+        if (!path.startsWith("/")) {
+            path = combinePath(currentDirectory, path);
+        }
+        if (!path.endsWith("/")) {
+            path += "/";
         }
+        
+        // The first page both verifies the directory and fills the table
+        loadListing(path, tableModel.getSort(), "", "正在打开目录...");
+        filterField.setText("");
     }
     
     /**
@@ -265,24 +328,14 @@ public class GUI extends JFrame {
     private void uploadFile() {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+        fileChooser.setMultiSelectionEnabled(true);
         
         if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            File selectedFile = fileChooser.getSelectedFile();
-            String remotePath = combinePath(currentDirectory, selectedFile.getName());
-            
-            try {
-                updateStatus("正在上传文件...");
-                boolean success = client.uploadFile(selectedFile.getAbsolutePath(), remotePath);
-                
-                if (success) {
-                    updateStatus("文件上传成功");
-                    refreshFileList();
-                } else {
-                    showError("文件上传失败");
-                }
-            } catch (IOException e) {
-                showError("上传文件时出错: " + e.getMessage());
+            for (File selectedFile : fileChooser.getSelectedFiles()) {
+                String remotePath = combinePath(currentDirectory, selectedFile.getName());
+                transferPanel.enqueueUpload(selectedFile.getAbsolutePath(), remotePath);
             }
+            updateStatus("已加入传输队列");
         }
     }
     
@@ -290,16 +343,15 @@ public class GUI extends JFrame {
      * Download file
      */
     private void downloadFile() {
-        int selectedRow = fileTable.getSelectedRow();
-        if (selectedRow == -1) {
+        FileClient.FileItem item = getSelectedItem();
+        if (item == null) {
             showError("请选择要下载的文件");
             return;
         }
         
-        String fileName = (String) tableModel.getValueAt(selectedRow, 0);
-        String fileType = (String) tableModel.getValueAt(selectedRow, 1);
+        String fileName = item.getName();
         
-        if ("目录".equals(fileType)) {
+        if (item.isDirectory()) {
             showError("无法下载目录");
             return;
         }
@@ -310,19 +362,8 @@ public class GUI extends JFrame {
         if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
             File saveFile = fileChooser.getSelectedFile();
             String remotePath = combinePath(currentDirectory, fileName);
-            
-            try {
-                updateStatus("正在下载文件...");
-                boolean success = client.downloadFile(remotePath, saveFile.getAbsolutePath());
-                
-                if (success) {
-                    updateStatus("文件下载成功");
-                } else {
-                    showError("文件下载失败");
-                }
-            } catch (IOException e) {
-                showError("下载文件时出错: " + e.getMessage());
-            }
+            transferPanel.enqueueDownload(remotePath, saveFile.getAbsolutePath());
+            updateStatus("已加入传输队列");
         }
     }
     
@@ -330,13 +371,13 @@ public class GUI extends JFrame {
      * Delete file or directory
      */
     private void deleteFile() {
-        int selectedRow = fileTable.getSelectedRow();
-        if (selectedRow == -1) {
+        FileClient.FileItem item = getSelectedItem();
+        if (item == null) {
             showError("请选择要删除的文件或目录");
             return;
         }
         
-        String fileName = (String) tableModel.getValueAt(selectedRow, 0);
+        String fileName = item.getName();
         
         int result = JOptionPane.showConfirmDialog(
             this,
@@ -346,19 +387,15 @@ public class GUI extends JFrame {
         );
         
         if (result == JOptionPane.YES_OPTION) {
-            try {
-                String filePath = combinePath(currentDirectory, fileName);
-                boolean success = client.deleteFile(filePath);
-                
+            String filePath = combinePath(currentDirectory, fileName);
+            runInBackground("正在删除...", () -> client.deleteFile(filePath), success -> {
                 if (success) {
                     updateStatus("删除成功");
                     refreshFileList();
                 } else {
                     showError("删除失败");
                 }
-            } catch (IOException e) {
-                showError("删除时出错: " + e.getMessage());
-            }
+            }, "删除时出错: ");
         }
     }
     
@@ -369,19 +406,15 @@ public class GUI extends JFrame {
         String dirName = JOptionPane.showInputDialog(this, "输入目录名称:", "新建目录", JOptionPane.PLAIN_MESSAGE);
         
         if (dirName != null && !dirName.trim().isEmpty()) {
-            try {
-                String dirPath = combinePath(currentDirectory, dirName.trim());
-                boolean success = client.createDirectory(dirPath);
-                
+            String dirPath = combinePath(currentDirectory, dirName.trim());
+            runInBackground("正在创建目录...", () -> client.createDirectory(dirPath), success -> {
                 if (success) {
                     updateStatus("目录创建成功");
                     refreshFileList();
                 } else {
                     showError("目录创建失败");
                 }
-            } catch (IOException e) {
-                showError("创建目录时出错: " + e.getMessage());
-            }
+            }, "创建目录时出错: ");
         }
     }
     
@@ -389,30 +422,26 @@ public class GUI extends JFrame {
      * Rename file or directory
      */
     private void renameFile() {
-        int selectedRow = fileTable.getSelectedRow();
-        if (selectedRow == -1) {
+        FileClient.FileItem item = getSelectedItem();
+        if (item == null) {
             showError("请选择要重命名的文件或目录");
             return;
         }
         
-        String oldName = (String) tableModel.getValueAt(selectedRow, 0);
+        String oldName = item.getName();
         String newName = JOptionPane.showInputDialog(this, "输入新名称:", oldName);
         
         if (newName != null && !newName.trim().isEmpty() && !newName.equals(oldName)) {
-            try {
-                String oldPath = combinePath(currentDirectory, oldName);
-                String newPath = combinePath(currentDirectory, newName.trim());
-                boolean success = client.renameFile(oldPath, newPath);
-                
+            String oldPath = combinePath(currentDirectory, oldName);
+            String newPath = combinePath(currentDirectory, newName.trim());
+            runInBackground("正在重命名...", () -> client.renameFile(oldPath, newPath), success -> {
                 if (success) {
                     updateStatus("重命名成功");
                     refreshFileList();
                 } else {
                     showError("重命名失败");
                 }
-            } catch (IOException e) {
-                showError("重命名时出错: " + e.getMessage());
-            }
+            }, "重命名时出错: ");
         }
     }
     
@@ -430,6 +459,25 @@ public class GUI extends JFrame {
         }
     }
     
+    /**
+     * Run a network call on the background browse thread and handle the result on the EDT
+     * @param status Status message shown while the call runs
+     * @param call Network call
+     * @param onSuccess Result handler, invoked on the EDT
+     * @param errorPrefix Prefix of the error message shown on failure
+     */
+    private <T> void runInBackground(String status, Callable<T> call, Consumer<T> onSuccess, String errorPrefix) {
+        updateStatus(status);
+        browseExecutor.execute(() -> {
+            try {
+                T result = call.call();
+                SwingUtilities.invokeLater(() -> onSuccess.accept(result));
+            } catch (Exception e) {
+                SwingUtilities.invokeLater(() -> showError(errorPrefix + e.getMessage()));
+            }
+        });
+    }
+    
     /**
      * Update status bar
      * @param message Status message
@@ -452,55 +500,11 @@ public class GUI extends JFrame {
      * @param path 文件路径
      */
     private void previewFile(String path) {
-        try {
-            updateStatus("正在加载文件内容...");
-            
-            // 创建临时文件用于预览
-            File tempFile = File.createTempFile("preview_", ".tmp");
-            tempFile.deleteOnExit();
-            
-            // 下载文件到临时位置
-            boolean success = client.downloadFile(path, tempFile.getAbsolutePath());
-            
-            if (success) {
-                // 读取文件内容
-                StringBuilder content = new StringBuilder();
-                try (BufferedReader reader = new BufferedReader(new FileReader(tempFile))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        content.append(line).append("\n");
-                    }
-                }
-                
-                // 创建文本区域显示内容
-                JTextArea textArea = new JTextArea(content.toString());
-                textArea.setEditable(false);
-                textArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
-                
-                // 创建滚动面板
-                JScrollPane scrollPane = new JScrollPane(textArea);
-                scrollPane.setPreferredSize(new Dimension(600, 400));
-                
-                // 显示文件内容对话框
-                String fileName = path.substring(path.lastIndexOf('/') + 1);
-                JOptionPane.showMessageDialog(
-                    this,
-                    scrollPane,
-                    "文件内容: " + fileName,
-                    JOptionPane.PLAIN_MESSAGE
-                );
-                
-                updateStatus("文件内容已加载");
-            } else {
-                showError("无法加载文件内容");
-            }
-            
-            // 删除临时文件
-            tempFile.delete();
-            
-        } catch (IOException e) {
-            showError("预览文件时出错: " + e.getMessage());
-        }
+        // Only the first range is fetched here; the dialog pages in the rest on demand
+        runInBackground("正在加载文件内容...", () -> client.readRange(path, 0, FilePreviewDialog.CHUNK_SIZE), range -> {
+            new FilePreviewDialog(this, client, browseExecutor, path, range).setVisible(true);
+            updateStatus("文件内容已加载");
+        }, "预览文件时出错: ");
     }
     
     /**
@@ -0,0 +1,220 @@
+package client;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lazily loaded file table model
+ * Only the row count is known up front; rows are fetched from the server page by page
+ * when the table asks for them, so a directory of any size costs one page per screenful.
+ * Sorting and filtering are done by the server. A bounded LRU keeps recently viewed pages.
+ * Must be used on the Event Dispatch Thread.
+ */
+public class LazyFileTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    public static final int PAGE_SIZE = 500;
+    private static final int MAX_CACHED_PAGES = 40;
+    private static final int MAX_PENDING_PAGES = 8;
+    private static final String[] COLUMN_NAMES = {"名称", "类型", "大小", "修改时间"};
+
+    private final FileClient client;
+    private final Executor executor;
+    private final Map<Integer, List<FileClient.FileItem>> pages =
+            new LinkedHashMap<Integer, List<FileClient.FileItem>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, List<FileClient.FileItem>> eldest) {
+                    return size() > MAX_CACHED_PAGES;
+                }
+            };
+    private final Set<Integer> pending = new HashSet<>();
+    private final Deque<Integer> requests = new ConcurrentLinkedDeque<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+    private volatile String directory = "/";
+    private volatile String sort = "name";
+    private volatile String filter = "";
+    private volatile int generation;
+    private int total;
+
+    /**
+     * Constructor
+     * @param client File client used to fetch pages
+     * @param executor Executor that serializes calls on the client
+     */
+    public LazyFileTableModel(FileClient client, Executor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    /**
+     * Replace the listing with a new directory, sort order or filter
+     * @param directory Directory path
+     * @param sort Sort key passed to the server
+     * @param filter Name filter passed to the server
+     * @param firstPage First page, already fetched by the caller
+     */
+    public void setListing(String directory, String sort, String filter, FileClient.FilePage firstPage) {
+        this.directory = directory;
+        this.sort = sort;
+        this.filter = filter;
+        generation++;
+        pages.clear();
+        pending.clear();
+        requests.clear();
+        total = firstPage.getTotal();
+        pages.put(0, firstPage.getItems());
+        fireTableDataChanged();
+    }
+
+    public String getSort() {
+        return sort;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * Get the entry of a row, scheduling its page for loading if needed
+     * @param row Row index
+     * @return Entry, or null while its page is loading
+     */
+    public FileClient.FileItem getItem(int row) {
+        int pageIndex = row / PAGE_SIZE;
+        List<FileClient.FileItem> page = pages.get(pageIndex);
+        if (page == null) {
+            requestPage(pageIndex);
+            return null;
+        }
+        int offset = row % PAGE_SIZE;
+        return offset < page.size() ? page.get(offset) : null;
+    }
+
+    @Override
+    public int getRowCount() {
+        return total;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        FileClient.FileItem item = getItem(row);
+        if (item == null) {
+            return column == 0 ? "加载中..." : "";
+        }
+        switch (column) {
+            case 0:
+                return item.getName();
+            case 1:
+                return item.isDirectory() ? "目录" : "文件";
+            case 2:
+                return item.isDirectory() ? "" : formatSize(item.getSize());
+            case 3:
+                return item.getLastModified() > 0 ? dateFormat.format(new Date(item.getLastModified())) : "";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Queue a page request. The newest request is served first so the rows in view
+     * load before pages the user has already scrolled past; the oldest are dropped.
+     */
+    private void requestPage(int pageIndex) {
+        if (!pending.add(pageIndex)) {
+            return;
+        }
+        requests.addFirst(pageIndex);
+        while (requests.size() > MAX_PENDING_PAGES) {
+            Integer dropped = requests.pollLast();
+            if (dropped != null) {
+                pending.remove(dropped);
+            }
+        }
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drainRequests);
+        }
+    }
+
+    /**
+     * Fetch queued pages on the executor thread
+     */
+    private void drainRequests() {
+        try {
+            Integer pageIndex;
+            while ((pageIndex = requests.pollFirst()) != null) {
+                int requestGeneration = generation;
+                String requestDirectory = directory;
+                try {
+                    FileClient.FilePage page = client.listPage(requestDirectory, pageIndex * PAGE_SIZE, PAGE_SIZE, sort, filter);
+                    final int loadedIndex = pageIndex;
+                    SwingUtilities.invokeLater(() -> pageLoaded(requestGeneration, loadedIndex, page));
+                } catch (Exception e) {
+                    final int failedIndex = pageIndex;
+                    SwingUtilities.invokeLater(() -> pending.remove(failedIndex));
+                }
+            }
+        } finally {
+            draining.set(false);
+            if (!requests.isEmpty() && draining.compareAndSet(false, true)) {
+                executor.execute(this::drainRequests);
+            }
+        }
+    }
+
+    private void pageLoaded(int requestGeneration, int pageIndex, FileClient.FilePage page) {
+        if (requestGeneration != generation) {
+            return;
+        }
+        pending.remove(pageIndex);
+        pages.put(pageIndex, page.getItems());
+        if (page.getTotal() != total) {
+            // The directory changed since the first page; show the new size
+            total = page.getTotal();
+            fireTableDataChanged();
+            return;
+        }
+        int first = pageIndex * PAGE_SIZE;
+        int last = Math.min(total, first + PAGE_SIZE) - 1;
+        if (last >= first) {
+            fireTableRowsUpdated(first, last);
+        }
+    }
+
+    /**
+     * Format file size
+     */
+    static String formatSize(long size) {
+        if (size < 0) {
+            return "未知";
+        } else if (size >= 1024L * 1024 * 1024) {
+            return String.format("%.1f GB", size / (1024.0 * 1024 * 1024));
+        } else if (size >= 1024 * 1024) {
+            return String.format("%.1f MB", size / (1024.0 * 1024));
+        } else if (size >= 1024) {
+            return String.format("%.1f KB", size / 1024.0);
+        }
+        return size + " B";
+    }
+}
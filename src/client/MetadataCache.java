@@ -0,0 +1,159 @@
+package client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 客户端目录元数据缓存
+ * 按目录路径缓存列表结果，条目在过期、超出容量或本客户端修改了该目录后失效，
+ * 使前进、后退、返回上级和重复列出目录不必再访问服务器
+ */
+public class MetadataCache {
+    /** 默认有效期 */
+    public static final long DEFAULT_TTL_MILLIS = 10000;
+    /** 默认最多缓存的文件条目总数，按条目数而不是结果数限制内存占用 */
+    public static final int DEFAULT_MAX_ITEMS = 50000;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long ttlNanos;
+    private int maxItems;
+    private int cachedItems;
+    private long hits;
+    private long misses;
+
+    public MetadataCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_ITEMS);
+    }
+
+    /**
+     * 构造函数
+     * @param ttlMillis 有效期(毫秒)，0表示不缓存
+     * @param maxItems 最多缓存的文件条目总数
+     */
+    public MetadataCache(long ttlMillis, int maxItems) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.maxItems = maxItems;
+    }
+
+    /**
+     * 规范化目录路径：以"/"开头，除根目录外不以"/"结尾
+     */
+    static String normalize(String path) {
+        String normalized = path.startsWith("/") ? path : "/" + path;
+        while (normalized.length() > 1 && normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    /**
+     * 查找缓存的结果
+     * @param directory 目录路径
+     * @param variant 同一目录下区分不同请求的键(命令、分页、排序、过滤)
+     * @return 未过期的结果，没有时返回null
+     */
+    public synchronized Object get(String directory, String variant) {
+        String key = normalize(directory) + "|" + variant;
+        Entry entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.createdAt < ttlNanos) {
+            hits++;
+            return entry.value;
+        }
+        if (entry != null) {
+            remove(key);
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * 缓存一个结果
+     * @param directory 目录路径
+     * @param variant 同一目录下区分不同请求的键
+     * @param value 结果
+     * @param itemCount 结果包含的文件条目数，用于容量限制
+     */
+    public synchronized void put(String directory, String variant, Object value, int itemCount) {
+        if (ttlNanos <= 0 || itemCount > maxItems) {
+            return;
+        }
+        String normalized = normalize(directory);
+        String key = normalized + "|" + variant;
+        remove(key);
+        entries.put(key, new Entry(normalized, value, Math.max(1, itemCount)));
+        cachedItems += Math.max(1, itemCount);
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (cachedItems > maxItems && iterator.hasNext()) {
+            cachedItems -= iterator.next().itemCount;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 某个路径被创建、修改、删除或移动，使其父目录以及其自身子树的缓存失效
+     * @param path 发生变化的路径
+     */
+    public synchronized void invalidate(String path) {
+        String changed = normalize(path);
+        int slash = changed.lastIndexOf('/');
+        String parent = slash <= 0 ? "/" : changed.substring(0, slash);
+        String prefix = "/".equals(changed) ? "/" : changed + "/";
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.directory.equals(parent) || entry.directory.equals(changed) || entry.directory.startsWith(prefix)) {
+                cachedItems -= entry.itemCount;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 清空缓存
+     */
+    public synchronized void clear() {
+        entries.clear();
+        cachedItems = 0;
+    }
+
+    /**
+     * 设置有效期，0表示不缓存
+     * @param ttlMillis 有效期(毫秒)
+     */
+    public synchronized void setTtlMillis(long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        if (ttlNanos <= 0) {
+            clear();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            cachedItems -= removed.itemCount;
+        }
+    }
+
+    private static class Entry {
+        private final String directory;
+        private final Object value;
+        private final int itemCount;
+        private final long createdAt = System.nanoTime();
+
+        Entry(String directory, Object value, int itemCount) {
+            this.directory = directory;
+            this.value = value;
+            this.itemCount = itemCount;
+        }
+    }
+}
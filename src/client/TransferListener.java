@@ -0,0 +1,13 @@
+package client;
+
+/**
+ * 传输进度监听器
+ * 回调在执行传输的线程上调用，实现中不应执行耗时操作
+ */
+public interface TransferListener {
+    /**
+     * 传输进度更新，传输结束时会再回调一次最终进度
+     * @param progress 当前进度
+     */
+    void onProgress(TransferProgress progress);
+}
@@ -0,0 +1,357 @@
+package client;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableCellRenderer;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+/**
+ * Transfer manager panel
+ * Queues uploads and downloads, runs them on background connections with
+ * configurable parallelism, and shows progress, throughput and ETA.
+ * All task state is owned by the Event Dispatch Thread.
+ */
+public class TransferManagerPanel extends JPanel {
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_PARALLELISM = 8;
+    private static final String[] COLUMN_NAMES = {"方向", "文件", "状态", "进度", "速率", "剩余时间"};
+
+    private final AsyncFileClient asyncClient;
+    private final List<TransferTask> tasks = new ArrayList<>();
+    private final TransferTableModel tableModel = new TransferTableModel();
+    private final JTable table;
+    private final JSpinner parallelismSpinner;
+    private int parallelism = 3;
+    private Consumer<String> uploadListener;
+
+    /**
+     * Constructor
+     * @param serverAddress Server address
+     * @param serverPort Server port
+     */
+    public TransferManagerPanel(String serverAddress, int serverPort) {
+        super(new BorderLayout());
+        this.asyncClient = new AsyncFileClient(serverAddress, serverPort, MAX_PARALLELISM);
+
+        table = new JTable(tableModel);
+        table.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        table.getColumnModel().getColumn(3).setCellRenderer(new ProgressRenderer());
+        table.getColumnModel().getColumn(0).setPreferredWidth(40);
+        table.getColumnModel().getColumn(1).setPreferredWidth(260);
+
+        JPanel controlPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controlPanel.add(new JLabel("传输队列  并行数:"));
+        parallelismSpinner = new JSpinner(new SpinnerNumberModel(parallelism, 1, MAX_PARALLELISM, 1));
+        parallelismSpinner.addChangeListener(e -> {
+            parallelism = (Integer) parallelismSpinner.getValue();
+            schedule();
+        });
+        controlPanel.add(parallelismSpinner);
+        controlPanel.add(createButton("暂停", () -> forSelected(this::pause)));
+        controlPanel.add(createButton("继续", () -> forSelected(this::resume)));
+        controlPanel.add(createButton("取消", () -> forSelected(this::cancel)));
+        controlPanel.add(createButton("重试", () -> forSelected(this::retry)));
+        controlPanel.add(createButton("清除已结束", this::clearFinished));
+
+        add(controlPanel, BorderLayout.NORTH);
+        add(new JScrollPane(table), BorderLayout.CENTER);
+        setPreferredSize(new Dimension(800, 180));
+    }
+
+    /**
+     * Set callback invoked on the EDT with the remote path of each completed upload
+     */
+    public void setUploadListener(Consumer<String> uploadListener) {
+        this.uploadListener = uploadListener;
+    }
+
+    /**
+     * Queue a download
+     */
+    public void enqueueDownload(String remotePath, String localPath) {
+        enqueue(new TransferTask(false, remotePath, localPath));
+    }
+
+    /**
+     * Queue an upload
+     */
+    public void enqueueUpload(String localPath, String remotePath) {
+        enqueue(new TransferTask(true, remotePath, localPath));
+    }
+
+    /**
+     * Cancel running transfers and close background connections
+     */
+    public void shutdown() {
+        for (TransferTask task : tasks) {
+            if (task.future != null) {
+                task.future.cancel(true);
+            }
+        }
+        asyncClient.close();
+    }
+
+    private void enqueue(TransferTask task) {
+        tasks.add(task);
+        tableModel.fireTableRowsInserted(tasks.size() - 1, tasks.size() - 1);
+        schedule();
+    }
+
+    /**
+     * Start queued tasks until the number of running tasks reaches the parallelism limit.
+     * Paused transfers still hold a connection and count as running.
+     */
+    private void schedule() {
+        int running = 0;
+        for (TransferTask task : tasks) {
+            if (task.future != null) {
+                running++;
+            }
+        }
+        for (TransferTask task : tasks) {
+            if (running >= parallelism) {
+                break;
+            }
+            if (task.status == Status.QUEUED) {
+                start(task);
+                running++;
+            }
+        }
+    }
+
+    private void start(TransferTask task) {
+        task.status = Status.ACTIVE;
+        task.error = null;
+        task.progress = null;
+        task.tracker = new TransferTracker(progress -> SwingUtilities.invokeLater(() -> {
+            task.progress = progress;
+            updateRow(task);
+        }));
+        task.future = task.upload
+                ? asyncClient.uploadFile(task.localPath, task.remotePath, task.tracker)
+                : asyncClient.downloadFile(task.remotePath, task.localPath, task.tracker);
+        task.future.whenComplete((success, error) -> SwingUtilities.invokeLater(() -> finished(task, success, error)));
+        updateRow(task);
+    }
+
+    private void finished(TransferTask task, Boolean success, Throwable error) {
+        task.future = null;
+        if (task.status != Status.CANCELLED) {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                task.status = cause instanceof CancellationException ? Status.CANCELLED : Status.FAILED;
+                task.error = cause.getMessage();
+            } else if (Boolean.TRUE.equals(success)) {
+                task.status = Status.COMPLETED;
+                if (task.upload && uploadListener != null) {
+                    uploadListener.accept(task.remotePath);
+                }
+            } else {
+                task.status = Status.FAILED;
+                task.error = "服务器拒绝";
+            }
+        }
+        updateRow(task);
+        schedule();
+    }
+
+    private void pause(TransferTask task) {
+        if (task.status == Status.ACTIVE) {
+            task.tracker.pause();
+            task.status = Status.PAUSED;
+        } else if (task.status == Status.QUEUED) {
+            task.status = Status.PAUSED;
+        }
+    }
+
+    private void resume(TransferTask task) {
+        if (task.status != Status.PAUSED) {
+            return;
+        }
+        if (task.future != null) {
+            task.tracker.resume();
+            task.status = Status.ACTIVE;
+        } else {
+            task.status = Status.QUEUED;
+        }
+    }
+
+    private void cancel(TransferTask task) {
+        if (task.status == Status.COMPLETED || task.status == Status.FAILED || task.status == Status.CANCELLED) {
+            return;
+        }
+        task.status = Status.CANCELLED;
+        if (task.future != null) {
+            task.future.cancel(true);
+        }
+    }
+
+    private void retry(TransferTask task) {
+        if (task.future == null && (task.status == Status.FAILED || task.status == Status.CANCELLED)) {
+            task.status = Status.QUEUED;
+            task.progress = null;
+            task.error = null;
+        }
+    }
+
+    private void clearFinished() {
+        Iterator<TransferTask> iterator = tasks.iterator();
+        while (iterator.hasNext()) {
+            TransferTask task = iterator.next();
+            if (task.future == null && (task.status == Status.COMPLETED || task.status == Status.FAILED
+                    || task.status == Status.CANCELLED)) {
+                iterator.remove();
+            }
+        }
+        tableModel.fireTableDataChanged();
+    }
+
+    private void forSelected(Consumer<TransferTask> action) {
+        for (int row : table.getSelectedRows()) {
+            action.accept(tasks.get(table.convertRowIndexToModel(row)));
+        }
+        tableModel.fireTableRowsUpdated(0, Math.max(0, tasks.size() - 1));
+        schedule();
+    }
+
+    private void updateRow(TransferTask task) {
+        int row = tasks.indexOf(task);
+        if (row >= 0) {
+            tableModel.fireTableRowsUpdated(row, row);
+        }
+    }
+
+    private static JButton createButton(String text, Runnable action) {
+        JButton button = new JButton(text);
+        button.addActionListener(e -> action.run());
+        return button;
+    }
+
+    /**
+     * Format bytes per second
+     */
+    private static String formatRate(long bytesPerSecond) {
+        if (bytesPerSecond >= 1024 * 1024) {
+            return String.format("%.1f MB/s", bytesPerSecond / (1024.0 * 1024));
+        } else if (bytesPerSecond >= 1024) {
+            return String.format("%.1f KB/s", bytesPerSecond / 1024.0);
+        }
+        return bytesPerSecond + " B/s";
+    }
+
+    private static String formatEta(long seconds) {
+        if (seconds < 0) {
+            return "";
+        }
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+
+    /**
+     * Transfer status
+     */
+    private enum Status {
+        QUEUED("排队中"), ACTIVE("传输中"), PAUSED("已暂停"), COMPLETED("已完成"), FAILED("失败"), CANCELLED("已取消");
+
+        private final String label;
+
+        Status(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * A single queued transfer
+     */
+    private static class TransferTask {
+        private final boolean upload;
+        private final String remotePath;
+        private final String localPath;
+        private Status status = Status.QUEUED;
+        private TransferTracker tracker;
+        private CompletableFuture<Boolean> future;
+        private TransferProgress progress;
+        private String error;
+
+        TransferTask(boolean upload, String remotePath, String localPath) {
+            this.upload = upload;
+            this.remotePath = remotePath;
+            this.localPath = localPath;
+        }
+    }
+
+    /**
+     * Table model over the task list
+     */
+    private class TransferTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int getRowCount() {
+            return tasks.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMN_NAMES.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMN_NAMES[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            TransferTask task = tasks.get(row);
+            TransferProgress progress = task.progress;
+            boolean running = task.status == Status.ACTIVE;
+            switch (column) {
+                case 0:
+                    return task.upload ? "上传" : "下载";
+                case 1:
+                    return task.remotePath;
+                case 2:
+                    return task.error != null ? task.status.label + ": " + task.error : task.status.label;
+                case 3:
+                    if (task.status == Status.COMPLETED) {
+                        return 100;
+                    }
+                    return progress != null ? Math.max(0, progress.getPercent()) : 0;
+                case 4:
+                    if (progress == null) {
+                        return "";
+                    }
+                    return formatRate(running ? progress.getCurrentRate() : progress.getAverageRate());
+                case 5:
+                    return running && progress != null ? formatEta(progress.getEtaSeconds()) : "";
+                default:
+                    return "";
+            }
+        }
+    }
+
+    /**
+     * Renders the progress column as a progress bar
+     */
+    private static class ProgressRenderer implements TableCellRenderer {
+        private final JProgressBar progressBar = new JProgressBar(0, 100);
+
+        ProgressRenderer() {
+            progressBar.setStringPainted(true);
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                       boolean hasFocus, int row, int column) {
+            progressBar.setValue(value instanceof Integer ? (Integer) value : 0);
+            return progressBar;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package client;
+
+/**
+ * 传输进度快照
+ */
+public class TransferProgress {
+    private final String path;
+    private final long bytesTransferred;
+    private final long totalBytes;
+    private final long currentRate;
+    private final long averageRate;
+    private final boolean finished;
+
+    public TransferProgress(String path, long bytesTransferred, long totalBytes,
+                            long currentRate, long averageRate, boolean finished) {
+        this.path = path;
+        this.bytesTransferred = bytesTransferred;
+        this.totalBytes = totalBytes;
+        this.currentRate = currentRate;
+        this.averageRate = averageRate;
+        this.finished = finished;
+    }
+
+    /**
+     * 远程文件路径
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * 文件总大小，未知时为-1
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * 最近一个采样周期内的瞬时速率(字节/秒)
+     */
+    public long getCurrentRate() {
+        return currentRate;
+    }
+
+    /**
+     * 传输开始以来的平均速率(字节/秒)
+     */
+    public long getAverageRate() {
+        return averageRate;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * 完成百分比，总大小未知时为-1
+     */
+    public int getPercent() {
+        if (totalBytes <= 0) {
+            return totalBytes == 0 ? 100 : -1;
+        }
+        return (int) (bytesTransferred * 100 / totalBytes);
+    }
+
+    /**
+     * 预计剩余秒数，无法估计时为-1
+     */
+    public long getEtaSeconds() {
+        long rate = currentRate > 0 ? currentRate : averageRate;
+        if (totalBytes < 0 || rate <= 0) {
+            return -1;
+        }
+        return Math.max(0, totalBytes - bytesTransferred) / rate;
+    }
+}
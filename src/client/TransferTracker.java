@@ -0,0 +1,152 @@
+package client;
+
+import java.io.InterruptedIOException;
+
+/**
+ * 传输进度跟踪器
+ * 统计已传字节数和速率，按固定间隔通知监听器，并提供暂停和取消传输的入口。
+ * 传输线程在每个数据块之后调用update：暂停时update阻塞直到恢复，
+ * 取消后下一次update会抛出InterruptedIOException
+ */
+public class TransferTracker {
+    private static final long NOTIFY_INTERVAL_NANOS = 100_000_000L;
+    private static final long RATE_SAMPLE_NANOS = 250_000_000L;
+
+    private final TransferListener listener;
+    private volatile boolean cancelled;
+    private volatile boolean paused;
+    private volatile String path;
+    private volatile long totalBytes = -1;
+    private volatile long bytesTransferred;
+    private volatile long currentRate;
+    private volatile boolean finished;
+    private volatile boolean started;
+    private long startTime;
+    private long lastNotify;
+    private long sampleTime;
+    private long sampleBytes;
+
+    /**
+     * 构造函数
+     * @param listener 进度监听器，可为null
+     */
+    public TransferTracker(TransferListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 请求取消传输，传输线程会在下一个数据块之后停止
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 暂停传输，传输线程会在下一个数据块之后等待。
+     * 暂停期间连接保持占用，超过服务器的空闲超时后会话将被回收，传输失败
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    /**
+     * 恢复已暂停的传输
+     */
+    public synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * 传输开始
+     * @param path 远程路径
+     * @param totalBytes 总大小
+     */
+    void start(String path, long totalBytes) throws InterruptedIOException {
+        checkCancelled();
+        this.path = path;
+        this.totalBytes = totalBytes;
+        this.bytesTransferred = 0;
+        this.finished = false;
+        startTime = System.nanoTime();
+        sampleTime = startTime;
+        sampleBytes = 0;
+        lastNotify = startTime;
+        started = true;
+        notifyListener();
+    }
+
+    /**
+     * 记录一个已传输的数据块
+     * @param bytes 字节数
+     */
+    void update(long bytes) throws InterruptedIOException {
+        bytesTransferred += bytes;
+        long now = System.nanoTime();
+        if (now - sampleTime >= RATE_SAMPLE_NANOS) {
+            currentRate = (bytesTransferred - sampleBytes) * 1_000_000_000L / (now - sampleTime);
+            sampleTime = now;
+            sampleBytes = bytesTransferred;
+        }
+        if (now - lastNotify >= NOTIFY_INTERVAL_NANOS) {
+            lastNotify = now;
+            notifyListener();
+        }
+        if (paused) {
+            awaitResume();
+        }
+        checkCancelled();
+    }
+
+    private synchronized void awaitResume() throws InterruptedIOException {
+        while (paused && !cancelled) {
+            try {
+                wait(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("传输被中断");
+            }
+        }
+        currentRate = 0;
+        sampleTime = System.nanoTime();
+        sampleBytes = bytesTransferred;
+    }
+
+    /**
+     * 传输结束，发出最终进度
+     */
+    void finish() {
+        finished = true;
+        notifyListener();
+    }
+
+    /**
+     * 获取当前进度
+     */
+    public TransferProgress getProgress() {
+        long elapsed = System.nanoTime() - startTime;
+        long averageRate = started && elapsed > 0 ? bytesTransferred * 1_000_000_000L / elapsed : 0;
+        return new TransferProgress(path, bytesTransferred, totalBytes, currentRate, averageRate, finished);
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (cancelled) {
+            throw new InterruptedIOException("传输已取消");
+        }
+    }
+
+    private void notifyListener() {
+        if (listener != null) {
+            listener.onProgress(getProgress());
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 直接缓冲区池
+ * 传输代码从这里借用直接缓冲区，文件通道和套接字通道都可以直接读写，省去经过堆数组的复制。
+ * 缓冲区按容量分级，每个线程为每个级别缓存一个缓冲区，借还都不需要同步；
+ * 线程缓存满时归还到共享队列，共享队列超过上限后直接丢弃，由垃圾回收释放本地内存。
+ * 配置: -Djrfm.buffers.maxPooled 共享队列保存的总字节数(默认64M，支持K/M/G后缀)，
+ * -Djrfm.buffers.leakDetection=true 记录每次借用的调用栈，用于查找未归还的缓冲区
+ */
+public final class BufferPool {
+    /** 容量级别，借用时取不小于所需容量的最小级别 */
+    private static final int[] SIZE_CLASSES = {8 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+    /** 文件传输使用的缓冲区大小 */
+    public static final int TRANSFER_SIZE = 64 * 1024;
+
+    private static final BufferPool SHARED = new BufferPool(
+            parseSize(System.getProperty("jrfm.buffers.maxPooled"), 64L * 1024 * 1024),
+            Boolean.getBoolean("jrfm.buffers.leakDetection"));
+
+    private final Pool[] pools = new Pool[SIZE_CLASSES.length];
+    private final ThreadLocal<ByteBuffer[]> threadCache = ThreadLocal.withInitial(() -> new ByteBuffer[SIZE_CLASSES.length]);
+    private final boolean leakDetection;
+    private final Map<ByteBuffer, Lease> leases = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder threadLocalHits = new LongAdder();
+    private final LongAdder poolHits = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder invalidReleases = new LongAdder();
+
+    /**
+     * 构造函数
+     * @param maxPooledBytes 共享队列保存的总字节数，平均分给各容量级别
+     * @param leakDetection 是否记录借用位置
+     */
+    public BufferPool(long maxPooledBytes, boolean leakDetection) {
+        this.leakDetection = leakDetection;
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            pools[i] = new Pool((int) Math.min(Integer.MAX_VALUE, maxPooledBytes / SIZE_CLASSES.length / SIZE_CLASSES[i]));
+        }
+    }
+
+    /**
+     * 进程内共享的缓冲区池
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * 借用缓冲区
+     * 返回的缓冲区已清空，容量不小于所需容量，用完后必须调用 release 归还
+     * @param minCapacity 所需容量
+     * @return 直接缓冲区
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        acquired.increment();
+        int sizeClass = sizeClass(minCapacity);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0) {
+            ByteBuffer[] cache = threadCache.get();
+            buffer = cache[sizeClass];
+            if (buffer != null) {
+                cache[sizeClass] = null;
+                threadLocalHits.increment();
+            } else {
+                buffer = pools[sizeClass].buffers.poll();
+                if (buffer != null) {
+                    pools[sizeClass].count.decrementAndGet();
+                    poolHits.increment();
+                }
+            }
+        }
+        if (buffer == null) {
+            // 超过最大级别的请求不入池，归还时直接丢弃
+            int capacity = sizeClass >= 0 ? SIZE_CLASSES[sizeClass] : minCapacity;
+            buffer = ByteBuffer.allocateDirect(capacity);
+            allocated.increment();
+            allocatedBytes.add(capacity);
+        }
+        buffer.clear();
+        if (leakDetection) {
+            leases.put(buffer, new Lease());
+        }
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲区，归还后调用方不得再使用
+     * @param buffer 借用的缓冲区，为null时忽略
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (leakDetection && leases.remove(buffer) == null) {
+            // 重复归还会让两个使用者共享同一块内存，宁可丢弃
+            invalidReleases.increment();
+            System.err.println("归还了未借出的缓冲区(重复归还?): " + Thread.currentThread().getName());
+            return;
+        }
+        int sizeClass = buffer.isDirect() ? exactSizeClass(buffer.capacity()) : -1;
+        ByteBuffer[] cache = sizeClass >= 0 ? threadCache.get() : null;
+        if (cache != null && cache[sizeClass] == buffer) {
+            invalidReleases.increment();
+            System.err.println("重复归还缓冲区: " + Thread.currentThread().getName());
+            return;
+        }
+        released.increment();
+        if (sizeClass < 0) {
+            discarded.increment();
+            return;
+        }
+        if (cache[sizeClass] == null) {
+            cache[sizeClass] = buffer;
+            return;
+        }
+        Pool pool = pools[sizeClass];
+        if (pool.count.incrementAndGet() <= pool.maxPooled) {
+            pool.buffers.offer(buffer);
+        } else {
+            pool.count.decrementAndGet();
+            discarded.increment();
+        }
+    }
+
+    /**
+     * 借出后超过指定时长仍未归还的缓冲区，仅在开启泄漏检测时可用
+     * @param minAgeMillis 借出时长下限
+     * @return 借用记录，包含借用线程和调用栈
+     */
+    public List<Lease> findLeaks(long minAgeMillis) {
+        List<Lease> result = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (leases) {
+            for (Lease lease : leases.values()) {
+                if (now - lease.getAcquiredAt() >= minAgeMillis) {
+                    result.add(lease);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 打印疑似泄漏的缓冲区
+     * @param minAgeMillis 借出时长下限
+     * @return 疑似泄漏的数量
+     */
+    public int reportLeaks(long minAgeMillis) {
+        List<Lease> leaks = findLeaks(minAgeMillis);
+        for (Lease lease : leaks) {
+            System.err.println("缓冲区未归还，借出于 " + lease.getThreadName() + " "
+                    + (System.currentTimeMillis() - lease.getAcquiredAt()) + " 毫秒前");
+            lease.getTrace().printStackTrace();
+        }
+        return leaks.size();
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * 统计信息快照
+     */
+    public Statistics getStatistics() {
+        int pooled = 0;
+        long pooledBytes = 0;
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            int count = Math.max(0, pools[i].count.get());
+            pooled += count;
+            pooledBytes += (long) count * SIZE_CLASSES[i];
+        }
+        return new Statistics(acquired.sum(), threadLocalHits.sum(), poolHits.sum(), allocated.sum(), allocatedBytes.sum(),
+                released.sum(), discarded.sum(), invalidReleases.sum(), pooled, pooledBytes);
+    }
+
+    private static int sizeClass(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int exactSizeClass(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        return sizeClass >= 0 && SIZE_CLASSES[sizeClass] == capacity ? sizeClass : -1;
+    }
+
+    private static long parseSize(String text, long defaultValue) {
+        if (text == null || text.trim().isEmpty()) {
+            return defaultValue;
+        }
+        String value = text.trim().toUpperCase();
+        long unit = 1;
+        if (value.endsWith("K")) {
+            unit = 1024;
+        } else if (value.endsWith("M")) {
+            unit = 1024 * 1024;
+        } else if (value.endsWith("G")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            return Long.parseLong(value.trim()) * unit;
+        } catch (NumberFormatException e) {
+            System.err.println("配置项格式错误，使用默认值: jrfm.buffers.maxPooled=" + text);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 一个容量级别的共享队列
+     */
+    private static class Pool {
+        private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+        private final int maxPooled;
+
+        Pool(int maxPooled) {
+            this.maxPooled = maxPooled;
+        }
+    }
+
+    /**
+     * 一次借用的记录
+     */
+    public static class Lease {
+        private final String threadName = Thread.currentThread().getName();
+        private final long acquiredAt = System.currentTimeMillis();
+        private final Throwable trace = new Throwable("借用位置");
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        public long getAcquiredAt() {
+            return acquiredAt;
+        }
+
+        public Throwable getTrace() {
+            return trace;
+        }
+    }
+
+    /**
+     * 缓冲区池统计
+     */
+    public static class Statistics {
+        private final long acquired;
+        private final long threadLocalHits;
+        private final long poolHits;
+        private final long allocated;
+        private final long allocatedBytes;
+        private final long released;
+        private final long discarded;
+        private final long invalidReleases;
+        private final int pooled;
+        private final long pooledBytes;
+
+        Statistics(long acquired, long threadLocalHits, long poolHits, long allocated, long allocatedBytes,
+                   long released, long discarded, long invalidReleases, int pooled, long pooledBytes) {
+            this.acquired = acquired;
+            this.threadLocalHits = threadLocalHits;
+            this.poolHits = poolHits;
+            this.allocated = allocated;
+            this.allocatedBytes = allocatedBytes;
+            this.released = released;
+            this.discarded = discarded;
+            this.invalidReleases = invalidReleases;
+            this.pooled = pooled;
+            this.pooledBytes = pooledBytes;
+        }
+
+        public long getAcquired() {
+            return acquired;
+        }
+
+        public long getThreadLocalHits() {
+            return threadLocalHits;
+        }
+
+        public long getPoolHits() {
+            return poolHits;
+        }
+
+        public long getAllocated() {
+            return allocated;
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public long getReleased() {
+            return released;
+        }
+
+        public long getDiscarded() {
+            return discarded;
+        }
+
+        public long getInvalidReleases() {
+            return invalidReleases;
+        }
+
+        /**
+         * 借出未还的缓冲区数
+         */
+        public long getOutstanding() {
+            return acquired - released;
+        }
+
+        public int getPooled() {
+            return pooled;
+        }
+
+        public long getPooledBytes() {
+            return pooledBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "借用 " + acquired + " 次(线程缓存命中 " + threadLocalHits + ", 共享池命中 " + poolHits
+                    + "), 新分配 " + allocated + " 个/" + allocatedBytes + " 字节, 未归还 " + getOutstanding()
+                    + ", 池中 " + pooled + " 个/" + pooledBytes + " 字节, 丢弃 " + discarded + ", 无效归还 " + invalidReleases;
+        }
+    }
+}
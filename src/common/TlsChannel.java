@@ -0,0 +1,441 @@
+package common;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 基于 SSLEngine 的 TLS 通道
+ * 底层套接字通道始终处于非阻塞模式，由通道自己的选择器等待可读/可写，对调用方表现为带读超时的阻塞通道。
+ * 密文和已解密数据都放在缓冲区池借来的直接缓冲区中，关闭时归还。
+ * 读和写各用一个选择器，可以分别由不同线程同时进行，等待读取时不会挡住写入，但同一方向同时只能有一个调用方
+ */
+public class TlsChannel implements ByteChannel {
+    /** 等待时的最长单次选择时间，其他线程关闭通道后最迟在这段时间内察觉 */
+    private static final long SELECT_SLICE_MILLIS = 500;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    /** 只关注可读，只在持有 readLock 时使用 */
+    private final Selector readSelector;
+    /** 只关注可写，只在持有 writeLock 时使用 */
+    private final Selector writeSelector;
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    /** 从网络读到、尚未解密的数据(写模式) */
+    private final ByteBuffer netIn;
+    /** 已加密、尚未发出的数据(写模式) */
+    private final ByteBuffer netOut;
+    /** 已解密、尚未交给调用方的数据(写模式) */
+    private final ByteBuffer appIn;
+    private volatile int readTimeoutMillis;
+    private boolean inboundDone;
+
+    /**
+     * 构造函数
+     * @param channel 已连接的套接字通道，将被切换为非阻塞模式
+     * @param engine 已设置好客户端/服务器模式的引擎
+     */
+    public TlsChannel(SocketChannel channel, SSLEngine engine) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        BufferPool pool = BufferPool.shared();
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = pool.acquire(packetSize);
+        this.netOut = pool.acquire(packetSize);
+        this.appIn = pool.acquire(Math.max(engine.getSession().getApplicationBufferSize(), packetSize));
+        Selector reading = null;
+        Selector writing = null;
+        try {
+            channel.configureBlocking(false);
+            reading = Selector.open();
+            channel.register(reading, SelectionKey.OP_READ);
+            writing = Selector.open();
+            channel.register(writing, SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            if (reading != null) {
+                reading.close();
+            }
+            if (writing != null) {
+                writing.close();
+            }
+            pool.release(netIn);
+            pool.release(netOut);
+            pool.release(appIn);
+            throw e;
+        }
+        this.readSelector = reading;
+        this.writeSelector = writing;
+    }
+
+    /**
+     * 连接服务器并完成握手
+     * 引擎以服务器地址和端口创建，同一个上下文再次连接同一服务器时可以恢复会话，省去完整握手
+     * @param context TLS上下文
+     * @param host 服务器地址
+     * @param port 服务器端口
+     * @param readTimeoutMillis 读超时(毫秒)，0表示不超时，握手也受此约束
+     * @return 已完成握手的通道
+     */
+    public static TlsChannel connect(SSLContext context, String host, int port, int readTimeoutMillis) throws IOException {
+        SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            socketChannel.socket().setTcpNoDelay(true);
+            SSLEngine engine = TlsSupport.createClientEngine(context, host, port);
+            TlsChannel tls = new TlsChannel(socketChannel, engine);
+            tls.setReadTimeout(readTimeoutMillis);
+            try {
+                tls.handshake();
+            } catch (IOException e) {
+                tls.close();
+                throw e;
+            }
+            return tls;
+        } catch (IOException | RuntimeException e) {
+            socketChannel.close();
+            throw e;
+        }
+    }
+
+    public SocketChannel getSocketChannel() {
+        return channel;
+    }
+
+    public SSLEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * 设置读超时，超时后读取抛出 SocketTimeoutException
+     * @param readTimeoutMillis 毫秒，0表示不超时
+     */
+    public void setReadTimeout(int readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public int getReadTimeout() {
+        return readTimeoutMillis;
+    }
+
+    /**
+     * 完成握手，连接建立后、收发数据之前调用
+     */
+    public void handshake() throws IOException {
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                engine.beginHandshake();
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                while (true) {
+                    switch (status) {
+                        case NEED_WRAP:
+                            status = wrap(EMPTY).getHandshakeStatus();
+                            flushNetwork();
+                            break;
+                        case NEED_UNWRAP:
+                        case NEED_UNWRAP_AGAIN:
+                            SSLEngineResult result = unwrap();
+                            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                                if (readNetwork() < 0) {
+                                    throw new EOFException("握手期间连接被关闭");
+                                }
+                                status = engine.getHandshakeStatus();
+                            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                                throw new SSLException("握手期间连接被关闭");
+                            } else {
+                                status = result.getHandshakeStatus();
+                            }
+                            break;
+                        case NEED_TASK:
+                            runDelegatedTasks();
+                            status = engine.getHandshakeStatus();
+                            break;
+                        default:
+                            return;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (readLock) {
+            ensureOpen();
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            while (true) {
+                if (appIn.position() > 0) {
+                    appIn.flip();
+                    int n = Math.min(appIn.remaining(), dst.remaining());
+                    int limit = appIn.limit();
+                    appIn.limit(appIn.position() + n);
+                    dst.put(appIn);
+                    appIn.limit(limit);
+                    appIn.compact();
+                    return n;
+                }
+                if (inboundDone) {
+                    return -1;
+                }
+                SSLEngineResult result = unwrap();
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        if (readNetwork() < 0) {
+                            // 对方未发送关闭通知就断开了连接
+                            inboundDone = true;
+                        }
+                        break;
+                    case CLOSED:
+                        inboundDone = true;
+                        break;
+                    default:
+                        handlePostHandshake(result.getHandshakeStatus());
+                        break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        synchronized (writeLock) {
+            ensureOpen();
+            int written = 0;
+            while (src.hasRemaining()) {
+                SSLEngineResult result = wrap(src);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS连接已关闭");
+                }
+                written += result.bytesConsumed();
+            }
+            flushNetwork();
+            return written;
+        }
+    }
+
+    /**
+     * 不等待的写入：通道暂时不可写时立即返回，未发出的密文留在缓冲区，下次调用时先发出
+     * 用于一个线程轮流向多个连接推送数据，慢速的对端不会阻塞其他连接
+     * @param src 明文，已加密的部分从中移除
+     * @return 明文和缓冲的密文都已发出时返回true
+     */
+    public boolean writeNonBlocking(ByteBuffer src) throws IOException {
+        synchronized (writeLock) {
+            ensureOpen();
+            while (true) {
+                netOut.flip();
+                try {
+                    channel.write(netOut);
+                    if (netOut.hasRemaining()) {
+                        return false;
+                    }
+                } finally {
+                    netOut.compact();
+                }
+                if (!src.hasRemaining()) {
+                    return true;
+                }
+                SSLEngineResult result = engine.wrap(src, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS连接已关闭");
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    // 缓冲区刚被清空仍放不下一个记录
+                    throw new SSLException("TLS记录超过缓冲区大小");
+                }
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get() && channel.isOpen();
+    }
+
+    /**
+     * 发送关闭通知并关闭连接，可重复调用
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (channel.isOpen()) {
+                engine.closeOutbound();
+                synchronized (writeLock) {
+                    while (!engine.isOutboundDone()) {
+                        if (wrap(EMPTY).getStatus() == SSLEngineResult.Status.CLOSED) {
+                            break;
+                        }
+                    }
+                    flushNetwork();
+                }
+            }
+        } catch (IOException e) {
+            // 对方可能已经断开，关闭通知发不出去也无妨
+        } finally {
+            readSelector.close();
+            writeSelector.close();
+            channel.close();
+            synchronized (readLock) {
+                synchronized (writeLock) {
+                    BufferPool.shared().release(netIn);
+                    BufferPool.shared().release(netOut);
+                    BufferPool.shared().release(appIn);
+                }
+            }
+        }
+    }
+
+    /**
+     * 加密到密文缓冲区，缓冲区满时先发出已有内容；连续的多个记录合并发出，调用方最后调用 flushNetwork
+     */
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            SSLEngineResult result = engine.wrap(src, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                if (netOut.position() == 0) {
+                    throw new SSLException("TLS记录超过缓冲区大小");
+                }
+                flushNetwork();
+                continue;
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+            return result;
+        }
+    }
+
+    private SSLEngineResult unwrap() throws IOException {
+        netIn.flip();
+        try {
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                // appIn 在解密前总是已被取空，容量又不小于应用缓冲区大小，不应发生
+                throw new SSLException("解密缓冲区不足");
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+            return result;
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    /**
+     * 处理握手完成后的消息，如 TLS 1.3 的会话票据和密钥更新
+     */
+    private void handlePostHandshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (status == SSLEngineResult.HandshakeStatus.NEED_WRAP || status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                status = engine.getHandshakeStatus();
+            } else {
+                synchronized (writeLock) {
+                    status = wrap(EMPTY).getHandshakeStatus();
+                    flushNetwork();
+                }
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * 读取密文，没有数据时等待，超过读超时抛出 SocketTimeoutException
+     * @return 读取的字节数，连接关闭时返回-1
+     */
+    private int readNetwork() throws IOException {
+        int timeout = readTimeoutMillis;
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+        int n;
+        while ((n = channel.read(netIn)) == 0) {
+            if (!netIn.hasRemaining()) {
+                throw new SSLException("TLS记录超过缓冲区大小");
+            }
+            await(readSelector, deadline);
+        }
+        return n;
+    }
+
+    private void flushNetwork() throws IOException {
+        netOut.flip();
+        try {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) {
+                    await(writeSelector, 0);
+                }
+            }
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    /**
+     * 等待通道就绪，分段选择以便察觉其他线程关闭了通道
+     * 每个选择器只由持有对应方向锁的一个线程使用，关注的操作在注册时固定，不必在等待之间切换
+     * @param selector readSelector 或 writeSelector
+     * @param deadline 截止时间(System.nanoTime)，0表示不限
+     */
+    private void await(Selector selector, long deadline) throws IOException {
+        while (true) {
+            if (!channel.isOpen() || closed.get()) {
+                throw new AsynchronousCloseException();
+            }
+            long waitMillis = SELECT_SLICE_MILLIS;
+            if (deadline != 0) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("读取超时");
+                }
+                waitMillis = Math.min(waitMillis, remaining);
+            }
+            int ready;
+            try {
+                ready = selector.select(waitMillis);
+                selector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                // 其他线程在等待期间关闭了通道
+                throw new AsynchronousCloseException();
+            }
+            if (ready > 0) {
+                return;
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed.get()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
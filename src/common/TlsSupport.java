@@ -0,0 +1,119 @@
+package common;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * TLS 配置
+ * 服务器由密钥库创建上下文；客户端由系统属性 -Djrfm.tls=true 开启，
+ * -Djrfm.tls.trustStore/-Djrfm.tls.trustStorePassword 指定信任库，未指定时使用 JDK 默认信任库。
+ * 同一进程中的客户端共用一个上下文，重连时可以恢复会话
+ */
+public final class TlsSupport {
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+
+    private static volatile SSLContext defaultClientContext;
+    private static volatile boolean defaultClientContextLoaded;
+
+    private TlsSupport() {
+    }
+
+    /**
+     * 创建服务器上下文
+     * @param keyStorePath 密钥库路径，包含服务器证书和私钥
+     * @param password 密钥库和私钥的密码
+     * @param type 密钥库类型，为空时使用 JDK 默认类型(PKCS12)
+     * @return TLS上下文
+     */
+    public static SSLContext createServerContext(String keyStorePath, char[] password, String type)
+            throws IOException, GeneralSecurityException {
+        KeyStore keyStore = loadKeyStore(keyStorePath, password, type);
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * 创建客户端上下文
+     * @param trustStorePath 信任库路径，为null时使用 JDK 默认信任库
+     * @param password 信任库密码
+     * @param type 信任库类型，为空时使用 JDK 默认类型
+     * @return TLS上下文
+     */
+    public static SSLContext createClientContext(String trustStorePath, char[] password, String type)
+            throws IOException, GeneralSecurityException {
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trustStorePath == null ? null : loadKeyStore(trustStorePath, password, type));
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * 按系统属性创建的客户端上下文
+     * @return 未开启TLS时返回null
+     * @throws IllegalStateException 信任库无法加载
+     */
+    public static SSLContext defaultClientContext() {
+        if (!defaultClientContextLoaded) {
+            synchronized (TlsSupport.class) {
+                if (!defaultClientContextLoaded) {
+                    if (Boolean.getBoolean("jrfm.tls")) {
+                        String password = System.getProperty("jrfm.tls.trustStorePassword", "");
+                        try {
+                            defaultClientContext = createClientContext(System.getProperty("jrfm.tls.trustStore"),
+                                    password.toCharArray(), System.getProperty("jrfm.tls.trustStoreType"));
+                        } catch (IOException | GeneralSecurityException e) {
+                            throw new IllegalStateException("无法加载TLS信任库: " + e.getMessage(), e);
+                        }
+                    }
+                    defaultClientContextLoaded = true;
+                }
+            }
+        }
+        return defaultClientContext;
+    }
+
+    /**
+     * 创建客户端引擎，带上服务器地址和端口以便恢复会话，并校验证书中的主机名
+     */
+    public static SSLEngine createClientEngine(SSLContext context, String host, int port) {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        engine.setEnabledProtocols(PROTOCOLS);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    /**
+     * 创建服务器引擎
+     */
+    public static SSLEngine createServerEngine(SSLContext context) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(PROTOCOLS);
+        return engine;
+    }
+
+    private static KeyStore loadKeyStore(String path, char[] password, String type)
+            throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(type == null || type.trim().isEmpty() ? KeyStore.getDefaultType() : type);
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            keyStore.load(in, password);
+        }
+        return keyStore;
+    }
+}
@@ -0,0 +1,444 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步访问日志
+ * 每条命令一条记录(客户端、命令、路径、字节数、耗时、状态码)，以JSON行写入日志文件，超过大小上限时轮转。
+ * 请求线程只把记录放进无锁环形缓冲区，不做任何控制台或磁盘I/O；缓冲区满时丢弃记录并计数，从不阻塞请求。
+ * 唯一的后台线程成批取出记录写盘，每批刷新一次。请求线程上的控制台消息也经由同一缓冲区由后台线程打印。
+ * 后台线程空闲时挂起，由放入记录的请求线程唤醒；轮转失败时继续写原文件并报告，不会丢弃记录
+ */
+public class AccessLog {
+    private static final int MAX_BATCH = 1024;
+
+    private final Path file;
+    private final long maxSize;
+    private final int backups;
+    private final Object[] entries;
+    /** 每个槽位的序号：等于 写入位置 时可写，等于 写入位置+1 时可读 */
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong written = new AtomicLong();
+    /** 只由后台线程访问 */
+    private long head;
+    private Writer writer;
+    private long size;
+    /** 达到此大小时轮转，轮转失败后推迟到再写入maxSize字节时重试 */
+    private long rotateAt;
+    private volatile Thread thread;
+    /** 后台线程即将挂起，放入记录后需要唤醒它 */
+    private volatile boolean sleeping;
+    private volatile boolean recording;
+    private volatile boolean closed;
+
+    /**
+     * 构造函数
+     * @param file 日志文件，为null时只打印控制台消息，不写访问记录
+     * @param config 服务器配置
+     */
+    public AccessLog(Path file, ServerConfig config) {
+        this.file = file;
+        this.maxSize = config.getAccessLogMaxSize();
+        this.backups = Math.max(0, config.getAccessLogBackups());
+        int capacity = Integer.highestOneBit(Math.max(2, Math.min(config.getAccessLogBuffer(), 1 << 20)) * 2 - 1);
+        this.entries = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = capacity - 1;
+        this.rotateAt = maxSize;
+    }
+
+    /**
+     * 打开日志文件并启动后台写入线程
+     */
+    public void open() {
+        if (file != null) {
+            try {
+                Files.createDirectories(file.toAbsolutePath().getParent());
+                openWriter();
+                recording = true;
+            } catch (IOException e) {
+                // 写不了日志不影响服务，访问记录被丢弃
+                System.err.println("无法打开访问日志，访问记录不会被保存: " + e.getMessage());
+            }
+        }
+        thread = new Thread(this::drain, "access-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 写出缓冲区中剩余的记录并关闭日志文件
+     */
+    public void close() {
+        closed = true;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (dropped.sum() > 0) {
+            System.err.println("访问日志缓冲区曾满，丢弃 " + dropped.sum() + " 条记录");
+        }
+    }
+
+    /**
+     * 记录一条命令
+     * @param client 客户端地址
+     * @param command 命令名
+     * @param path 路径，没有时为null
+     * @param target 移动或复制的目标路径，没有时为null
+     * @param status 状态码
+     * @param bytes 传输的文件数据字节数
+     * @param micros 耗时(微秒)
+     */
+    public void access(String client, String command, String path, String target, int status, long bytes, long micros) {
+        if (recording) {
+            offer(new Access(System.currentTimeMillis(), client, command, path, target, status, bytes, micros));
+        }
+    }
+
+    /**
+     * 由后台线程打印到标准输出
+     */
+    public void info(String message) {
+        offer(new Message(message, null, false));
+    }
+
+    /**
+     * 由后台线程打印到标准错误，带异常时一并打印堆栈
+     */
+    public void error(String message, Throwable cause) {
+        offer(new Message(message, cause, true));
+    }
+
+    /**
+     * 已写入的访问记录数
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * 因缓冲区满而丢弃的记录数
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 放入环形缓冲区：用CAS占据下一个可写槽位，写入后发布序号；缓冲区满时丢弃。
+     * 序号用volatile写发布，再读sleeping，与后台线程先写sleeping再检查槽位相对，不会错过唤醒
+     */
+    private void offer(Object entry) {
+        if (closed) {
+            // 关闭之后的消息直接打印，不会再有后台线程取出
+            if (entry instanceof Message) {
+                ((Message) entry).print();
+            }
+            return;
+        }
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        entries[index] = entry;
+        sequences.set(index, position + 1);
+        if (sleeping) {
+            Thread consumer = thread;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+    }
+
+    /**
+     * 下一个槽位是否已发布，只由后台线程调用
+     */
+    private boolean available() {
+        return sequences.get((int) (head & mask)) == head + 1;
+    }
+
+    /**
+     * 取出下一条记录，只由后台线程调用
+     * @return 记录，缓冲区为空或下一个槽位尚未发布时返回null
+     */
+    private Object poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Object entry = entries[index];
+        entries[index] = null;
+        sequences.lazySet(index, head + entries.length);
+        head++;
+        return entry;
+    }
+
+    /**
+     * 后台线程：成批取出记录，访问记录写盘，消息打印到控制台；缓冲区为空时挂起，等待放入记录或关闭时唤醒
+     */
+    private void drain() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        while (true) {
+            boolean stopping = closed;
+            int count = 0;
+            Object entry;
+            while (count < MAX_BATCH && (entry = poll()) != null) {
+                count++;
+                if (entry instanceof Access) {
+                    ((Access) entry).appendTo(batch);
+                    batch.append('\n');
+                } else {
+                    ((Message) entry).print();
+                }
+            }
+            if (batch.length() > 0) {
+                write(batch);
+                batch.setLength(0);
+            }
+            if (count == 0) {
+                if (stopping) {
+                    break;
+                }
+                sleeping = true;
+                if (!available() && !closed) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+            }
+        }
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.err.println("关闭访问日志时出错: " + e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    private void write(StringBuilder batch) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            String text = batch.toString();
+            writer.write(text);
+            writer.flush();
+            size += text.getBytes(StandardCharsets.UTF_8).length;
+            written.addAndGet(countLines(batch));
+        } catch (IOException e) {
+            System.err.println("写入访问日志失败: " + e.getMessage());
+            return;
+        }
+        if (maxSize > 0 && size >= rotateAt) {
+            try {
+                rotate();
+                rotateAt = maxSize;
+            } catch (IOException e) {
+                rotateAt = size + maxSize;
+                System.err.println("访问日志轮转失败，继续写入当前文件: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 轮转：access.log -> access.log.1 -> access.log.2 ...，超出保留数的最旧文件被删除。
+     * 旧文件在改名期间保持打开，新文件打开成功后才关闭它；任何一步失败时继续使用旧文件
+     */
+    private void rotate() throws IOException {
+        Writer previous = writer;
+        long previousSize = size;
+        if (backups == 0) {
+            Files.deleteIfExists(file);
+        } else {
+            Files.deleteIfExists(backup(backups));
+            for (int i = backups - 1; i >= 1; i--) {
+                if (Files.exists(backup(i))) {
+                    Files.move(backup(i), backup(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, backup(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        try {
+            openWriter();
+        } catch (IOException e) {
+            writer = previous;
+            size = previousSize;
+            throw e;
+        }
+        try {
+            previous.close();
+        } catch (IOException e) {
+            System.err.println("关闭轮转前的访问日志时出错: " + e.getMessage());
+        }
+    }
+
+    private Path backup(int generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation);
+    }
+
+    private void openWriter() throws IOException {
+        Writer opened = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 64 * 1024);
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        }
+        writer = opened;
+    }
+
+    private static int countLines(CharSequence text) {
+        int lines = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * 一条访问记录，在请求线程中创建，格式化推迟到后台线程
+     */
+    private static class Access {
+        private final long time;
+        private final String client;
+        private final String command;
+        private final String path;
+        private final String target;
+        private final int status;
+        private final long bytes;
+        private final long micros;
+
+        Access(long time, String client, String command, String path, String target, int status, long bytes, long micros) {
+            this.time = time;
+            this.client = client;
+            this.command = command;
+            this.path = path;
+            this.target = target;
+            this.status = status;
+            this.bytes = bytes;
+            this.micros = micros;
+        }
+
+        void appendTo(StringBuilder line) {
+            line.append("{\"time\":\"").append(Instant.ofEpochMilli(time)).append('"');
+            line.append(",\"client\":");
+            quote(line, client);
+            line.append(",\"command\":");
+            quote(line, command);
+            if (path != null) {
+                line.append(",\"path\":");
+                quote(line, path);
+            }
+            if (target != null) {
+                line.append(",\"target\":");
+                quote(line, target);
+            }
+            line.append(",\"status\":").append(status);
+            line.append(",\"bytes\":").append(bytes);
+            line.append(",\"micros\":").append(micros).append('}');
+        }
+
+        private static void quote(StringBuilder line, String value) {
+            line.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        line.append("\\\"");
+                        break;
+                    case '\\':
+                        line.append("\\\\");
+                        break;
+                    case '\n':
+                        line.append("\\n");
+                        break;
+                    case '\r':
+                        line.append("\\r");
+                        break;
+                    case '\t':
+                        line.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            line.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            line.append(c);
+                        }
+                        break;
+                }
+            }
+            line.append('"');
+        }
+    }
+
+    /**
+     * 一条控制台消息
+     */
+    private static class Message {
+        private final String text;
+        private final Throwable cause;
+        private final boolean error;
+
+        Message(String text, Throwable cause, boolean error) {
+            this.text = text;
+            this.cause = cause;
+            this.error = error;
+        }
+
+        void print() {
+            if (!error) {
+                System.out.println(text);
+                return;
+            }
+            if (cause == null) {
+                System.err.println(text);
+                return;
+            }
+            StringWriter trace = new StringWriter();
+            cause.printStackTrace(new PrintWriter(trace));
+            System.err.print(text + System.lineSeparator() + trace);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package server;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 服务器带宽调度器
+ * 每个传输依次经过连接令牌桶、用户令牌桶和全局令牌桶。
+ * 全局带宽在活动传输之间按权重公平分配：等待令牌的传输中虚拟时间最小者优先，
+ * 虚拟时间按 已传字节数/权重 增长，没有在等待的慢速传输不会占用他人的份额
+ */
+public class BandwidthScheduler {
+    private static final long MAX_WAIT_MILLIS = 50;
+
+    private final TokenBucket globalBucket;
+    private volatile long connectionLimit;
+    private volatile long userLimit;
+
+    private final Object fairLock = new Object();
+    private final Set<Transfer> waiting = new HashSet<>();
+    private final Set<Transfer> active = new HashSet<>();
+    private final Map<String, UserBucket> userBuckets = new HashMap<>();
+    private final AtomicLong transferIds = new AtomicLong();
+    private double virtualClock;
+
+    /**
+     * 构造函数
+     * @param config 服务器配置
+     */
+    public BandwidthScheduler(ServerConfig config) {
+        this.globalBucket = new TokenBucket(config.getGlobalBandwidth());
+        this.connectionLimit = config.getConnectionBandwidth();
+        this.userLimit = config.getUserBandwidth();
+    }
+
+    /**
+     * 开始一次传输
+     * @param connectionId 连接标识
+     * @param user 用户标识
+     * @param weight 公平分享权重，至少为1
+     * @param description 传输描述
+     * @return 传输句柄
+     */
+    public Transfer begin(String connectionId, String user, int weight, String description) {
+        synchronized (fairLock) {
+            UserBucket userBucket = userBuckets.get(user);
+            if (userBucket == null) {
+                userBucket = new UserBucket(userLimit);
+                userBuckets.put(user, userBucket);
+            }
+            userBucket.references++;
+
+            Transfer transfer = new Transfer(transferIds.incrementAndGet(), connectionId, user,
+                    Math.max(1, weight), description, userBucket.bucket, new TokenBucket(connectionLimit));
+            // 新传输从当前虚拟时钟起步，不会因为加入得晚而获得突发额度
+            transfer.virtualTime = virtualClock;
+            active.add(transfer);
+            return transfer;
+        }
+    }
+
+    /**
+     * 结束传输
+     * @param transfer 传输句柄
+     */
+    public void end(Transfer transfer) {
+        synchronized (fairLock) {
+            if (!active.remove(transfer)) {
+                return;
+            }
+            UserBucket userBucket = userBuckets.get(transfer.user);
+            if (userBucket != null && --userBucket.references == 0) {
+                userBuckets.remove(transfer.user);
+            }
+            fairLock.notifyAll();
+        }
+    }
+
+    /**
+     * 为即将传输的字节获取带宽，必要时阻塞
+     * @param transfer 传输句柄
+     * @param bytes 字节数
+     */
+    public void acquire(Transfer transfer, long bytes) throws InterruptedIOException {
+        try {
+            transfer.connectionBucket.acquire(bytes);
+            transfer.userBucket.acquire(bytes);
+            if (globalBucket.getRate() > 0) {
+                acquireGlobal(transfer, bytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("传输被中断");
+        }
+        transfer.record(bytes);
+    }
+
+    private void acquireGlobal(Transfer transfer, long bytes) throws InterruptedException {
+        synchronized (fairLock) {
+            waiting.add(transfer);
+            try {
+                while (true) {
+                    boolean first = transfer == earliestWaiting();
+                    if (first && globalBucket.hasTokens()) {
+                        globalBucket.take(bytes);
+                        virtualClock = Math.max(virtualClock, transfer.virtualTime);
+                        transfer.virtualTime += (double) bytes / transfer.weight;
+                        return;
+                    }
+                    long waitMillis = first ? globalBucket.nanosUntilAvailable() / 1_000_000 : MAX_WAIT_MILLIS;
+                    fairLock.wait(Math.max(1, Math.min(MAX_WAIT_MILLIS, waitMillis)));
+                }
+            } finally {
+                waiting.remove(transfer);
+                fairLock.notifyAll();
+            }
+        }
+    }
+
+    private Transfer earliestWaiting() {
+        Transfer earliest = null;
+        for (Transfer candidate : waiting) {
+            if (earliest == null || candidate.virtualTime < earliest.virtualTime
+                    || (candidate.virtualTime == earliest.virtualTime && candidate.id < earliest.id)) {
+                earliest = candidate;
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * 运行时调整全局带宽上限
+     * @param bytesPerSecond 字节/秒，0表示不限
+     */
+    public void setGlobalLimit(long bytesPerSecond) {
+        globalBucket.setRate(bytesPerSecond);
+    }
+
+    /**
+     * 运行时调整单连接带宽上限，对进行中的传输立即生效
+     * @param bytesPerSecond 字节/秒，0表示不限
+     */
+    public void setConnectionLimit(long bytesPerSecond) {
+        synchronized (fairLock) {
+            connectionLimit = bytesPerSecond;
+            for (Transfer transfer : active) {
+                transfer.connectionBucket.setRate(bytesPerSecond);
+            }
+        }
+    }
+
+    /**
+     * 运行时调整单用户带宽上限，对进行中的传输立即生效
+     * @param bytesPerSecond 字节/秒，0表示不限
+     */
+    public void setUserLimit(long bytesPerSecond) {
+        synchronized (fairLock) {
+            userLimit = bytesPerSecond;
+            for (UserBucket userBucket : userBuckets.values()) {
+                userBucket.bucket.setRate(bytesPerSecond);
+            }
+        }
+    }
+
+    public long getGlobalLimit() {
+        return globalBucket.getRate();
+    }
+
+    public long getConnectionLimit() {
+        return connectionLimit;
+    }
+
+    public long getUserLimit() {
+        return userLimit;
+    }
+
+    /**
+     * 获取所有活动传输的快照
+     * @return 传输列表
+     */
+    public List<Transfer> getActiveTransfers() {
+        synchronized (fairLock) {
+            return new ArrayList<>(active);
+        }
+    }
+
+    /**
+     * 用户令牌桶及其引用计数
+     */
+    private static class UserBucket {
+        private final TokenBucket bucket;
+        private int references;
+
+        UserBucket(long rate) {
+            this.bucket = new TokenBucket(rate);
+        }
+    }
+
+    /**
+     * 一次传输的调度状态和速率统计
+     */
+    public static class Transfer {
+        private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+
+        private final long id;
+        private final String connectionId;
+        private final String user;
+        private final int weight;
+        private final String description;
+        private final TokenBucket userBucket;
+        private final TokenBucket connectionBucket;
+        private final long startTime = System.nanoTime();
+        private double virtualTime;
+
+        private volatile long bytes;
+        private volatile long currentRate;
+        private long windowStart = startTime;
+        private long windowBytes;
+
+        Transfer(long id, String connectionId, String user, int weight, String description,
+                 TokenBucket userBucket, TokenBucket connectionBucket) {
+            this.id = id;
+            this.connectionId = connectionId;
+            this.user = user;
+            this.weight = weight;
+            this.description = description;
+            this.userBucket = userBucket;
+            this.connectionBucket = connectionBucket;
+        }
+
+        private void record(long transferred) {
+            bytes += transferred;
+            windowBytes += transferred;
+            long now = System.nanoTime();
+            if (now - windowStart >= RATE_WINDOW_NANOS) {
+                currentRate = windowBytes * 1_000_000_000L / (now - windowStart);
+                windowStart = now;
+                windowBytes = 0;
+            }
+        }
+
+        public String getConnectionId() {
+            return connectionId;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * 最近一个统计窗口内的速率(字节/秒)
+         */
+        public long getCurrentRate() {
+            return currentRate;
+        }
+
+        /**
+         * 传输开始以来的平均速率(字节/秒)
+         */
+        public long getAverageRate() {
+            long elapsed = System.nanoTime() - startTime;
+            return elapsed > 0 ? bytes * 1_000_000_000L / elapsed : 0;
+        }
+    }
+}
@@ -0,0 +1,681 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件变化通知
+ * 变化来源有两个：本服务器的写命令直接发布，其他进程的修改由 WatchService 发现。
+ * 每个订阅把短时间内的同一路径的多次变化合并为一条，积压过多时丢弃明细，改为要求客户端重新同步。
+ * 所有订阅的事件由同一个推送线程以不等待的方式写出，监视连接不占用会话线程
+ */
+public class ChangeNotifier {
+    public static final String CREATED = "CREATED";
+    public static final String MODIFIED = "MODIFIED";
+    public static final String DELETED = "DELETED";
+    public static final String RENAMED = "RENAMED";
+    public static final String RESYNC = "RESYNC";
+
+    private static final long COALESCE_MILLIS = 100;
+    private static final long HEARTBEAT_MILLIS = 15000;
+    private static final long WRITE_RETRY_MILLIS = 50;
+    private static final long ECHO_SUPPRESS_MILLIS = 2000;
+    private static final int ECHO_PRUNE_SIZE = 1024;
+
+    private final StorageVolumes volumes;
+    private final ListingCache listingCache;
+    private final AccessLog accessLog;
+    private final int maxWatchedDirectories;
+    private final int maxPendingEvents;
+    private final Set<Subscription> subscriptions = new CopyOnWriteArraySet<>();
+    private final Map<Path, WatchKey> watchedDirectories = new HashMap<>();
+    private final Map<WatchKey, Path> watchKeys = new HashMap<>();
+    // 本服务器刚修改过的协议路径及其回声过期时间(System.nanoTime)
+    private final Map<String, Long> recentChanges = new ConcurrentHashMap<>();
+    private final Object dispatchLock = new Object();
+    private boolean dispatchSignalled;
+    private WatchService watchService;
+    private Thread watchThread;
+    private Thread dispatchThread;
+    private ExecutorService registrar;
+    private boolean watchUnsupported;
+    private volatile boolean closed;
+
+    /**
+     * 构造函数
+     * @param volumes 存储卷
+     * @param listingCache 外部修改发生时需要失效的目录快照缓存
+     * @param accessLog 服务器日志
+     * @param config 服务器配置
+     */
+    public ChangeNotifier(StorageVolumes volumes, ListingCache listingCache, AccessLog accessLog, ServerConfig config) {
+        this.volumes = volumes;
+        this.listingCache = listingCache;
+        this.accessLog = accessLog;
+        this.maxWatchedDirectories = config.getWatchMaxDirectories();
+        this.maxPendingEvents = config.getWatchMaxPendingEvents();
+    }
+
+    /**
+     * 订阅某个路径的变化
+     * 递归订阅的子树在后台注册，注册完成前子树中其他进程的修改可能不会被通知
+     * @param directory 被监视的目录
+     * @param recursive 是否包含整个子树
+     * @return 订阅
+     */
+    public Subscription subscribe(Path directory, boolean recursive) {
+        Subscription subscription = new Subscription(directory.toAbsolutePath().normalize(), recursive);
+        subscriptions.add(subscription);
+        synchronized (this) {
+            if (startWatching()) {
+                if (recursive) {
+                    registrar.execute(() -> {
+                        registerTree(subscription.directory, subscription);
+                        // 子树中挂载的卷位于别处，需要单独注册
+                        for (StorageVolumes.Volume volume : volumes.mountedUnder(subscription.directory)) {
+                            registerTree(volume.getDirectory(), subscription);
+                        }
+                    });
+                } else {
+                    register(subscription.directory);
+                }
+            }
+        }
+        return subscription;
+    }
+
+    /**
+     * 把订阅的事件交给推送线程写出，调用后连接由推送线程负责关闭
+     * @param subscription 订阅
+     * @param sink 连接的写出端
+     */
+    public void deliver(Subscription subscription, EventSink sink) {
+        synchronized (this) {
+            if (!closed) {
+                subscription.sink = sink;
+                if (dispatchThread == null) {
+                    dispatchThread = new Thread(this::dispatchEvents, "change-notifier");
+                    dispatchThread.setDaemon(true);
+                    dispatchThread.start();
+                }
+            }
+        }
+        if (subscription.sink == null) {
+            subscription.detach();
+            return;
+        }
+        signalDispatcher();
+    }
+
+    /**
+     * 取消订阅，并停止监视不再被任何订阅覆盖的目录
+     * @param subscription 订阅
+     */
+    public void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+        synchronized (this) {
+            Iterator<Map.Entry<Path, WatchKey>> iterator = watchedDirectories.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Path, WatchKey> entry = iterator.next();
+                if (!isCovered(entry.getKey())) {
+                    entry.getValue().cancel();
+                    watchKeys.remove(entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * 发布本服务器写命令造成的变化
+     * WatchService 随后报告的同一路径的变化是这次修改的回声，短时间内不再重复通知
+     * @param kind CREATED/MODIFIED/DELETED
+     * @param path 发生变化的路径
+     */
+    public void publish(String kind, Path path) {
+        String protocolPath = relativize(path);
+        if (protocolPath == null) {
+            return;
+        }
+        expectEcho(protocolPath);
+        offer(kind, protocolPath);
+    }
+
+    private void offer(String kind, String protocolPath) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.matches(protocolPath)) {
+                subscription.offer(kind, protocolPath, null);
+            }
+        }
+    }
+
+    /**
+     * 发布本服务器的重命名，WatchService 只能把它报告为一次删除和一次创建
+     * @param source 原路径
+     * @param target 新路径
+     */
+    public void publishRename(Path source, Path target) {
+        String sourcePath = relativize(source);
+        String targetPath = relativize(target);
+        if (sourcePath == null || targetPath == null) {
+            return;
+        }
+        expectEcho(sourcePath);
+        expectEcho(targetPath);
+        for (Subscription subscription : subscriptions) {
+            if (subscription.matches(sourcePath) || subscription.matches(targetPath)) {
+                subscription.offer(RENAMED, sourcePath, targetPath);
+            }
+        }
+    }
+
+    /**
+     * 实际路径的协议形式，如 /a/b
+     * 订阅按协议路径匹配，挂载卷中的变化也能送达监视上级目录的订阅
+     * @return 路径不在任何卷中时返回null
+     */
+    String relativize(Path path) {
+        return volumes.toProtocolPath(path);
+    }
+
+    /**
+     * 记录本服务器刚修改的路径
+     */
+    private void expectEcho(String protocolPath) {
+        if (watchService == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (recentChanges.size() >= ECHO_PRUNE_SIZE) {
+            recentChanges.values().removeIf(expires -> expires - now < 0);
+        }
+        recentChanges.put(protocolPath, now + TimeUnit.MILLISECONDS.toNanos(ECHO_SUPPRESS_MILLIS));
+    }
+
+    /**
+     * WatchService 报告的变化是否是本服务器刚做的修改的回声
+     */
+    private boolean isEcho(String protocolPath) {
+        Long expires = recentChanges.get(protocolPath);
+        if (expires == null) {
+            return false;
+        }
+        if (expires - System.nanoTime() < 0) {
+            recentChanges.remove(protocolPath, expires);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 停止监视并关闭所有监视连接
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    // 忽略
+                }
+            }
+            if (registrar != null) {
+                registrar.shutdownNow();
+            }
+        }
+        for (Subscription subscription : subscriptions) {
+            if (subscription.sink != null) {
+                subscription.detach();
+            }
+        }
+        signalDispatcher();
+    }
+
+    /**
+     * 是否已关闭
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 第一次订阅时创建 WatchService 和监视线程；不支持时只发布本服务器自身的变化
+     * @return WatchService 是否可用
+     */
+    private boolean startWatching() {
+        if (closed) {
+            return false;
+        }
+        if (watchService != null) {
+            return true;
+        }
+        if (watchUnsupported) {
+            return false;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            accessLog.info("文件系统不支持变化监视，只通知本服务器的修改: " + e.getMessage());
+            watchUnsupported = true;
+            return false;
+        }
+        watchThread = new Thread(this::processEvents, "change-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+        registrar = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "change-registrar");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return true;
+    }
+
+    /**
+     * 注册整个子树，在注册线程中执行，不持有锁遍历目录
+     * @param owner 发起注册的订阅，订阅取消后停止遍历；为null时总是遍历
+     */
+    private void registerTree(Path directory, Subscription owner) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (closed || (owner != null && !subscriptions.contains(owner))) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    return register(dir) ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            accessLog.error("监视目录失败: " + directory + " - " + e.getMessage(), null);
+        }
+    }
+
+    /**
+     * 注册一个目录
+     * @return 未超出监视目录数上限时返回true
+     */
+    private synchronized boolean register(Path directory) {
+        if (closed || watchedDirectories.containsKey(directory)) {
+            return true;
+        }
+        if (watchedDirectories.size() >= maxWatchedDirectories) {
+            accessLog.info("监视目录数达到上限 " + maxWatchedDirectories + "，其余目录只通知本服务器的修改");
+            return false;
+        }
+        try {
+            WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirectories.put(directory, key);
+            watchKeys.put(key, directory);
+        } catch (IOException e) {
+            // 目录可能已被删除
+        }
+        return true;
+    }
+
+    private boolean isCovered(Path directory) {
+        String protocolPath = relativize(directory);
+        if (protocolPath == null) {
+            return false;
+        }
+        for (Subscription subscription : subscriptions) {
+            if (subscription.path.equals(protocolPath)
+                    || (subscription.recursive && isWithin(protocolPath, subscription.path))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 协议路径是否位于目录子树中(不含目录本身)
+     */
+    private static boolean isWithin(String path, String directory) {
+        return directory.equals("/") ? path.length() > 1 : path.startsWith(directory + "/");
+    }
+
+    /**
+     * 监视线程：把 WatchService 事件转换为订阅事件
+     */
+    private void processEvents() {
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory;
+            synchronized (this) {
+                directory = watchKeys.get(key);
+            }
+            if (directory == null) {
+                continue;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // 内核事件队列溢出，无法知道具体变化
+                    listingCache.invalidate(directory);
+                    String protocolPath = relativize(directory);
+                    for (Subscription subscription : subscriptions) {
+                        if (protocolPath != null && (subscription.matches(protocolPath) || isWithin(protocolPath, subscription.path))) {
+                            subscription.requestResync();
+                        }
+                    }
+                    continue;
+                }
+                Path changed = directory.resolve((Path) event.context());
+                listingCache.invalidate(changed);
+                String kind;
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    kind = CREATED;
+                    if (Files.isDirectory(changed) && isCovered(changed)) {
+                        try {
+                            registrar.execute(() -> registerTree(changed, null));
+                        } catch (RejectedExecutionException e) {
+                            // 已关闭
+                        }
+                    }
+                } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    kind = DELETED;
+                } else {
+                    kind = MODIFIED;
+                }
+                String protocolPath = relativize(changed);
+                if (protocolPath != null && !isEcho(protocolPath)) {
+                    offer(kind, protocolPath);
+                }
+            }
+            if (!key.reset()) {
+                synchronized (this) {
+                    watchKeys.remove(key);
+                    watchedDirectories.remove(directory);
+                }
+            }
+        }
+    }
+
+    private void signalDispatcher() {
+        synchronized (dispatchLock) {
+            dispatchSignalled = true;
+            dispatchLock.notifyAll();
+        }
+    }
+
+    /**
+     * 推送线程：轮流把各订阅合并好的事件写出
+     * 连接暂时不可写时稍后重试，期间的变化继续在订阅中合并，积压过多时改为要求重新同步
+     */
+    private void dispatchEvents() {
+        while (!closed) {
+            long now = System.nanoTime();
+            long next = now + TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS);
+            for (Subscription subscription : subscriptions) {
+                if (subscription.sink != null) {
+                    long due = subscription.dispatch(now);
+                    if (due - next < 0) {
+                        next = due;
+                    }
+                }
+            }
+            synchronized (dispatchLock) {
+                long waitNanos = next - System.nanoTime();
+                if (!dispatchSignalled && waitNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(dispatchLock, waitNanos);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                dispatchSignalled = false;
+            }
+        }
+    }
+
+    /**
+     * 监视连接的写出端，由推送线程调用
+     */
+    public interface EventSink {
+        /**
+         * 不等待的写出
+         * @param data 待写出的数据，已写出的部分从中移除
+         * @return 数据全部发出时返回true
+         */
+        boolean write(ByteBuffer data) throws IOException;
+
+        /**
+         * 一批事件已全部发出
+         */
+        void delivered();
+
+        /**
+         * 连接已断开或服务器关闭，释放连接
+         */
+        void close();
+    }
+
+    /**
+     * 一个订阅
+     * 待发送的变化按路径合并，保留首次出现的顺序
+     */
+    public class Subscription {
+        private final Path directory;
+        private final String path;
+        private final boolean recursive;
+        private final LinkedHashMap<String, String[]> pending = new LinkedHashMap<>();
+        private boolean resync;
+        private long pendingSince;
+        private volatile EventSink sink;
+        // 以下两个字段只由推送线程访问
+        private ByteBuffer unsent;
+        private long lastSent = System.nanoTime();
+        private boolean detached;
+
+        private Subscription(Path directory, boolean recursive) {
+            this.directory = directory;
+            String protocolPath = relativize(directory);
+            this.path = protocolPath == null ? directory.toString() : protocolPath;
+            this.recursive = recursive;
+        }
+
+        /**
+         * 被监视目录的协议路径
+         */
+        public String getPath() {
+            return path;
+        }
+
+        boolean matches(String changed) {
+            if (changed.equals(path)) {
+                return true;
+            }
+            if (recursive) {
+                return isWithin(changed, path);
+            }
+            int slash = changed.lastIndexOf('/');
+            return path.equals(slash == 0 ? "/" : changed.substring(0, Math.max(0, slash)));
+        }
+
+        private synchronized void offer(String kind, String path, String target) {
+            if (resync) {
+                return;
+            }
+            if (pending.isEmpty()) {
+                pendingSince = System.nanoTime();
+            }
+            if (RENAMED.equals(kind)) {
+                // 重命名各自独立保存，按原路径合并 WatchService 随后报告的删除；
+                // WatchService 可能先于发布报告新路径的创建，这是重命名的回声
+                pending.remove(path);
+                String[] echo = pending.get(target);
+                if (echo != null && !RENAMED.equals(echo[0])) {
+                    pending.remove(target);
+                }
+                pending.put(path, new String[] {RENAMED, path, target});
+            } else {
+                String[] previous = pending.get(path);
+                String merged = merge(previous == null ? null : previous[0], kind);
+                if (merged == null) {
+                    pending.remove(path);
+                } else if (previous == null || !merged.equals(previous[0])) {
+                    pending.put(path, new String[] {merged, path, previous == null ? null : previous[2]});
+                }
+            }
+            if (pending.size() > maxPendingEvents) {
+                requestResync();
+            }
+            if (sink != null && !pending.isEmpty()) {
+                signalDispatcher();
+            }
+        }
+
+        /**
+         * 合并同一路径上的前后两次变化
+         * @return 合并后的类型，互相抵消时返回null
+         */
+        private String merge(String previous, String next) {
+            if (previous == null || previous.equals(next)) {
+                return next;
+            }
+            switch (previous) {
+                case CREATED:
+                    // 创建后又修改仍是创建；创建后又删除则客户端无需知道
+                    return DELETED.equals(next) ? null : CREATED;
+                case DELETED:
+                    return CREATED.equals(next) ? MODIFIED : next;
+                case RENAMED:
+                    return DELETED.equals(next) ? RENAMED : next;
+                default:
+                    return next;
+            }
+        }
+
+        private synchronized void requestResync() {
+            if (!resync && pending.isEmpty()) {
+                pendingSince = System.nanoTime();
+            }
+            resync = true;
+            pending.clear();
+            if (sink != null) {
+                signalDispatcher();
+            }
+        }
+
+        /**
+         * 由推送线程调用：写出上次未发完的数据，合并窗口结束后取出新事件写出，长时间没有事件时发送心跳
+         * @param now 当前时间(System.nanoTime)
+         * @return 下次需要处理的时间
+         */
+        private long dispatch(long now) {
+            try {
+                if (unsent != null) {
+                    if (!sink.write(unsent)) {
+                        return now + TimeUnit.MILLISECONDS.toNanos(WRITE_RETRY_MILLIS);
+                    }
+                    unsent = null;
+                    sink.delivered();
+                }
+                String lines = null;
+                long next = lastSent + TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS);
+                synchronized (this) {
+                    if (!pending.isEmpty() || resync) {
+                        long ready = pendingSince + TimeUnit.MILLISECONDS.toNanos(COALESCE_MILLIS);
+                        if (ready - now <= 0) {
+                            lines = takeEvents();
+                        } else if (ready - next < 0) {
+                            next = ready;
+                        }
+                    }
+                }
+                if (lines == null) {
+                    if (next - now > 0) {
+                        return next;
+                    }
+                    // 没有变化时发送心跳以探测断开的连接
+                    lines = "EVENT|PING|\n";
+                }
+                lastSent = now;
+                ByteBuffer data = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+                if (!sink.write(data)) {
+                    unsent = data;
+                    return now + TimeUnit.MILLISECONDS.toNanos(WRITE_RETRY_MILLIS);
+                }
+                sink.delivered();
+                return now + TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS);
+            } catch (IOException | RuntimeException e) {
+                // 客户端已断开
+                detach();
+                return now + TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS);
+            }
+        }
+
+        /**
+         * 取出合并好的事件
+         * @return 协议格式的事件行
+         */
+        private String takeEvents() {
+            StringBuilder lines = new StringBuilder();
+            if (resync) {
+                resync = false;
+                lines.append("EVENT|").append(RESYNC).append('|').append(getPath()).append('\n');
+            } else {
+                for (String[] event : pending.values()) {
+                    lines.append("EVENT|").append(event[0]).append('|').append(event[1]);
+                    if (event[2] != null && RENAMED.equals(event[0])) {
+                        lines.append('|').append(event[2]);
+                    }
+                    lines.append('\n');
+                }
+            }
+            pending.clear();
+            return lines.toString();
+        }
+
+        /**
+         * 取消订阅并关闭连接，可重复调用
+         */
+        private void detach() {
+            EventSink current;
+            synchronized (this) {
+                if (detached) {
+                    return;
+                }
+                detached = true;
+                current = sink;
+            }
+            unsubscribe(this);
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+}
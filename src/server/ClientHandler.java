@@ -1,42 +1,142 @@
 package server;
 
+import common.BufferPool;
+import common.TlsChannel;
+import common.TlsSupport;
+
+import javax.net.ssl.SSLContext;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
 
 /**
  * 客户端处理类
  * 负责处理单个客户端的请求
  */
 public class ClientHandler implements Runnable {
+    private static final int MAX_PAGE_SIZE = 5000;
+    private static final int MAX_READ_LENGTH = 1024 * 1024;
+    private static final int MAX_HASH_PATHS = 10000;
+    private static final int MAX_SEARCH_RESULTS = 100000;
+    private static final int MAX_GREP_RESULTS = 100000;
+    private static final int GREP_FLUSH_ROWS = 256;
+    private static final long GREP_POLL_MILLIS = 200;
+    private static final int SEARCH_FLUSH_ROWS = 1024;
+    private static final int MANIFEST_FLUSH_ROWS = 4096;
+    private static final long COPY_WAIT_MILLIS = 2000;
+    private static final int MAX_BATCH_OPERATIONS = 10000;
+    
     private Socket clientSocket;
+    private FileServer server;
     private String rootDirectory;
+    private StorageVolumes volumes;
+    private BandwidthScheduler bandwidthScheduler;
+    private ListingCache listingCache;
+    private ChangeNotifier changeNotifier;
+    private HashIndex hashIndex;
+    private FileNameIndex fileNameIndex;
+    private ContentSearcher contentSearcher;
+    private DiskUsage diskUsage;
+    private CopyJobs copyJobs;
+    private PackStore packStore;
+    private AccessLog accessLog;
+    private String connectionId;
+    private String user;
+    private int transferWeight = 1;
+    private int pipelineDepth;
+    private volatile long lastActivity = System.nanoTime();
+    private volatile boolean busy;
+    private volatile boolean draining;
+    private volatile boolean closedByServer;
+    private volatile boolean watching;
+    private volatile boolean detached;
+    private int commandStatus;
+    private long commandBytes;
     private BufferedReader in;
     private PrintWriter out;
     private DataInputStream dataIn;
-    private DataOutputStream dataOut;
+    private ByteChannel channel;
+    private TlsChannel tlsChannel;
     
     /**
      * 构造函数
      * @param clientSocket 客户端套接字
-     * @param rootDirectory 根目录
+     * @param server 所属服务器
      */
-    public ClientHandler(Socket clientSocket, String rootDirectory) {
+    public ClientHandler(Socket clientSocket, FileServer server) {
         this.clientSocket = clientSocket;
-        this.rootDirectory = rootDirectory;
+        this.server = server;
+        this.rootDirectory = server.getRootDirectory();
+        this.volumes = server.getVolumes();
+        this.bandwidthScheduler = server.getBandwidthScheduler();
+        this.listingCache = server.getListingCache();
+        this.changeNotifier = server.getChangeNotifier();
+        this.hashIndex = server.getHashIndex();
+        this.fileNameIndex = server.getFileNameIndex();
+        this.contentSearcher = server.getContentSearcher();
+        this.diskUsage = server.getDiskUsage();
+        this.copyJobs = server.getCopyJobs();
+        this.packStore = server.getPackStore();
+        this.accessLog = server.getAccessLog();
+        this.pipelineDepth = server.getConfig().getPipelineDepth();
+        this.connectionId = String.valueOf(clientSocket.getRemoteSocketAddress());
+        // 协议中没有登录，以客户端地址作为限速用户
+        this.user = clientSocket.getInetAddress().getHostAddress();
     }
     
     @Override
     public void run() {
+        server.sessionStarted(this);
         try {
+            // 请求-响应式协议，关闭Nagle算法以免小响应等待延迟确认
+            clientSocket.setTcpNoDelay(true);
+            
+            // 文件数据经通道收发，不经过堆数组；通道与下面的流是同一个连接，写数据前响应行已经刷新
+            InputStream rawIn;
+            OutputStream rawOut;
+            SSLContext sslContext = server.getSslContext();
+            if (sslContext != null) {
+                // 启用TLS时命令、响应和文件数据都经过TLS通道加解密
+                tlsChannel = new TlsChannel(clientSocket.getChannel(), TlsSupport.createServerEngine(sslContext));
+                tlsChannel.handshake();
+                channel = tlsChannel;
+                rawIn = Channels.newInputStream(tlsChannel);
+                rawOut = Channels.newOutputStream(tlsChannel);
+            } else {
+                channel = clientSocket.getChannel();
+                rawIn = clientSocket.getInputStream();
+                rawOut = clientSocket.getOutputStream();
+            }
+            
             // 初始化输入输出流
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), "UTF-8"));
-            out = new PrintWriter(new OutputStreamWriter(clientSocket.getOutputStream(), "UTF-8"), true);
-            dataIn = new DataInputStream(clientSocket.getInputStream());
-            dataOut = new DataOutputStream(clientSocket.getOutputStream());
+            in = new BufferedReader(new InputStreamReader(rawIn, "UTF-8"));
+            out = new PrintWriter(new OutputStreamWriter(rawOut, "UTF-8"), true);
+            dataIn = new DataInputStream(rawIn);
             
             // 检查并创建根目录
             Path rootPath = Paths.get(rootDirectory);
@@ -44,22 +144,77 @@ public class ClientHandler implements Runnable {
                 Files.createDirectories(rootPath);
             }
             
-            // 处理客户端命令
+            // 处理客户端命令，服务器关闭时在当前命令完成后退出
             String command;
-            while ((command = in.readLine()) != null) {
+            while (!draining && (command = in.readLine()) != null) {
+                busy = true;
+                touch();
+                long started = System.nanoTime();
+                commandStatus = 0;
+                commandBytes = 0;
                 try {
                     processCommand(command);
                 } catch (Exception e) {
-                    System.err.println("处理命令时出错: " + e.getMessage());
-                    e.printStackTrace();
+                    accessLog.error("处理命令时出错: " + e.getMessage(), e);
                     sendResponse(500, "处理命令时出错: " + e.getMessage(), "");
+                } finally {
+                    touch();
+                    busy = false;
+                    logAccess(command, started);
                 }
             }
         } catch (IOException e) {
-            System.err.println("处理客户端请求时出错: " + e.getMessage());
+            if (!closedByServer) {
+                accessLog.error("处理客户端请求时出错: " + e.getMessage(), null);
+            }
         } finally {
-            closeConnection();
+            // 监视连接已交给变化通知器，由它在断开时关闭
+            if (!detached) {
+                closeConnection();
+                server.sessionEnded(this);
+            }
+        }
+    }
+    
+    /**
+     * 记录一条访问日志，只放入日志缓冲区，不做I/O
+     * 状态码为命令发出的最后一个响应行的状态码，多行响应直接写出时为200
+     */
+    private void logAccess(String commandLine, long started) {
+        String[] parts = commandLine.split("\\|");
+        String command = parts[0].toUpperCase();
+        String path = null;
+        String target = null;
+        switch (command) {
+            case "LIST":
+            case "LISTPAGE":
+            case "DOWNLOAD":
+            case "READ":
+            case "UPLOAD":
+            case "DELETE":
+            case "MKDIR":
+            case "DU":
+            case "QUOTA":
+            case "WATCH":
+            case "MANIFEST":
+                path = parts.length > 1 ? parts[1] : null;
+                break;
+            case "RENAME":
+            case "COPY":
+                path = parts.length > 1 ? parts[1] : null;
+                target = parts.length > 2 ? parts[2] : null;
+                break;
+            case "SEARCH":
+                path = parts.length > 3 ? parts[3] : "/";
+                break;
+            case "GREP":
+                path = parts.length > 2 ? parts[2] : null;
+                break;
+            default:
+                break;
         }
+        accessLog.access(connectionId, command, path, target, commandStatus == 0 ? 200 : commandStatus,
+                commandBytes, (System.nanoTime() - started) / 1000);
     }
     
     /**
@@ -75,6 +230,9 @@ public class ClientHandler implements Runnable {
         
         String command = parts[0].toUpperCase();
         
+        // 只改动目录结构的命令整体作为一次改动，初始用量统计的最后一轮核对等待它们完成
+        boolean changing = (command.equals("DELETE") || command.equals("MKDIR") || command.equals("RENAME")
+                || command.equals("BATCH")) && diskUsage.beginChange();
         try {
             switch (command) {
                 case "LIST":
@@ -85,6 +243,15 @@ public class ClientHandler implements Runnable {
                     }
                     break;
                     
+                case "LISTPAGE":
+                    if (parts.length < 4) {
+                        sendResponse(400, "缺少参数", "");
+                    } else {
+                        handleListPageCommand(parts[1], Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                                parts.length > 4 ? parts[4] : "name", parts.length > 5 ? parts[5] : "");
+                    }
+                    break;
+                    
                 case "DOWNLOAD":
                     if (parts.length < 2) {
                         sendResponse(400, "缺少参数", "");
@@ -93,6 +260,49 @@ public class ClientHandler implements Runnable {
                     }
                     break;
                     
+                case "READ":
+                    if (parts.length < 4) {
+                        sendResponse(400, "缺少参数", "");
+                    } else {
+                        handleReadCommand(parts[1], Long.parseLong(parts[2]), Integer.parseInt(parts[3]));
+                    }
+                    break;
+                    
+                case "HASH":
+                    if (parts.length < 2) {
+                        sendResponse(400, "缺少参数", "");
+                    } else {
+                        handleHashCommand(Arrays.copyOfRange(parts, 1, parts.length));
+                    }
+                    break;
+                    
+                case "SEARCH":
+                    if (parts.length < 3) {
+                        sendResponse(400, "缺少参数", "");
+                    } else {
+                        handleSearchCommand(parts[1], parts[2], parts.length > 3 ? parts[3] : "/",
+                                parts.length > 4 ? Integer.parseInt(parts[4]) : 1000);
+                    }
+                    break;
+                    
+                case "GREP":
+                    // 模式放在最后且不再拆分，正则中的"|"保持原样
+                    String[] grepParts = commandLine.split("\\|", 6);
+                    if (grepParts.length < 6) {
+                        sendResponse(400, "缺少参数", "");
+                    } else {
+                        handleGrepCommand(grepParts[1], grepParts[2], grepParts[3], Integer.parseInt(grepParts[4]), grepParts[5]);
+                    }
+                    break;
+                    
+                case "MANIFEST":
+                    if (parts.length < 2) {
+                        sendResponse(400, "缺少参数", "");
+                    } else {
+                        handleManifestCommand(parts[1]);
+                    }
+                    break;
+                    
                 case "UPLOAD":
                     if (parts.length < 3) {
                         sendResponse(400, "缺少参数", "");
@@ -125,14 +335,83 @@ public class ClientHandler implements Runnable {
                     }
                     break;
                     
+                case "BATCH":
+                    if (parts.length < 2) {
+                        sendResponse(400, "缺少参数", "");
+                    } else {
+                        handleBatchCommand(Integer.parseInt(parts[1].trim()), parts.length > 2 && "1".equals(parts[2]));
+                    }
+                    break;
+                    
+                case "DU":
+                    handleDuCommand(parts.length > 1 ? parts[1] : "/");
+                    break;
+                    
+                case "QUOTA":
+                    if (parts.length == 1) {
+                        handleQuotaCommand(null, 0);
+                    } else if (parts.length < 3) {
+                        sendResponse(400, "缺少参数", "");
+                    } else {
+                        handleQuotaCommand(parts[1], ServerConfig.parseSize(parts[2]));
+                    }
+                    break;
+                    
+                case "COPY":
+                    if (parts.length < 3) {
+                        sendResponse(400, "缺少参数", "");
+                    } else {
+                        handleCopyCommand(parts[1], parts[2]);
+                    }
+                    break;
+                    
+                case "JOB":
+                    handleJobCommand(parts.length > 1 ? parts[1] : null, false);
+                    break;
+                    
+                case "CANCEL":
+                    if (parts.length < 2) {
+                        sendResponse(400, "缺少参数", "");
+                    } else {
+                        handleJobCommand(parts[1], true);
+                    }
+                    break;
+                    
+                case "PING":
+                    sendResponse(200, "PONG", "");
+                    break;
+                    
+                case "WATCH":
+                    if (parts.length < 2) {
+                        sendResponse(400, "缺少参数", "");
+                    } else {
+                        handleWatchCommand(parts[1], parts.length > 2 && "1".equals(parts[2]));
+                    }
+                    break;
+                    
+                case "VOLUMES":
+                    handleVolumesCommand();
+                    break;
+                    
+                case "BANDWIDTH":
+                    if (parts.length == 1) {
+                        handleBandwidthCommand(null, 0);
+                    } else if (parts.length < 3) {
+                        sendResponse(400, "缺少参数", "");
+                    } else {
+                        handleBandwidthCommand(parts[1], ServerConfig.parseSize(parts[2]));
+                    }
+                    break;
+                    
                 default:
                     sendResponse(400, "未知命令", "");
                     break;
             }
         } catch (Exception e) {
             sendResponse(500, "服务器错误: " + e.getMessage(), "");
-            System.err.println("处理命令时出错: " + e.getMessage());
-            e.printStackTrace();
+            accessLog.error("处理命令时出错: " + e.getMessage(), e);
+        } finally {
+            diskUsage.endChange(changing);
         }
     }
     
@@ -153,17 +432,61 @@ public class ClientHandler implements Runnable {
             return;
         }
         
-        // 获取目录列表
-        String fileList = Files.list(targetPath)
-                .map(p -> {
-                    String name = p.getFileName().toString();
-                    return Files.isDirectory(p) ? name + "/DIR" : name + "/FILE";
-                })
-                .collect(Collectors.joining(","));
+        // 获取目录列表，打包存储的文件与普通文件一同列出
+        Map<String, PackStore.Entry> packed = packStore.list(targetPath);
+        String fileList;
+        try (Stream<Path> children = Files.list(targetPath)) {
+            fileList = children
+                    .map(p -> {
+                        String name = p.getFileName().toString();
+                        packed.remove(name);
+                        return Files.isDirectory(p) ? name + "/DIR" : name + "/FILE";
+                    })
+                    .collect(Collectors.joining(","));
+        }
+        if (!packed.isEmpty()) {
+            String packedList = packed.keySet().stream().map(name -> name + "/FILE").collect(Collectors.joining(","));
+            fileList = fileList.isEmpty() ? packedList : fileList + "," + packedList;
+        }
         
         sendResponse(200, "成功", fileList);
     }
     
+    /**
+     * 处理LISTPAGE命令 - 分页列出目录内容
+     * 响应数据为 总条目数;本页条目数，随后每行一个条目：名称\t类型(D/F)\t大小\t修改时间
+     * 同一目录的后续分页复用缓存的目录快照，不再扫描目录
+     */
+    private void handleListPageCommand(String path, int offset, int limit, String sort, String filter) throws IOException {
+        Path targetPath = getAbsolutePath(path);
+        
+        // 检查路径是否存在且是目录
+        if (!Files.exists(targetPath)) {
+            sendResponse(400, "路径不存在", "");
+            return;
+        }
+        
+        if (!Files.isDirectory(targetPath)) {
+            sendResponse(400, "路径不是目录", "");
+            return;
+        }
+        
+        // 缓存未命中时要扫描目录，在目录所在卷的I/O线程中进行
+        DirectorySnapshot snapshot = volumeOf(targetPath).call(() -> listingCache.get(targetPath));
+        int[] view = snapshot.view(sort, filter);
+        int from = Math.max(0, Math.min(offset, view.length));
+        int to = Math.min(view.length, from + Math.max(0, Math.min(limit, MAX_PAGE_SIZE)));
+        
+        // 响应行和所有条目一次写出，避免小包等待延迟确认
+        StringBuilder response = new StringBuilder();
+        response.append(200).append('|').append("成功").append('|').append(view.length).append(';').append(to - from).append('\n');
+        for (int i = from; i < to; i++) {
+            response.append(snapshot.format(view[i])).append('\n');
+        }
+        out.print(response);
+        out.flush();
+    }
+    
     /**
      * 处理DOWNLOAD命令 - 下载文件
      */
@@ -172,7 +495,12 @@ public class ClientHandler implements Runnable {
         
         // 检查文件是否存在且不是目录
         if (!Files.exists(filePath)) {
-            sendResponse(400, "文件不存在", "");
+            byte[] packed = packStore.read(filePath);
+            if (packed == null) {
+                sendResponse(400, "文件不存在", "");
+            } else {
+                sendPacked(path, packed);
+            }
             return;
         }
         
@@ -185,155 +513,1410 @@ public class ClientHandler implements Runnable {
         long fileSize = Files.size(filePath);
         sendResponse(200, "成功", String.valueOf(fileSize));
         
-        // 发送文件内容
-        try (FileInputStream fis = new FileInputStream(filePath.toFile())) {
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                dataOut.write(buffer, 0, bytesRead);
+        // 发送文件内容，边发送边计算校验和，只发送声明的字节数
+        // 磁盘阶段在文件所在卷的I/O线程中预读，本线程只负责发送
+        BandwidthScheduler.Transfer transfer = bandwidthScheduler.begin(connectionId, user, transferWeight, "DOWNLOAD " + path);
+        CRC32C checksum = new CRC32C();
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ);
+             TransferPipeline.Reader reader = new TransferPipeline.Reader(volumeOf(filePath), file, 0, fileSize, pipelineDepth)) {
+            long bytesRemaining = fileSize;
+            ByteBuffer buffer;
+            while (bytesRemaining > 0 && (buffer = reader.next()) != null) {
+                int bytesRead = buffer.remaining();
+                bandwidthScheduler.acquire(transfer, bytesRead);
+                checksum.update(buffer);
+                buffer.rewind();
+                writeFully(buffer);
+                touch();
+                bytesRemaining -= bytesRead;
             }
-            dataOut.flush();
+            if (bytesRemaining > 0) {
+                // 文件在发送期间被截断，已无法发出声明的长度，断开连接让客户端得知传输不完整
+                accessLog.error("文件在下载期间被截断: " + path, null);
+                forceClose();
+                return;
+            }
+        } finally {
+            bandwidthScheduler.end(transfer);
         }
+        
+        // 校验和作为尾部响应行，客户端核对后才认为下载成功
+        sendResponse(200, "CRC32C", Long.toHexString(checksum.getValue()));
     }
     
     /**
-     * 处理UPLOAD命令 - 上传文件
+     * 下载打包存储的文件，内容已整体读入内存，直接发送
      */
-    private void handleUploadCommand(String path, long fileSize) throws IOException {
+    private void sendPacked(String path, byte[] data) throws IOException {
+        sendResponse(200, "成功", String.valueOf(data.length));
+        BandwidthScheduler.Transfer transfer = bandwidthScheduler.begin(connectionId, user, transferWeight, "DOWNLOAD " + path);
+        CRC32C checksum = new CRC32C();
+        try {
+            checksum.update(data);
+            bandwidthScheduler.acquire(transfer, data.length);
+            writeFully(ByteBuffer.wrap(data));
+            touch();
+        } finally {
+            bandwidthScheduler.end(transfer);
+        }
+        sendResponse(200, "CRC32C", Long.toHexString(checksum.getValue()));
+    }
+    
+    /**
+     * 处理READ命令 - 读取文件的一段内容，用于预览等只需要部分内容的场合
+     * 响应数据为 文件大小;起始位置;实际字节数，随后紧跟该数量的原始字节。
+     * 数据先读入内存再发送响应，文件在读取期间被截断时也不会与声明的长度不符
+     * @param path 文件路径
+     * @param offset 起始位置
+     * @param length 请求的字节数，最多 MAX_READ_LENGTH
+     */
+    private void handleReadCommand(String path, long offset, int length) throws IOException {
         Path filePath = getAbsolutePath(path);
-        
-        // 检查父目录是否存在
-        Path parentPath = filePath.getParent();
-        if (parentPath != null && !Files.exists(parentPath)) {
-            Files.createDirectories(parentPath);
+        byte[] packed = Files.exists(filePath) ? null : packStore.read(filePath);
+        if (packed == null && !Files.isRegularFile(filePath)) {
+            sendResponse(400, "文件不存在", "");
+            return;
+        }
+        if (offset < 0 || length < 0) {
+            sendResponse(400, "无效的范围", "");
+            return;
+        }
+        if (packed != null) {
+            int from = (int) Math.min(offset, packed.length);
+            int count = Math.min(Math.min(length, MAX_READ_LENGTH), packed.length - from);
+            sendResponse(200, "成功", packed.length + ";" + offset + ";" + count);
+            BandwidthScheduler.Transfer transfer = bandwidthScheduler.begin(connectionId, user, transferWeight, "READ " + path);
+            try {
+                bandwidthScheduler.acquire(transfer, count);
+                writeFully(ByteBuffer.wrap(packed, from, count));
+            } finally {
+                bandwidthScheduler.end(transfer);
+            }
+            return;
         }
         
-        // 告诉客户端准备接收文件
-        sendResponse(200, "准备接收文件", "");
-        
-        // 接收并保存文件
-        try (FileOutputStream fos = new FileOutputStream(filePath.toFile())) {
-            byte[] buffer = new byte[8192];
-            long bytesRemaining = fileSize;
-            int bytesRead;
+        ByteBuffer buffer = BufferPool.shared().acquire(Math.min(Math.max(length, 1), MAX_READ_LENGTH));
+        try {
+            long fileSize;
+            try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                fileSize = file.size();
+                buffer.limit((int) Math.max(0, Math.min(Math.min(length, MAX_READ_LENGTH), fileSize - offset)));
+                volumeOf(filePath).call(() -> {
+                    int n;
+                    long at = offset;
+                    while (buffer.hasRemaining() && (n = file.read(buffer, at)) != -1) {
+                        at += n;
+                    }
+                    return null;
+                });
+            }
+            buffer.flip();
             
-            while (bytesRemaining > 0 && (bytesRead = dataIn.read(buffer, 0, (int) Math.min(buffer.length, bytesRemaining))) != -1) {
-                fos.write(buffer, 0, bytesRead);
-                bytesRemaining -= bytesRead;
+            sendResponse(200, "成功", fileSize + ";" + offset + ";" + buffer.remaining());
+            BandwidthScheduler.Transfer transfer = bandwidthScheduler.begin(connectionId, user, transferWeight, "READ " + path);
+            try {
+                bandwidthScheduler.acquire(transfer, buffer.remaining());
+                writeFully(buffer);
+            } finally {
+                bandwidthScheduler.end(transfer);
             }
+        } finally {
+            BufferPool.shared().release(buffer);
         }
-        
-        sendResponse(200, "上传完成", "");
     }
     
     /**
-     * 处理DELETE命令 - 删除文件或目录
+     * 路径所在的卷，路径不在任何卷中时按根卷处理
      */
-    private void handleDeleteCommand(String path) throws IOException {
-        Path targetPath = getAbsolutePath(path);
-        
-        // 检查路径是否存在
-        if (!Files.exists(targetPath)) {
-            sendResponse(400, "路径不存在", "");
+    private StorageVolumes.Volume volumeOf(Path path) {
+        StorageVolumes.Volume volume = volumes.volumeOf(path);
+        return volume != null ? volume : volumes.getRootVolume();
+    }
+    
+    /**
+     * 把缓冲区中的剩余数据全部写入套接字
+     */
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        commandBytes += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    /**
+     * 处理HASH命令 - 批量查询文件内容哈希(SHA-256)
+     * 响应数据为条目数，随后每行一个条目：路径\t大小\t修改时间\t哈希；
+     * 路径不存在或不是普通文件时大小和修改时间为-1，哈希为"-"
+     * @param paths 文件路径
+     */
+    private void handleHashCommand(String[] paths) throws IOException {
+        if (paths.length > MAX_HASH_PATHS) {
+            sendResponse(400, "路径过多，单次最多 " + MAX_HASH_PATHS + " 个", "");
             return;
         }
         
-        // 删除文件或目录
-        boolean success = deleteRecursively(targetPath);
-        
-        if (success) {
-            sendResponse(200, "删除成功", "");
-        } else {
-            sendResponse(500, "删除失败", "");
+        StringBuilder response = new StringBuilder();
+        response.append(200).append('|').append("成功").append('|').append(paths.length).append('\n');
+        for (String path : paths) {
+            Path filePath = getAbsolutePath(path);
+            PackStore.Entry packed = Files.exists(filePath) ? null : packStore.get(filePath);
+            HashIndex.Entry entry = packed == null ? hashIndex.lookup(filePath) : null;
+            touch();
+            response.append(path.replace('\t', ' ')).append('\t');
+            if (packed != null) {
+                // 打包时已计算哈希
+                response.append(packed.getLength()).append('\t').append(packed.getLastModified()).append('\t').append(packed.getHash());
+            } else if (entry == null) {
+                response.append("-1\t-1\t-");
+            } else {
+                response.append(entry.getSize()).append('\t').append(entry.getLastModified()).append('\t').append(entry.getHash());
+            }
+            response.append('\n');
         }
+        out.print(response);
+        out.flush();
     }
     
     /**
-     * 递归删除文件或目录
+     * 处理SEARCH命令 - 按文件名搜索整个目录树
+     * 结果数事先未知，因此响应行之后逐行发送 路径\t类型(D/F)，最后以 END|条目数 结束。
+     * 结果分批从索引取出，每批在释放读锁后发送并刷新，慢速客户端不会阻塞写命令，客户端断开时停止搜索
+     * @param mode prefix/substring/glob
+     * @param pattern 查询串，不区分大小写
+     * @param path 限定搜索的目录
+     * @param limit 最多返回的条目数
      */
-    private boolean deleteRecursively(Path path) throws IOException {
-        if (Files.isDirectory(path)) {
-            Files.list(path).forEach(p -> {
-                try {
-                    deleteRecursively(p);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+    private void handleSearchCommand(String mode, String pattern, String path, int limit) {
+        if (!FileNameIndex.PREFIX.equals(mode) && !FileNameIndex.SUBSTRING.equals(mode) && !FileNameIndex.GLOB.equals(mode)) {
+            sendResponse(400, "未知的搜索方式", "");
+            return;
+        }
+        if (pattern.isEmpty()) {
+            sendResponse(400, "查询串为空", "");
+            return;
+        }
+        
+        sendResponse(200, fileNameIndex.isReady() ? "成功" : "索引尚未建立完成，结果可能不完整", "");
+        StringBuilder rows = new StringBuilder();
+        try (FileNameIndex.Search search = fileNameIndex.search(mode, pattern, getAbsolutePath(path),
+                Math.max(1, Math.min(limit, MAX_SEARCH_RESULTS)))) {
+            while (search.next(SEARCH_FLUSH_ROWS, (resultPath, directory) -> {
+                rows.append(resultPath.replace('\t', ' ').replace('\n', ' ')).append('\t').append(directory ? 'D' : 'F').append('\n');
+                return true;
+            }) > 0) {
+                out.print(rows);
+                out.flush();
+                rows.setLength(0);
+                touch();
+                if (out.checkError()) {
+                    return;
                 }
-            });
+            }
+            rows.append("END|").append(search.getFound()).append('\n');
         }
-        Files.delete(path);
-        return true;
+        out.print(rows);
+        out.flush();
     }
     
     /**
-     * 处理MKDIR命令 - 创建目录
+     * 处理GREP命令 - 在服务器上搜索文件内容
+     * 与SEARCH相同，响应行之后逐行发送 路径\t行号\t内容片段，最后以 END|匹配数 结束。
+     * 匹配边扫描边发送，每积累一批或等待超过 GREP_POLL_MILLIS 时刷新一次，客户端断开时停止扫描
+     * @param mode literal/regex
+     * @param path 搜索的目录
+     * @param fileGlob 文件名通配过滤，空串表示所有文件
+     * @param limit 最多返回的匹配行数
+     * @param pattern 字面量或正则表达式
      */
-    private void handleMkdirCommand(String path) throws IOException {
-        Path dirPath = getAbsolutePath(path);
+    private void handleGrepCommand(String mode, String path, String fileGlob, int limit, String pattern) {
+        if (!ContentSearcher.LITERAL.equals(mode) && !ContentSearcher.REGEX.equals(mode)) {
+            sendResponse(400, "未知的搜索方式", "");
+            return;
+        }
+        if (pattern.isEmpty()) {
+            sendResponse(400, "查询串为空", "");
+            return;
+        }
+        Path directory = getAbsolutePath(path);
+        if (!Files.isDirectory(directory)) {
+            sendResponse(404, "目录不存在", "");
+            return;
+        }
         
-        // 检查目录是否已存在
-        if (Files.exists(dirPath)) {
-            sendResponse(400, "路径已存在", "");
+        ContentSearcher.Search search;
+        try {
+            search = contentSearcher.start(mode, pattern, directory, fileGlob.trim(), Math.max(1, Math.min(limit, MAX_GREP_RESULTS)), volumes);
+        } catch (PatternSyntaxException e) {
+            sendResponse(400, "正则表达式错误: " + e.getDescription(), "");
             return;
         }
         
-        // 创建目录
-        Files.createDirectories(dirPath);
-        sendResponse(200, "目录创建成功", "");
+        sendResponse(200, "成功", "");
+        out.flush();
+        StringBuilder rows = new StringBuilder();
+        int pending = 0;
+        try {
+            while (true) {
+                ContentSearcher.Match match = search.poll(GREP_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (match != null) {
+                    rows.append(match.getPath().replace('\t', ' ').replace('\n', ' ')).append('\t')
+                            .append(match.getLineNumber()).append('\t').append(match.getText()).append('\n');
+                    if (++pending < GREP_FLUSH_ROWS) {
+                        continue;
+                    }
+                } else if (search.isFinished()) {
+                    break;
+                }
+                // 积累满一批，或一段时间没有新的匹配：发出已有的行并刷新活动时间，匹配稀少的长时间搜索不会被当作空闲连接关闭
+                if (pending > 0) {
+                    out.print(rows);
+                    rows.setLength(0);
+                    pending = 0;
+                }
+                out.flush();
+                touch();
+                if (out.checkError()) {
+                    search.cancel();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            search.cancel();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        rows.append("END|").append(search.getFound()).append('\n');
+        out.print(rows);
+        out.flush();
+        accessLog.info("内容搜索完成: 扫描文件 " + search.getFilesScanned() + " 个, " + search.getBytesScanned()
+                + " 字节, 匹配 " + search.getFound() + " 行");
     }
     
     /**
-     * 处理RENAME命令 - 重命名文件或目录
+     * 处理MANIFEST命令 - 列出整个目录子树，供客户端同步时与本地比较
+     * 与GREP相同，响应行之后边遍历边发送 相对路径\t类型(D/F/X)\t大小\t修改时间，最后以 END|条目数 结束。
+     * 类型X表示无法读取的目录或文件，其中的内容未知，相对路径为空串时整个目录都无法读取。
+     * 路径中的反斜杠、制表符和换行符被转义，客户端按原样还原。
+     * 只读取目录项属性，不读文件内容；挂载在子树中的卷和打包存储的文件一并列出，客户端断开时停止遍历
+     * @param path 目录路径
      */
-    private void handleRenameCommand(String oldPath, String newPath) throws IOException {
-        Path sourcePath = getAbsolutePath(oldPath);
-        Path targetPath = getAbsolutePath(newPath);
-        
-        // 检查源路径是否存在
-        if (!Files.exists(sourcePath)) {
-            sendResponse(400, "源路径不存在", "");
+    private void handleManifestCommand(String path) throws IOException {
+        Path directory = getAbsolutePath(path);
+        if (!Files.isDirectory(directory)) {
+            sendResponse(404, "目录不存在", "");
             return;
         }
         
-        // 检查目标路径是否已存在
-        if (Files.exists(targetPath)) {
-            sendResponse(400, "目标路径已存在", "");
+        // 打包的文件按相对路径收集，磁盘上有同名文件时以磁盘为准
+        String base = volumes.relativize(directory);
+        Map<String, PackStore.Entry> packed = new HashMap<>();
+        packStore.forEach(directory, (file, entry) -> {
+            String relative = volumes.relativize(file);
+            packed.put(base.isEmpty() ? relative : relative.substring(base.length() + 1), entry);
+        });
+        
+        sendResponse(200, "成功", "");
+        out.flush();
+        ManifestWriter writer = new ManifestWriter(packed);
+        if (!writer.walk(directory, "")) {
             return;
         }
-        
-        // 重命名文件或目录
-        Files.move(sourcePath, targetPath);
-        sendResponse(200, "重命名成功", "");
+        for (StorageVolumes.Volume volume : volumes.mountedUnder(directory)) {
+            String prefix = base.isEmpty() ? volume.getPrefix() : volume.getPrefix().substring(base.length() + 1);
+            if (!writer.walk(volume.getDirectory(), prefix)) {
+                return;
+            }
+        }
+        for (Map.Entry<String, PackStore.Entry> file : packed.entrySet()) {
+            writer.row(file.getKey(), 'F', file.getValue().getLength(), file.getValue().getLastModified());
+        }
+        writer.rows.append("END|").append(writer.count).append('\n');
+        out.print(writer.rows);
+        out.flush();
     }
     
     /**
-     * 获取绝对路径
+     * MANIFEST的输出：积累一批条目刷新一次
      */
-    private Path getAbsolutePath(String relativePath) {
-        // 规范化路径，防止路径遍历攻击
-        String normalizedPath = relativePath.replace("\\", "/");
+    private class ManifestWriter {
+        private final Map<String, PackStore.Entry> packed;
+        private final StringBuilder rows = new StringBuilder();
+        private int pending;
+        private long count;
+        private boolean aborted;
         
-        // 移除开头的斜杠
-        while (normalizedPath.startsWith("/")) {
-            normalizedPath = normalizedPath.substring(1);
+        ManifestWriter(Map<String, PackStore.Entry> packed) {
+            this.packed = packed;
         }
         
-        // 移除结尾的引号和其他不合法字符
-        if (normalizedPath.endsWith("\"") || normalizedPath.endsWith("'")) {
-            normalizedPath = normalizedPath.substring(0, normalizedPath.length() - 1);
+        /**
+         * 遍历一个目录子树
+         * @param start 子树的实际路径
+         * @param prefix 子树在清单中的相对路径，起始目录为空串
+         * @return 客户端是否仍在接收
+         */
+        boolean walk(Path start, String prefix) throws IOException {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    if (!dir.equals(start) || !prefix.isEmpty()) {
+                        row(relative(dir), 'D', 0, attributes.lastModifiedTime().toMillis());
+                    }
+                    return aborted ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile() && !HashIndex.isTemporary(file)) {
+                        String relative = relative(file);
+                        packed.remove(relative);
+                        row(relative, 'F', attributes.size(), attributes.lastModifiedTime().toMillis());
+                    }
+                    return aborted ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // 遍历期间被删除的条目不再列出；读不了的目录或文件单独列出，客户端不能把其中的条目当作已删除
+                    if (!(e instanceof NoSuchFileException)) {
+                        row(relative(file), 'X', 0, 0);
+                    }
+                    return aborted ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                }
+                
+                private String relative(Path path) {
+                    String name = start.relativize(path).toString();
+                    if (File.separatorChar != '/') {
+                        name = name.replace(File.separatorChar, '/');
+                    }
+                    if (prefix.isEmpty()) {
+                        return name;
+                    }
+                    return name.isEmpty() ? prefix : prefix + "/" + name;
+                }
+            });
+            return !aborted;
         }
         
-        // 过滤掉不合法的字符
-        normalizedPath = normalizedPath.replaceAll("[\"':*?<>|]", "");
+        /**
+         * @param type D(目录)/F(文件)/X(无法读取，子树内容未知)
+         */
+        void row(String relative, char type, long size, long lastModified) {
+            appendEscaped(rows, relative);
+            rows.append('\t').append(type)
+                    .append('\t').append(size).append('\t').append(lastModified).append('\n');
+            count++;
+            if (++pending >= MANIFEST_FLUSH_ROWS) {
+                out.print(rows);
+                out.flush();
+                rows.setLength(0);
+                pending = 0;
+                touch();
+                aborted = out.checkError();
+            }
+        }
         
-        return Paths.get(rootDirectory, normalizedPath);
+        /**
+         * 名称中的反斜杠、制表符和换行符转义为 \\、\t、\n、\r，其他字符原样输出
+         */
+        private void appendEscaped(StringBuilder rows, String name) {
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                switch (c) {
+                    case '\\':
+                        rows.append("\\\\");
+                        break;
+                    case '\t':
+                        rows.append("\\t");
+                        break;
+                    case '\n':
+                        rows.append("\\n");
+                        break;
+                    case '\r':
+                        rows.append("\\r");
+                        break;
+                    default:
+                        rows.append(c);
+                        break;
+                }
+            }
+        }
     }
     
     /**
-     * 发送响应给客户端
+     * 处理UPLOAD命令 - 上传文件
      */
-    private void sendResponse(int statusCode, String message, String data) {
-        out.println(statusCode + "|" + message + "|" + data);
+    private void handleUploadCommand(String path, long fileSize) throws IOException {
+        if (fileSize < 0) {
+            sendResponse(400, "文件大小无效", "");
+            return;
+        }
+        Path filePath = getAbsolutePath(path);
+        
+        boolean onDisk = Files.exists(filePath);
+        PackStore.Entry packed = onDisk ? null : packStore.get(filePath);
+        boolean existed = onDisk || packed != null;
+        long previousSize = onDisk ? Files.size(filePath) : packed != null ? packed.getLength() : -1;
+        if (underPackedFile(filePath)) {
+            sendResponse(400, "上级路径不是目录", "");
+            return;
+        }
+        
+        // 在接收数据之前按声明的大小检查配额并预留
+        long reservedBytes = Math.max(0, fileSize - Math.max(previousSize, 0));
+        String quotaError = diskUsage.reserve(filePath, reservedBytes);
+        if (quotaError != null) {
+            sendResponse(413, "超出配额: " + quotaError, "");
+            return;
+        }
+        
+        try {
+            // 检查父目录是否存在
+            Path parentPath = filePath.getParent();
+            if (parentPath != null && !Files.exists(parentPath)) {
+                Path topCreated = parentPath;
+                while (topCreated.getParent() != null && !Files.exists(topCreated.getParent())) {
+                    topCreated = topCreated.getParent();
+                }
+                boolean changing = diskUsage.beginChange();
+                try {
+                    Files.createDirectories(parentPath);
+                    diskUsage.added(topCreated);
+                } finally {
+                    diskUsage.endChange(changing);
+                }
+            }
+            if (packStore.accepts(fileSize) && !Files.isDirectory(filePath)) {
+                receivePacked(path, filePath, (int) fileSize, existed, previousSize);
+            } else {
+                receiveUpload(path, filePath, fileSize, existed, previousSize);
+            }
+        } finally {
+            diskUsage.release(filePath, reservedBytes);
+        }
+    }
+    
+    /**
+     * 接收上传的数据，校验通过后替换目标文件
+     */
+    private void receiveUpload(String path, Path filePath, long fileSize, boolean existed, long previousSize) throws IOException {
+        // 告诉客户端准备接收文件
+        sendResponse(200, "准备接收文件", "");
+        
+        // 接收到同目录的临时文件，按调度器分配的带宽读取，发送方会被TCP流控自然减速
+        // 不使用 createTempFile，它创建的文件权限为仅所有者可读写，替换后会改变目标文件的权限
+        Path tempPath = Files.createFile(filePath.resolveSibling("." + filePath.getFileName() + ".upload-" + System.nanoTime()));
+        boolean committed = false;
+        BandwidthScheduler.Transfer transfer = bandwidthScheduler.begin(connectionId, user, transferWeight, "UPLOAD " + path);
+        try {
+            CRC32C checksum = new CRC32C();
+            MessageDigest digest = HashIndex.newDigest();
+            long bytesRemaining = fileSize;
+            // 磁盘阶段在文件所在卷的I/O线程中写盘，本线程只负责接收
+            try (FileChannel file = FileChannel.open(tempPath, StandardOpenOption.WRITE);
+                 TransferPipeline.Writer writer = new TransferPipeline.Writer(volumeOf(tempPath), file, 0, pipelineDepth)) {
+                int bytesRead;
+                // 只读取声明的字节数，紧随其后的尾部行留给 readDataLine
+                while (bytesRemaining > 0) {
+                    ByteBuffer buffer = writer.buffer();
+                    buffer.limit((int) Math.min(buffer.capacity(), bytesRemaining));
+                    if ((bytesRead = channel.read(buffer)) == -1) {
+                        break;
+                    }
+                    buffer.flip();
+                    bandwidthScheduler.acquire(transfer, bytesRead);
+                    checksum.update(buffer);
+                    buffer.rewind();
+                    digest.update(buffer);
+                    buffer.rewind();
+                    writer.write(buffer);
+                    touch();
+                    bytesRemaining -= bytesRead;
+                    commandBytes += bytesRead;
+                }
+                writer.finish();
+            }
+            if (bytesRemaining > 0) {
+                throw new IOException("上传不完整，缺少 " + bytesRemaining + " 字节: " + path);
+            }
+            
+            // 数据之后是客户端计算的校验和，一致时才替换目标文件
+            String trailer = readDataLine();
+            String[] fields = trailer == null ? new String[0] : trailer.split("\\|");
+            if (fields.length < 2 || !"CRC32C".equals(fields[0])) {
+                sendResponse(400, "缺少校验和", "");
+                return;
+            }
+            String expected = Long.toHexString(checksum.getValue());
+            if (!expected.equalsIgnoreCase(fields[1])) {
+                sendResponse(400, "校验失败", expected);
+                return;
+            }
+            boolean changing = diskUsage.beginChange();
+            try {
+                moveIntoPlace(tempPath, filePath);
+                committed = true;
+                // 原来打包存储的同名文件由新文件取代
+                packStore.remove(filePath);
+                // 内容哈希已在接收时算出，之后查询无需重新读取文件
+                hashIndex.record(filePath, HashIndex.toHex(digest.digest()));
+                fileNameIndex.add(filePath, false);
+                diskUsage.replaced(filePath, previousSize);
+            } finally {
+                diskUsage.endChange(changing);
+            }
+        } finally {
+            bandwidthScheduler.end(transfer);
+            if (committed) {
+                listingCache.invalidate(filePath);
+                changeNotifier.publish(existed ? ChangeNotifier.MODIFIED : ChangeNotifier.CREATED, filePath);
+            } else {
+                Files.deleteIfExists(tempPath);
+            }
+        }
+        
+        sendResponse(200, "上传完成", "");
+    }
+    
+    /**
+     * 接收打包存储的小文件，数据整体收在内存中，校验通过后追加到段文件，不创建单独的文件
+     */
+    private void receivePacked(String path, Path filePath, int fileSize, boolean existed, long previousSize) throws IOException {
+        sendResponse(200, "准备接收文件", "");
+        
+        ByteBuffer data = ByteBuffer.allocate(fileSize);
+        BandwidthScheduler.Transfer transfer = bandwidthScheduler.begin(connectionId, user, transferWeight, "UPLOAD " + path);
+        try {
+            int bytesRead;
+            while (data.hasRemaining() && (bytesRead = channel.read(data)) != -1) {
+                bandwidthScheduler.acquire(transfer, bytesRead);
+                touch();
+                commandBytes += bytesRead;
+            }
+        } finally {
+            bandwidthScheduler.end(transfer);
+        }
+        if (data.hasRemaining()) {
+            throw new IOException("上传不完整，缺少 " + data.remaining() + " 字节: " + path);
+        }
+        data.flip();
+        
+        String trailer = readDataLine();
+        String[] fields = trailer == null ? new String[0] : trailer.split("\\|");
+        if (fields.length < 2 || !"CRC32C".equals(fields[0])) {
+            sendResponse(400, "缺少校验和", "");
+            return;
+        }
+        CRC32C checksum = new CRC32C();
+        checksum.update(data.duplicate());
+        String expected = Long.toHexString(checksum.getValue());
+        if (!expected.equalsIgnoreCase(fields[1])) {
+            sendResponse(400, "校验失败", expected);
+            return;
+        }
+        MessageDigest digest = HashIndex.newDigest();
+        digest.update(data.duplicate());
+        
+        boolean changing = diskUsage.beginChange();
+        try {
+            packStore.put(filePath, data, System.currentTimeMillis(), HashIndex.toHex(digest.digest()));
+            // 同名的普通文件由打包的文件取代，删除之前磁盘上的文件优先，读者看到的总是完整的一份
+            if (Files.deleteIfExists(filePath)) {
+                hashIndex.remove(filePath);
+            }
+            fileNameIndex.add(filePath, false);
+            diskUsage.replaced(filePath, previousSize);
+        } finally {
+            diskUsage.endChange(changing);
+        }
+        listingCache.invalidate(filePath);
+        changeNotifier.publish(existed ? ChangeNotifier.MODIFIED : ChangeNotifier.CREATED, filePath);
+        
+        sendResponse(200, "上传完成", "");
+    }
+    
+    /**
+     * 用临时文件替换目标文件，文件系统支持时为原子替换
+     */
+    private static void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /**
+     * 从数据流中读取一行文本，用于紧跟在文件数据之后的尾部行
+     * 尾部行和文件数据一样属于数据流，不经过命令读取器
+     * @return 读取到的行，连接关闭时返回null
+     */
+    private String readDataLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = dataIn.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString("UTF-8");
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+    
+    /**
+     * 处理DELETE命令 - 删除文件或目录
+     */
+    private void handleDeleteCommand(String path) throws IOException {
+        String error = delete(getAbsolutePath(path), null, null);
+        if (error != null) {
+            sendResponse(400, error, "");
+        } else {
+            sendResponse(200, "删除成功", "");
+        }
+    }
+    
+    /**
+     * 删除文件或目录
+     * 在可回滚的批处理中只把它改名为同目录的隐藏临时名，批处理成功后才真正删除
+     * @param undo 可回滚时记录撤销步骤，否则为null
+     * @param trash 可回滚时收集待删除的临时名
+     * @return 不能删除的原因，成功时返回null
+     */
+    private String delete(Path targetPath, List<UndoStep> undo, List<Path> trash) throws IOException {
+        // 检查路径是否存在
+        if (!exists(targetPath)) {
+            return "路径不存在";
+        }
+        
+        if (volumes.isVolumeRoot(targetPath)) {
+            return "不能删除根目录或卷挂载点";
+        }
+        
+        if (undo != null) {
+            Path hiddenPath = targetPath.resolveSibling("." + targetPath.getFileName() + ".batch-" + System.nanoTime());
+            diskUsage.removed(targetPath);
+            try {
+                relocate(targetPath, hiddenPath);
+            } catch (IOException e) {
+                diskUsage.added(targetPath);
+                throw e;
+            }
+            listingCache.invalidate(targetPath);
+            hashIndex.rename(targetPath, hiddenPath);
+            fileNameIndex.remove(targetPath);
+            changeNotifier.publish(ChangeNotifier.DELETED, targetPath);
+            trash.add(hiddenPath);
+            undo.add(() -> {
+                relocate(hiddenPath, targetPath);
+                trash.remove(hiddenPath);
+                diskUsage.added(targetPath);
+                listingCache.invalidate(targetPath);
+                hashIndex.rename(hiddenPath, targetPath);
+                addToNameIndex(targetPath);
+                changeNotifier.publish(ChangeNotifier.CREATED, targetPath);
+            });
+            return null;
+        }
+        
+        // 删除文件或目录，中途失败时剩余部分重新计入用量
+        diskUsage.removed(targetPath);
+        try {
+            purge(targetPath);
+        } finally {
+            if (exists(targetPath)) {
+                diskUsage.added(targetPath);
+            }
+            listingCache.invalidate(targetPath);
+            hashIndex.remove(targetPath);
+            fileNameIndex.remove(targetPath);
+            changeNotifier.publish(ChangeNotifier.DELETED, targetPath);
+        }
+        return null;
+    }
+    
+    /**
+     * 删除文件或目录，包括其中打包存储的文件
+     */
+    private void purge(Path path) throws IOException {
+        if (packStore.remove(path) == null) {
+            packStore.removeTree(path);
+            deleteRecursively(path);
+        }
+    }
+    
+    /**
+     * 路径是否存在，包括打包存储的文件
+     */
+    private boolean exists(Path path) {
+        return Files.exists(path) || packStore.get(path) != null;
+    }
+    
+    /**
+     * 不存在的上级路径中是否有打包存储的文件，这时不能在其下创建任何东西
+     */
+    private boolean underPackedFile(Path path) {
+        for (Path parent = path.getParent(); parent != null && !Files.exists(parent); parent = parent.getParent()) {
+            if (packStore.get(parent) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * 递归删除文件或目录
+     */
+    private boolean deleteRecursively(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            Files.list(path).forEach(p -> {
+                try {
+                    deleteRecursively(p);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        Files.delete(path);
+        return true;
+    }
+    
+    /**
+     * 把恢复的文件或整个子树重新加入文件名索引
+     */
+    private void addToNameIndex(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            fileNameIndex.add(path, false);
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.forEach(p -> fileNameIndex.add(p, Files.isDirectory(p)));
+        }
+        packStore.forEach(path, (file, entry) -> fileNameIndex.add(file, false));
+    }
+    
+    /**
+     * 处理MKDIR命令 - 创建目录
+     */
+    private void handleMkdirCommand(String path) throws IOException {
+        String error = makeDirectory(getAbsolutePath(path), null);
+        if (error != null) {
+            sendResponse(400, error, "");
+        } else {
+            sendResponse(200, "目录创建成功", "");
+        }
+    }
+    
+    /**
+     * 创建目录，包括不存在的上级目录
+     * @param undo 可回滚时记录撤销步骤，否则为null
+     * @return 不能创建的原因，成功时返回null
+     */
+    private String makeDirectory(Path dirPath, List<UndoStep> undo) throws IOException {
+        // 检查目录是否已存在
+        if (exists(dirPath)) {
+            return "路径已存在";
+        }
+        if (underPackedFile(dirPath)) {
+            return "上级路径不是目录";
+        }
+        
+        // 撤销时删除新建的最上层目录
+        Path topCreated = dirPath;
+        while (topCreated.getParent() != null && !Files.exists(topCreated.getParent())) {
+            topCreated = topCreated.getParent();
+        }
+        
+        // 创建目录
+        Files.createDirectories(dirPath);
+        diskUsage.added(topCreated);
+        listingCache.invalidate(dirPath);
+        fileNameIndex.add(dirPath, true);
+        changeNotifier.publish(ChangeNotifier.CREATED, dirPath);
+        
+        if (undo != null) {
+            Path created = topCreated;
+            undo.add(() -> {
+                diskUsage.removed(created);
+                try {
+                    purge(created);
+                } finally {
+                    listingCache.invalidate(created);
+                    hashIndex.remove(created);
+                    fileNameIndex.remove(created);
+                    changeNotifier.publish(ChangeNotifier.DELETED, created);
+                }
+            });
+        }
+        return null;
+    }
+    
+    /**
+     * 处理RENAME命令 - 重命名文件或目录
+     */
+    private void handleRenameCommand(String oldPath, String newPath) throws IOException {
+        String error = rename(getAbsolutePath(oldPath), getAbsolutePath(newPath), null);
+        if (error != null) {
+            sendResponse(400, error, "");
+        } else {
+            sendResponse(200, "重命名成功", "");
+        }
+    }
+    
+    /**
+     * 重命名文件或目录
+     * @param undo 可回滚时记录撤销步骤，否则为null
+     * @return 不能重命名的原因，成功时返回null
+     */
+    private String rename(Path sourcePath, Path targetPath, List<UndoStep> undo) throws IOException {
+        // 检查源路径是否存在
+        if (!exists(sourcePath)) {
+            return "源路径不存在";
+        }
+        
+        // 检查目标路径是否已存在
+        if (exists(targetPath)) {
+            return "目标路径已存在";
+        }
+        
+        if (volumes.isVolumeRoot(sourcePath)) {
+            return "不能移动根目录或卷挂载点";
+        }
+        
+        // 跨卷移动要复制数据，文件可以由 Files.move 完成，目录不行
+        if (volumeOf(sourcePath) != volumeOf(targetPath) && Files.isDirectory(sourcePath)) {
+            return "不能跨卷移动目录";
+        }
+        
+        String quotaError = diskUsage.checkQuota(targetPath, diskUsage.sizeOf(sourcePath), sourcePath);
+        if (quotaError != null) {
+            return "超出配额: " + quotaError;
+        }
+        
+        // 重命名文件或目录
+        move(sourcePath, targetPath);
+        if (undo != null) {
+            undo.add(() -> move(targetPath, sourcePath));
+        }
+        return null;
+    }
+    
+    private void move(Path sourcePath, Path targetPath) throws IOException {
+        relocate(sourcePath, targetPath);
+        listingCache.invalidate(sourcePath);
+        listingCache.invalidate(targetPath);
+        hashIndex.rename(sourcePath, targetPath);
+        fileNameIndex.rename(sourcePath, targetPath);
+        diskUsage.renamed(sourcePath, targetPath);
+        changeNotifier.publishRename(sourcePath, targetPath);
+    }
+    
+    /**
+     * 移动文件或目录，打包存储的文件只修改索引，目录中打包的文件随目录改键
+     */
+    private void relocate(Path sourcePath, Path targetPath) throws IOException {
+        if (Files.exists(sourcePath)) {
+            Files.move(sourcePath, targetPath);
+        } else if (!Files.isDirectory(targetPath.getParent())) {
+            // 与 Files.move 一致，不在不存在的目录中创建文件
+            throw new NoSuchFileException(targetPath.getParent().toString());
+        }
+        packStore.rename(sourcePath, targetPath);
+    }
+    
+    /**
+     * 处理BATCH命令 - 一次执行多个元数据操作
+     * 命令行之后紧跟 count 行操作，每行为 MKDIR|路径、RENAME|原路径|新路径 或 DELETE|路径，按顺序执行。
+     * 响应行之后每个操作一行 序号\t状态码\t消息。
+     * atomic 时任何一个操作失败都按相反顺序撤销已完成的操作，之后的操作不再执行：
+     * 删除在成功前只是改名为隐藏的临时名，因此也能撤销；撤销本身失败时在对应操作上报告
+     * @param count 操作数
+     * @param atomic 是否全部成功或全部撤销
+     */
+    private void handleBatchCommand(int count, boolean atomic) throws IOException {
+        // 先读完所有操作行，即使请求被拒绝，这些行也不能被当作命令执行
+        List<String> operations = new ArrayList<>(Math.min(Math.max(count, 0), MAX_BATCH_OPERATIONS));
+        for (int i = 0; i < count; i++) {
+            String line = in.readLine();
+            if (line == null) {
+                throw new EOFException("批处理操作不完整");
+            }
+            if (operations.size() < MAX_BATCH_OPERATIONS) {
+                operations.add(line);
+            }
+        }
+        if (count <= 0 || count > MAX_BATCH_OPERATIONS) {
+            sendResponse(400, "操作数应为 1 到 " + MAX_BATCH_OPERATIONS, "");
+            return;
+        }
+        
+        String[] results = new String[count];
+        List<UndoStep> undo = atomic ? new ArrayList<>() : null;
+        List<Integer> undoOwners = new ArrayList<>();
+        List<Path> trash = new ArrayList<>();
+        int failed = -1;
+        for (int i = 0; i < count; i++) {
+            int undoSize = atomic ? undo.size() : 0;
+            String[] parts = operations.get(i).split("\\|");
+            String op = parts[0].toUpperCase();
+            String error;
+            String success;
+            try {
+                switch (op) {
+                    case "MKDIR":
+                        success = "目录创建成功";
+                        error = parts.length < 2 ? "缺少参数" : makeDirectory(getAbsolutePath(parts[1]), undo);
+                        break;
+                    case "RENAME":
+                        success = "重命名成功";
+                        error = parts.length < 3 ? "缺少参数" : rename(getAbsolutePath(parts[1]), getAbsolutePath(parts[2]), undo);
+                        break;
+                    case "DELETE":
+                        success = "删除成功";
+                        error = parts.length < 2 ? "缺少参数" : delete(getAbsolutePath(parts[1]), undo, trash);
+                        break;
+                    default:
+                        success = null;
+                        error = "未知操作";
+                        break;
+                }
+                results[i] = error == null ? 200 + "\t" + success : 400 + "\t" + error;
+            } catch (IOException | RuntimeException e) {
+                error = e.getMessage();
+                results[i] = 500 + "\t" + e.getMessage();
+            }
+            if (atomic) {
+                while (undoOwners.size() < undo.size()) {
+                    undoOwners.add(i);
+                }
+            }
+            touch();
+            if (error != null && atomic) {
+                failed = i;
+                break;
+            }
+        }
+        
+        if (failed >= 0) {
+            for (int i = failed + 1; i < count; i++) {
+                results[i] = 409 + "\t" + "未执行";
+            }
+            for (int i = undo.size() - 1; i >= 0; i--) {
+                int owner = undoOwners.get(i);
+                try {
+                    undo.get(i).undo();
+                    results[owner] = 409 + "\t" + "已撤销";
+                } catch (IOException | RuntimeException e) {
+                    results[owner] = 500 + "\t" + "撤销失败: " + e.getMessage();
+                    accessLog.error("批处理撤销失败: " + operations.get(owner) + " - " + e.getMessage(), null);
+                }
+            }
+        }
+        
+        // 真正删除已确认的项目
+        for (Path hiddenPath : trash) {
+            try {
+                purge(hiddenPath);
+            } catch (IOException | RuntimeException e) {
+                accessLog.error("批处理删除失败: " + hiddenPath + " - " + e.getMessage(), null);
+            } finally {
+                listingCache.invalidate(hiddenPath);
+                hashIndex.remove(hiddenPath);
+            }
+        }
+        
+        int succeeded = 0;
+        StringBuilder response = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (results[i].startsWith("200\t")) {
+                succeeded++;
+            }
+            response.append(i).append('\t').append(results[i].replace('\n', ' ')).append('\n');
+        }
+        String message = failed >= 0 ? "操作失败，已撤销" : succeeded == count ? "全部成功" : "部分操作失败";
+        out.print(200 + "|" + message + "|" + count + "\n" + response);
+        out.flush();
+    }
+    
+    /**
+     * 批处理中一个已完成操作的撤销步骤
+     */
+    private interface UndoStep {
+        void undo() throws IOException;
+    }
+    
+    /**
+     * 处理DU命令 - 查询目录子树的用量
+     * 数据为 字节数;文件数;目录数;配额;预留，没有配额时配额为-1
+     */
+    private void handleDuCommand(String path) {
+        Path targetPath = getAbsolutePath(path);
+        if (!diskUsage.isReady()) {
+            sendResponse(503, "磁盘用量尚在统计中", "");
+            return;
+        }
+        DiskUsage.Usage usage = diskUsage.get(targetPath);
+        if (usage == null) {
+            sendResponse(404, "目录不存在", "");
+            return;
+        }
+        sendResponse(200, "成功", usage.getBytes() + ";" + usage.getFiles() + ";" + usage.getDirectories()
+                + ";" + diskUsage.getQuota(targetPath) + ";" + diskUsage.getReserved(targetPath));
+    }
+    
+    /**
+     * 处理QUOTA命令 - 查询或设置目录配额
+     * 带参数时设置目录的配额(字节，0为取消)，只有配置的管理地址可以设置；返回所有配额，每项为 路径;配额;已用;预留
+     */
+    private void handleQuotaCommand(String path, long limit) {
+        if (path != null) {
+            if (!server.isAdmin(clientSocket.getInetAddress())) {
+                sendResponse(403, "无权修改配额", "");
+                return;
+            }
+            diskUsage.setQuota(getAbsolutePath(path), limit);
+        }
+        List<String> entries = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : diskUsage.getQuotas().entrySet()) {
+            long[] values = entry.getValue();
+            entries.add(clean(entry.getKey()) + ";" + values[0] + ";" + values[1] + ";" + values[2]);
+        }
+        sendResponse(200, diskUsage.isReady() ? "成功" : "磁盘用量尚在统计中，已用字节不完整", String.join(",", entries));
+    }
+    
+    /**
+     * 处理COPY命令 - 在服务器上复制文件或目录
+     * 复制在后台作业中进行；短时间内完成时直接返回结果，否则返回202和作业信息，之后用JOB查询进度
+     */
+    private void handleCopyCommand(String source, String target) throws IOException {
+        Path sourcePath = getAbsolutePath(source);
+        Path targetPath = getAbsolutePath(target);
+        
+        if (!exists(sourcePath)) {
+            sendResponse(400, "源路径不存在", "");
+            return;
+        }
+        
+        if (exists(targetPath)) {
+            sendResponse(400, "目标路径已存在", "");
+            return;
+        }
+        
+        Path parent = targetPath.getParent();
+        if (parent == null || !Files.isDirectory(parent)) {
+            sendResponse(400, "目标目录不存在", "");
+            return;
+        }
+        
+        if (targetPath.toAbsolutePath().normalize().startsWith(sourcePath.toAbsolutePath().normalize())) {
+            sendResponse(400, "不能复制到自身内部", "");
+            return;
+        }
+        
+        String quotaError = diskUsage.checkQuota(targetPath, diskUsage.sizeOf(sourcePath), null);
+        if (quotaError != null) {
+            sendResponse(413, "超出配额: " + quotaError, "");
+            return;
+        }
+        
+        CopyJobs.Job job = copyJobs.start(sourcePath, targetPath);
+        try {
+            job.await(COPY_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!job.isFinished()) {
+            sendResponse(202, "后台复制中", formatJob(job));
+        } else if (CopyJobs.DONE.equals(job.getState())) {
+            sendResponse(200, "复制完成", formatJob(job));
+        } else {
+            sendResponse(500, "复制失败: " + clean(job.getError()), formatJob(job));
+        }
+    }
+    
+    /**
+     * 处理JOB/CANCEL命令 - 查询或取消复制作业
+     * 不带编号时返回所有保留的作业，以逗号分隔
+     * @param id 作业编号
+     * @param cancel 是否取消该作业
+     */
+    private void handleJobCommand(String id, boolean cancel) {
+        if (id == null || id.isEmpty()) {
+            List<String> entries = new ArrayList<>();
+            for (CopyJobs.Job job : copyJobs.list()) {
+                entries.add(formatJob(job));
+            }
+            sendResponse(200, "成功", String.join(",", entries));
+            return;
+        }
+        
+        CopyJobs.Job job;
+        try {
+            job = copyJobs.get(Long.parseLong(id.trim()));
+        } catch (NumberFormatException e) {
+            job = null;
+        }
+        if (job == null) {
+            sendResponse(404, "作业不存在", "");
+            return;
+        }
+        if (cancel) {
+            job.cancel();
+            sendResponse(200, job.isFinished() ? "作业已结束" : "已请求取消", formatJob(job));
+        } else {
+            sendResponse(200, "成功", formatJob(job));
+        }
+    }
+    
+    /**
+     * 作业信息，以分号分隔字段：编号;状态;已复制字节;总字节;已复制文件数;总文件数;已用毫秒;源路径;目标路径;错误信息
+     */
+    private static String formatJob(CopyJobs.Job job) {
+        return job.getId() + ";" + job.getState() + ";" + job.getCopiedBytes() + ";" + job.getTotalBytes()
+                + ";" + job.getCopiedFiles() + ";" + job.getTotalFiles() + ";" + job.getElapsedMillis()
+                + ";" + clean(job.getSourcePath()) + ";" + clean(job.getTargetPath()) + ";" + clean(job.getError());
+    }
+    
+    private static String clean(String value) {
+        return value.replace(",", "").replace(";", "").replace("|", "").replace("\n", " ");
+    }
+    
+    /**
+     * 处理WATCH命令 - 订阅目录变化
+     * 连接从此成为单向的事件流，直到客户端断开或服务器关闭：
+     * 每行为 EVENT|类型|路径[|新路径]，类型为 CREATED/MODIFIED/DELETED/RENAMED；
+     * EVENT|RESYNC|路径 表示积压过多已丢弃明细，客户端应重新列出该路径；
+     * 没有变化时每隔一段时间发送 EVENT|PING| 以探测断开的连接。
+     * 事件由变化通知器的推送线程统一写出，本命令返回后会话线程即被释放
+     * @param path 被监视的目录
+     * @param recursive 是否包含整个子树
+     */
+    private void handleWatchCommand(String path, boolean recursive) throws IOException {
+        Path targetPath = getAbsolutePath(path);
+        if (!Files.isDirectory(targetPath)) {
+            sendResponse(400, "目录不存在", "");
+            return;
+        }
+        
+        ChangeNotifier.Subscription subscription = changeNotifier.subscribe(targetPath, recursive);
+        // 监视连接不再接受命令
+        draining = true;
+        sendResponse(200, "开始监视", subscription.getPath());
+        out.flush();
+        try {
+            if (out.checkError()) {
+                throw new IOException("客户端已断开");
+            }
+            if (tlsChannel == null) {
+                // 事件以不等待的方式写出，TLS通道本身已是非阻塞模式
+                clientSocket.getChannel().configureBlocking(false);
+            }
+        } catch (IOException e) {
+            changeNotifier.unsubscribe(subscription);
+            throw e;
+        }
+        watching = true;
+        detached = true;
+        changeNotifier.deliver(subscription, new WatchSink());
+    }
+    
+    /**
+     * 监视连接的写出端，连接交给变化通知器的推送线程后不再经过会话线程
+     */
+    private class WatchSink implements ChangeNotifier.EventSink {
+        @Override
+        public boolean write(ByteBuffer data) throws IOException {
+            if (tlsChannel != null) {
+                return tlsChannel.writeNonBlocking(data);
+            }
+            channel.write(data);
+            return !data.hasRemaining();
+        }
+        
+        @Override
+        public void delivered() {
+            touch();
+        }
+        
+        @Override
+        public void close() {
+            watching = false;
+            try {
+                // 先关闭套接字，TLS通道不再等待发出关闭通知
+                clientSocket.close();
+                if (tlsChannel != null) {
+                    tlsChannel.close();
+                }
+            } catch (IOException e) {
+                // 忽略
+            }
+            accessLog.info("客户端连接已关闭");
+            server.sessionEnded(ClientHandler.this);
+        }
+    }
+    
+    /**
+     * 处理BANDWIDTH命令 - 查询或调整带宽限制
+     * 不带参数时返回各限制值和每个活动传输的实际速率；
+     * 带参数时调整 global/connection/user 限制(字节/秒，0为不限)，或本连接的公平分享权重 weight，
+     * 只有配置的管理地址可以调整
+     */
+    private void handleBandwidthCommand(String key, long value) {
+        if (key != null) {
+            if (!server.isAdmin(clientSocket.getInetAddress())) {
+                sendResponse(403, "无权修改带宽设置", "");
+                return;
+            }
+            switch (key.toLowerCase()) {
+                case "global":
+                    bandwidthScheduler.setGlobalLimit(value);
+                    break;
+                case "connection":
+                    bandwidthScheduler.setConnectionLimit(value);
+                    break;
+                case "user":
+                    bandwidthScheduler.setUserLimit(value);
+                    break;
+                case "weight":
+                    transferWeight = (int) Math.max(1, Math.min(value, 1000));
+                    break;
+                default:
+                    sendResponse(400, "未知带宽参数", "");
+                    return;
+            }
+        }
+        
+        // 每项以分号分隔字段：限制项为 LIMITS;全局;连接;用户，传输项为 连接;用户;权重;当前速率;平均速率;已传字节;描述
+        List<String> entries = new ArrayList<>();
+        entries.add("LIMITS;" + bandwidthScheduler.getGlobalLimit() + ";" + bandwidthScheduler.getConnectionLimit()
+                + ";" + bandwidthScheduler.getUserLimit());
+        for (BandwidthScheduler.Transfer transfer : bandwidthScheduler.getActiveTransfers()) {
+            entries.add(transfer.getConnectionId() + ";" + transfer.getUser() + ";" + transfer.getWeight() + ";"
+                    + transfer.getCurrentRate() + ";" + transfer.getAverageRate() + ";" + transfer.getBytes() + ";"
+                    + transfer.getDescription().replace(",", "").replace(";", ""));
+        }
+        sendResponse(200, "成功", String.join(",", entries));
+    }
+    
+    /**
+     * 处理VOLUMES命令 - 查询存储卷状态
+     * 每项以分号分隔字段：挂载路径;目录;I/O线程数;未完成任务数;已完成任务数;读取字节;写入字节;等待I/O线程毫秒;可用空间;总空间
+     */
+    private void handleVolumesCommand() {
+        List<String> entries = new ArrayList<>();
+        for (StorageVolumes.Volume volume : volumes.getVolumes()) {
+            long usable = -1;
+            long total = -1;
+            try {
+                FileStore store = Files.getFileStore(volume.getDirectory());
+                usable = store.getUsableSpace();
+                total = store.getTotalSpace();
+            } catch (IOException e) {
+                // 卷不可用时空间显示为-1
+            }
+            entries.add("/" + volume.getPrefix() + ";" + volume.getDirectory().toString().replace(",", "").replace(";", "")
+                    + ";" + volume.getThreads() + ";" + volume.getPending() + ";" + volume.getCompleted()
+                    + ";" + volume.getBytesRead() + ";" + volume.getBytesWritten() + ";" + volume.getWaitMillis()
+                    + ";" + usable + ";" + total);
+        }
+        sendResponse(200, "成功", String.join(",", entries));
+    }
+    
+    /**
+     * 获取绝对路径
+     */
+    private Path getAbsolutePath(String relativePath) {
+        // 规范化路径，防止路径遍历攻击
+        String normalizedPath = relativePath.replace("\\", "/");
+        
+        // 移除开头的斜杠
+        while (normalizedPath.startsWith("/")) {
+            normalizedPath = normalizedPath.substring(1);
+        }
+        
+        // 移除结尾的引号和其他不合法字符
+        if (normalizedPath.endsWith("\"") || normalizedPath.endsWith("'")) {
+            normalizedPath = normalizedPath.substring(0, normalizedPath.length() - 1);
+        }
+        
+        // 过滤掉不合法的字符
+        normalizedPath = normalizedPath.replaceAll("[\"':*?<>|]", "");
+        
+        // 按挂载前缀解析到文件所在的卷
+        return volumes.resolve(normalizedPath);
+    }
+    
+    /**
+     * 发送响应给客户端
+     */
+    private void sendResponse(int statusCode, String message, String data) {
+        commandStatus = statusCode;
+        out.println(statusCode + "|" + message + "|" + data);
+    }
+    
+    /**
+     * 记录会话活动，命令和传输中的每个数据块都会刷新
+     */
+    private void touch() {
+        lastActivity = System.nanoTime();
+    }
+    
+    /**
+     * 会话已无活动的时长
+     * @return 纳秒
+     */
+    long getIdleNanos() {
+        return System.nanoTime() - lastActivity;
+    }
+    
+    Socket getSocket() {
+        return clientSocket;
+    }
+    
+    /**
+     * 用户标识，即客户端地址
+     */
+    String getUser() {
+        return user;
+    }
+    
+    /**
+     * 是否正在执行命令
+     */
+    boolean isBusy() {
+        return busy;
+    }
+    
+    /**
+     * 进入排空状态：空闲会话和监视会话立即关闭，执行中的会话在当前命令完成后退出
+     * @return 会话空闲并已被关闭时返回true
+     */
+    boolean drain() {
+        draining = true;
+        if (!busy || watching) {
+            forceClose();
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * 是否处于排空状态
+     */
+    boolean isDraining() {
+        return draining;
+    }
+    
+    /**
+     * 由服务器强制关闭套接字，阻塞中的读写会立即失败
+     */
+    void forceClose() {
+        closedByServer = true;
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            // 忽略
+        }
     }
     
     /**
@@ -344,13 +1927,13 @@ public class ClientHandler implements Runnable {
             if (in != null) in.close();
             if (out != null) out.close();
             if (dataIn != null) dataIn.close();
-            if (dataOut != null) dataOut.close();
+            if (tlsChannel != null) tlsChannel.close();
             if (clientSocket != null && !clientSocket.isClosed()) {
                 clientSocket.close();
             }
-            System.out.println("客户端连接已关闭");
+            accessLog.info("客户端连接已关闭");
         } catch (IOException e) {
-            System.err.println("关闭连接时出错: " + e.getMessage());
+            accessLog.error("关闭连接时出错: " + e.getMessage(), null);
         }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,637 @@
+package server;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 文件内容搜索
+ * 在服务器上并行扫描子树中的文件，只把匹配的行发回客户端。
+ * 文件以内存映射方式分段读取。所有搜索共用一个固定大小的线程池，每次搜索同时在扫描的文件数由自己的名额限制；
+ * 遍历和扫描都不在池中等待：没有名额时遍历暂停，结果队列满时扫描记下位置暂停，等名额释放或客户端取走结果后再继续，
+ * 因此客户端读取得慢时只有它自己的搜索停下来，不占用线程，也不影响其他 GREP 请求。
+ * 正则在可取消的字符序列上匹配，取消或单行回溯步数超限时中止，超长的行只匹配开头部分
+ */
+public class ContentSearcher {
+    public static final String LITERAL = "literal";
+    public static final String REGEX = "regex";
+
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_SNIPPET_BYTES = 200;
+    private static final int BINARY_SAMPLE = 8192;
+    private static final int MAX_REGEX_LINE_BYTES = 1024 * 1024; // 正则只匹配每行的前1MB
+    private static final long MIN_REGEX_STEPS = 1_000_000; // 单行匹配读取字符次数的下限，超过上限视为不匹配
+    private static final int REGEX_STEPS_PER_CHAR = 100;
+    private static final int PENDING_FILES_PER_THREAD = 4;
+    private static final int RESULT_QUEUE_SIZE = 1024;
+
+    private final int parallelism;
+    private final ForkJoinPool pool;
+    private final Set<Search> active = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * 构造函数
+     * @param parallelism 扫描线程数，所有搜索共用
+     */
+    public ContentSearcher(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.pool = new ForkJoinPool(this.parallelism, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("grep-" + threadCount.incrementAndGet());
+            return thread;
+        }, null, true);
+    }
+
+    /**
+     * 取消所有进行中的搜索并停止线程池
+     */
+    public void shutdown() {
+        closed = true;
+        for (Search search : active) {
+            search.cancel();
+        }
+        pool.shutdownNow();
+    }
+
+    /**
+     * 开始一次搜索，匹配结果通过返回的搜索对象逐条取出
+     * @param mode literal/regex
+     * @param pattern 字面量或正则表达式
+     * @param directory 搜索的目录
+     * @param fileGlob 文件名通配过滤，含"/"时匹配相对路径，空串表示所有文件
+     * @param limit 最多返回的匹配行数
+     * @param volumes 存储卷，用于生成协议路径和遍历子树中的挂载卷
+     * @return 搜索
+     */
+    public Search start(String mode, String pattern, Path directory, String fileGlob, int limit, StorageVolumes volumes) {
+        Search search = new Search(mode, pattern, fileGlob, limit, volumes);
+        active.add(search);
+        if (closed) {
+            search.cancel();
+        }
+        search.start(directory);
+        return search;
+    }
+
+    /**
+     * 一次搜索
+     * 扫描任务把结果放入有界队列，由处理连接的线程取出发送；队列满时扫描任务记下读到的位置放入暂停列表，
+     * 处理连接的线程取出结果后再把它们提交回线程池。
+     * 遍历最多领先扫描 PENDING_FILES_PER_THREAD 个文件/线程，暂停的扫描也占着名额，最后一个结束的任务标记搜索结束
+     */
+    public class Search {
+        private static final Match END = new Match(null, 0, null);
+
+        private final byte[] literal;
+        private final Pattern regex;
+        private final Pattern glob;
+        private final boolean globMatchesPath;
+        private final int limit;
+        private final StorageVolumes volumes;
+        private final BlockingQueue<Match> results = new ArrayBlockingQueue<>(RESULT_QUEUE_SIZE);
+        private final AtomicInteger found = new AtomicInteger();
+        private final AtomicLong filesScanned = new AtomicLong();
+        private final AtomicLong bytesScanned = new AtomicLong();
+        private final Semaphore pendingFiles;
+        /** 未结束的任务数，遍历本身算一个 */
+        private final AtomicInteger tasks = new AtomicInteger(1);
+        /** 因结果队列满而暂停的扫描 */
+        private final Queue<FileScan> stalled = new ConcurrentLinkedQueue<>();
+        /** 遍历因没有名额而暂停，释放名额的一方负责把它提交回线程池 */
+        private final AtomicBoolean walkPaused = new AtomicBoolean();
+        /** 待遍历的目录和待扫描的文件，只由遍历任务访问，同一时刻最多一个遍历任务 */
+        private final Deque<Path> directories = new ArrayDeque<>();
+        private final Deque<Path> files = new ArrayDeque<>();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile boolean cancelled;
+
+        private Search(String mode, String pattern, String fileGlob, int limit, StorageVolumes volumes) {
+            this.literal = REGEX.equals(mode) ? null : pattern.getBytes(StandardCharsets.UTF_8);
+            this.regex = REGEX.equals(mode) ? Pattern.compile(pattern) : null;
+            this.glob = fileGlob.isEmpty() ? null : FileNameIndex.compileGlob(fileGlob);
+            this.globMatchesPath = fileGlob.indexOf('/') >= 0;
+            this.limit = limit;
+            this.volumes = volumes;
+            this.pendingFiles = new Semaphore(parallelism * PENDING_FILES_PER_THREAD);
+        }
+
+        /**
+         * 取下一条匹配，最多等待指定时间
+         * @return 匹配，超时或搜索结束时返回null，用isFinished区分
+         */
+        public Match poll(long timeout, TimeUnit unit) throws InterruptedException {
+            resumeStalled();
+            Match match = results.poll(timeout, unit);
+            return match == END ? null : match;
+        }
+
+        /**
+         * @return 搜索已结束且所有结果都已取出
+         */
+        public boolean isFinished() {
+            return finished.get() && results.isEmpty();
+        }
+
+        /**
+         * 停止搜索，客户端断开时调用
+         */
+        public void cancel() {
+            cancelled = true;
+            stalled.clear();
+            finish();
+            results.clear();
+        }
+
+        public int getFound() {
+            return Math.min(found.get(), limit);
+        }
+
+        public long getFilesScanned() {
+            return filesScanned.get();
+        }
+
+        public long getBytesScanned() {
+            return bytesScanned.get();
+        }
+
+        private boolean isDone() {
+            return cancelled || found.get() >= limit;
+        }
+
+        private void start(Path directory) {
+            directories.push(directory);
+            for (StorageVolumes.Volume volume : volumes.mountedUnder(directory)) {
+                directories.add(volume.getDirectory());
+            }
+            if (!execute(this::walk)) {
+                taskDone();
+            }
+        }
+
+        /**
+         * @return 是否已提交，线程池已停止时返回false
+         */
+        private boolean execute(Runnable task) {
+            try {
+                pool.execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                cancelled = true;
+                return false;
+            }
+        }
+
+        /**
+         * 一个任务结束，最后一个结束的任务标记搜索结束
+         */
+        private void taskDone() {
+            if (tasks.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (finished.compareAndSet(false, true)) {
+                active.remove(this);
+                // 唤醒等待结果的线程，队列满时不需要唤醒
+                results.offer(END);
+            }
+        }
+
+        /**
+         * 遍历子树，找到的文件立即提交扫描；名额用完时暂停，由释放名额的扫描任务重新提交
+         */
+        private void walk() {
+            while (!isDone()) {
+                if (!files.isEmpty()) {
+                    if (!pendingFiles.tryAcquire()) {
+                        walkPaused.set(true);
+                        // 设置标记之前名额可能已经释放，再检查一次，避免没有人重新提交遍历
+                        if (pendingFiles.availablePermits() > 0 && walkPaused.compareAndSet(true, false)) {
+                            continue;
+                        }
+                        return;
+                    }
+                    tasks.incrementAndGet();
+                    FileScan scan = new FileScan(files.poll());
+                    if (!execute(() -> runScan(scan))) {
+                        pendingFiles.release();
+                        taskDone();
+                    }
+                    continue;
+                }
+                Path directory = directories.poll();
+                if (directory == null) {
+                    break;
+                }
+                list(directory);
+            }
+            taskDone();
+        }
+
+        /**
+         * 列出一个目录，子目录放回遍历列表，符合条件的文件放入待扫描列表；不跟随符号链接
+         */
+        private void list(Path directory) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path child : children) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        // 深度优先，子目录排在尚未遍历的兄弟目录之前
+                        directories.push(child);
+                    } else if (attributes.isRegularFile() && attributes.size() > 0 && !HashIndex.isTemporary(child) && acceptsFile(child)) {
+                        files.add(child);
+                    }
+                }
+            } catch (IOException e) {
+                // 目录可能在搜索期间被删除或没有权限
+            }
+        }
+
+        /**
+         * 执行或继续一个文件的扫描，结果队列满时放入暂停列表
+         */
+        private void runScan(FileScan scan) {
+            boolean complete = true;
+            try {
+                complete = cancelled || scanFile(scan);
+            } finally {
+                if (!complete) {
+                    stalled.add(scan);
+                    // 暂停之前客户端可能已经取空了队列，此时由这里继续
+                    resumeStalled();
+                } else {
+                    scanDone();
+                }
+            }
+        }
+
+        /**
+         * 一个文件扫描结束，释放名额，遍历因没有名额而暂停时把它提交回线程池
+         */
+        private void scanDone() {
+            pendingFiles.release();
+            if (walkPaused.compareAndSet(true, false) && !execute(this::walk)) {
+                taskDone();
+            }
+            taskDone();
+        }
+
+        /**
+         * 结果队列空出一半以上时把暂停的扫描提交回线程池
+         */
+        private void resumeStalled() {
+            if (stalled.isEmpty() || results.remainingCapacity() < RESULT_QUEUE_SIZE / 2) {
+                return;
+            }
+            FileScan scan;
+            while ((scan = stalled.poll()) != null) {
+                FileScan resumed = scan;
+                if (!execute(() -> runScan(resumed))) {
+                    pendingFiles.release();
+                    taskDone();
+                }
+            }
+        }
+
+        private boolean acceptsFile(Path file) {
+            if (glob == null) {
+                return true;
+            }
+            String name = globMatchesPath ? volumes.relativize(file) : file.getFileName().toString();
+            return glob.matcher(name).matches();
+        }
+
+        /**
+         * 按行扫描一个文件，每次映射一个窗口，窗口在最后一个换行处结束，剩余部分归入下一个窗口
+         * @return 是否已扫描完，结果队列满而暂停时返回false，位置记在scan中
+         */
+        private boolean scanFile(FileScan scan) {
+            // 上次暂停时没能放入队列的匹配先放入，即使搜索已达到上限，它也在上限之内
+            if (scan.pending != null) {
+                if (!results.offer(scan.pending)) {
+                    return false;
+                }
+                scan.pending = null;
+            }
+            try (FileChannel channel = FileChannel.open(scan.file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                while (scan.position < size && !isDone()) {
+                    int length = (int) Math.min(WINDOW_SIZE, size - scan.position);
+                    MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, scan.position, length);
+                    if (!scan.checkedBinary) {
+                        scan.checkedBinary = true;
+                        if (isBinary(window)) {
+                            return true;
+                        }
+                    }
+                    int end = length;
+                    if (scan.position + length < size) {
+                        int lastNewline = lastIndexOf(window, (byte) '\n', length);
+                        if (lastNewline >= 0) {
+                            end = lastNewline + 1;
+                        }
+                    }
+                    int scanned = scanWindow(scan, window, end);
+                    scan.position += scanned;
+                    bytesScanned.addAndGet(scanned);
+                    if (scan.pending != null) {
+                        return false;
+                    }
+                }
+                filesScanned.incrementAndGet();
+            } catch (IOException e) {
+                // 文件可能在搜索期间被删除
+            }
+            return true;
+        }
+
+        /**
+         * @return 已扫描的字节数，结果队列满时停在匹配行之后，匹配记在scan.pending中
+         */
+        private int scanWindow(FileScan scan, MappedByteBuffer window, int end) {
+            Matcher matcher = regex != null ? regex.matcher("") : null;
+            ByteSequence asciiLine = regex != null ? new ByteSequence(window) : null;
+            Cancellable guarded = regex != null ? new Cancellable() : null;
+            int lineStart = 0;
+            while (lineStart < end && !isDone()) {
+                int lineEnd = lineStart;
+                boolean ascii = true;
+                byte value;
+                while (lineEnd < end && (value = window.get(lineEnd)) != '\n') {
+                    if (value < 0) {
+                        ascii = false;
+                    }
+                    lineEnd++;
+                }
+                int matchAt;
+                if (literal != null) {
+                    matchAt = indexOf(window, literal, lineStart, lineEnd);
+                } else {
+                    int matchEnd = Math.min(lineEnd, lineStart + MAX_REGEX_LINE_BYTES);
+                    try {
+                        if (ascii) {
+                            // 纯ASCII的行直接在映射内存上匹配，不必解码
+                            matcher.reset(guarded.wrap(asciiLine.range(lineStart, matchEnd)));
+                            matchAt = matcher.find() ? lineStart + matcher.start() : -1;
+                        } else {
+                            String line = decode(window, lineStart, matchEnd);
+                            matcher.reset(guarded.wrap(line));
+                            matchAt = matcher.find() ? lineStart + line.substring(0, matcher.start()).getBytes(StandardCharsets.UTF_8).length : -1;
+                        }
+                    } catch (MatchAborted | StackOverflowError e) {
+                        // 已取消，或这一行回溯过多、递归过深，视为不匹配
+                        matchAt = -1;
+                    }
+                }
+                boolean queued = matchAt < 0 || emit(scan, snippet(window, lineStart, lineEnd, matchAt));
+                scan.lineNumber++;
+                lineStart = lineEnd + 1;
+                if (!queued) {
+                    break;
+                }
+            }
+            return Math.min(lineStart, end);
+        }
+
+        /**
+         * 截取匹配位置附近的内容，避免超长行占满结果
+         */
+        private static String snippet(MappedByteBuffer window, int lineStart, int lineEnd, int matchAt) {
+            int from = lineStart;
+            int to = lineEnd;
+            if (to > from && window.get(to - 1) == '\r') {
+                to--;
+            }
+            if (to - from > MAX_SNIPPET_BYTES) {
+                from = Math.max(lineStart, matchAt - MAX_SNIPPET_BYTES / 4);
+                to = Math.min(to, from + MAX_SNIPPET_BYTES);
+            }
+            return decode(window, from, to).replace('\t', ' ').replace('\r', ' ');
+        }
+
+        /**
+         * 把当前行的匹配放入结果队列，不等待
+         * @return 是否不必暂停，队列满时返回false，匹配留在scan.pending中
+         */
+        private boolean emit(FileScan scan, String text) {
+            if (found.incrementAndGet() > limit) {
+                return true;
+            }
+            Match match = new Match(volumes.toProtocolPath(scan.file), scan.lineNumber, text);
+            if (!results.offer(match)) {
+                scan.pending = match;
+                return false;
+            }
+            return true;
+        }
+
+        private static boolean isBinary(MappedByteBuffer window) {
+            int sample = Math.min(window.limit(), BINARY_SAMPLE);
+            for (int i = 0; i < sample; i++) {
+                if (window.get(i) == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String decode(MappedByteBuffer window, int from, int to) {
+            byte[] bytes = new byte[to - from];
+            window.get(from, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static int indexOf(MappedByteBuffer window, byte[] needle, int from, int to) {
+            byte first = needle[0];
+            int max = to - needle.length;
+            for (int i = from; i <= max; i++) {
+                if (window.get(i) != first) {
+                    continue;
+                }
+                int j = 1;
+                while (j < needle.length && window.get(i + j) == needle[j]) {
+                    j++;
+                }
+                if (j == needle.length) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static int lastIndexOf(MappedByteBuffer window, byte value, int to) {
+            for (int i = to - 1; i >= 0; i--) {
+                if (window.get(i) == value) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * 一个文件的扫描进度，暂停后从这里继续
+         */
+        private class FileScan {
+            private final Path file;
+            private long position;
+            private long lineNumber = 1;
+            private boolean checkedBinary;
+            /** 暂停时没能放入队列的匹配 */
+            private Match pending;
+
+            FileScan(Path file) {
+                this.file = file;
+            }
+        }
+
+        /**
+         * 正则读取字符时计数的包装：每读取一批字符检查一次搜索是否已取消、单行步数是否超限
+         */
+        private class Cancellable implements CharSequence {
+            private CharSequence text;
+            private long steps;
+            private long budget;
+
+            CharSequence wrap(CharSequence text) {
+                this.text = text;
+                this.steps = 0;
+                this.budget = Math.max(MIN_REGEX_STEPS, (long) text.length() * REGEX_STEPS_PER_CHAR);
+                return this;
+            }
+
+            @Override
+            public int length() {
+                return text.length();
+            }
+
+            @Override
+            public char charAt(int index) {
+                if ((++steps & 0xfff) == 0 && (cancelled || steps > budget)) {
+                    throw MatchAborted.INSTANCE;
+                }
+                return text.charAt(index);
+            }
+
+            @Override
+            public CharSequence subSequence(int start, int end) {
+                return text.subSequence(start, end);
+            }
+
+            @Override
+            public String toString() {
+                return text.toString();
+            }
+        }
+    }
+
+    /**
+     * 中止正在进行的正则匹配，不带堆栈
+     */
+    private static class MatchAborted extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        static final MatchAborted INSTANCE = new MatchAborted();
+
+        private MatchAborted() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * 以字符序列形式查看映射内存中的一段ASCII字节，供正则直接匹配
+     */
+    private static class ByteSequence implements CharSequence {
+        private final MappedByteBuffer buffer;
+        private int from;
+        private int to;
+
+        ByteSequence(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        ByteSequence range(int from, int to) {
+            this.from = from;
+            this.to = to;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return to - from;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) buffer.get(from + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new ByteSequence(buffer).range(from + start, from + end);
+        }
+
+        @Override
+        public String toString() {
+            return Search.decode(buffer, from, to);
+        }
+    }
+
+    /**
+     * 一条匹配
+     */
+    public static class Match {
+        private final String path;
+        private final long lineNumber;
+        private final String text;
+
+        Match(String path, long lineNumber, String text) {
+            this.path = path;
+            this.lineNumber = lineNumber;
+            this.text = text;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 服务器端复制
+ * 复制完全在服务器上进行，数据不经过网络。文件内容用 FileChannel.transferTo 分段复制，
+ * 由内核直接在两个文件之间传送，文件系统支持复制卸载时由其完成；每段在目标所在卷的I/O线程中执行。
+ * 每次复制是一个作业，可以按编号查询进度或取消。文件先写到同目录的临时文件，完整后才移到目标位置；
+ * 已存在的目标文件不会被覆盖；作业失败或取消时只删除作业自己创建的文件和目录，复制期间其他客户端放入的内容保留。
+ * 打包存储的文件在打包存储中复制，副本同样打包
+ */
+public class CopyJobs {
+    public static final String RUNNING = "RUNNING";
+    public static final String DONE = "DONE";
+    public static final String FAILED = "FAILED";
+    public static final String CANCELLED = "CANCELLED";
+
+    /** 每次 transferTo 的最大字节数，也是进度和取消的粒度 */
+    private static final long SLICE_SIZE = 16L * 1024 * 1024;
+    /** 保留的已结束作业数 */
+    private static final int MAX_FINISHED_JOBS = 100;
+
+    private final StorageVolumes volumes;
+    private final ListingCache listingCache;
+    private final ChangeNotifier changeNotifier;
+    private final HashIndex hashIndex;
+    private final FileNameIndex fileNameIndex;
+    private final DiskUsage diskUsage;
+    private final PackStore packStore;
+    private final ExecutorService executor;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, Job> jobs = new LinkedHashMap<>();
+
+    /**
+     * 构造函数
+     * @param server 所属服务器，复制后需要更新它的各项索引
+     * @param threads 同时执行的作业数
+     */
+    public CopyJobs(FileServer server, int threads) {
+        this.volumes = server.getVolumes();
+        this.listingCache = server.getListingCache();
+        this.changeNotifier = server.getChangeNotifier();
+        this.hashIndex = server.getHashIndex();
+        this.fileNameIndex = server.getFileNameIndex();
+        this.diskUsage = server.getDiskUsage();
+        this.packStore = server.getPackStore();
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "copy-job-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 开始复制，调用方已确认源路径存在、目标路径不存在且不在源目录之内
+     * @param source 源文件或目录
+     * @param target 目标路径
+     * @return 作业
+     */
+    public Job start(Path source, Path target) {
+        Job job = new Job(nextId.incrementAndGet(), source, target);
+        synchronized (jobs) {
+            jobs.put(job.id, job);
+            trimFinished();
+        }
+        executor.execute(job::run);
+        return job;
+    }
+
+    /**
+     * 查找作业
+     * @return 作业，不存在或已被清理时返回null
+     */
+    public Job get(long id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    /**
+     * 所有保留的作业，按开始顺序
+     */
+    public List<Job> list() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs.values());
+        }
+    }
+
+    /**
+     * 取消所有作业并等待它们清理
+     */
+    public void shutdown() {
+        for (Job job : list()) {
+            job.cancel();
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void trimFinished() {
+        int finished = 0;
+        for (Job job : jobs.values()) {
+            if (job.isFinished()) {
+                finished++;
+            }
+        }
+        Iterator<Job> iterator = jobs.values().iterator();
+        while (finished > MAX_FINISHED_JOBS && iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+                finished--;
+            }
+        }
+    }
+
+    /**
+     * 一个复制作业
+     */
+    public class Job {
+        private final long id;
+        private final Path source;
+        private final Path target;
+        private final String sourcePath;
+        private final String targetPath;
+        private final long startedAt = System.currentTimeMillis();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final AtomicLong copiedBytes = new AtomicLong();
+        private final AtomicInteger copiedFiles = new AtomicInteger();
+        private volatile long totalBytes = -1;
+        private volatile int totalFiles = -1;
+        private volatile String state = RUNNING;
+        private volatile String error = "";
+        private volatile long finishedAt;
+        private volatile boolean cancelled;
+        /** 作业创建的路径，按创建顺序；只由作业线程访问 */
+        private final List<Path> created = new ArrayList<>();
+        private final Set<Path> createdPacked = new HashSet<>();
+
+        private Job(long id, Path source, Path target) {
+            this.id = id;
+            this.source = source.toAbsolutePath().normalize();
+            this.target = target.toAbsolutePath().normalize();
+            this.sourcePath = volumes.toProtocolPath(this.source);
+            this.targetPath = volumes.toProtocolPath(this.target);
+        }
+
+        private void run() {
+            try {
+                List<Path> directories = new ArrayList<>();
+                List<Path> files = new ArrayList<>();
+                List<Path> packed = new ArrayList<>();
+                collect(directories, files, packed);
+                for (Path directory : directories) {
+                    checkCancelled();
+                    Path copy = map(directory);
+                    boolean changing = diskUsage.beginChange();
+                    try {
+                        Files.createDirectory(copy);
+                        created.add(copy);
+                        copyAttributes(directory, copy);
+                        published(copy, true);
+                    } finally {
+                        diskUsage.endChange(changing);
+                    }
+                }
+                for (Path file : files) {
+                    checkCancelled();
+                    copyFile(file, map(file));
+                    copiedFiles.incrementAndGet();
+                }
+                for (Path file : packed) {
+                    checkCancelled();
+                    copyPacked(file, map(file));
+                    copiedFiles.incrementAndGet();
+                }
+                finish(DONE, "");
+            } catch (IOException e) {
+                rollback();
+                finish(cancelled ? CANCELLED : FAILED, cancelled ? "" : e.getMessage());
+            } catch (RuntimeException e) {
+                rollback();
+                finish(FAILED, String.valueOf(e));
+            }
+        }
+
+        /**
+         * 列出要复制的目录和文件并统计总量，目录在其内容之前
+         */
+        private void collect(List<Path> directories, List<Path> files, List<Path> packed) throws IOException {
+            long[] bytes = new long[1];
+            packStore.forEach(source, (file, entry) -> {
+                packed.add(file);
+                bytes[0] += entry.getLength();
+            });
+            if (!Files.exists(source)) {
+                // 源是打包存储的单个文件
+                totalBytes = bytes[0];
+                totalFiles = packed.size();
+                return;
+            }
+            Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                    checkCancelled();
+                    directories.add(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    // 其他传输的临时文件不复制；符号链接等特殊文件也不复制
+                    if (attributes.isRegularFile() && !HashIndex.isTemporary(file)) {
+                        files.add(file);
+                        bytes[0] += attributes.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            totalBytes = bytes[0];
+            totalFiles = files.size() + packed.size();
+        }
+
+        /**
+         * 复制一个文件：分段 transferTo 到临时文件，复制权限和修改时间后移到目标位置
+         */
+        private void copyFile(Path from, Path to) throws IOException {
+            Path tempPath = to.resolveSibling("." + to.getFileName() + ".copy-" + System.nanoTime());
+            StorageVolumes.Volume volume = volumes.volumeOf(to);
+            if (volume == null) {
+                volume = volumes.getRootVolume();
+            }
+            boolean moved = false;
+            try {
+                try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    long size = in.size();
+                    long position = 0;
+                    while (position < size) {
+                        checkCancelled();
+                        long offset = position;
+                        long n = volume.call(() -> in.transferTo(offset, Math.min(SLICE_SIZE, size - offset), out));
+                        if (n <= 0) {
+                            // 源文件在复制期间被截断
+                            break;
+                        }
+                        position += n;
+                        copiedBytes.addAndGet(n);
+                    }
+                }
+                copyAttributes(from, tempPath);
+                boolean changing = diskUsage.beginChange();
+                try {
+                    moveIfAbsent(tempPath, to);
+                    moved = true;
+                    created.add(to);
+                    // 内容和修改时间都与源文件相同，源文件已有的哈希记录对副本同样有效
+                    hashIndex.copied(from, to);
+                    published(to, false);
+                } finally {
+                    diskUsage.endChange(changing);
+                }
+            } finally {
+                if (!moved) {
+                    Files.deleteIfExists(tempPath);
+                }
+            }
+        }
+
+        /**
+         * 复制一个打包存储的文件，内容追加到打包存储，哈希和修改时间沿用源文件的
+         */
+        private void copyPacked(Path from, Path to) throws IOException {
+            PackStore.Entry entry = packStore.get(from);
+            byte[] data = packStore.read(from);
+            if (entry == null || data == null) {
+                throw new IOException("源文件在复制期间被删除: " + volumes.toProtocolPath(from));
+            }
+            if (Files.exists(to) || packStore.get(to) != null) {
+                throw new FileAlreadyExistsException(volumes.toProtocolPath(to), null, "目标文件已存在");
+            }
+            boolean changing = diskUsage.beginChange();
+            try {
+                packStore.put(to, ByteBuffer.wrap(data), entry.getLastModified(), entry.getHash());
+                created.add(to);
+                createdPacked.add(to);
+                copiedBytes.addAndGet(data.length);
+                published(to, false);
+            } finally {
+                diskUsage.endChange(changing);
+            }
+        }
+
+        private void published(Path created, boolean directory) throws IOException {
+            diskUsage.added(created);
+            listingCache.invalidate(created);
+            fileNameIndex.add(created, directory);
+            changeNotifier.publish(ChangeNotifier.CREATED, created);
+        }
+
+        /**
+         * 把完整的临时文件移到目标位置，目标在复制期间被其他客户端创建时不覆盖它
+         * 以硬链接实现不覆盖的原子移动，文件系统不支持硬链接时退回到不带替换的移动
+         */
+        private void moveIfAbsent(Path tempPath, Path to) throws IOException {
+            if (packStore.get(to) != null) {
+                throw new FileAlreadyExistsException(volumes.toProtocolPath(to), null, "目标文件已存在");
+            }
+            try {
+                Files.createLink(to, tempPath);
+            } catch (FileAlreadyExistsException e) {
+                throw new FileAlreadyExistsException(volumes.toProtocolPath(to), null, "目标文件已存在");
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.move(tempPath, to);
+                return;
+            }
+            Files.delete(tempPath);
+        }
+
+        /**
+         * 按创建的逆序删除作业创建的文件和目录，目录中有其他客户端放入的内容时保留
+         */
+        private void rollback() {
+            boolean changing = diskUsage.beginChange();
+            try {
+                for (int i = created.size() - 1; i >= 0; i--) {
+                    Path path = created.get(i);
+                    try {
+                        if (createdPacked.contains(path)) {
+                            diskUsage.removed(path);
+                            packStore.remove(path);
+                        } else {
+                            if (Files.isDirectory(path) && !packStore.list(path).isEmpty()) {
+                                // 其他客户端在复制期间放入了打包的文件
+                                continue;
+                            }
+                            diskUsage.removed(path);
+                            try {
+                                Files.delete(path);
+                            } catch (IOException e) {
+                                diskUsage.added(path);
+                                throw e;
+                            }
+                        }
+                    } catch (DirectoryNotEmptyException e) {
+                        // 其他客户端在复制期间放入了文件
+                        continue;
+                    } catch (IOException e) {
+                        System.err.println("清理未完成的复制失败: " + path + " - " + e.getMessage());
+                        continue;
+                    }
+                    listingCache.invalidate(path);
+                    hashIndex.remove(path);
+                    fileNameIndex.remove(path);
+                    changeNotifier.publish(ChangeNotifier.DELETED, path);
+                }
+                created.clear();
+                createdPacked.clear();
+            } finally {
+                diskUsage.endChange(changing);
+            }
+        }
+
+        private void copyAttributes(Path from, Path to) throws IOException {
+            PosixFileAttributeView view = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+            if (view != null) {
+                view.setPermissions(Files.getPosixFilePermissions(from));
+            }
+            Files.setLastModifiedTime(to, Files.getLastModifiedTime(from));
+        }
+
+        private Path map(Path path) {
+            return target.resolve(source.relativize(path).toString());
+        }
+
+        private void checkCancelled() throws IOException {
+            if (cancelled || Thread.currentThread().isInterrupted()) {
+                cancelled = true;
+                throw new IOException("复制已取消");
+            }
+        }
+
+        private void finish(String result, String message) {
+            error = message == null ? "" : message;
+            finishedAt = System.currentTimeMillis();
+            state = result;
+            finished.countDown();
+            System.out.println("复制" + (DONE.equals(result) ? "完成" : CANCELLED.equals(result) ? "已取消" : "失败: " + error)
+                    + ": " + sourcePath + " -> " + targetPath + ", " + copiedFiles.get() + " 个文件, " + copiedBytes.get() + " 字节");
+        }
+
+        /**
+         * 请求取消，作业在当前分段完成后停止并删除已复制的部分
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * 等待作业结束
+         * @return 作业已结束时返回true
+         */
+        public boolean await(long timeoutMillis) throws InterruptedException {
+            return finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public boolean isFinished() {
+            return finished.getCount() == 0;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public String getSourcePath() {
+            return sourcePath;
+        }
+
+        public String getTargetPath() {
+            return targetPath;
+        }
+
+        public long getCopiedBytes() {
+            return copiedBytes.get();
+        }
+
+        /**
+         * 总字节数，统计完成前为-1
+         */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public int getCopiedFiles() {
+            return copiedFiles.get();
+        }
+
+        /**
+         * 总文件数，统计完成前为-1
+         */
+        public int getTotalFiles() {
+            return totalFiles;
+        }
+
+        /**
+         * 已运行的时长，结束后为总用时
+         * @return 毫秒
+         */
+        public long getElapsedMillis() {
+            return (isFinished() ? finishedAt : System.currentTimeMillis()) - startedAt;
+        }
+    }
+}
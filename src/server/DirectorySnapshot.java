@@ -0,0 +1,154 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 目录快照
+ * 以列式数组保存一次目录扫描的结果(名称、类型、大小、修改时间)，
+ * 排序和过滤只生成下标数组，分页读取时不再访问文件系统
+ */
+public class DirectorySnapshot {
+    private static final int MAX_VIEWS = 4;
+
+    private final long createdAt = System.nanoTime();
+    private String[] names;
+    private boolean[] directories;
+    private long[] sizes;
+    private long[] modifiedTimes;
+    private int count;
+    private final Map<String, int[]> views = new HashMap<>();
+
+    private DirectorySnapshot(int capacity) {
+        names = new String[capacity];
+        directories = new boolean[capacity];
+        sizes = new long[capacity];
+        modifiedTimes = new long[capacity];
+    }
+
+    /**
+     * 扫描目录，每个条目只读取一次属性，并合并其中打包存储的文件
+     * @param directory 目录
+     * @param packStore 打包存储，为null时只扫描文件系统
+     * @return 快照
+     */
+    public static DirectorySnapshot scan(Path directory, PackStore packStore) throws IOException {
+        DirectorySnapshot snapshot = new DirectorySnapshot(64);
+        Map<String, PackStore.Entry> packed = packStore == null ? null : packStore.list(directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path entry : stream) {
+                if (packed != null && !packed.isEmpty()) {
+                    // 同名时以文件系统中的为准
+                    packed.remove(entry.getFileName().toString());
+                }
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // 扫描期间被删除的条目直接跳过
+                    continue;
+                }
+                snapshot.add(entry.getFileName().toString(), attributes.isDirectory(),
+                        attributes.isDirectory() ? 0 : attributes.size(), attributes.lastModifiedTime().toMillis());
+            }
+        }
+        if (packed != null) {
+            for (Map.Entry<String, PackStore.Entry> file : packed.entrySet()) {
+                snapshot.add(file.getKey(), false, file.getValue().getLength(), file.getValue().getLastModified());
+            }
+        }
+        return snapshot;
+    }
+
+    private void add(String name, boolean directory, long size, long modifiedTime) {
+        if (count == names.length) {
+            int capacity = count * 2;
+            names = Arrays.copyOf(names, capacity);
+            directories = Arrays.copyOf(directories, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            modifiedTimes = Arrays.copyOf(modifiedTimes, capacity);
+        }
+        names[count] = name;
+        directories[count] = directory;
+        sizes[count] = size;
+        modifiedTimes[count] = modifiedTime;
+        count++;
+    }
+
+    /**
+     * 快照创建以来经过的时间
+     * @return 纳秒
+     */
+    public long getAgeNanos() {
+        return System.nanoTime() - createdAt;
+    }
+
+    /**
+     * 获取排序和过滤后的下标视图，结果按参数缓存
+     * 目录总是排在文件之前
+     * @param sort 排序字段 name/size/mtime，前缀"-"表示降序
+     * @param filter 名称过滤(不区分大小写的子串)，空串表示不过滤
+     * @return 条目下标数组
+     */
+    public synchronized int[] view(String sort, String filter) {
+        String key = sort + "|" + filter;
+        int[] view = views.get(key);
+        if (view != null) {
+            return view;
+        }
+
+        String needle = filter.toLowerCase();
+        Integer[] indexes = new Integer[count];
+        int matched = 0;
+        for (int i = 0; i < count; i++) {
+            if (needle.isEmpty() || names[i].toLowerCase().contains(needle)) {
+                indexes[matched++] = i;
+            }
+        }
+
+        boolean descending = sort.startsWith("-");
+        Comparator<Integer> comparator;
+        switch (descending ? sort.substring(1) : sort) {
+            case "size":
+                comparator = Comparator.comparingLong(i -> sizes[i]);
+                break;
+            case "mtime":
+                comparator = Comparator.comparingLong(i -> modifiedTimes[i]);
+                break;
+            default:
+                comparator = (a, b) -> String.CASE_INSENSITIVE_ORDER.compare(names[a], names[b]);
+                break;
+        }
+        if (descending) {
+            comparator = comparator.reversed();
+        }
+        Comparator<Integer> directoriesFirst = (a, b) -> Boolean.compare(directories[b], directories[a]);
+        Arrays.sort(indexes, 0, matched, directoriesFirst.thenComparing(comparator));
+
+        view = new int[matched];
+        for (int i = 0; i < matched; i++) {
+            view[i] = indexes[i];
+        }
+        if (views.size() >= MAX_VIEWS) {
+            views.clear();
+        }
+        views.put(key, view);
+        return view;
+    }
+
+    /**
+     * 格式化一个条目：名称\t类型(D/F)\t大小\t修改时间(毫秒)
+     * 名称中的制表符和换行替换为空格，保证一行一个条目
+     */
+    public String format(int index) {
+        String name = names[index].replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+        return name + "\t" + (directories[index] ? "D" : "F") + "\t" + sizes[index] + "\t" + modifiedTimes[index];
+    }
+}
@@ -0,0 +1,691 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 磁盘用量统计与目录配额
+ * 每个目录保存整个子树的字节数、文件数和子目录数，键为协议路径(/、/a/b)，挂载卷计入挂载点及其上级目录。
+ * 启动时并行扫描所有卷建立，之后由本服务器的写命令增量维护：变化只沿父目录链向上累加，查询一个目录只需一次查表。
+ * 配额按协议路径设置，上传在接收数据之前预留声明的字节数，任一上级目录的已用与预留之和将超过配额时拒绝；
+ * 复制和移动在开始前按源的大小检查。初始扫描在后台进行，完成之前用量不完整，不检查配额。
+ * 扫描期间的写命令不累加变化量(扫描可能已经或尚未经过该目录)，只记下所在目录，
+ * 所有卷合并后按磁盘上的现状重新统计这些目录。写命令从改动磁盘到调用统计之间用 beginChange/endChange 包围，
+ * 最后一轮核对等待进行中的改动完成后进行，之后的改动照常累加，不会有改动落在两种方式之间
+ */
+public class DiskUsage {
+    /** 不阻塞写命令的核对轮数上限，之后的最后一轮期间写命令等待核对完成 */
+    private static final int MAX_RECONCILE_ROUNDS = 8;
+
+    private final StorageVolumes volumes;
+    private final PackStore packStore;
+    private final int parallelism;
+    private final NavigableMap<String, Usage> directories = new TreeMap<>();
+    private final Map<String, Long> quotas = new HashMap<>();
+    private final Map<String, Long> reserved = new HashMap<>();
+    /** 初始扫描完成之前被写命令改动的目录 */
+    private Set<String> dirty = new HashSet<>();
+    /** 初始扫描完成之前，写命令的改动持有读锁，最后一轮核对持有写锁 */
+    private final ReadWriteLock changes = new ReentrantReadWriteLock();
+    private volatile boolean ready;
+    private volatile boolean closed;
+
+    /**
+     * 构造函数
+     * @param volumes 存储卷，所有卷组成一棵树
+     * @param packStore 打包存储，其中的文件计入所在目录
+     * @param config 服务器配置，配额格式为 路径=大小,路径=大小
+     * @throws IllegalArgumentException 配额配置格式错误
+     */
+    public DiskUsage(StorageVolumes volumes, PackStore packStore, ServerConfig config) {
+        this.volumes = volumes;
+        this.packStore = packStore;
+        this.parallelism = Math.max(1, config.getDiskUsageParallelism());
+        String spec = config.getQuotas();
+        if (spec != null && !spec.trim().isEmpty()) {
+            for (String entry : spec.split(",")) {
+                int eq = entry.lastIndexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException("配额配置格式应为 路径=大小: " + entry.trim());
+                }
+                long limit;
+                try {
+                    limit = ServerConfig.parseSize(entry.substring(eq + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("无效的配额大小: " + entry.trim());
+                }
+                quotas.put(normalize(entry.substring(0, eq).trim()), limit);
+            }
+        }
+    }
+
+    /**
+     * 在后台线程中扫描，服务器无需等待统计完成即可接受连接
+     */
+    public void scanInBackground() {
+        Thread thread = new Thread(() -> {
+            try {
+                scan();
+            } catch (RuntimeException e) {
+                System.err.println("统计磁盘用量失败，配额不会生效: " + e.getMessage());
+            }
+        }, "disk-usage-scan");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * 停止进行中的初始扫描，服务器关闭时调用；扫描未完成时统计保持未就绪
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * 并行扫描所有卷建立统计，再核对扫描期间被改动的目录
+     */
+    public void scan() {
+        long start = System.nanoTime();
+        List<StorageVolumes.Volume> ordered = new ArrayList<>(volumes.getVolumes());
+        // 浅的卷先合并，深的卷合并时其挂载点所在的上级目录已经存在
+        ordered.sort(Comparator.comparingInt(volume -> volume.getPrefix().isEmpty() ? 0 : volume.getPrefix().split("/").length));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (StorageVolumes.Volume volume : ordered) {
+                Map<String, Usage> nodes = new ConcurrentHashMap<>();
+                Usage total = pool.invoke(new ScanTask(volume.getDirectory(), nodes));
+                if (closed) {
+                    return;
+                }
+                merge(volume.getDirectory(), nodes, total);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        if (!reconcile()) {
+            return;
+        }
+        Usage root = get(volumes.getRootVolume().getDirectory());
+        System.out.println("磁盘用量统计完成: " + root.getFiles() + " 个文件, " + root.getDirectories() + " 个目录, "
+                + root.getBytes() + " 字节, 耗时 " + (System.nanoTime() - start) / 1_000_000 + " 毫秒");
+    }
+
+    /**
+     * 开始改动磁盘，之后调用 added/removed/renamed/replaced，完成后必须调用 endChange
+     * 初始扫描完成之后不做任何事
+     * @return 传给 endChange 的标记
+     */
+    public boolean beginChange() {
+        if (ready) {
+            return false;
+        }
+        changes.readLock().lock();
+        return true;
+    }
+
+    /**
+     * 结束 beginChange 开始的改动
+     * @param began beginChange 的返回值
+     */
+    public void endChange(boolean began) {
+        if (began) {
+            changes.readLock().unlock();
+        }
+    }
+
+    /**
+     * 初始扫描是否已完成
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 目录子树的用量
+     * @param directory 目录
+     * @return 用量的副本，不是已统计的目录时返回null
+     */
+    public synchronized Usage get(Path directory) {
+        String key = volumes.toProtocolPath(directory);
+        Usage usage = key == null ? null : directories.get(key);
+        return usage == null ? null : usage.copy();
+    }
+
+    /**
+     * 文件或目录子树占用的字节数
+     * @return 字节数，路径不存在时为0
+     */
+    public long sizeOf(Path path) throws IOException {
+        Usage usage = get(path);
+        if (usage != null) {
+            return usage.bytes;
+        }
+        try {
+            return Math.max(fileSizeOf(path), 0);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 新建的文件或目录子树，已存在的部分不会重复计入
+     * @param path 已创建的路径
+     */
+    public void added(Path path) throws IOException {
+        if (deferred(volumes.toProtocolPath(path))) {
+            return;
+        }
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            long size = fileSizeOf(path);
+            if (size >= 0) {
+                adjustAncestors(volumes.toProtocolPath(path), size, 1, 0);
+            }
+            return;
+        }
+        Map<String, Usage> nodes = new HashMap<>();
+        Usage total = new ScanTask(path, nodes).compute();
+        merge(path, nodes, total);
+    }
+
+    /**
+     * 即将删除的文件或目录子树，须在删除之前调用
+     * @param path 将被删除的路径
+     */
+    public void removed(Path path) throws IOException {
+        String key = volumes.toProtocolPath(path);
+        if (key == null || deferred(key)) {
+            return;
+        }
+        long fileSize = get(path) == null ? fileSizeOf(path) : -1;
+        synchronized (this) {
+            Usage subtree = directories.get(key);
+            if (subtree != null) {
+                directories.remove(key);
+                subtreeOf(key).clear();
+                adjustAncestors(key, -subtree.bytes, -subtree.files, -subtree.directories - 1);
+            } else if (fileSize >= 0) {
+                adjustAncestors(key, -fileSize, -1, 0);
+            }
+        }
+    }
+
+    /**
+     * 已完成的移动，子树的统计随之移到新位置
+     * @param source 原路径
+     * @param target 新路径
+     */
+    public void renamed(Path source, Path target) throws IOException {
+        String from = volumes.toProtocolPath(source);
+        String to = volumes.toProtocolPath(target);
+        if (from == null || to == null || deferred(from, to)) {
+            return;
+        }
+        long fileSize = fileSizeOf(target);
+        synchronized (this) {
+            Usage subtree = directories.get(from);
+            if (subtree != null) {
+                NavigableMap<String, Usage> moved = subtreeOf(from);
+                Map<String, Usage> copy = new HashMap<>(moved);
+                copy.put(from, directories.remove(from));
+                moved.clear();
+                for (Map.Entry<String, Usage> entry : copy.entrySet()) {
+                    directories.put(to + entry.getKey().substring(from.length()), entry.getValue());
+                }
+                adjustAncestors(from, -subtree.bytes, -subtree.files, -subtree.directories - 1);
+                adjustAncestors(to, subtree.bytes, subtree.files, subtree.directories + 1);
+            } else if (fileSize >= 0) {
+                adjustAncestors(from, -fileSize, -1, 0);
+                adjustAncestors(to, fileSize, 1, 0);
+            }
+        }
+    }
+
+    /**
+     * 上传替换了文件内容
+     * @param file 已就位的文件
+     * @param previousSize 替换前的大小，原来不存在时为-1
+     */
+    public void replaced(Path file, long previousSize) throws IOException {
+        if (deferred(volumes.toProtocolPath(file))) {
+            return;
+        }
+        long size = Math.max(fileSizeOf(file), 0);
+        adjustAncestors(volumes.toProtocolPath(file), size - Math.max(previousSize, 0), previousSize < 0 ? 1 : 0, 0);
+    }
+
+    /**
+     * 检查写入是否超出配额
+     * @param target 将被创建或写入的路径
+     * @param bytes 将增加的字节数
+     * @param source 移动时的原路径，同在一个配额目录之内的移动不改变该目录的用量，否则为null
+     * @return 超出的配额说明，未超出或初始扫描尚未完成时返回null
+     */
+    public synchronized String checkQuota(Path target, long bytes, Path source) {
+        if (!ready || quotas.isEmpty() || bytes <= 0) {
+            return null;
+        }
+        String key = volumes.toProtocolPath(target);
+        String exempt = source == null ? null : volumes.toProtocolPath(source);
+        for (String directory = parentOf(key); directory != null; directory = parentOf(directory)) {
+            Long limit = quotas.get(directory);
+            if (limit == null || (exempt != null && isWithin(exempt, directory))) {
+                continue;
+            }
+            Usage usage = directories.get(directory);
+            long used = (usage == null ? 0 : usage.bytes) + reserved.getOrDefault(directory, 0L);
+            if (used + bytes > limit) {
+                return directory + " 已用 " + used + " 字节, 配额 " + limit + " 字节, 需要 " + bytes + " 字节";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 检查配额并为即将接收的数据预留空间，成功后必须调用 release
+     * @param target 将被写入的文件
+     * @param bytes 预留的字节数
+     * @return 超出的配额说明，未超出时返回null并已预留
+     */
+    public synchronized String reserve(Path target, long bytes) {
+        String error = checkQuota(target, bytes, null);
+        if (error == null && bytes > 0) {
+            adjustReserved(volumes.toProtocolPath(target), bytes);
+        }
+        return error;
+    }
+
+    /**
+     * 释放 reserve 预留的空间，数据已写入时其用量随后由 replaced 计入
+     */
+    public synchronized void release(Path target, long bytes) {
+        if (bytes > 0) {
+            adjustReserved(volumes.toProtocolPath(target), -bytes);
+        }
+    }
+
+    /**
+     * 设置或取消目录配额，目录可以尚不存在
+     * @param directory 目录
+     * @param limit 字节数，0表示取消
+     */
+    public synchronized void setQuota(Path directory, long limit) {
+        String key = volumes.toProtocolPath(directory);
+        if (key == null) {
+            return;
+        }
+        if (limit > 0) {
+            quotas.put(key, limit);
+        } else {
+            quotas.remove(key);
+        }
+    }
+
+    /**
+     * 目录自身的配额
+     * @return 字节数，没有配额时返回-1
+     */
+    public synchronized long getQuota(Path directory) {
+        Long limit = quotas.get(volumes.toProtocolPath(directory));
+        return limit == null ? -1 : limit;
+    }
+
+    /**
+     * 目录中为进行中的上传预留的字节数，只统计设有配额的目录
+     */
+    public synchronized long getReserved(Path directory) {
+        return reserved.getOrDefault(volumes.toProtocolPath(directory), 0L);
+    }
+
+    /**
+     * 所有配额，按路径排序
+     * @return 协议路径到 {配额, 已用, 预留} 的映射
+     */
+    public synchronized Map<String, long[]> getQuotas() {
+        Map<String, long[]> result = new TreeMap<>();
+        for (Map.Entry<String, Long> entry : quotas.entrySet()) {
+            Usage usage = directories.get(entry.getKey());
+            result.put(entry.getKey(), new long[]{entry.getValue(), usage == null ? 0 : usage.bytes,
+                    reserved.getOrDefault(entry.getKey(), 0L)});
+        }
+        return result;
+    }
+
+    /**
+     * 单个文件的大小，包括打包存储的文件
+     * @return 字节数，路径不是文件或是临时文件时返回-1
+     */
+    private long fileSizeOf(Path path) throws IOException {
+        if (HashIndex.isTemporary(path)) {
+            return -1;
+        }
+        PackStore.Entry packed = packStore.get(path);
+        if (packed != null) {
+            return packed.getLength();
+        }
+        return Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS) ? Files.size(path) : -1;
+    }
+
+    /**
+     * 初始扫描完成之前记下路径所在的目录，由 reconcile 按磁盘上的现状重新统计
+     * @param keys 被改动的协议路径
+     * @return 是否已推迟，已完成扫描时返回false，调用者照常累加变化量
+     */
+    private synchronized boolean deferred(String... keys) {
+        if (ready) {
+            return false;
+        }
+        for (String key : keys) {
+            String parent = parentOf(key);
+            if (parent != null) {
+                dirty.add(parent);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 逐轮重新统计扫描期间被改动的目录，一轮之中没有新的改动或轮数达到上限时进行最后一轮：
+     * 等待进行中的改动完成并暂停新的改动，重新统计剩余的目录后开始累加变化量
+     * @return 是否已完成，关闭时返回false
+     */
+    private boolean reconcile() {
+        for (int round = 1; round < MAX_RECONCILE_ROUNDS; round++) {
+            Set<String> pending;
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                if (dirty.isEmpty()) {
+                    break;
+                }
+                pending = dirty;
+                dirty = new HashSet<>();
+            }
+            for (String key : pending) {
+                refresh(key);
+            }
+        }
+        changes.writeLock().lock();
+        try {
+            synchronized (this) {
+                for (String key : dirty) {
+                    refresh(key);
+                }
+                dirty = null;
+                ready = true;
+            }
+        } finally {
+            changes.writeLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * 按磁盘上的现状重新统计一个目录：重新读取直接包含的文件，新出现的子目录整体扫描，
+     * 已消失的子目录连同其子树删除，已统计的子目录沿用其统计；差值沿父目录链向上累加
+     * @param key 目录的协议路径，尚未统计的目录(由其上级目录的重新统计扫描)或已不存在的目录被忽略
+     */
+    private void refresh(String key) {
+        Path directory = volumes.resolve(key.substring(1));
+        Usage own = new Usage();
+        Set<String> present = new HashSet<>();
+        Map<String, Path> found = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path child : stream) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    continue;
+                }
+                if (HashIndex.isTemporary(child)) {
+                    continue;
+                }
+                String childKey = volumes.toProtocolPath(child);
+                if (attributes.isDirectory() && childKey != null) {
+                    present.add(childKey);
+                    found.put(childKey, child);
+                } else if (attributes.isRegularFile()) {
+                    own.bytes += attributes.size();
+                    own.files++;
+                }
+            }
+        } catch (IOException e) {
+            return;
+        }
+        for (PackStore.Entry packed : packStore.list(directory).values()) {
+            own.bytes += packed.getLength();
+            own.files++;
+        }
+        // 新出现的子目录在锁外扫描
+        Map<String, Usage> scanned = new HashMap<>();
+        for (Map.Entry<String, Path> entry : found.entrySet()) {
+            if (!isKnown(entry.getKey())) {
+                new ScanTask(entry.getValue(), scanned).compute();
+            }
+        }
+        synchronized (this) {
+            Usage node = directories.get(key);
+            if (node == null) {
+                return;
+            }
+            for (Map.Entry<String, Usage> entry : scanned.entrySet()) {
+                directories.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            String prefix = key.equals("/") ? "/" : key + "/";
+            List<String> gone = new ArrayList<>();
+            Usage total = own;
+            for (Map.Entry<String, Usage> entry : directories.subMap(prefix, false, prefix.substring(0, prefix.length() - 1) + "0", false).entrySet()) {
+                String childKey = entry.getKey();
+                if (childKey.indexOf('/', prefix.length()) >= 0) {
+                    continue;
+                }
+                if (present.contains(childKey)) {
+                    Usage child = entry.getValue();
+                    total.bytes += child.bytes;
+                    total.files += child.files;
+                    total.directories += child.directories + 1;
+                } else {
+                    gone.add(childKey);
+                }
+            }
+            for (String childKey : gone) {
+                directories.remove(childKey);
+                subtreeOf(childKey).clear();
+            }
+            long bytes = total.bytes - node.bytes;
+            long files = total.files - node.files;
+            long subdirectories = total.directories - node.directories;
+            node.bytes = total.bytes;
+            node.files = total.files;
+            node.directories = total.directories;
+            adjustAncestors(key, bytes, files, subdirectories);
+        }
+    }
+
+    private synchronized boolean isKnown(String key) {
+        return directories.containsKey(key);
+    }
+
+    /**
+     * 把扫描得到的子树并入统计，子树的根替换原有的同名节点(挂载点或新建目录)
+     */
+    private synchronized void merge(Path root, Map<String, Usage> nodes, Usage total) {
+        String key = volumes.toProtocolPath(root);
+        if (key == null) {
+            return;
+        }
+        Usage previous = directories.get(key);
+        directories.putAll(nodes);
+        if (previous == null) {
+            adjustAncestors(key, total.bytes, total.files, total.directories + 1);
+        } else {
+            adjustAncestors(key, total.bytes - previous.bytes, total.files - previous.files, total.directories - previous.directories);
+        }
+    }
+
+    private synchronized void adjustAncestors(String key, long bytes, long files, long subdirectories) {
+        if (key == null) {
+            return;
+        }
+        for (String directory = parentOf(key); directory != null; directory = parentOf(directory)) {
+            Usage usage = directories.get(directory);
+            if (usage != null) {
+                usage.bytes += bytes;
+                usage.files += files;
+                usage.directories += subdirectories;
+            }
+        }
+    }
+
+    private void adjustReserved(String key, long bytes) {
+        for (String directory = parentOf(key); directory != null; directory = parentOf(directory)) {
+            if (quotas.containsKey(directory)) {
+                long value = reserved.getOrDefault(directory, 0L) + bytes;
+                if (value > 0) {
+                    reserved.put(directory, value);
+                } else {
+                    reserved.remove(directory);
+                }
+            }
+        }
+    }
+
+    /**
+     * 目录之下的所有节点，不含目录自身；'0'紧接在'/'之后，范围之内恰好是以 目录/ 开头的键
+     */
+    private NavigableMap<String, Usage> subtreeOf(String key) {
+        return directories.subMap(key + "/", true, key + "0", false);
+    }
+
+    private static String parentOf(String key) {
+        if (key == null || key.equals("/")) {
+            return null;
+        }
+        int slash = key.lastIndexOf('/');
+        return slash <= 0 ? "/" : key.substring(0, slash);
+    }
+
+    private static boolean isWithin(String path, String directory) {
+        return directory.equals("/") || path.equals(directory) || path.startsWith(directory + "/");
+    }
+
+    private static String normalize(String path) {
+        String normalized = path.replace('\\', '/');
+        while (normalized.length() > 1 && normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized.startsWith("/") ? normalized : "/" + normalized;
+    }
+
+    /**
+     * 统计一个目录子树，子目录分叉并行统计
+     */
+    private class ScanTask extends RecursiveTask<Usage> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final Map<String, Usage> nodes;
+
+        ScanTask(Path directory, Map<String, Usage> nodes) {
+            this.directory = directory;
+            this.nodes = nodes;
+        }
+
+        @Override
+        protected Usage compute() {
+            Usage usage = new Usage();
+            if (closed) {
+                return usage;
+            }
+            List<ScanTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path child : stream) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (attributes.isDirectory() && !HashIndex.isTemporary(child)) {
+                        ScanTask task = new ScanTask(child, nodes);
+                        task.fork();
+                        subtasks.add(task);
+                    } else if (attributes.isRegularFile() && !HashIndex.isTemporary(child)) {
+                        usage.bytes += attributes.size();
+                        usage.files++;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("统计磁盘用量时无法读取目录: " + directory + " - " + e.getMessage());
+            }
+            for (PackStore.Entry packed : packStore.list(directory).values()) {
+                usage.bytes += packed.getLength();
+                usage.files++;
+            }
+            for (ScanTask task : subtasks) {
+                Usage child = task.join();
+                usage.bytes += child.bytes;
+                usage.files += child.files;
+                usage.directories += child.directories + 1;
+            }
+            String key = volumes.toProtocolPath(directory);
+            if (key != null) {
+                nodes.put(key, usage);
+            }
+            return usage;
+        }
+    }
+
+    /**
+     * 目录子树的用量
+     */
+    public static class Usage {
+        private long bytes;
+        private long files;
+        private long directories;
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getFiles() {
+            return files;
+        }
+
+        /**
+         * 子树中的目录数，不含目录自身
+         */
+        public long getDirectories() {
+            return directories;
+        }
+
+        Usage copy() {
+            Usage copy = new Usage();
+            copy.bytes = bytes;
+            copy.files = files;
+            copy.directories = directories;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,696 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * 文件名索引
+ * 整个命名空间(包括所有挂载卷)的树结构以节点数组保存(父节点下标、名称、是否目录)，完整路径按需由父节点链拼出；
+ * 子节点以数组下标串成兄弟链表，按(父节点, 名称)查找子节点用一张开放寻址的int散列表，不装箱。
+ * 名称的二字母组和三字母组(不区分大小写)建立倒排表，子串、前缀和通配查询先取最稀有的字母组的候选，再逐个核对。
+ * 删除和改名留下的失效倒排记录积累过多时整体重建。
+ * 启动时在后台扫描建立，之后由本服务器的写命令增量维护
+ */
+public class FileNameIndex {
+    public static final String PREFIX = "prefix";
+    public static final String SUBSTRING = "substring";
+    public static final String GLOB = "glob";
+
+    private static final int ROOT = 0;
+    private static final int COMPACT_THRESHOLD = 50000;
+
+    private final StorageVolumes volumes;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int[] parents = new int[1024];
+    private String[] names = new String[1024];
+    private int[] firstChildren = new int[1024];
+    private int[] nextSiblings = new int[1024];
+    private int[] previousSiblings = new int[1024];
+    private final BitSet directories = new BitSet();
+    private int count;
+    private int removed;
+    /** 改过名的节点数，它们旧名称的倒排记录已失效 */
+    private int renamed;
+    /** 子节点散列表，槽位保存 节点下标+1，0为空；键由节点的父节点和名称算出 */
+    private int[] childTable = new int[2048];
+    private int linked;
+    private final Map<Long, IntList> grams = new HashMap<>();
+    /** 进行中的分批搜索数，不为0时推迟重建，以免节点下标在两批之间改变 */
+    private final AtomicInteger activeSearches = new AtomicInteger();
+    private volatile boolean ready;
+    private volatile boolean closed;
+
+    /**
+     * 构造函数
+     * @param volumes 存储卷，所有卷组成一棵树
+     */
+    public FileNameIndex(StorageVolumes volumes) {
+        this.volumes = volumes;
+        names[ROOT] = "";
+        parents[ROOT] = -1;
+        firstChildren[ROOT] = -1;
+        directories.set(ROOT);
+        count = 1;
+    }
+
+    /**
+     * 在后台线程中扫描整个根目录建立索引
+     */
+    public void buildInBackground() {
+        Thread thread = new Thread(() -> {
+            long start = System.nanoTime();
+            try {
+                build();
+                if (closed) {
+                    return;
+                }
+                ready = true;
+                System.out.println("文件名索引已建立: " + (count - removed - 1) + " 个条目, 耗时 "
+                        + (System.nanoTime() - start) / 1_000_000 + " 毫秒");
+            } catch (IOException e) {
+                System.err.println("建立文件名索引失败: " + e.getMessage());
+            }
+        }, "name-indexer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * 停止进行中的初始扫描，服务器关闭时调用
+     */
+    public void close() {
+        closed = true;
+    }
+
+    private void build() throws IOException {
+        for (StorageVolumes.Volume volume : volumes.getVolumes()) {
+            build(volume.getDirectory());
+        }
+    }
+
+    private void build(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (closed) {
+                    return FileVisitResult.TERMINATE;
+                }
+                if (!dir.equals(directory)) {
+                    add(dir, true);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (closed) {
+                    return FileVisitResult.TERMINATE;
+                }
+                add(file, attrs.isDirectory());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * 初始扫描是否已完成
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 添加路径，缺失的上级目录一并添加；已存在时不做任何事
+     * @param path 路径
+     * @param directory 是否目录
+     */
+    public void add(Path path, boolean directory) {
+        Path relative = relativize(path);
+        if (relative == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            int node = ROOT;
+            int depth = relative.getNameCount();
+            for (int i = 0; i < depth; i++) {
+                String name = relative.getName(i).toString();
+                if (name.isEmpty()) {
+                    continue;
+                }
+                Integer child = childOf(node, name);
+                node = child != null ? child : addNode(node, name, directory || i < depth - 1);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 删除路径及其子树
+     * @param path 路径
+     */
+    public void remove(Path path) {
+        lock.writeLock().lock();
+        try {
+            int node = find(path);
+            if (node > ROOT) {
+                removeSubtree(node);
+                compactIfNeeded();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 移动路径，子树随之移动(子节点只记录父节点下标，无需修改)
+     * @param source 原路径
+     * @param target 新路径
+     */
+    public void rename(Path source, Path target) {
+        Path targetRelative = relativize(target);
+        if (targetRelative == null || targetRelative.getNameCount() == 0 || targetRelative.toString().isEmpty()) {
+            remove(source);
+            return;
+        }
+        Path targetParent = targetRelative.getParent();
+        if (targetParent != null) {
+            add(volumes.resolve(targetParent.toString()), true);
+        }
+        lock.writeLock().lock();
+        try {
+            int node = find(source);
+            if (node <= ROOT) {
+                return;
+            }
+            int newParent = targetParent == null ? ROOT : find(volumes.resolve(targetParent.toString()));
+            if (newParent < 0) {
+                return;
+            }
+            String newName = targetRelative.getFileName().toString();
+            Integer existing = childOf(newParent, newName);
+            if (existing != null && existing != node) {
+                removeSubtree(existing);
+            }
+            unlink(node);
+            parents[node] = newParent;
+            if (!newName.equals(names[node])) {
+                // 旧名称的倒排记录留在原处，查询时核对名称即可排除，积累过多时由重建清除
+                names[node] = newName;
+                indexName(node, newName);
+                renamed++;
+            }
+            link(node);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 开始搜索，结果由返回的游标分批取出，两批之间不持有锁
+     * @param mode prefix/substring/glob，前两者匹配文件名，通配模式含"/"时匹配相对路径，否则匹配文件名
+     * @param pattern 查询串，不区分大小写
+     * @param scope 限定搜索的目录
+     * @param limit 最多返回的条目数
+     * @return 搜索游标，用完后必须关闭
+     */
+    public Search search(String mode, String pattern, Path scope, int limit) {
+        lock.readLock().lock();
+        try {
+            return new Search(mode, pattern, find(scope), limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 分批搜索的游标
+     * 游标打开期间索引不会重建，节点下标保持不变；两批之间被删除的节点不再返回，新增的节点可能不被返回
+     */
+    public class Search implements AutoCloseable {
+        private final String mode;
+        private final String needle;
+        private final Pattern glob;
+        private final boolean matchPath;
+        private final int scopeNode;
+        private final int limit;
+        private final IntList candidates;
+        private final BitSet seen;
+        private int position;
+        private int found;
+        private boolean done;
+        private boolean closed;
+
+        private Search(String mode, String pattern, int scopeNode, int limit) {
+            this.mode = mode;
+            this.needle = pattern.toLowerCase(Locale.ROOT);
+            this.glob = GLOB.equals(mode) ? compileGlob(pattern) : null;
+            this.matchPath = glob != null && pattern.indexOf('/') >= 0;
+            this.scopeNode = scopeNode;
+            this.limit = limit;
+            // 通配模式匹配路径时，候选节点的名称只对应最后一段
+            String[] literals = glob == null ? new String[] {needle}
+                    : literals(matchPath ? needle.substring(needle.lastIndexOf('/') + 1) : needle);
+            this.candidates = rarestPostings(literals);
+            this.seen = candidates != null ? new BitSet(count) : null;
+            this.done = scopeNode < 0;
+            activeSearches.incrementAndGet();
+        }
+
+        /**
+         * 取出下一批结果
+         * @param max 本批最多的条目数
+         * @param consumer 逐个接收结果，返回false时结束搜索；在读锁内调用，不应执行I/O
+         * @return 本批的条目数，为0时搜索已结束
+         */
+        public int next(int max, ResultConsumer consumer) {
+            if (done) {
+                return 0;
+            }
+            lock.readLock().lock();
+            try {
+                int delivered = 0;
+                while (delivered < max && found < limit) {
+                    int total = candidates != null ? candidates.size : count;
+                    if (position >= total) {
+                        break;
+                    }
+                    int node = candidates != null ? candidates.data[position] : position;
+                    position++;
+                    if (seen != null) {
+                        if (seen.get(node)) {
+                            continue;
+                        }
+                        seen.set(node);
+                    }
+                    String name = names[node];
+                    if (node == ROOT || name == null) {
+                        continue;
+                    }
+                    boolean matched;
+                    switch (mode) {
+                        case PREFIX:
+                            matched = name.regionMatches(true, 0, needle, 0, needle.length());
+                            break;
+                        case GLOB:
+                            matched = glob.matcher(matchPath ? pathOf(node, ROOT).substring(1) : name).matches();
+                            break;
+                        default:
+                            matched = indexOfIgnoreCase(name, needle) >= 0;
+                            break;
+                    }
+                    if (matched && isWithin(node, scopeNode)) {
+                        found++;
+                        delivered++;
+                        if (!consumer.accept(pathOf(node, ROOT), directories.get(node))) {
+                            done = true;
+                            break;
+                        }
+                    }
+                }
+                if (delivered < max) {
+                    done = true;
+                }
+                return delivered;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * 已返回的条目数
+         */
+        public int getFound() {
+            return found;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                done = true;
+                activeSearches.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 搜索结果接收者
+     */
+    public interface ResultConsumer {
+        /**
+         * @param path 协议路径，如 /a/b
+         * @param directory 是否目录
+         * @return 是否继续
+         */
+        boolean accept(String path, boolean directory);
+    }
+
+    private Path relativize(Path path) {
+        String relative = volumes.relativize(path);
+        return relative == null ? null : Paths.get(relative);
+    }
+
+    private int find(Path path) {
+        Path relative = relativize(path);
+        if (relative == null) {
+            return -1;
+        }
+        int node = ROOT;
+        for (int i = 0; i < relative.getNameCount(); i++) {
+            String name = relative.getName(i).toString();
+            if (name.isEmpty()) {
+                continue;
+            }
+            Integer child = childOf(node, name);
+            if (child == null) {
+                return -1;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private Integer childOf(int node, String name) {
+        int mask = childTable.length - 1;
+        for (int slot = hash(node, name) & mask; childTable[slot] != 0; slot = (slot + 1) & mask) {
+            int child = childTable[slot] - 1;
+            if (parents[child] == node && name.equals(names[child])) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    private static int hash(int parent, String name) {
+        int h = parent * 0x9E3779B9 + name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private int addNode(int parent, String name, boolean directory) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            parents = Arrays.copyOf(parents, count * 2);
+            firstChildren = Arrays.copyOf(firstChildren, count * 2);
+            nextSiblings = Arrays.copyOf(nextSiblings, count * 2);
+            previousSiblings = Arrays.copyOf(previousSiblings, count * 2);
+        }
+        int node = count++;
+        names[node] = name;
+        parents[node] = parent;
+        firstChildren[node] = -1;
+        if (directory) {
+            directories.set(node);
+        }
+        link(node);
+        indexName(node, name);
+        return node;
+    }
+
+    /**
+     * 按节点当前的父节点和名称放入子节点散列表和父节点的兄弟链表
+     */
+    private void link(int node) {
+        if ((linked + 1) * 2 > childTable.length) {
+            int[] old = childTable;
+            childTable = new int[old.length * 2];
+            for (int entry : old) {
+                if (entry != 0) {
+                    insertSlot(entry - 1);
+                }
+            }
+        }
+        insertSlot(node);
+        linked++;
+        int parent = parents[node];
+        int first = firstChildren[parent];
+        nextSiblings[node] = first;
+        previousSiblings[node] = -1;
+        if (first >= 0) {
+            previousSiblings[first] = node;
+        }
+        firstChildren[parent] = node;
+    }
+
+    private void insertSlot(int node) {
+        int mask = childTable.length - 1;
+        int slot = hash(parents[node], names[node]) & mask;
+        while (childTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        childTable[slot] = node + 1;
+    }
+
+    /**
+     * 从子节点散列表和兄弟链表中取出，必须在修改父节点或名称之前调用
+     */
+    private void unlink(int node) {
+        int mask = childTable.length - 1;
+        int slot = hash(parents[node], names[node]) & mask;
+        while (childTable[slot] != node + 1) {
+            slot = (slot + 1) & mask;
+        }
+        // 线性探测的删除：把后面本应落在空出槽位之前的条目前移，保持探测链不断
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (childTable[next] == 0) {
+                break;
+            }
+            int entry = childTable[next] - 1;
+            int home = hash(parents[entry], names[entry]) & mask;
+            boolean between = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+            if (!between) {
+                childTable[slot] = childTable[next];
+                slot = next;
+            }
+        }
+        childTable[slot] = 0;
+        linked--;
+        int previous = previousSiblings[node];
+        int following = nextSiblings[node];
+        if (previous >= 0) {
+            nextSiblings[previous] = following;
+        } else {
+            firstChildren[parents[node]] = following;
+        }
+        if (following >= 0) {
+            previousSiblings[following] = previous;
+        }
+    }
+
+    private void removeSubtree(int node) {
+        for (int child = firstChildren[node]; child >= 0; ) {
+            int next = nextSiblings[child];
+            removeSubtree(child);
+            child = next;
+        }
+        unlink(node);
+        names[node] = null;
+        directories.clear(node);
+        removed++;
+    }
+
+    /**
+     * 失效的节点和倒排记录过多且没有进行中的分批搜索时重建
+     */
+    private void compactIfNeeded() {
+        int stale = removed + renamed;
+        if (stale > COMPACT_THRESHOLD && stale > count - removed && activeSearches.get() == 0) {
+            compact();
+        }
+    }
+
+    /**
+     * 重新编号，丢弃已删除节点及失效的倒排记录，只在内存中进行
+     */
+    private void compact() {
+        int[] remap = new int[count];
+        int live = 0;
+        for (int i = 0; i < count; i++) {
+            remap[i] = names[i] != null ? live++ : -1;
+        }
+        int capacity = Math.max(1024, live);
+        int[] newParents = new int[capacity];
+        String[] newNames = new String[capacity];
+        BitSet newDirectories = new BitSet();
+        for (int i = 0; i < count; i++) {
+            if (remap[i] >= 0) {
+                newNames[remap[i]] = names[i];
+                newParents[remap[i]] = i == ROOT ? -1 : remap[parents[i]];
+                if (directories.get(i)) {
+                    newDirectories.set(remap[i]);
+                }
+            }
+        }
+        parents = newParents;
+        names = newNames;
+        firstChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+        previousSiblings = new int[capacity];
+        Arrays.fill(firstChildren, -1);
+        directories.clear();
+        directories.or(newDirectories);
+        count = live;
+        removed = 0;
+        renamed = 0;
+        childTable = new int[Math.max(2048, Integer.highestOneBit(live) * 4)];
+        linked = 0;
+        grams.clear();
+        for (int i = 1; i < count; i++) {
+            link(i);
+            indexName(i, names[i]);
+        }
+    }
+
+    private void indexName(int node, String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        for (int i = 0; i + 2 <= lower.length(); i++) {
+            grams.computeIfAbsent(bigram(lower, i), k -> new IntList()).add(node);
+            if (i + 3 <= lower.length()) {
+                grams.computeIfAbsent(trigram(lower, i), k -> new IntList()).add(node);
+            }
+        }
+    }
+
+    private static long trigram(String text, int index) {
+        return ((long) text.charAt(index) << 32) | ((long) text.charAt(index + 1) << 16) | text.charAt(index + 2);
+    }
+
+    /**
+     * 二字母组的键，最高位的标记使其与三字母组的键不重叠
+     */
+    private static long bigram(String text, int index) {
+        return (1L << 48) | ((long) text.charAt(index) << 16) | text.charAt(index + 1);
+    }
+
+    /**
+     * 所有必需字面量中最稀有的字母组的倒排表
+     * @return 倒排表，某个字母组不存在时为空表，没有长度至少为2的字面量时为null(需要全表扫描)
+     */
+    private IntList rarestPostings(String[] literals) {
+        IntList rarest = null;
+        for (String literal : literals) {
+            int size = literal.length() >= 3 ? 3 : 2;
+            for (int i = 0; i + size <= literal.length(); i++) {
+                IntList postings = grams.get(size == 3 ? trigram(literal, i) : bigram(literal, i));
+                if (postings == null) {
+                    return new IntList();
+                }
+                if (rarest == null || postings.size < rarest.size) {
+                    rarest = postings;
+                }
+            }
+        }
+        return rarest;
+    }
+
+    private boolean isWithin(int node, int ancestor) {
+        for (int current = node; current >= 0; current = parents[current]) {
+            if (current == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String pathOf(int node, int base) {
+        StringBuilder path = new StringBuilder();
+        for (int current = node; current != base && current > ROOT; current = parents[current]) {
+            path.insert(0, names[current]).insert(0, '/');
+        }
+        return path.length() == 0 ? "/" : path.toString();
+    }
+
+    private static int indexOfIgnoreCase(String text, String lowerNeedle) {
+        int max = text.length() - lowerNeedle.length();
+        for (int i = 0; i <= max; i++) {
+            if (text.regionMatches(true, i, lowerNeedle, 0, lowerNeedle.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 通配模式中的各段普通字符，匹配的名称必然包含它们
+     */
+    private static String[] literals(String glob) {
+        // 字符集中的字符不是必需的，先整体去掉
+        return glob.replaceAll("\\[[^\\]]*\\]", "/").split("[*?\\[\\]/]");
+    }
+
+    /**
+     * 通配模式转为正则：* 和 ? 不跨越目录，** 跨越目录，[...] 为字符集
+     */
+    static Pattern compileGlob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 1);
+                    if (end > i + 1) {
+                        String set = glob.substring(i + 1, end).replace("\\", "\\\\");
+                        regex.append('[').append(set.startsWith("!") ? "^" + set.substring(1) : set).append(']');
+                        i = end;
+                    } else {
+                        regex.append("\\[");
+                    }
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                    break;
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+    /**
+     * 可增长的int数组
+     */
+    private static class IntList {
+        private int[] data = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+    }
+}
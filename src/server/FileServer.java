@@ -1,22 +1,82 @@
 package server;
 
+import common.BufferPool;
+import common.TlsSupport;
+
+import javax.net.ssl.SSLContext;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * 文件服务器主类
  * 负责监听客户端连接请求并为每个客户端创建处理线程
  */
 public class FileServer {
+    /** 报告连接接受速率的周期 */
+    private static final long ACCEPT_REPORT_SECONDS = 60;
+    
     private int port;
     private String rootDirectory;
-    private boolean running;
-    private ServerSocket serverSocket;
+    private volatile boolean running;
+    private volatile ServerSocket serverSocket;
+    private final List<ServerSocketChannel> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private volatile AtomicLongArray acceptedPerAcceptor;
+    private volatile long startedAt;
+    private long reportedConnections;
     private ExecutorService threadPool;
+    private ServerConfig config;
+    private BandwidthScheduler bandwidthScheduler;
+    private final ListingCache listingCache;
+    private StorageVolumes volumes;
+    private ChangeNotifier changeNotifier;
+    private HashIndex hashIndex;
+    private FileNameIndex fileNameIndex;
+    private ContentSearcher contentSearcher;
+    private PackStore packStore;
+    private DiskUsage diskUsage;
+    private CopyJobs copyJobs;
+    private AccessLog accessLog;
+    private volatile SSLContext sslContext;
+    private final ConcurrentHashMap<String, AtomicInteger> connectionsPerIp = new ConcurrentHashMap<>();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final Set<ClientHandler> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong reapedSessions = new AtomicLong();
+    private final AtomicLong drainedSessions = new AtomicLong();
+    private final AtomicBoolean shuttingDown = new AtomicBoolean();
+    private final Set<InetAddress> adminAddresses;
+    private ScheduledExecutorService reaper;
     
     /**
      * 构造函数
@@ -24,9 +84,67 @@ public class FileServer {
      * @param rootDirectory 服务器文件根目录
      */
     public FileServer(int port, String rootDirectory) {
+        this(port, rootDirectory, new ServerConfig());
+    }
+    
+    /**
+     * 构造函数
+     * @param port 服务器监听端口
+     * @param rootDirectory 服务器文件根目录
+     * @param config 服务器配置
+     * @throws IllegalArgumentException 卷、配额或管理地址配置错误
+     */
+    public FileServer(int port, String rootDirectory, ServerConfig config) {
         this.port = port;
         this.rootDirectory = rootDirectory;
-        this.threadPool = Executors.newFixedThreadPool(10); // 创建固定大小的线程池
+        this.config = config;
+        this.adminAddresses = parseAdminAddresses(config.getAdminAddresses());
+        this.volumes = new StorageVolumes(rootDirectory, config);
+        this.accessLog = new AccessLog(getAccessLogFile(), config);
+        this.threadPool = createThreadPool(config);
+        this.bandwidthScheduler = new BandwidthScheduler(config);
+        this.packStore = new PackStore(volumes, getMetadataDirectory(), config);
+        this.listingCache = new ListingCache(packStore);
+        this.changeNotifier = new ChangeNotifier(volumes, listingCache, accessLog, config);
+        this.hashIndex = new HashIndex(volumes, getMetadataDirectory(), config);
+        this.fileNameIndex = new FileNameIndex(volumes);
+        this.contentSearcher = new ContentSearcher(config.getGrepParallelism());
+        this.diskUsage = new DiskUsage(volumes, packStore, config);
+        this.copyJobs = new CopyJobs(this, config.getCopyThreads());
+    }
+    
+    /**
+     * 访问日志文件，默认位于元数据目录
+     * @return 配置为"-"时返回null，不写访问日志
+     */
+    private Path getAccessLogFile() {
+        String file = config.getAccessLog();
+        if (file == null || file.trim().isEmpty()) {
+            return getMetadataDirectory().resolve("access.log");
+        }
+        return "-".equals(file.trim()) ? null : Paths.get(file.trim()).toAbsolutePath().normalize();
+    }
+    
+    /**
+     * 元数据目录，默认位于根目录旁边，不会出现在文件列表中
+     */
+    public Path getMetadataDirectory() {
+        if (config.getMetadataDirectory() != null && !config.getMetadataDirectory().trim().isEmpty()) {
+            return Paths.get(config.getMetadataDirectory()).toAbsolutePath().normalize();
+        }
+        Path root = Paths.get(rootDirectory).toAbsolutePath().normalize();
+        return root.resolveSibling(root.getFileName() + ".jrfm");
+    }
+    
+    /**
+     * 创建有界线程池：工作线程数和等待队列长度都有上限，队列满时由接受循环直接拒绝
+     */
+    private static ExecutorService createThreadPool(ServerConfig config) {
+        int workers = Math.max(1, config.getMaxActiveSessions());
+        BlockingQueue<Runnable> queue = config.getMaxQueuedSessions() > 0
+                ? new ArrayBlockingQueue<>(config.getMaxQueuedSessions())
+                : new SynchronousQueue<>();
+        return new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, queue, new ThreadPoolExecutor.AbortPolicy());
     }
     
     /**
@@ -34,6 +152,7 @@ public class FileServer {
      */
     public void start() {
         try {
+            accessLog.open();
             // 检查并创建根目录
             File rootDir = new File(rootDirectory);
             if (!rootDir.exists()) {
@@ -44,28 +163,71 @@ public class FileServer {
                     return;
                 }
             }
+            try {
+                volumes.createDirectories();
+            } catch (IOException e) {
+                System.err.println("无法创建卷目录: " + e.getMessage());
+                return;
+            }
             
-            serverSocket = new ServerSocket(port);
+            if (config.getTlsKeyStore() != null && !config.getTlsKeyStore().trim().isEmpty()) {
+                try {
+                    sslContext = TlsSupport.createServerContext(config.getTlsKeyStore(),
+                            config.getTlsKeyStorePassword().toCharArray(), config.getTlsKeyStoreType());
+                } catch (GeneralSecurityException e) {
+                    // 配置了TLS却无法加载证书时不能退回明文
+                    System.err.println("无法加载TLS密钥库: " + e.getMessage());
+                    return;
+                }
+            }
+            
+            try {
+                hashIndex.open();
+            } catch (IOException e) {
+                // 索引只是加速手段，无法持久化时仍在内存中工作
+                System.err.println("无法打开哈希索引，索引不会被保存: " + e.getMessage());
+            }
+            try {
+                packStore.open();
+            } catch (IOException e) {
+                System.err.println("无法打开打包存储，小文件将单独存储: " + e.getMessage());
+            }
+            fileNameIndex.buildInBackground();
+            packStore.forEach(null, (file, entry) -> fileNameIndex.add(file, false));
+            // 用量在后台统计，完成之前不检查配额，统计期间被写命令改动的目录在扫描结束后重新统计
+            diskUsage.scanInBackground();
+            // 通过通道创建监听套接字，接受的连接也带有通道，传输时可直接从直接缓冲区读写
+            List<ServerSocketChannel> acceptors = openListeners();
+            serverSocket = acceptors.get(0).socket();
+            acceptedPerAcceptor = new AtomicLongArray(acceptors.size());
+            startedAt = System.nanoTime();
             running = true;
-            System.out.println("文件服务器启动成功，监听端口: " + port);
+            System.out.println("文件服务器启动成功，监听端口: " + serverSocket.getLocalPort());
+            if (acceptors.size() > 1) {
+                System.out.println("接受线程: " + acceptors.size() + " 个, "
+                        + (listeners.size() > 1 ? "各自的监听套接字(SO_REUSEPORT)" : "系统不支持 SO_REUSEPORT，共享一个监听套接字"));
+            }
             System.out.println("根目录设置为: " + rootDirectory);
+            for (StorageVolumes.Volume volume : volumes.getVolumes()) {
+                if (!volume.getPrefix().isEmpty()) {
+                    System.out.println("挂载卷: /" + volume.getPrefix() + " -> " + volume.getDirectory());
+                }
+            }
+            if (sslContext != null) {
+                System.out.println("已启用TLS，密钥库: " + config.getTlsKeyStore());
+            }
             System.out.println("服务器正在等待客户端连接...");
+            startReaper();
             
-            // 循环接受客户端连接
-            while (running) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    System.out.println("接收到新的客户端连接: " + clientSocket.getInetAddress().getHostAddress());
-                    
-                    // 创建客户端处理线程并提交到线程池
-                    ClientHandler clientHandler = new ClientHandler(clientSocket, rootDirectory);
-                    threadPool.submit(clientHandler);
-                } catch (IOException e) {
-                    if (running) {
-                        System.err.println("接受客户端连接时出错: " + e.getMessage());
-                    }
-                }
+            // 其余接受线程各自循环，本线程负责第一个监听套接字
+            for (int i = 1; i < acceptors.size(); i++) {
+                ServerSocketChannel listener = acceptors.get(i);
+                int index = i;
+                Thread thread = new Thread(() -> acceptLoop(listener, index), "acceptor-" + i);
+                thread.setDaemon(true);
+                thread.start();
             }
+            acceptLoop(acceptors.get(0), 0);
         } catch (IOException e) {
             System.err.println("服务器启动失败: " + e.getMessage());
             e.printStackTrace();
@@ -78,25 +240,435 @@ public class FileServer {
     }
     
     /**
-     * 关闭服务器
+     * 打开监听套接字
+     * 配置了多个接受线程且系统支持 SO_REUSEPORT 时，每个线程一个绑定到同一端口的监听套接字，
+     * 由内核把新连接分散到各个套接字，接受线程之间没有共享的锁；不支持时所有线程在同一个套接字上接受
+     * @return 每个接受线程使用的监听套接字
+     */
+    private List<ServerSocketChannel> openListeners() throws IOException {
+        int threads = Math.max(1, config.getAcceptorThreads());
+        try {
+            ServerSocketChannel first = ServerSocketChannel.open();
+            listeners.add(first);
+            boolean reusePort = threads > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (reusePort) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            first.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+            // 端口为0时由系统分配，其余套接字绑定到实际端口
+            int boundPort = ((InetSocketAddress) first.getLocalAddress()).getPort();
+            for (int i = 1; i < threads && reusePort; i++) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                listeners.add(channel);
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(new InetSocketAddress(boundPort), config.getAcceptBacklog());
+            }
+        } catch (IOException e) {
+            closeListeners();
+            throw e;
+        }
+        List<ServerSocketChannel> acceptors = new ArrayList<>(listeners);
+        while (acceptors.size() < threads) {
+            acceptors.add(listeners.get(0));
+        }
+        return acceptors;
+    }
+    
+    private void closeListeners() {
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                System.err.println("关闭服务器套接字时出错: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * 接受线程的循环，监听套接字关闭后退出
+     * @param listener 监听套接字
+     * @param index 接受线程序号，用于统计
+     */
+    private void acceptLoop(ServerSocketChannel listener, int index) {
+        ServerSocket socket = listener.socket();
+        // 循环接受客户端连接
+        while (running && listener.isOpen()) {
+            try {
+                Socket clientSocket = socket.accept();
+                acceptedConnections.incrementAndGet();
+                acceptedPerAcceptor.incrementAndGet(index);
+                String clientAddress = clientSocket.getInetAddress().getHostAddress();
+                accessLog.info("接收到新的客户端连接: " + clientAddress);
+                
+                // 单个地址的连接数超限时立即拒绝
+                if (!connectionOpened(clientAddress)) {
+                    reject(clientSocket, "连接数超过限制");
+                    continue;
+                }
+                
+                // 创建客户端处理线程并提交到线程池，线程和队列都满时立即拒绝
+                ClientHandler clientHandler = new ClientHandler(clientSocket, this);
+                try {
+                    threadPool.execute(clientHandler);
+                } catch (RejectedExecutionException e) {
+                    connectionClosed(clientAddress);
+                    reject(clientSocket, "服务器繁忙");
+                }
+            } catch (IOException e) {
+                if (running) {
+                    accessLog.error("接受客户端连接时出错: " + e.getMessage(), null);
+                }
+            }
+        }
+    }
+    
+    /**
+     * 登记新连接
+     * @param clientAddress 客户端地址
+     * @return 未超过单地址连接上限时返回true
+     */
+    private boolean connectionOpened(String clientAddress) {
+        AtomicInteger count = connectionsPerIp.computeIfAbsent(clientAddress, k -> new AtomicInteger());
+        int limit = config.getMaxConnectionsPerIp();
+        if (count.incrementAndGet() > limit && limit > 0) {
+            connectionClosed(clientAddress);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * 解析允许修改服务器设置的客户端地址
+     * @param spec 逗号分隔的地址，为空时没有客户端可以修改
+     */
+    private static Set<InetAddress> parseAdminAddresses(String spec) {
+        Set<InetAddress> addresses = new HashSet<>();
+        if (spec != null) {
+            for (String entry : spec.split(",")) {
+                if (entry.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    addresses.add(InetAddress.getByName(entry.trim()));
+                } catch (UnknownHostException e) {
+                    throw new IllegalArgumentException("无效的管理地址: " + entry.trim());
+                }
+            }
+        }
+        return addresses;
+    }
+    
+    /**
+     * 客户端是否可以修改配额和带宽等服务器设置
+     * @param address 客户端地址
+     */
+    boolean isAdmin(InetAddress address) {
+        return adminAddresses.contains(address);
+    }
+    
+    /**
+     * 注销连接，由客户端处理线程在会话结束时调用
+     * @param clientAddress 客户端地址
+     */
+    void connectionClosed(String clientAddress) {
+        connectionsPerIp.computeIfPresent(clientAddress, (k, count) -> count.decrementAndGet() <= 0 ? null : count);
+    }
+    
+    /**
+     * 以503响应拒绝连接并关闭套接字
+     * 响应很短，一定能放进套接字发送缓冲区，不会阻塞接受循环。
+     * 启用TLS时客户端等待的是握手，明文响应无法解读，而握手会阻塞接受循环，因此只关闭连接
+     */
+    private void reject(Socket clientSocket, String reason) {
+        rejectedConnections.incrementAndGet();
+        accessLog.error("拒绝客户端连接(" + reason + "): " + clientSocket.getInetAddress().getHostAddress(), null);
+        try {
+            if (sslContext == null) {
+                OutputStream out = clientSocket.getOutputStream();
+                out.write(("503|" + reason + "|\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // 客户端可能已断开，忽略
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+    
+    /**
+     * 启动空闲会话回收线程
+     */
+    private void startReaper() {
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::reportAcceptRate, ACCEPT_REPORT_SECONDS, ACCEPT_REPORT_SECONDS, TimeUnit.SECONDS);
+        int idleTimeout = config.getIdleTimeoutSeconds();
+        if (idleTimeout <= 0) {
+            return;
+        }
+        long timeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeout);
+        long period = Math.max(1, Math.min(5, idleTimeout / 4));
+        reaper.scheduleWithFixedDelay(() -> {
+            for (ClientHandler session : sessions) {
+                // 传输中每个数据块都会刷新活动时间，因此停滞的传输也会被回收
+                if (session.getIdleNanos() > timeoutNanos) {
+                    reapedSessions.incrementAndGet();
+                    accessLog.info("回收空闲会话: " + session.getUser());
+                    session.forceClose();
+                }
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * 报告上一个周期接受连接的速率和各接受线程的累计数，周期内没有新连接时不报告
+     */
+    private void reportAcceptRate() {
+        long total = acceptedConnections.get();
+        long accepted = total - reportedConnections;
+        reportedConnections = total;
+        if (accepted > 0) {
+            accessLog.info(String.format("接受连接: 最近 %d 秒 %d 个, %.1f 个/秒, 各接受线程累计 %s",
+                    ACCEPT_REPORT_SECONDS, accepted, accepted / (double) ACCEPT_REPORT_SECONDS, getAcceptDistribution()));
+        }
+    }
+    
+    /**
+     * 各接受线程累计接受的连接数，如 120/118/125
+     */
+    public String getAcceptDistribution() {
+        AtomicLongArray counts = acceptedPerAcceptor;
+        if (counts == null) {
+            return "";
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < counts.length(); i++) {
+            result.append(i == 0 ? "" : "/").append(counts.get(i));
+        }
+        return result.toString();
+    }
+    
+    /**
+     * 接受的连接总数，包括随后被拒绝的
+     */
+    public long getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+    
+    /**
+     * 会话开始，由客户端处理线程调用
+     */
+    void sessionStarted(ClientHandler session) {
+        sessions.add(session);
+        if (shuttingDown.get()) {
+            session.drain();
+        }
+    }
+    
+    /**
+     * 会话结束，由客户端处理线程调用
+     */
+    void sessionEnded(ClientHandler session) {
+        sessions.remove(session);
+        connectionClosed(session.getUser());
+    }
+    
+    /**
+     * 被拒绝的连接总数
+     */
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+    
+    /**
+     * 被空闲回收的会话总数
+     */
+    public long getReapedSessions() {
+        return reapedSessions.get();
+    }
+    
+    /**
+     * 关闭过程中在宽限期内完成当前命令后退出的会话数
+     */
+    public long getDrainedSessions() {
+        return drainedSessions.get();
+    }
+    
+    /**
+     * 关闭服务器，等待进行中的命令在配置的宽限期内完成
      */
     public void shutdown() {
+        shutdown(TimeUnit.SECONDS.toMillis(config.getShutdownGraceSeconds()));
+    }
+    
+    /**
+     * 关闭服务器
+     * 先停止接受新连接并拒绝排队中的会话，再让执行中的命令在宽限期内完成，
+     * 空闲会话立即关闭，超过宽限期仍未结束的会话被强制关闭
+     * @param graceMillis 宽限期(毫秒)
+     */
+    public void shutdown(long graceMillis) {
         running = false;
+        if (!shuttingDown.compareAndSet(false, true)) {
+            return;
+        }
         
-        // 关闭线程池
-        if (threadPool != null && !threadPool.isShutdown()) {
-            threadPool.shutdown();
+        // 关闭所有监听套接字，停止接受新连接
+        closeListeners();
+        if (reaper != null) {
+            reaper.shutdownNow();
         }
+        // 关闭所有监视连接
+        changeNotifier.close();
         
-        // 关闭服务器套接字
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            try {
-                serverSocket.close();
-                System.out.println("服务器已关闭");
-            } catch (IOException e) {
-                System.err.println("关闭服务器套接字时出错: " + e.getMessage());
+        // 关闭线程池，排队中尚未开始的会话直接拒绝
+        List<Runnable> queued = new ArrayList<>();
+        if (threadPool instanceof ThreadPoolExecutor) {
+            ((ThreadPoolExecutor) threadPool).getQueue().drainTo(queued);
+        }
+        threadPool.shutdown();
+        for (Runnable task : queued) {
+            if (task instanceof ClientHandler) {
+                ClientHandler session = (ClientHandler) task;
+                connectionClosed(session.getUser());
+                reject(session.getSocket(), "服务器正在关闭");
             }
         }
+        
+        // 排空会话：空闲的立即关闭，执行中的在当前命令完成后退出
+        int idleClosed = 0;
+        int inFlight = 0;
+        for (ClientHandler session : sessions) {
+            if (session.drain()) {
+                idleClosed++;
+            } else {
+                inFlight++;
+            }
+        }
+        
+        int forced = 0;
+        try {
+            if (!threadPool.awaitTermination(graceMillis, TimeUnit.MILLISECONDS)) {
+                for (ClientHandler session : sessions) {
+                    session.forceClose();
+                    forced++;
+                }
+                threadPool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            threadPool.shutdownNow();
+        }
+        
+        contentSearcher.shutdown();
+        copyJobs.shutdown();
+        fileNameIndex.close();
+        diskUsage.close();
+        // 会话和复制任务都已结束，它们记录的哈希已写入日志后再关闭
+        hashIndex.close();
+        volumes.shutdown();
+        packStore.close();
+        
+        drainedSessions.addAndGet(Math.max(0, inFlight - forced));
+        // 所有会话都已结束，写出剩余的日志后之后的消息直接打印
+        accessLog.close();
+        System.out.println("服务器已关闭: 完成进行中命令 " + drainedSessions.get() + " 个, 关闭空闲会话 " + idleClosed
+                + " 个, 强制关闭 " + forced + " 个, 拒绝排队 " + queued.size()
+                + " 个, 累计回收空闲会话 " + reapedSessions.get() + " 个");
+        if (startedAt > 0) {
+            double seconds = Math.max(1e-3, (System.nanoTime() - startedAt) / 1e9);
+            System.out.println(String.format("接受连接: 共 %d 个, 平均 %.1f 个/秒, 各接受线程 %s",
+                    acceptedConnections.get(), acceptedConnections.get() / seconds, getAcceptDistribution()));
+        }
+        // 所有会话都已结束，仍借出的缓冲区即为泄漏
+        BufferPool bufferPool = BufferPool.shared();
+        System.out.println("缓冲区池: " + bufferPool.getStatistics());
+        if (bufferPool.isLeakDetection()) {
+            bufferPool.reportLeaks(0);
+        }
+    }
+    
+    public String getRootDirectory() {
+        return rootDirectory;
+    }
+    
+    public ServerConfig getConfig() {
+        return config;
+    }
+    
+    public BandwidthScheduler getBandwidthScheduler() {
+        return bandwidthScheduler;
+    }
+    
+    public StorageVolumes getVolumes() {
+        return volumes;
+    }
+    
+    public ListingCache getListingCache() {
+        return listingCache;
+    }
+    
+    public ChangeNotifier getChangeNotifier() {
+        return changeNotifier;
+    }
+    
+    public HashIndex getHashIndex() {
+        return hashIndex;
+    }
+    
+    public FileNameIndex getFileNameIndex() {
+        return fileNameIndex;
+    }
+    
+    /**
+     * TLS上下文
+     * @return 未启用TLS时返回null
+     */
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+    
+    public ContentSearcher getContentSearcher() {
+        return contentSearcher;
+    }
+    
+    public PackStore getPackStore() {
+        return packStore;
+    }
+    
+    public DiskUsage getDiskUsage() {
+        return diskUsage;
+    }
+    
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+    
+    public CopyJobs getCopyJobs() {
+        return copyJobs;
+    }
+    
+    /**
+     * 服务器是否正在运行
+     */
+    public boolean isRunning() {
+        return running;
+    }
+    
+    /**
+     * 获取实际监听的端口，端口参数为0时由系统分配
+     * @return 监听端口，服务器未运行时返回-1
+     */
+    public int getLocalPort() {
+        ServerSocket socket = serverSocket;
+        return running && socket != null ? socket.getLocalPort() : -1;
     }
     
     /**
@@ -120,7 +692,8 @@ public class FileServer {
         }
         
         // 创建并启动服务器
-        FileServer server = new FileServer(port, rootDirectory);
+        FileServer server = new FileServer(port, rootDirectory, ServerConfig.fromSystemProperties());
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "shutdown-hook"));
         server.start();
     }
 }
\ No newline at end of file
@@ -0,0 +1,522 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件内容哈希索引
+ * 保存 路径 -> (大小, 修改时间, SHA-256)，大小和修改时间未变的文件直接返回记录的哈希，不再读取内容。
+ * 索引由上传路径在接收数据时顺带更新，其余文件由限速的后台扫描补齐；
+ * 修改以追加日志的形式写入元数据目录，启动时重放，日志过长时压缩为快照。
+ * 日志先写入缓冲区，由后台线程每秒刷出一次；异常退出时丢失的最后几条记录只会让这些文件被重新计算
+ */
+public class HashIndex {
+    public static final String ALGORITHM = "SHA-256";
+
+    private static final String LOG_FILE = "hash-index.log";
+    private static final long LOG_FLUSH_MILLIS = 1000;
+
+    private final StorageVolumes volumes;
+    private final Path logFile;
+    private final long scanIntervalSeconds;
+    private final TokenBucket scanBucket;
+    /** 按路径排序，目录子树的记录是一段连续的键 */
+    private final NavigableMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private final Object logLock = new Object();
+    private Writer log;
+    private long logLines;
+    private boolean logDirty;
+    private ScheduledExecutorService scanner;
+    private ScheduledExecutorService flusher;
+    private volatile boolean closed;
+
+    /**
+     * 构造函数
+     * @param volumes 存储卷，索引以协议路径为键，覆盖所有卷
+     * @param metadataDirectory 保存索引日志的目录，应位于根目录之外
+     * @param config 服务器配置
+     */
+    public HashIndex(StorageVolumes volumes, Path metadataDirectory, ServerConfig config) {
+        this.volumes = volumes;
+        this.logFile = metadataDirectory.resolve(LOG_FILE);
+        this.scanIntervalSeconds = config.getHashScanIntervalSeconds();
+        this.scanBucket = new TokenBucket(config.getHashScanRate());
+    }
+
+    /**
+     * 加载索引并启动后台扫描
+     */
+    public void open() throws IOException {
+        Files.createDirectories(logFile.getParent());
+        if (Files.exists(logFile)) {
+            load();
+        }
+        compact();
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hash-log-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushLog, LOG_FLUSH_MILLIS, LOG_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        if (scanIntervalSeconds > 0) {
+            scanner = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "hash-scanner");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            scanner.scheduleWithFixedDelay(this::scan, 0, scanIntervalSeconds, TimeUnit.SECONDS);
+        }
+        System.out.println("哈希索引已加载: " + entries.size() + " 个文件");
+    }
+
+    /**
+     * 停止扫描并关闭日志
+     */
+    public void close() {
+        closed = true;
+        if (scanner != null) {
+            scanner.shutdownNow();
+        }
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        synchronized (logLock) {
+            if (log != null) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    System.err.println("关闭哈希索引日志时出错: " + e.getMessage());
+                }
+                log = null;
+            }
+        }
+    }
+
+    /**
+     * 查询文件的哈希
+     * 大小和修改时间与记录一致时直接返回记录，否则读取文件计算并更新索引
+     * @param file 文件
+     * @return 记录，路径不存在或不是普通文件时返回null
+     */
+    public Entry lookup(Path file) throws IOException {
+        Path absolute = file.toAbsolutePath().normalize();
+        BasicFileAttributes before;
+        try {
+            before = Files.readAttributes(absolute, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!before.isRegularFile()) {
+            return null;
+        }
+        String key = keyOf(absolute);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.matches(before)) {
+            return entry;
+        }
+        return computeAndRecord(absolute, key, before, null);
+    }
+
+    /**
+     * 记录上传时顺带计算的哈希
+     * @param file 已就位的文件
+     * @param hash 十六进制哈希
+     */
+    public void record(Path file, String hash) throws IOException {
+        Path absolute = file.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(absolute, BasicFileAttributes.class);
+        put(keyOf(absolute), new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), hash));
+    }
+
+    /**
+     * 服务器端复制完成后沿用源文件的记录
+     * 副本的大小和修改时间与源文件记录一致时哈希仍然有效，否则不记录，留给查询或扫描时计算
+     * @param source 源文件
+     * @param target 已就位的副本
+     */
+    public void copied(Path source, Path target) {
+        Entry entry = entries.get(keyOf(source.toAbsolutePath().normalize()));
+        if (entry == null) {
+            return;
+        }
+        Path absolute = target.toAbsolutePath().normalize();
+        try {
+            if (entry.matches(Files.readAttributes(absolute, BasicFileAttributes.class))) {
+                put(keyOf(absolute), entry);
+            }
+        } catch (IOException e) {
+            // 副本已被删除或改名，不记录
+        }
+    }
+
+    /**
+     * 删除文件或整个子树的记录
+     * @param path 被删除的路径
+     */
+    public void remove(Path path) {
+        String key = keyOf(path.toAbsolutePath().normalize());
+        for (String candidate : subtreeOf(key)) {
+            if (entries.remove(candidate) != null) {
+                appendLog("D\t" + escape(candidate));
+            }
+        }
+    }
+
+    /**
+     * 移动文件或整个子树的记录，内容不变因此哈希仍然有效
+     * @param source 原路径
+     * @param target 新路径
+     */
+    public void rename(Path source, Path target) {
+        String from = keyOf(source.toAbsolutePath().normalize());
+        String to = keyOf(target.toAbsolutePath().normalize());
+        for (String candidate : subtreeOf(from)) {
+            Entry entry = entries.remove(candidate);
+            if (entry != null) {
+                appendLog("D\t" + escape(candidate));
+                put(to + candidate.substring(from.length()), entry);
+            }
+        }
+    }
+
+    /**
+     * 路径自身及其子树中的所有键，根目录的键为空串，包含全部记录；
+     * '0'紧接在'/'之后，范围之内恰好是以 路径/ 开头的键
+     */
+    private List<String> subtreeOf(String key) {
+        if (key.isEmpty()) {
+            return new ArrayList<>(entries.keySet());
+        }
+        List<String> keys = new ArrayList<>();
+        if (entries.containsKey(key)) {
+            keys.add(key);
+        }
+        keys.addAll(entries.subMap(key + "/", key + "0").keySet());
+        return keys;
+    }
+
+    /**
+     * 已索引的文件数
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * 创建计算哈希用的摘要对象
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " 不可用", e);
+        }
+    }
+
+    /**
+     * 摘要转为十六进制字符串
+     */
+    public static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * 读取文件计算哈希，只在文件计算前后未变化时记录
+     * @param bucket 限速用的令牌桶，null表示不限速
+     */
+    private Entry computeAndRecord(Path file, String key, BasicFileAttributes before, TokenBucket bucket) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (bucket != null) {
+                    try {
+                        bucket.acquire(n);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("哈希计算被中断");
+                    }
+                }
+                digest.update(buffer, 0, n);
+            }
+        }
+        Entry entry = new Entry(before.size(), before.lastModifiedTime().toMillis(), toHex(digest.digest()));
+        BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+        if (entry.matches(after)) {
+            put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 后台扫描：补齐缺失或过期的记录，并删除已不存在的文件的记录
+     */
+    private void scan() {
+        Set<String> seen = new HashSet<>();
+        long[] hashed = new long[1];
+        try {
+            for (StorageVolumes.Volume volume : volumes.getVolumes()) {
+                scanVolume(volume.getDirectory(), seen, hashed);
+            }
+        } catch (IOException e) {
+            System.err.println("哈希索引扫描失败: " + e.getMessage());
+            return;
+        }
+        if (closed || Thread.currentThread().isInterrupted()) {
+            return;
+        }
+
+        int removed = 0;
+        for (String key : entries.keySet().toArray(new String[0])) {
+            if (!seen.contains(key) && !Files.isRegularFile(volumes.resolve(key))) {
+                entries.remove(key);
+                appendLog("D\t" + escape(key));
+                removed++;
+            }
+        }
+        if (hashed[0] > 0 || removed > 0) {
+            System.out.println("哈希索引扫描完成: 新计算 " + hashed[0] + " 个, 移除 " + removed + " 个, 共 " + entries.size() + " 个");
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            System.err.println("压缩哈希索引日志失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 扫描一个卷，卷中的挂载点目录是空目录，不会与挂载卷重复
+     */
+    private void scanVolume(Path directory, Set<String> seen, long[] hashed) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (closed || Thread.currentThread().isInterrupted()) {
+                    return FileVisitResult.TERMINATE;
+                }
+                if (!attributes.isRegularFile() || isTemporary(file)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String key = keyOf(file);
+                seen.add(key);
+                Entry entry = entries.get(key);
+                if (entry == null || !entry.matches(attributes)) {
+                    try {
+                        computeAndRecord(file, key, attributes, scanBucket);
+                        hashed[0]++;
+                    } catch (IOException e) {
+                        // 文件可能在扫描期间被删除，下次扫描再处理
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * 上传过程中的临时文件不计入索引
+     */
+    static boolean isTemporary(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(".") && (name.contains(".upload-") || name.contains(".copy-") || name.contains(".batch-"));
+    }
+
+    private String keyOf(Path absolute) {
+        String key = volumes.relativize(absolute);
+        return key == null ? absolute.toString() : key;
+    }
+
+    private void put(String key, Entry entry) {
+        entries.put(key, entry);
+        appendLog("P\t" + escape(key) + "\t" + entry.size + "\t" + entry.lastModified + "\t" + entry.hash);
+    }
+
+    /**
+     * 追加一行日志，只写入缓冲区，由后台线程刷出
+     */
+    private void appendLog(String line) {
+        synchronized (logLock) {
+            if (log == null) {
+                return;
+            }
+            try {
+                log.write(line);
+                log.write('\n');
+                logLines++;
+                logDirty = true;
+            } catch (IOException e) {
+                System.err.println("写入哈希索引日志失败: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 后台线程：刷出缓冲的日志，日志过长时压缩
+     */
+    private void flushLog() {
+        boolean tooLong;
+        synchronized (logLock) {
+            if (log == null) {
+                return;
+            }
+            if (logDirty) {
+                try {
+                    log.flush();
+                    logDirty = false;
+                } catch (IOException e) {
+                    System.err.println("写入哈希索引日志失败: " + e.getMessage());
+                }
+            }
+            tooLong = logLines > 2L * entries.size() + 10000;
+        }
+        if (tooLong) {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("压缩哈希索引日志失败: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 重放日志，后出现的记录覆盖先出现的
+     */
+    private void load() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                try {
+                    if ("P".equals(fields[0]) && fields.length == 5) {
+                        entries.put(unescape(fields[1]), new Entry(Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]));
+                    } else if ("D".equals(fields[0]) && fields.length == 2) {
+                        entries.remove(unescape(fields[1]));
+                    }
+                } catch (NumberFormatException e) {
+                    // 上次异常退出时可能留下不完整的最后一行
+                }
+            }
+        }
+    }
+
+    /**
+     * 把当前内容写成新日志并替换旧日志
+     */
+    private void compact() throws IOException {
+        synchronized (logLock) {
+            if (closed) {
+                return;
+            }
+            if (log != null) {
+                log.close();
+            }
+            Path tempFile = logFile.resolveSibling(LOG_FILE + ".tmp");
+            long lines = 0;
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tempFile), StandardCharsets.UTF_8))) {
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    writer.write("P\t" + escape(e.getKey()) + "\t" + entry.size + "\t" + entry.lastModified + "\t" + entry.hash + "\n");
+                    lines++;
+                }
+            }
+            try {
+                Files.move(tempFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, logFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            log = new BufferedWriter(new OutputStreamWriter(
+                    Files.newOutputStream(logFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+            logLines = lines;
+            logDirty = false;
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * 索引记录
+     */
+    public static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        public Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return attributes.size() == size && attributes.lastModifiedTime().toMillis() == lastModified;
+        }
+    }
+}
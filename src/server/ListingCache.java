@@ -0,0 +1,74 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 目录快照缓存
+ * 分页浏览同一目录时复用一次扫描的结果。条目在过期或该目录被本服务器修改时失效
+ */
+public class ListingCache {
+    private static final int MAX_ENTRIES = 16;
+    private static final long TTL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final Map<Path, DirectorySnapshot> snapshots = new LinkedHashMap<Path, DirectorySnapshot>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, DirectorySnapshot> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final PackStore packStore;
+
+    /**
+     * 构造函数
+     * @param packStore 打包存储，快照中包含其中的文件
+     */
+    public ListingCache(PackStore packStore) {
+        this.packStore = packStore;
+    }
+
+    /**
+     * 获取目录快照，缓存缺失或过期时重新扫描
+     * @param directory 目录
+     * @return 快照
+     */
+    public DirectorySnapshot get(Path directory) throws IOException {
+        directory = directory.toAbsolutePath().normalize();
+        synchronized (snapshots) {
+            DirectorySnapshot snapshot = snapshots.get(directory);
+            if (snapshot != null && snapshot.getAgeNanos() < TTL_NANOS) {
+                return snapshot;
+            }
+        }
+        // 扫描可能很慢，不在锁内进行
+        DirectorySnapshot snapshot = DirectorySnapshot.scan(directory, packStore);
+        synchronized (snapshots) {
+            snapshots.put(directory, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * 某个路径发生变化，使其父目录以及其自身子树的快照失效
+     * @param changed 被创建、修改、删除或移动的路径
+     */
+    public void invalidate(Path changed) {
+        changed = changed.toAbsolutePath().normalize();
+        Path parent = changed.getParent();
+        synchronized (snapshots) {
+            if (parent != null) {
+                snapshots.remove(parent);
+            }
+            Iterator<Path> iterator = snapshots.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().startsWith(changed)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+}
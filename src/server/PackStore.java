@@ -0,0 +1,804 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * 小文件打包存储
+ * 不超过阈值的上传不再各自创建文件，而是追加到元数据目录中的大段文件，内存中保存 路径 -> (段, 偏移, 长度) 的索引。
+ * 目录仍然是文件系统中的真实目录，打包的文件在列目录、下载、读取、哈希、移动和删除时与普通文件没有区别。
+ * 索引的修改以追加日志的形式写入，启动时重放；删除和覆盖留下的空洞由后台压缩回收：
+ * 失效数据超过一定比例的段，其中仍有效的文件被逐个搬到当前段的末尾，之后删除整个段。
+ * 锁只保护索引：写入时在锁内预留段中的位置，在锁外写数据并刷到磁盘，再回到锁内更新索引和日志；
+ * 读取时在锁内取得记录并标记段正在使用，在锁外读数据，使用中的段不会被回收
+ */
+public class PackStore {
+    private static final String DIRECTORY = "packs";
+    private static final String LOG_FILE = "pack-index.log";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final long COMPACT_INTERVAL_SECONDS = 30;
+    /** 打包的文件整体在内存中收发，阈值不能过大 */
+    private static final long MAX_THRESHOLD = 16L * 1024 * 1024;
+
+    private final StorageVolumes volumes;
+    private final Path directory;
+    private final Path logFile;
+    private final long threshold;
+    private final long segmentSize;
+    private final int compactPercent;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /** 目录的协议路径 -> (文件名 -> 记录) */
+    private final NavigableMap<String, TreeMap<String, Entry>> children = new TreeMap<>();
+    private final Map<Integer, Segment> segments = new HashMap<>();
+    private Segment active;
+    private volatile int count;
+    private volatile Writer log;
+    private long logLines;
+    private ScheduledExecutorService compactor;
+    private volatile boolean closed;
+
+    /**
+     * 构造函数
+     * @param volumes 存储卷，索引以协议路径为键，覆盖所有卷
+     * @param metadataDirectory 元数据目录，段文件和索引日志保存在其中的 packs 子目录
+     * @param config 服务器配置
+     */
+    public PackStore(StorageVolumes volumes, Path metadataDirectory, ServerConfig config) {
+        this.volumes = volumes;
+        this.directory = metadataDirectory.resolve(DIRECTORY);
+        this.logFile = directory.resolve(LOG_FILE);
+        this.threshold = Math.min(config.getPackThreshold(), MAX_THRESHOLD);
+        this.segmentSize = Math.max(config.getPackSegmentSize(), threshold);
+        this.compactPercent = Math.max(1, Math.min(config.getPackCompactPercent(), 100));
+    }
+
+    /**
+     * 加载索引并启动后台压缩
+     * 未启用打包时若以前打包过文件，仍然加载以便读取和删除它们
+     */
+    public void open() throws IOException {
+        if (threshold <= 0 && !Files.exists(logFile)) {
+            return;
+        }
+        Files.createDirectories(directory);
+        lock.writeLock().lock();
+        try {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                for (Path file : stream) {
+                    String name = file.getFileName().toString();
+                    try {
+                        int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                        segments.put(id, new Segment(id, file));
+                    } catch (NumberFormatException e) {
+                        // 不是本存储的段文件
+                    }
+                }
+            }
+            if (Files.exists(logFile)) {
+                load();
+            }
+            for (Segment segment : segments.values()) {
+                if (active == null || segment.id > active.id) {
+                    active = segment;
+                }
+            }
+            compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pack-compactor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::reclaim, COMPACT_INTERVAL_SECONDS, COMPACT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        System.out.println("打包存储已加载: " + count + " 个文件, " + segments.size() + " 个段"
+                + (threshold > 0 ? ", 打包不超过 " + threshold + " 字节的文件" : ", 不再打包新文件"));
+    }
+
+    /**
+     * 停止压缩，关闭日志和段文件
+     */
+    public void close() {
+        closed = true;
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        lock.writeLock().lock();
+        try {
+            if (log != null) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    System.err.println("关闭打包索引日志时出错: " + e.getMessage());
+                }
+                log = null;
+            }
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 该大小的上传是否打包存储
+     */
+    public boolean accepts(long size) {
+        return threshold > 0 && size >= 0 && size <= threshold && log != null;
+    }
+
+    /**
+     * 查找打包的文件
+     * @return 记录，路径不是打包的文件时返回null
+     */
+    public Entry get(Path file) {
+        String key = volumes.toProtocolPath(file);
+        if (key == null || count == 0) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            TreeMap<String, Entry> files = children.get(parentOf(key));
+            return files == null ? null : files.get(nameOf(key));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 读取打包文件的全部内容
+     * @return 内容，路径不是打包的文件时返回null
+     */
+    public byte[] read(Path file) throws IOException {
+        String key = volumes.toProtocolPath(file);
+        if (key == null || count == 0) {
+            return null;
+        }
+        Entry entry;
+        Segment segment;
+        lock.readLock().lock();
+        try {
+            TreeMap<String, Entry> files = children.get(parentOf(key));
+            entry = files == null ? null : files.get(nameOf(key));
+            if (entry == null) {
+                return null;
+            }
+            segment = pin(entry.segment);
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            return readData(segment, entry);
+        } finally {
+            segment.users.decrementAndGet();
+        }
+    }
+
+    /**
+     * 保存文件内容，覆盖同一路径原有的打包文件
+     * @param file 文件路径，所在目录须已存在
+     * @param data 内容
+     * @param lastModified 修改时间(毫秒)
+     * @param hash 内容的SHA-256十六进制字符串
+     * @return 被覆盖的记录，原来不存在时返回null
+     */
+    public Entry put(Path file, ByteBuffer data, long lastModified, String hash) throws IOException {
+        String key = volumes.toProtocolPath(file);
+        if (key == null) {
+            throw new IOException("路径不在任何卷中: " + file);
+        }
+        Entry entry = write(data, lastModified, hash);
+        Entry previous;
+        lock.writeLock().lock();
+        try {
+            previous = children.computeIfAbsent(parentOf(key), k -> new TreeMap<>()).put(nameOf(key), entry);
+            if (previous != null) {
+                release(previous);
+            } else {
+                count++;
+            }
+            appendLog("P\t" + escape(key) + "\t" + format(entry));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flushLog();
+        return previous;
+    }
+
+    /**
+     * 删除打包的文件
+     * @return 被删除的记录，路径不是打包的文件时返回null
+     */
+    public Entry remove(Path file) {
+        String key = volumes.toProtocolPath(file);
+        if (key == null || count == 0) {
+            return null;
+        }
+        Entry removed;
+        lock.writeLock().lock();
+        try {
+            removed = removeLocked(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flushLog();
+        return removed;
+    }
+
+    /**
+     * 删除目录子树中所有打包的文件
+     * @param directory 被删除的目录
+     * @return 删除的文件数
+     */
+    public int removeTree(Path directory) {
+        String key = volumes.toProtocolPath(directory);
+        if (key == null || count == 0) {
+            return 0;
+        }
+        int removed = 0;
+        lock.writeLock().lock();
+        try {
+            for (String dir : directoriesUnder(key)) {
+                for (String name : new ArrayList<>(children.get(dir).keySet())) {
+                    removeLocked(join(dir, name));
+                    removed++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flushLog();
+        return removed;
+    }
+
+    /**
+     * 移动打包的文件，或目录子树中所有打包的文件，内容不动
+     * @param source 原路径
+     * @param target 新路径
+     * @return 移动的文件数
+     */
+    public int rename(Path source, Path target) {
+        String from = volumes.toProtocolPath(source);
+        String to = volumes.toProtocolPath(target);
+        if (from == null || to == null || count == 0) {
+            return 0;
+        }
+        int moved = 0;
+        lock.writeLock().lock();
+        try {
+            TreeMap<String, Entry> siblings = children.get(parentOf(from));
+            Entry entry = siblings == null ? null : siblings.get(nameOf(from));
+            if (entry != null) {
+                removeLocked(from);
+                putLocked(to, entry);
+                moved = 1;
+            } else {
+                for (String dir : directoriesUnder(from)) {
+                    String newDir = to + dir.substring(from.length());
+                    for (Map.Entry<String, Entry> file : new ArrayList<>(children.get(dir).entrySet())) {
+                        removeLocked(join(dir, file.getKey()));
+                        putLocked(join(newDir, file.getKey()), file.getValue());
+                        moved++;
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flushLog();
+        return moved;
+    }
+
+    /**
+     * 目录中直接包含的打包文件
+     * @return 文件名 -> 记录，按名称排序
+     */
+    public Map<String, Entry> list(Path directory) {
+        String key = volumes.toProtocolPath(directory);
+        if (key == null || count == 0) {
+            return new TreeMap<>();
+        }
+        lock.readLock().lock();
+        try {
+            TreeMap<String, Entry> files = children.get(key);
+            return files == null ? new TreeMap<>() : new TreeMap<>(files);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 遍历目录子树中所有打包的文件
+     * @param directory 目录，为null时遍历全部；是打包的文件时只有它自己
+     * @param consumer 接收文件的实际路径和记录
+     */
+    public void forEach(Path directory, BiConsumer<Path, Entry> consumer) {
+        String key = directory == null ? "/" : volumes.toProtocolPath(directory);
+        if (key == null || count == 0) {
+            return;
+        }
+        Map<String, Entry> snapshot = new TreeMap<>();
+        lock.readLock().lock();
+        try {
+            TreeMap<String, Entry> siblings = children.get(parentOf(key));
+            Entry entry = siblings == null || key.equals("/") ? null : siblings.get(nameOf(key));
+            if (entry != null) {
+                snapshot.put(key, entry);
+            }
+            for (String dir : directoriesUnder(key)) {
+                for (Map.Entry<String, Entry> file : children.get(dir).entrySet()) {
+                    snapshot.put(join(dir, file.getKey()), file.getValue());
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (Map.Entry<String, Entry> file : snapshot.entrySet()) {
+            consumer.accept(volumes.resolve(file.getKey().substring(1)), file.getValue());
+        }
+    }
+
+    /**
+     * 打包的文件数
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * 回收失效数据比例达到阈值的段
+     */
+    private void reclaim() {
+        List<Segment> candidates = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.end > 0 && (segment.end - segment.live) * 100 >= segment.end * compactPercent) {
+                    candidates.add(segment);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (Segment segment : candidates) {
+            if (closed) {
+                return;
+            }
+            try {
+                compactSegment(segment);
+            } catch (IOException e) {
+                System.err.println("压缩打包段失败: " + segment.file + " - " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 把段中仍有效的文件逐个搬到当前段，读写数据时不持有锁，之后删除该段；
+     * 段仍被读写时留到下一轮再删除
+     */
+    private void compactSegment(Segment segment) throws IOException {
+        long before = segment.end;
+        List<String> keys = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, TreeMap<String, Entry>> dir : children.entrySet()) {
+                for (Map.Entry<String, Entry> file : dir.getValue().entrySet()) {
+                    if (file.getValue().segment == segment.id) {
+                        keys.add(join(dir.getKey(), file.getKey()));
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (String key : keys) {
+            Entry entry;
+            lock.readLock().lock();
+            try {
+                TreeMap<String, Entry> files = children.get(parentOf(key));
+                entry = files == null ? null : files.get(nameOf(key));
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (entry == null || entry.segment != segment.id) {
+                // 已被删除或覆盖
+                continue;
+            }
+            // 只有本线程删除段，读取期间段不会消失
+            Entry moved = write(ByteBuffer.wrap(readData(segment, entry)), entry.lastModified, entry.hash);
+            lock.writeLock().lock();
+            try {
+                TreeMap<String, Entry> files = children.get(parentOf(key));
+                if (files == null || files.get(nameOf(key)) != entry) {
+                    // 搬动期间被删除或覆盖，新写入的数据成为空洞
+                    release(moved);
+                    continue;
+                }
+                files.put(nameOf(key), moved);
+                release(entry);
+                appendLog("P\t" + escape(key) + "\t" + format(moved));
+            } finally {
+                lock.writeLock().unlock();
+            }
+            flushLog();
+        }
+        lock.writeLock().lock();
+        try {
+            if (segment.live == 0 && segment != active && segment.users.get() == 0) {
+                segments.remove(segment.id);
+                segment.close();
+                Files.deleteIfExists(segment.file);
+                System.out.println("打包段已回收: " + segment.file.getFileName() + ", 释放 " + before + " 字节");
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 把数据写入段文件并刷到磁盘，之后才能在索引日志中引用它
+     * 预留时即计为有效数据，写入期间段不会被回收；记录未被采用时调用者须 release
+     * @return 尚未加入索引的记录
+     */
+    private Entry write(ByteBuffer data, long lastModified, String hash) throws IOException {
+        int length = data.remaining();
+        Segment segment;
+        long offset;
+        lock.writeLock().lock();
+        try {
+            if (active == null || active.end + length > segmentSize) {
+                int id = active == null ? 1 : active.id + 1;
+                while (segments.containsKey(id)) {
+                    id++;
+                }
+                active = new Segment(id, directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)));
+                segments.put(id, active);
+            }
+            segment = active;
+            offset = segment.end;
+            segment.end += length;
+            segment.live += length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            while (data.hasRemaining()) {
+                segment.channel.write(data, offset + length - data.remaining());
+            }
+            segment.channel.force(false);
+        } catch (IOException e) {
+            lock.writeLock().lock();
+            try {
+                segment.live -= length;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            throw e;
+        }
+        return new Entry(segment.id, offset, length, lastModified, hash);
+    }
+
+    /**
+     * 取得记录所在的段并标记为正在读取，调用者持有锁，读完后减少使用计数
+     */
+    private Segment pin(int id) throws IOException {
+        Segment segment = segments.get(id);
+        if (segment == null) {
+            throw new IOException("打包段不存在: " + id);
+        }
+        segment.users.incrementAndGet();
+        return segment;
+    }
+
+    private byte[] readData(Segment segment, Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        while (buffer.hasRemaining()) {
+            if (segment.channel.read(buffer, entry.offset + buffer.position()) < 0) {
+                throw new IOException("打包段已被截断: " + segment.file);
+            }
+        }
+        return buffer.array();
+    }
+
+    private Entry removeLocked(String key) {
+        String parent = parentOf(key);
+        TreeMap<String, Entry> files = children.get(parent);
+        Entry entry = files == null ? null : files.remove(nameOf(key));
+        if (entry == null) {
+            return null;
+        }
+        if (files.isEmpty()) {
+            children.remove(parent);
+        }
+        release(entry);
+        count--;
+        appendLog("D\t" + escape(key));
+        return entry;
+    }
+
+    private void putLocked(String key, Entry entry) {
+        Segment segment = segments.get(entry.segment);
+        if (segment != null) {
+            segment.live += entry.length;
+        }
+        Entry previous = children.computeIfAbsent(parentOf(key), k -> new TreeMap<>()).put(nameOf(key), entry);
+        if (previous != null) {
+            release(previous);
+        } else {
+            count++;
+        }
+        appendLog("P\t" + escape(key) + "\t" + format(entry));
+    }
+
+    private void release(Entry entry) {
+        Segment segment = segments.get(entry.segment);
+        if (segment != null) {
+            segment.live -= entry.length;
+        }
+    }
+
+    /**
+     * 目录自身及其下所有含有打包文件的目录
+     */
+    private List<String> directoriesUnder(String key) {
+        List<String> result = new ArrayList<>();
+        if (children.containsKey(key)) {
+            result.add(key);
+        }
+        String prefix = key.equals("/") ? "/" : key + "/";
+        String end = key.equals("/") ? "0" : key + "0";
+        for (String dir : children.subMap(prefix, true, end, false).keySet()) {
+            if (!dir.equals(key)) {
+                result.add(dir);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 重放日志，后出现的记录覆盖先出现的
+     */
+    private void load() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                try {
+                    if ("P".equals(fields[0]) && fields.length == 7) {
+                        String key = unescape(fields[1]);
+                        Entry entry = new Entry(Integer.parseInt(fields[2]), Long.parseLong(fields[3]),
+                                Integer.parseInt(fields[4]), Long.parseLong(fields[5]), fields[6]);
+                        Entry previous = children.computeIfAbsent(parentOf(key), k -> new TreeMap<>()).put(nameOf(key), entry);
+                        if (previous == null) {
+                            count++;
+                        }
+                    } else if ("D".equals(fields[0]) && fields.length == 2) {
+                        String key = unescape(fields[1]);
+                        TreeMap<String, Entry> files = children.get(parentOf(key));
+                        if (files != null && files.remove(nameOf(key)) != null) {
+                            count--;
+                            if (files.isEmpty()) {
+                                children.remove(parentOf(key));
+                            }
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    // 上次异常退出时可能留下不完整的最后一行
+                }
+            }
+        }
+        // 段文件缺失或比记录短的文件无法读取，丢弃它们
+        for (TreeMap<String, Entry> files : children.values()) {
+            files.values().removeIf(entry -> {
+                Segment segment = segments.get(entry.segment);
+                if (segment == null || entry.offset + entry.length > segment.end) {
+                    count--;
+                    return true;
+                }
+                segment.live += entry.length;
+                return false;
+            });
+        }
+        children.values().removeIf(Map::isEmpty);
+    }
+
+    /**
+     * 追加一行日志，只写入缓冲区，调用者持有写锁
+     */
+    private void appendLog(String line) {
+        if (log == null) {
+            return;
+        }
+        try {
+            log.write(line);
+            log.write('\n');
+            logLines++;
+        } catch (IOException e) {
+            System.err.println("写入打包索引日志失败: " + e.getMessage());
+        }
+        if (logLines > 2L * count + 10000) {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("压缩打包索引日志失败: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 把锁内写入缓冲区的日志刷出，在释放写锁之后调用，日志的顺序由锁内写入缓冲区的顺序决定
+     */
+    private void flushLog() {
+        Writer writer = log;
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            // 日志刚被压缩替换时旧的写入器已关闭，内容已写入新日志
+            if (writer == log) {
+                System.err.println("写入打包索引日志失败: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 把当前索引写成新日志并替换旧日志，调用者持有写锁
+     */
+    private void compact() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (log != null) {
+            log.close();
+        }
+        Path tempFile = logFile.resolveSibling(LOG_FILE + ".tmp");
+        long lines = 0;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tempFile), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, TreeMap<String, Entry>> dir : children.entrySet()) {
+                for (Map.Entry<String, Entry> file : dir.getValue().entrySet()) {
+                    writer.write("P\t" + escape(join(dir.getKey(), file.getKey())) + "\t" + format(file.getValue()) + "\n");
+                    lines++;
+                }
+            }
+        }
+        try {
+            Files.move(tempFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, logFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        log = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(logFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+        logLines = lines;
+    }
+
+    private static String format(Entry entry) {
+        return entry.segment + "\t" + entry.offset + "\t" + entry.length + "\t" + entry.lastModified + "\t" + entry.hash;
+    }
+
+    private static String parentOf(String key) {
+        int slash = key.lastIndexOf('/');
+        return slash <= 0 ? "/" : key.substring(0, slash);
+    }
+
+    private static String nameOf(String key) {
+        return key.substring(key.lastIndexOf('/') + 1);
+    }
+
+    private static String join(String directory, String name) {
+        return directory.equals("/") ? "/" + name : directory + "/" + name;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * 一个段文件
+     */
+    private static class Segment {
+        private final int id;
+        private final Path file;
+        private final FileChannel channel;
+        private long end;
+        private long live;
+        /** 锁外正在读取的线程数，不为0时段不能删除 */
+        private final AtomicInteger users = new AtomicInteger();
+
+        Segment(int id, Path file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.end = channel.size();
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // 关闭时的错误不影响已写入的数据
+            }
+        }
+    }
+
+    /**
+     * 索引记录
+     */
+    public static class Entry {
+        private final int segment;
+        private final long offset;
+        private final int length;
+        private final long lastModified;
+        private final String hash;
+
+        Entry(int segment, long offset, int length, long lastModified, String hash) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * SHA-256 十六进制字符串
+         */
+        public String getHash() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package server;
+
+/**
+ * 服务器配置
+ * 各项默认值可通过 -Djrfm.xxx 系统属性覆盖，带宽类配置支持K/M/G后缀
+ */
+public class ServerConfig {
+    private long globalBandwidth;       // 全局带宽上限(字节/秒)，0表示不限
+    private long connectionBandwidth;   // 单连接带宽上限(字节/秒)，0表示不限
+    private long userBandwidth;         // 单用户(客户端地址)带宽上限(字节/秒)，0表示不限
+    private int maxActiveSessions = 10; // 同时处理的会话数，即工作线程数
+    private int maxQueuedSessions = 50; // 等待工作线程的会话数，超出后直接拒绝
+    private int maxConnectionsPerIp = 16; // 单个客户端地址的连接数上限，0表示不限
+    private int acceptBacklog = 50;     // 监听套接字的内核等待队列长度
+    private int acceptorThreads = 1;    // 接受连接的线程数，多于1个时各用一个 SO_REUSEPORT 监听套接字
+    private int idleTimeoutSeconds = 300; // 会话无任何活动超过该时长即被回收，0表示不回收
+    private int shutdownGraceSeconds = 30; // 关闭时等待进行中命令完成的最长时间
+    private int watchMaxDirectories = 4096; // WatchService 最多监视的目录数，受内核 inotify 上限约束
+    private int watchMaxPendingEvents = 1000; // 单个订阅积压的事件数上限，超出后改为通知客户端重新同步
+    private String metadataDirectory;   // 索引等元数据的保存目录，为空时使用根目录旁的 <根目录>.jrfm
+    private int hashScanIntervalSeconds = 3600; // 哈希索引后台扫描的间隔，0表示不扫描
+    private long hashScanRate = 16L * 1024 * 1024; // 后台扫描读取文件的速率上限(字节/秒)，0表示不限
+    private String tlsKeyStore;         // 服务器证书所在的密钥库，设置后所有连接都使用TLS
+    private String tlsKeyStorePassword = ""; // 密钥库和私钥的密码
+    private String tlsKeyStoreType;     // 密钥库类型，为空时为PKCS12
+    private int grepParallelism = Runtime.getRuntime().availableProcessors(); // GREP扫描线程数，所有请求共用
+    private String volumes;             // 挂载卷，格式为 前缀=目录,前缀=目录，为空时只有根目录一个卷
+    private int volumeIoThreads = 4;    // 每个卷的磁盘I/O线程数
+    private int volumeIoQueue = 64;     // 每个卷排队等待I/O线程的任务数，超出后提交者阻塞
+    private int pipelineDepth = 4;      // 每个传输在网络和磁盘之间最多在途的数据块数(每块64K)
+    private int copyThreads = 2;        // 同时执行的服务器端复制作业数
+    private String quotas;              // 目录配额，格式为 路径=大小,路径=大小，大小支持K/M/G后缀
+    private int diskUsageParallelism = Runtime.getRuntime().availableProcessors(); // 启动时统计磁盘用量的并行度
+    private long packThreshold;         // 不超过该大小的上传打包存入段文件，0表示不打包
+    private long packSegmentSize = 256L * 1024 * 1024; // 打包段文件的大小上限
+    private int packCompactPercent = 50; // 段中失效数据达到该百分比时后台压缩回收
+    private String accessLog;           // 访问日志文件，为空时写到元数据目录的 access.log，为"-"时不写
+    private long accessLogMaxSize = 64L * 1024 * 1024; // 访问日志超过该大小时轮转，0表示不轮转
+    private int accessLogBackups = 5;   // 轮转后保留的旧日志文件数
+    private int accessLogBuffer = 16384; // 等待写入的日志记录数上限，超出后丢弃新记录
+    private String adminAddresses;      // 允许用 QUOTA/BANDWIDTH 命令修改配额和带宽的客户端地址，逗号分隔；为空时只能通过配置修改
+
+    public long getGlobalBandwidth() {
+        return globalBandwidth;
+    }
+
+    public void setGlobalBandwidth(long globalBandwidth) {
+        this.globalBandwidth = globalBandwidth;
+    }
+
+    public long getConnectionBandwidth() {
+        return connectionBandwidth;
+    }
+
+    public void setConnectionBandwidth(long connectionBandwidth) {
+        this.connectionBandwidth = connectionBandwidth;
+    }
+
+    public long getUserBandwidth() {
+        return userBandwidth;
+    }
+
+    public void setUserBandwidth(long userBandwidth) {
+        this.userBandwidth = userBandwidth;
+    }
+
+    public int getMaxActiveSessions() {
+        return maxActiveSessions;
+    }
+
+    public void setMaxActiveSessions(int maxActiveSessions) {
+        this.maxActiveSessions = maxActiveSessions;
+    }
+
+    public int getMaxQueuedSessions() {
+        return maxQueuedSessions;
+    }
+
+    public void setMaxQueuedSessions(int maxQueuedSessions) {
+        this.maxQueuedSessions = maxQueuedSessions;
+    }
+
+    public int getMaxConnectionsPerIp() {
+        return maxConnectionsPerIp;
+    }
+
+    public void setMaxConnectionsPerIp(int maxConnectionsPerIp) {
+        this.maxConnectionsPerIp = maxConnectionsPerIp;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    public int getAcceptorThreads() {
+        return acceptorThreads;
+    }
+
+    public void setAcceptorThreads(int acceptorThreads) {
+        this.acceptorThreads = acceptorThreads;
+    }
+
+    public int getIdleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+
+    public void setIdleTimeoutSeconds(int idleTimeoutSeconds) {
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+    }
+
+    public int getShutdownGraceSeconds() {
+        return shutdownGraceSeconds;
+    }
+
+    public void setShutdownGraceSeconds(int shutdownGraceSeconds) {
+        this.shutdownGraceSeconds = shutdownGraceSeconds;
+    }
+
+    public int getWatchMaxDirectories() {
+        return watchMaxDirectories;
+    }
+
+    public void setWatchMaxDirectories(int watchMaxDirectories) {
+        this.watchMaxDirectories = watchMaxDirectories;
+    }
+
+    public int getWatchMaxPendingEvents() {
+        return watchMaxPendingEvents;
+    }
+
+    public void setWatchMaxPendingEvents(int watchMaxPendingEvents) {
+        this.watchMaxPendingEvents = watchMaxPendingEvents;
+    }
+
+    public String getMetadataDirectory() {
+        return metadataDirectory;
+    }
+
+    public void setMetadataDirectory(String metadataDirectory) {
+        this.metadataDirectory = metadataDirectory;
+    }
+
+    public int getHashScanIntervalSeconds() {
+        return hashScanIntervalSeconds;
+    }
+
+    public void setHashScanIntervalSeconds(int hashScanIntervalSeconds) {
+        this.hashScanIntervalSeconds = hashScanIntervalSeconds;
+    }
+
+    public long getHashScanRate() {
+        return hashScanRate;
+    }
+
+    public void setHashScanRate(long hashScanRate) {
+        this.hashScanRate = hashScanRate;
+    }
+
+    public String getTlsKeyStore() {
+        return tlsKeyStore;
+    }
+
+    public void setTlsKeyStore(String tlsKeyStore) {
+        this.tlsKeyStore = tlsKeyStore;
+    }
+
+    public String getTlsKeyStorePassword() {
+        return tlsKeyStorePassword;
+    }
+
+    public void setTlsKeyStorePassword(String tlsKeyStorePassword) {
+        this.tlsKeyStorePassword = tlsKeyStorePassword;
+    }
+
+    public String getTlsKeyStoreType() {
+        return tlsKeyStoreType;
+    }
+
+    public void setTlsKeyStoreType(String tlsKeyStoreType) {
+        this.tlsKeyStoreType = tlsKeyStoreType;
+    }
+
+    public int getGrepParallelism() {
+        return grepParallelism;
+    }
+
+    public void setGrepParallelism(int grepParallelism) {
+        this.grepParallelism = grepParallelism;
+    }
+
+    public String getVolumes() {
+        return volumes;
+    }
+
+    public void setVolumes(String volumes) {
+        this.volumes = volumes;
+    }
+
+    public int getVolumeIoThreads() {
+        return volumeIoThreads;
+    }
+
+    public void setVolumeIoThreads(int volumeIoThreads) {
+        this.volumeIoThreads = volumeIoThreads;
+    }
+
+    public int getVolumeIoQueue() {
+        return volumeIoQueue;
+    }
+
+    public void setVolumeIoQueue(int volumeIoQueue) {
+        this.volumeIoQueue = volumeIoQueue;
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    public int getCopyThreads() {
+        return copyThreads;
+    }
+
+    public void setCopyThreads(int copyThreads) {
+        this.copyThreads = copyThreads;
+    }
+
+    public String getQuotas() {
+        return quotas;
+    }
+
+    public void setQuotas(String quotas) {
+        this.quotas = quotas;
+    }
+
+    public int getDiskUsageParallelism() {
+        return diskUsageParallelism;
+    }
+
+    public void setDiskUsageParallelism(int diskUsageParallelism) {
+        this.diskUsageParallelism = diskUsageParallelism;
+    }
+
+    public long getPackThreshold() {
+        return packThreshold;
+    }
+
+    public void setPackThreshold(long packThreshold) {
+        this.packThreshold = packThreshold;
+    }
+
+    public long getPackSegmentSize() {
+        return packSegmentSize;
+    }
+
+    public void setPackSegmentSize(long packSegmentSize) {
+        this.packSegmentSize = packSegmentSize;
+    }
+
+    public int getPackCompactPercent() {
+        return packCompactPercent;
+    }
+
+    public void setPackCompactPercent(int packCompactPercent) {
+        this.packCompactPercent = packCompactPercent;
+    }
+
+    public String getAccessLog() {
+        return accessLog;
+    }
+
+    public void setAccessLog(String accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    public long getAccessLogMaxSize() {
+        return accessLogMaxSize;
+    }
+
+    public void setAccessLogMaxSize(long accessLogMaxSize) {
+        this.accessLogMaxSize = accessLogMaxSize;
+    }
+
+    public int getAccessLogBackups() {
+        return accessLogBackups;
+    }
+
+    public void setAccessLogBackups(int accessLogBackups) {
+        this.accessLogBackups = accessLogBackups;
+    }
+
+    public int getAccessLogBuffer() {
+        return accessLogBuffer;
+    }
+
+    public void setAccessLogBuffer(int accessLogBuffer) {
+        this.accessLogBuffer = accessLogBuffer;
+    }
+
+    public String getAdminAddresses() {
+        return adminAddresses;
+    }
+
+    public void setAdminAddresses(String adminAddresses) {
+        this.adminAddresses = adminAddresses;
+    }
+
+    /**
+     * 从系统属性读取配置
+     * @return 配置对象
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.setGlobalBandwidth(getSize("jrfm.bandwidth.global", config.getGlobalBandwidth()));
+        config.setConnectionBandwidth(getSize("jrfm.bandwidth.connection", config.getConnectionBandwidth()));
+        config.setUserBandwidth(getSize("jrfm.bandwidth.user", config.getUserBandwidth()));
+        config.setMaxActiveSessions(getInt("jrfm.sessions.active", config.getMaxActiveSessions()));
+        config.setMaxQueuedSessions(getInt("jrfm.sessions.queued", config.getMaxQueuedSessions()));
+        config.setMaxConnectionsPerIp(getInt("jrfm.sessions.perIp", config.getMaxConnectionsPerIp()));
+        config.setAcceptBacklog(getInt("jrfm.accept.backlog", config.getAcceptBacklog()));
+        config.setAcceptorThreads(getInt("jrfm.accept.threads", config.getAcceptorThreads()));
+        config.setIdleTimeoutSeconds(getInt("jrfm.session.idleTimeout", config.getIdleTimeoutSeconds()));
+        config.setShutdownGraceSeconds(getInt("jrfm.shutdown.grace", config.getShutdownGraceSeconds()));
+        config.setWatchMaxDirectories(getInt("jrfm.watch.maxDirectories", config.getWatchMaxDirectories()));
+        config.setWatchMaxPendingEvents(getInt("jrfm.watch.maxPending", config.getWatchMaxPendingEvents()));
+        config.setMetadataDirectory(System.getProperty("jrfm.metadata.dir", config.getMetadataDirectory()));
+        config.setHashScanIntervalSeconds(getInt("jrfm.hash.scanInterval", config.getHashScanIntervalSeconds()));
+        config.setHashScanRate(getSize("jrfm.hash.scanRate", config.getHashScanRate()));
+        config.setTlsKeyStore(System.getProperty("jrfm.tls.keyStore", config.getTlsKeyStore()));
+        config.setTlsKeyStorePassword(System.getProperty("jrfm.tls.keyStorePassword", config.getTlsKeyStorePassword()));
+        config.setTlsKeyStoreType(System.getProperty("jrfm.tls.keyStoreType", config.getTlsKeyStoreType()));
+        config.setGrepParallelism(getInt("jrfm.grep.parallelism", config.getGrepParallelism()));
+        config.setVolumes(System.getProperty("jrfm.volumes", config.getVolumes()));
+        config.setVolumeIoThreads(getInt("jrfm.volumes.ioThreads", config.getVolumeIoThreads()));
+        config.setVolumeIoQueue(getInt("jrfm.volumes.ioQueue", config.getVolumeIoQueue()));
+        config.setPipelineDepth(getInt("jrfm.pipeline.depth", config.getPipelineDepth()));
+        config.setCopyThreads(getInt("jrfm.copy.threads", config.getCopyThreads()));
+        config.setQuotas(System.getProperty("jrfm.quotas", config.getQuotas()));
+        config.setDiskUsageParallelism(getInt("jrfm.du.parallelism", config.getDiskUsageParallelism()));
+        config.setPackThreshold(getSize("jrfm.pack.threshold", config.getPackThreshold()));
+        config.setPackSegmentSize(getSize("jrfm.pack.segmentSize", config.getPackSegmentSize()));
+        config.setPackCompactPercent(getInt("jrfm.pack.compactPercent", config.getPackCompactPercent()));
+        config.setAccessLog(System.getProperty("jrfm.accesslog", config.getAccessLog()));
+        config.setAccessLogMaxSize(getSize("jrfm.accesslog.maxSize", config.getAccessLogMaxSize()));
+        config.setAccessLogBackups(getInt("jrfm.accesslog.backups", config.getAccessLogBackups()));
+        config.setAccessLogBuffer(getInt("jrfm.accesslog.buffer", config.getAccessLogBuffer()));
+        config.setAdminAddresses(System.getProperty("jrfm.admin.addresses", config.getAdminAddresses()));
+        return config;
+    }
+
+    /**
+     * 解析大小，支持K/M/G后缀
+     * @param text 文本，如 10M
+     * @return 字节数
+     */
+    public static long parseSize(String text) {
+        String value = text.trim().toUpperCase();
+        long unit = 1;
+        if (value.endsWith("K")) {
+            unit = 1024;
+        } else if (value.endsWith("M")) {
+            unit = 1024 * 1024;
+        } else if (value.endsWith("G")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value.trim()) * unit;
+    }
+
+    private static long getSize(String key, long defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return parseSize(value);
+        } catch (NumberFormatException e) {
+            System.err.println("配置项格式错误，使用默认值: " + key + "=" + value);
+            return defaultValue;
+        }
+    }
+
+    private static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("配置项格式错误，使用默认值: " + key + "=" + value);
+            return defaultValue;
+        }
+    }
+}
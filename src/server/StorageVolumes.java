@@ -0,0 +1,398 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 存储卷
+ * 命名空间由根卷和若干挂载卷组成，挂载卷接管某个前缀(如 /archive)下的全部路径，通常每块磁盘一个卷。
+ * 每个卷有自己的有界I/O线程池，传输中的磁盘读写交给文件所在卷的线程执行，
+ * 一块慢盘或忙盘只会拖慢访问它的请求，不会占满其他卷的I/O线程。
+ * 配置: -Djrfm.volumes=archive=/mnt/disk2,media=/mnt/disk3，
+ * -Djrfm.volumes.ioThreads 每卷I/O线程数，-Djrfm.volumes.ioQueue 每卷排队的I/O任务数
+ */
+public class StorageVolumes {
+    private final Volume rootVolume;
+    /** 挂载卷，前缀长的在前，解析路径时取最长匹配 */
+    private final List<Volume> mounted = new ArrayList<>();
+    private final List<Volume> all = new ArrayList<>();
+
+    /**
+     * 构造函数
+     * @param rootDirectory 服务器文件根目录，即根卷
+     * @param config 服务器配置
+     * @throws IllegalArgumentException 卷配置格式错误，或卷目录互相重叠
+     */
+    public StorageVolumes(String rootDirectory, ServerConfig config) {
+        int threads = Math.max(1, config.getVolumeIoThreads());
+        int queue = Math.max(0, config.getVolumeIoQueue());
+        rootVolume = new Volume("", Paths.get(rootDirectory).toAbsolutePath().normalize(), threads, queue);
+        all.add(rootVolume);
+        String spec = config.getVolumes();
+        if (spec != null && !spec.trim().isEmpty()) {
+            for (String entry : spec.split(",")) {
+                int eq = entry.indexOf('=');
+                if (eq <= 0 || eq == entry.length() - 1) {
+                    throw new IllegalArgumentException("卷配置格式应为 前缀=目录: " + entry.trim());
+                }
+                String prefix = normalize(entry.substring(0, eq).trim());
+                if (prefix.isEmpty() || prefix.startsWith("..")) {
+                    throw new IllegalArgumentException("无效的卷前缀: " + entry.trim());
+                }
+                Path directory = Paths.get(entry.substring(eq + 1).trim()).toAbsolutePath().normalize();
+                for (Volume other : all) {
+                    if (other.prefix.equals(prefix)) {
+                        throw new IllegalArgumentException("卷前缀重复: /" + prefix);
+                    }
+                    if (directory.startsWith(other.directory) || other.directory.startsWith(directory)) {
+                        // 重叠的卷会让同一个文件有两个路径，索引和变化通知都无法正确处理
+                        throw new IllegalArgumentException("卷目录重叠: " + directory + " 与 " + other.directory);
+                    }
+                }
+                Volume volume = new Volume(prefix, directory, threads, queue);
+                mounted.add(volume);
+                all.add(volume);
+            }
+        }
+        mounted.sort(Comparator.comparingInt((Volume volume) -> volume.prefix.length()).reversed());
+    }
+
+    /**
+     * 创建各卷的目录，并在上级卷中创建挂载点目录，使挂载卷出现在目录列表中
+     */
+    public void createDirectories() throws IOException {
+        for (Volume volume : all) {
+            Files.createDirectories(volume.directory);
+        }
+        for (Volume volume : mounted) {
+            Path mountPoint = resolveOutside(volume, volume.prefix);
+            if (!Files.isDirectory(mountPoint)) {
+                Files.createDirectories(mountPoint);
+            }
+        }
+    }
+
+    /**
+     * 把协议路径解析为所在卷中的实际路径
+     * @param relativePath 去掉开头斜杠的协议路径
+     * @return 实际路径
+     */
+    public Path resolve(String relativePath) {
+        String path = normalize(relativePath);
+        for (Volume volume : mounted) {
+            if (path.equals(volume.prefix)) {
+                return volume.directory;
+            }
+            if (path.startsWith(volume.prefix + "/")) {
+                return volume.directory.resolve(path.substring(volume.prefix.length() + 1));
+            }
+        }
+        return rootVolume.directory.resolve(path);
+    }
+
+    /**
+     * 实际路径所在的卷
+     * @param path 实际路径
+     * @return 卷，路径不在任何卷中时返回null
+     */
+    public Volume volumeOf(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        for (Volume volume : mounted) {
+            if (absolute.startsWith(volume.directory)) {
+                return volume;
+            }
+        }
+        return absolute.startsWith(rootVolume.directory) ? rootVolume : null;
+    }
+
+    /**
+     * 实际路径对应的协议路径，如 /archive/a/b
+     * @param path 实际路径
+     * @return 协议路径，路径不在任何卷中时返回null
+     */
+    public String toProtocolPath(Path path) {
+        String relative = relativize(path);
+        return relative == null ? null : "/" + relative;
+    }
+
+    /**
+     * 实际路径对应的协议路径，不带开头斜杠，根目录为空串
+     * @param path 实际路径
+     * @return 相对路径，路径不在任何卷中时返回null
+     */
+    public String relativize(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        Volume volume = volumeOf(absolute);
+        if (volume == null) {
+            return null;
+        }
+        String relative = volume.directory.relativize(absolute).toString().replace('\\', '/');
+        if (volume.prefix.isEmpty()) {
+            return relative;
+        }
+        return relative.isEmpty() ? volume.prefix : volume.prefix + "/" + relative;
+    }
+
+    /**
+     * 挂载在某个目录子树中的卷，遍历整个子树时需要一并遍历
+     * @param path 目录的实际路径
+     * @return 挂载卷，不含路径本身所在的卷
+     */
+    public List<Volume> mountedUnder(Path path) {
+        String relative = relativize(path);
+        List<Volume> result = new ArrayList<>();
+        if (relative == null) {
+            return result;
+        }
+        for (Volume volume : mounted) {
+            if (relative.isEmpty() ? !volume.prefix.isEmpty() : volume.prefix.startsWith(relative + "/")) {
+                result.add(volume);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 路径是否为某个卷的根目录，卷根不能被删除或移动
+     */
+    public boolean isVolumeRoot(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        for (Volume volume : all) {
+            if (volume.directory.equals(absolute)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Volume getRootVolume() {
+        return rootVolume;
+    }
+
+    /**
+     * 所有卷，根卷在前
+     */
+    public List<Volume> getVolumes() {
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * 关闭各卷的I/O线程
+     */
+    public void shutdown() {
+        for (Volume volume : all) {
+            volume.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 挂载点在上级卷中的实际路径，不经过挂载卷自身的解析
+     */
+    private Path resolveOutside(Volume self, String prefix) {
+        for (Volume volume : mounted) {
+            if (volume != self && prefix.startsWith(volume.prefix + "/")) {
+                return volume.directory.resolve(prefix.substring(volume.prefix.length() + 1));
+            }
+        }
+        return rootVolume.directory.resolve(prefix);
+    }
+
+    private static String normalize(String path) {
+        String normalized = Paths.get(path.replace('\\', '/')).normalize().toString().replace('\\', '/');
+        while (normalized.startsWith("/")) {
+            normalized = normalized.substring(1);
+        }
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    /**
+     * I/O 操作
+     */
+    public interface IoTask<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * 一个存储卷
+     * 线程池的线程数和排队数都有上限，已满时提交者阻塞等待，而不是无限排队或拒绝
+     */
+    public static class Volume {
+        private final String prefix;
+        private final Path directory;
+        private final ThreadPoolExecutor executor;
+        private final Semaphore slots;
+        private final AtomicInteger pending = new AtomicInteger();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+
+        Volume(String prefix, Path directory, int threads, int queue) {
+            this.prefix = prefix;
+            this.directory = directory;
+            String name = prefix.isEmpty() ? "root" : prefix;
+            AtomicInteger counter = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "volume-io-" + name + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.slots = new Semaphore(threads + queue);
+        }
+
+        /**
+         * 提交I/O任务，线程和队列都满时阻塞
+         * @param task 任务
+         * @return 任务结果
+         */
+        public <T> Future<T> submit(IoTask<T> task) throws IOException {
+            long start = System.nanoTime();
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("等待卷I/O线程时被中断");
+            }
+            waitNanos.add(System.nanoTime() - start);
+            pending.incrementAndGet();
+            Callable<T> callable = () -> {
+                try {
+                    return task.run();
+                } finally {
+                    pending.decrementAndGet();
+                    completed.increment();
+                    slots.release();
+                }
+            };
+            try {
+                return executor.submit(callable);
+            } catch (RuntimeException e) {
+                pending.decrementAndGet();
+                slots.release();
+                throw new IOException("卷I/O线程已关闭", e);
+            }
+        }
+
+        /**
+         * 在卷的I/O线程中执行任务并等待结果
+         */
+        public <T> T call(IoTask<T> task) throws IOException {
+            return await(submit(task));
+        }
+
+        /**
+         * 等待已提交的任务完成，任务抛出的 IOException 原样抛出
+         */
+        public static <T> T await(Future<T> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                // 不取消任务，调用方须用 awaitQuietly 等它结束后才能归还任务使用的缓冲区
+                Thread.currentThread().interrupt();
+                throw new IOException("等待卷I/O完成时被中断");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+
+        /**
+         * 等待任务结束，忽略结果和异常，用于出错后确认任务不再使用缓冲区
+         * @param future 任务，为null时直接返回
+         */
+        public static void awaitQuietly(Future<?> future) {
+            if (future == null) {
+                return;
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException | CancellationException e) {
+                    break;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void recordRead(long bytes) {
+            bytesRead.add(bytes);
+        }
+
+        void recordWrite(long bytes) {
+            bytesWritten.add(bytes);
+        }
+
+        /**
+         * 挂载前缀，根卷为空串
+         */
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public Path getDirectory() {
+            return directory;
+        }
+
+        public int getThreads() {
+            return executor.getMaximumPoolSize();
+        }
+
+        /**
+         * 已提交未完成的任务数，包括执行中和排队中的
+         */
+        public int getPending() {
+            return pending.get();
+        }
+
+        public long getCompleted() {
+            return completed.sum();
+        }
+
+        public long getBytesRead() {
+            return bytesRead.sum();
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten.sum();
+        }
+
+        /**
+         * 提交者等待空闲槽位的累计时长
+         * @return 毫秒
+         */
+        public long getWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 令牌桶
+ * 允许透支：取令牌后余额为负时，调用方需等待余额恢复，
+ * 这样任意大小的数据块都能通过，长期平均速率仍等于设定值
+ */
+public class TokenBucket {
+    private long rate;          // 字节/秒，0表示不限
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * 构造函数
+     * @param rate 速率(字节/秒)，0表示不限
+     */
+    public TokenBucket(long rate) {
+        this.rate = rate;
+        this.tokens = rate;
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * 运行时调整速率
+     * @param rate 新速率(字节/秒)，0表示不限
+     */
+    public synchronized void setRate(long rate) {
+        refill();
+        this.rate = rate;
+        tokens = Math.min(tokens, rate);
+    }
+
+    /**
+     * 获取令牌，必要时阻塞等待
+     * @param bytes 字节数
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        long waitNanos = take(bytes);
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * 扣除令牌，不阻塞
+     * @param bytes 字节数
+     * @return 余额恢复到非负所需的纳秒数
+     */
+    public synchronized long take(long bytes) {
+        if (rate <= 0) {
+            return 0;
+        }
+        refill();
+        tokens -= bytes;
+        return nanosUntilAvailable();
+    }
+
+    /**
+     * 是否有可用令牌
+     */
+    public synchronized boolean hasTokens() {
+        if (rate <= 0) {
+            return true;
+        }
+        refill();
+        return tokens > 0;
+    }
+
+    /**
+     * 余额恢复为正所需的纳秒数
+     */
+    public synchronized long nanosUntilAvailable() {
+        if (rate <= 0 || tokens > 0) {
+            return 0;
+        }
+        return (long) ((-tokens + 1) * 1_000_000_000L / rate);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate > 0) {
+            tokens = Math.min(rate, tokens + (now - lastRefill) * (double) rate / 1_000_000_000L);
+        }
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,261 @@
+package server;
+
+import common.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Future;
+
+/**
+ * 分阶段传输
+ * 连接线程是网络阶段，只负责收发和组帧；磁盘读写是磁盘阶段，在文件所在卷的I/O线程中执行。
+ * 两个阶段之间是有界的在途数据块队列：下载时磁盘阶段最多预读 depth 块，网络阶段取走一块后才补读一块；
+ * 上传时最多有 depth 块等待写盘，写盘跟不上时网络阶段停止接收，由TCP流控把压力传回发送方。
+ * 数据块按顺序交付，缓冲区在两个阶段之间传递，不复制
+ */
+public final class TransferPipeline {
+    private TransferPipeline() {
+    }
+
+    /**
+     * 一个在途数据块
+     */
+    private static class Chunk {
+        private final ByteBuffer buffer;
+        private final Future<Integer> future;
+
+        Chunk(ByteBuffer buffer, Future<Integer> future) {
+            this.buffer = buffer;
+            this.future = future;
+        }
+    }
+
+    /**
+     * 下载的磁盘阶段：按顺序预读文件
+     */
+    public static class Reader implements AutoCloseable {
+        private final StorageVolumes.Volume volume;
+        private final FileChannel file;
+        private final long end;
+        private final int depth;
+        private final ArrayDeque<Chunk> inFlight = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private ByteBuffer current;
+        private long scheduled;
+        private boolean endOfFile;
+
+        /**
+         * 构造函数，立即开始预读
+         * @param volume 文件所在的卷
+         * @param file 文件
+         * @param position 起始位置
+         * @param length 读取的字节数
+         * @param depth 最多预读的块数
+         */
+        public Reader(StorageVolumes.Volume volume, FileChannel file, long position, long length, int depth) throws IOException {
+            this.volume = volume;
+            this.file = file;
+            this.scheduled = position;
+            this.end = position + length;
+            this.depth = Math.max(1, depth);
+            fill();
+        }
+
+        /**
+         * 取下一块数据，上一次取到的缓冲区随即交还磁盘阶段继续预读
+         * @return 可读的缓冲区，读完或文件被截断时返回null
+         */
+        public ByteBuffer next() throws IOException {
+            if (current != null) {
+                free.add(current);
+                current = null;
+            }
+            if (endOfFile) {
+                return null;
+            }
+            Chunk chunk = inFlight.poll();
+            if (chunk == null) {
+                return null;
+            }
+            int bytesRead;
+            try {
+                bytesRead = StorageVolumes.Volume.await(chunk.future);
+            } catch (IOException e) {
+                // 等待被中断时任务可能仍在使用缓冲区
+                StorageVolumes.Volume.awaitQuietly(chunk.future);
+                free.add(chunk.buffer);
+                throw e;
+            }
+            if (bytesRead <= 0) {
+                endOfFile = true;
+                free.add(chunk.buffer);
+                return null;
+            }
+            current = chunk.buffer;
+            current.flip();
+            fill();
+            return current;
+        }
+
+        /**
+         * 让在途块数补足到 depth
+         */
+        private void fill() throws IOException {
+            while (inFlight.size() < depth && scheduled < end && !endOfFile) {
+                ByteBuffer reused = free.poll();
+                ByteBuffer buffer = reused != null ? reused : BufferPool.shared().acquire(BufferPool.TRANSFER_SIZE);
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - scheduled));
+                long position = scheduled;
+                Future<Integer> future;
+                try {
+                    future = volume.submit(() -> {
+                        int total = 0;
+                        int n;
+                        while (buffer.hasRemaining() && (n = file.read(buffer, position + total)) > 0) {
+                            total += n;
+                        }
+                        volume.recordRead(total);
+                        return total;
+                    });
+                } catch (IOException e) {
+                    free.add(buffer);
+                    throw e;
+                }
+                inFlight.add(new Chunk(buffer, future));
+                scheduled += buffer.limit();
+            }
+        }
+
+        /**
+         * 等待在途的读取结束并归还所有缓冲区
+         */
+        @Override
+        public void close() {
+            for (Chunk chunk : inFlight) {
+                StorageVolumes.Volume.awaitQuietly(chunk.future);
+                BufferPool.shared().release(chunk.buffer);
+            }
+            inFlight.clear();
+            for (ByteBuffer buffer : free) {
+                BufferPool.shared().release(buffer);
+            }
+            free.clear();
+            BufferPool.shared().release(current);
+            current = null;
+        }
+    }
+
+    /**
+     * 上传的磁盘阶段：按顺序延后写盘
+     */
+    public static class Writer implements AutoCloseable {
+        private final StorageVolumes.Volume volume;
+        private final FileChannel file;
+        private final int depth;
+        private final ArrayDeque<Chunk> inFlight = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private ByteBuffer receiving;
+        private long position;
+
+        /**
+         * 构造函数
+         * @param volume 文件所在的卷
+         * @param file 文件
+         * @param position 起始位置
+         * @param depth 最多等待写盘的块数
+         */
+        public Writer(StorageVolumes.Volume volume, FileChannel file, long position, int depth) {
+            this.volume = volume;
+            this.file = file;
+            this.position = position;
+            this.depth = Math.max(1, depth);
+        }
+
+        /**
+         * 取一个空缓冲区供网络阶段接收数据
+         * 等待写盘的块已达 depth 时先等最早的一块写完，这就是传回网络阶段的背压
+         * @return 已清空的缓冲区
+         */
+        public ByteBuffer buffer() throws IOException {
+            ByteBuffer buffer = free.poll();
+            if (buffer == null) {
+                if (inFlight.size() >= depth) {
+                    buffer = complete(inFlight.poll());
+                } else {
+                    buffer = BufferPool.shared().acquire(BufferPool.TRANSFER_SIZE);
+                }
+            }
+            buffer.clear();
+            receiving = buffer;
+            return buffer;
+        }
+
+        /**
+         * 提交网络阶段已填充的缓冲区，写到上一块之后
+         * @param buffer 由 buffer() 取得并已切换为读模式的缓冲区
+         */
+        public void write(ByteBuffer buffer) throws IOException {
+            receiving = null;
+            long at = position;
+            int length = buffer.remaining();
+            Future<Integer> future;
+            try {
+                future = volume.submit(() -> {
+                    int total = 0;
+                    while (buffer.hasRemaining()) {
+                        total += file.write(buffer, at + total);
+                    }
+                    volume.recordWrite(total);
+                    return total;
+                });
+            } catch (IOException e) {
+                free.add(buffer);
+                throw e;
+            }
+            inFlight.add(new Chunk(buffer, future));
+            position += length;
+        }
+
+        /**
+         * 等待所有数据写盘
+         */
+        public void finish() throws IOException {
+            Chunk chunk;
+            while ((chunk = inFlight.poll()) != null) {
+                free.add(complete(chunk));
+            }
+        }
+
+        private ByteBuffer complete(Chunk chunk) throws IOException {
+            try {
+                StorageVolumes.Volume.await(chunk.future);
+            } catch (IOException e) {
+                StorageVolumes.Volume.awaitQuietly(chunk.future);
+                free.add(chunk.buffer);
+                throw e;
+            }
+            return chunk.buffer;
+        }
+
+        /**
+         * 等待在途的写入结束并归还所有缓冲区，未调用 finish 时写入的内容不完整
+         */
+        @Override
+        public void close() {
+            for (Chunk chunk : inFlight) {
+                StorageVolumes.Volume.awaitQuietly(chunk.future);
+                BufferPool.shared().release(chunk.buffer);
+            }
+            inFlight.clear();
+            for (ByteBuffer buffer : free) {
+                BufferPool.shared().release(buffer);
+            }
+            free.clear();
+            BufferPool.shared().release(receiving);
+            receiving = null;
+        }
+    }
+}